@@ -0,0 +1,152 @@
+package com.virtualhosts;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks the {@link DnsResponder} with an in-process client over the loopback interface:
+ * latency of A queries over UDP and TCP, refused names, and the QPS of several concurrent UDP clients.
+ * For comparison the linear scan of the hosts file, as the C library resolver does it, is measured too
+ * <p>
+ * Usage: DnsBenchmark [sizes] [clients] eg. DnsBenchmark 1000,100000 4
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class DnsBenchmark {
+
+    /**
+     * Entry point
+     *
+     * @param args Comma separated list of hosts file sizes and number of concurrent clients
+     * @throws Throwable If the benchmark fails
+     */
+    public static void main(String[] args) throws Throwable {
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        Harness.header();
+        for (int size : HostBenchmark.sizes(args.length > 0 ? args : new String[]{"1000,100000"})) {
+            run(size, clients);
+        }
+    }
+
+    /**
+     * Runs all DNS benchmarks on the hosts file of the given size
+     *
+     * @param size    Number of entries in the hosts file
+     * @param clients Number of concurrent clients for the QPS run
+     * @throws Throwable If the benchmark fails
+     */
+    static void run(int size, int clients) throws Throwable {
+        Fixtures fixtures = Fixtures.create(size).hosts();
+        DnsResponder responder = new DnsResponder(0);
+        try (DatagramSocket udp = new DatagramSocket();
+             Socket tcp = new Socket(InetAddress.getLoopbackAddress(), responder.getPort())) {
+            udp.connect(InetAddress.getLoopbackAddress(), responder.getPort());
+            udp.setSoTimeout(1000);
+            tcp.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tcp.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(tcp.getInputStream()));
+            byte[] buffer = new byte[512];
+            Harness.measure("dns.udp.a size=" + size, 20_000, 100_000,
+                    i -> udp(udp, DnsResponder.query(i, Fixtures.name(i % size), DnsResponder.A), buffer));
+            Harness.measure("dns.udp.refused size=" + size, 20_000, 100_000,
+                    i -> udp(udp, DnsResponder.query(i, "missing" + i + ".bench", DnsResponder.A), buffer));
+            Harness.measure("dns.udp.ptr size=" + size, 20_000, 100_000,
+                    i -> udp(udp, DnsResponder.query(i, (i % size & 0xFF) + "." + ((i % size) >> 8 & 0xFF) + "." + ((i % size) >> 16 & 0xFF) + ".10.in-addr.arpa", DnsResponder.PTR), buffer));
+            Harness.measure("dns.tcp.a size=" + size, 20_000, 100_000, i -> {
+                byte[] query = DnsResponder.query(i, Fixtures.name(i % size), DnsResponder.A);
+                out.writeShort(query.length);
+                out.write(query);
+                out.flush();
+                int length = in.readUnsignedShort();
+                in.readFully(buffer, 0, length);
+                return buffer[3];
+            });
+            //Last entry, the scan reads the whole file as the resolver would for it
+            String last = Fixtures.name(size - 1);
+            int scans = Harness.iterations(size, 20_000_000);
+            Harness.measure("hosts.linearScan size=" + size, scans / 5 + 1, scans, i -> scan(last));
+            qps(responder.getPort(), size, clients);
+        } finally {
+            responder.stop();
+            fixtures.delete();
+        }
+    }
+
+    /**
+     * Sends the query and waits for the response
+     *
+     * @param socket Connected socket
+     * @param query  Query
+     * @param buffer Buffer for the response
+     * @return Response code
+     * @throws IOException If the response didn't come
+     */
+    static int udp(DatagramSocket socket, byte[] query, byte[] buffer) throws IOException {
+        socket.send(new DatagramPacket(query, query.length));
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        socket.receive(packet);
+        return buffer[3] & 0x0F;
+    }
+
+    /**
+     * Looks the name up by reading the hosts file line by line
+     *
+     * @param name Domain name
+     * @return Line with the name, null if it isn't there
+     * @throws IOException If the file couldn't be read
+     */
+    static String scan(String name) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(Config.HOSTS), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int end = line.indexOf('#');
+                for (String token : (end < 0 ? line : line.substring(0, end)).trim().split("\\s+")) {
+                    if (token.equalsIgnoreCase(name)) return line;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Measures the queries per second of concurrent UDP clients for a few seconds
+     *
+     * @param port    Port of the responder
+     * @param size    Number of entries in the hosts file
+     * @param clients Number of clients
+     * @throws InterruptedException If interrupted while waiting for the clients
+     */
+    static void qps(int port, int size, int clients) throws InterruptedException {
+        AtomicLong answered = new AtomicLong();
+        long deadline = System.nanoTime() + 3_000_000_000L;
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            threads[c] = new Thread(() -> {
+                byte[] buffer = new byte[512];
+                try (DatagramSocket socket = new DatagramSocket()) {
+                    socket.connect(InetAddress.getLoopbackAddress(), port);
+                    socket.setSoTimeout(1000);
+                    for (int i = client; System.nanoTime() < deadline; i += clients) {
+                        udp(socket, DnsResponder.query(i, Fixtures.name(i % size), DnsResponder.A), buffer);
+                        answered.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            });
+            threads[c].start();
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.printf("%-40s %12.1f%n", "dns.udp.qps clients=" + clients + " size=" + size,
+                answered.get() / ((System.nanoTime() - start) / 1e9));
+    }
+}
@@ -0,0 +1,160 @@
+package com.virtualhosts;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Synthetic data sets for the benchmarks
+ * <p>
+ * Generates hosts files and sites-available trees in temporary directories
+ * and points {@link Config#HOSTS}, {@link Config#SITESAVAILABLE} and {@link Config#SITES} to them
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public final class Fixtures {
+
+    /**
+     * Root of the generated data set
+     */
+    private final Path root;
+
+    /**
+     * Number of generated entries
+     */
+    private final int size;
+
+    private Fixtures(Path root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Name of the generated domain
+     *
+     * @param i Entry number
+     * @return Domain name
+     */
+    public static String name(int i) {
+        return "site" + i + ".bench";
+    }
+
+    /**
+     * Creates an empty data set root and points the configuration to it
+     *
+     * @param size Number of entries
+     * @return Fixtures
+     * @throws IOException If the directories couldn't be created
+     */
+    public static Fixtures create(int size) throws IOException {
+        Path root = Files.createTempDirectory("virtualhosts-bench");
+        Files.createDirectories(root.resolve("sites-available"));
+        Files.createDirectories(root.resolve("www"));
+        Config.HOSTS = root.resolve("hosts").toString();
+        Config.SITESAVAILABLE = root.resolve("sites-available").toString() + File.separator;
+        Config.SITES = root.resolve("www").toString() + File.separator;
+        Host.reload();
+        return new Fixtures(root, size);
+    }
+
+    /**
+     * Writes hosts file with the given number of entries
+     *
+     * @return This
+     * @throws IOException If the file couldn't be written
+     */
+    public Fixtures hosts() throws IOException {
+        try (Writer writer = Files.newBufferedWriter(Paths.get(Config.HOSTS), StandardCharsets.UTF_8)) {
+            writer.write("127.0.0.1\tlocalhost\n::1\tip6-localhost ip6-loopback\n");
+            for (int i = 0; i < size; i++) {
+                writer.write("10." + ((i >> 16) & 0xFF) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF) + "\t" + name(i) + "\n");
+            }
+        }
+        Host.reload();
+        return this;
+    }
+
+    /**
+     * Writes one .conf file per virtual host into sites-available
+     *
+     * @return This
+     * @throws IOException If the files couldn't be written
+     */
+    public Fixtures sitesAvailable() throws IOException {
+        for (int i = 0; i < size; i++) {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(Config.SITESAVAILABLE, "site" + i), StandardCharsets.UTF_8)) {
+                writer.write(block(i));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes all virtual hosts into one shared file, the way XAMPP's httpd-vhosts.conf is used on Windows
+     *
+     * @return Path to the shared file
+     * @throws IOException If the file couldn't be written
+     */
+    public Path sharedConfig() throws IOException {
+        Path file = root.resolve("httpd-vhosts.conf");
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < size; i++) {
+                writer.write(block(i));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Virtual host block for the entry
+     *
+     * @param i Entry number
+     * @return Apache configuration
+     */
+    private static String block(int i) {
+        return "\r\n<VirtualHost 127.0.0.1:80>"
+                + "\r\n\tServerName " + name(i)
+                + "\r\n\tDocumentRoot " + Config.SITES + "site" + i
+                + "\r\n\tServerAlias www." + name(i)
+                + "\r\n</VirtualHost>";
+    }
+
+    /**
+     * @return Root of the generated data set
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @return Number of generated entries
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Deletes the generated data set
+     *
+     * @throws IOException If some of the files couldn't be deleted
+     */
+    public void delete() throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,173 @@
+package com.virtualhosts;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Minimal benchmark harness
+ * <p>
+ * Runs an operation in a loop after warmup and reports throughput, latency percentiles,
+ * allocated bytes per operation and garbage collections during the measurement
+ * (the numbers JMH would print with -prof gc)
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public final class Harness {
+
+    /**
+     * Benchmarked operation
+     */
+    public interface Operation {
+        /**
+         * Runs one invocation
+         *
+         * @param i Invocation number, can be used to pick different keys
+         * @return Any result, consumed so the JIT can't remove the work
+         * @throws Throwable Whatever the operation throws
+         */
+        Object run(int i) throws Throwable;
+    }
+
+    /**
+     * Sink for the results of the operations
+     */
+    private static volatile Object blackhole;
+
+    /**
+     * Standard output, operations under measurement print to nowhere
+     */
+    private static final PrintStream out = System.out;
+
+    /**
+     * Output stream that drops everything
+     */
+    private static final PrintStream silent = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    private Harness() {
+    }
+
+    /**
+     * Prints the header of the result table
+     */
+    public static void header() {
+        out.printf("%-40s %12s %10s %10s %10s %10s %12s %6s %8s%n",
+                "benchmark", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "alloc B/op", "gc", "gc ms");
+    }
+
+    /**
+     * Measures the operation
+     *
+     * @param name       Benchmark name
+     * @param warmup     Number of warmup invocations
+     * @param iterations Number of measured invocations
+     * @param operation  Operation to be measured
+     * @throws Throwable Whatever the operation throws
+     */
+    public static void measure(String name, int warmup, int iterations, Operation operation) throws Throwable {
+        System.setOut(silent);
+        long[] samples = new long[iterations];
+        long allocated;
+        long gcCount;
+        long gcTime;
+        long total;
+        try {
+            for (int i = 0; i < warmup; i++) {
+                blackhole = operation.run(i);
+            }
+            long gcCountStart = gcCount();
+            long gcTimeStart = gcTime();
+            long allocatedStart = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                long t = System.nanoTime();
+                blackhole = operation.run(warmup + i);
+                samples[i] = System.nanoTime() - t;
+            }
+            total = System.nanoTime() - start;
+            allocated = allocatedBytes() - allocatedStart;
+            gcCount = gcCount() - gcCountStart;
+            gcTime = gcTime() - gcTimeStart;
+        } finally {
+            System.setOut(out);
+        }
+        Arrays.sort(samples);
+        out.printf("%-40s %12.1f %10.1f %10.1f %10.1f %10.1f %12d %6d %8d%n",
+                name,
+                iterations / (total / 1e9),
+                percentile(samples, 0.50),
+                percentile(samples, 0.90),
+                percentile(samples, 0.99),
+                percentile(samples, 0.999),
+                allocated < 0 ? -1 : allocated / iterations,
+                gcCount,
+                gcTime);
+    }
+
+    /**
+     * Number of invocations that fit a time budget of roughly a few seconds for the given data size
+     *
+     * @param size   Number of entries in the data set
+     * @param budget Work units to spend, one unit is one entry touched
+     * @return Number of invocations between 5 and 100000
+     */
+    public static int iterations(int size, long budget) {
+        return (int) Math.max(5, Math.min(100_000, budget / Math.max(1, size)));
+    }
+
+    /**
+     * Percentile of sorted samples in microseconds
+     *
+     * @param sorted     Sorted samples in nanoseconds
+     * @param percentile Percentile between 0 and 1
+     * @return Value in microseconds
+     */
+    private static double percentile(long[] sorted, double percentile) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e3;
+    }
+
+    /**
+     * @return Bytes allocated by the current thread, -1 if not supported by the JVM
+     */
+    private static long allocatedBytes() {
+        var bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * @return Number of collections since the JVM start
+     */
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * @return Milliseconds spent in collections since the JVM start
+     */
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return time;
+    }
+}
@@ -0,0 +1,93 @@
+package com.virtualhosts;
+
+import java.net.InetAddress;
+
+/**
+ * Benchmarks for the {@link Host} hot paths: read, get, getAllHosts, find, create, update and delete,
+ * and the memory taken by the parsed hosts file
+ * <p>
+ * Usage: HostBenchmark [sizes] eg. HostBenchmark 1000,100000,1000000
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class HostBenchmark {
+
+    /**
+     * Entry point
+     *
+     * @param args Comma separated list of hosts file sizes
+     * @throws Throwable If the benchmark fails
+     */
+    public static void main(String[] args) throws Throwable {
+        Harness.header();
+        for (int size : sizes(args)) {
+            run(size);
+        }
+    }
+
+    /**
+     * Parses the sizes argument
+     *
+     * @param args Arguments
+     * @return Sizes of the data sets
+     */
+    static int[] sizes(String[] args) {
+        String value = args.length > 0 ? args[0] : "1000,100000,1000000";
+        String[] parts = value.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        return sizes;
+    }
+
+    /**
+     * Runs all host benchmarks on the data set of the given size
+     *
+     * @param size Number of entries in the hosts file
+     * @throws Throwable If the benchmark fails
+     */
+    static void run(int size) throws Throwable {
+        Fixtures fixtures = Fixtures.create(size).hosts();
+        try {
+            int reads = Harness.iterations(size, 20_000_000);
+            int writes = Harness.iterations(size, 5_000_000);
+            Harness.measure("host.read size=" + size, reads / 5 + 1, reads, i -> {
+                Host.reload();
+                return Host.getHostsFile();
+            });
+            HostsFile hosts = Host.getHostsFile();
+            System.out.printf("%-40s %8.1f MB store %8.1f MB file%n", "host.footprint size=" + size,
+                    hosts.getStoreMemory() / 1048576.0, hosts.getFile().length() / 1048576.0);
+            Harness.measure("host.get size=" + size, 10_000, 100_000,
+                    i -> Host.get(Fixtures.name(i % size)));
+            Harness.measure("host.getAllHosts size=" + size, reads / 5 + 1, reads,
+                    i -> Host.getAllHosts());
+            //First query builds the index, the measured ones only walk it
+            Harness.measure("host.findBySuffix size=" + size, 10_000, 100_000,
+                    i -> Host.findBySuffix(Fixtures.name(i % size)));
+            Harness.measure("host.findByAddress size=" + size, 10_000, 100_000,
+                    i -> Host.findByAddress(InetAddress.getByName("10." + ((i % size) >> 16 & 0xFF) + "." + ((i % size) >> 8 & 0xFF) + "." + (i % size & 0xFF))));
+            InetAddress address = InetAddress.getByName("10.255.0.1");
+            //create, update and delete run the same number of invocations, each one works on the previous one's hosts
+            Harness.measure("host.create size=" + size, writes / 5 + 1, writes, i -> {
+                Host host = new Host(address, "new" + i + ".bench");
+                host.write();
+                return host;
+            });
+            Harness.measure("host.update size=" + size, writes / 5 + 1, writes, i -> {
+                Host host = Host.get("new" + i + ".bench");
+                host.update(new Host(address, "updated" + i + ".bench"));
+                return host;
+            });
+            Harness.measure("host.delete size=" + size, writes / 5 + 1, writes, i -> {
+                Host host = Host.get("updated" + i + ".bench");
+                host.delete();
+                return host;
+            });
+        } finally {
+            fixtures.delete();
+        }
+    }
+}
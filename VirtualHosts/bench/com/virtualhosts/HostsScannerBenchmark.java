@@ -0,0 +1,143 @@
+package com.virtualhosts;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares parse throughput of {@link HostsScanner} with the old regex implementation of Host.read()
+ * on a generated blocklist-style hosts file
+ * <p>
+ * Usage: HostsScannerBenchmark [lines] [iterations]
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class HostsScannerBenchmark {
+
+    /**
+     * Entry point
+     *
+     * @param args Number of lines and number of measured iterations
+     * @throws IOException If the temporary hosts file couldn't be created
+     */
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        Path file = Files.createTempFile("hosts", ".bench");
+        file.toFile().deleteOnExit();
+        generate(file, lines);
+        byte[] bytes = Files.readAllBytes(file);
+        System.out.printf("Hosts file: %d lines, %.1f MB%n", lines, bytes.length / 1048576.0);
+
+        for (int i = 0; i < 3; i++) {
+            regex(file.toFile());
+            scanner(bytes);
+        }
+        long regex = 0;
+        long scanner = 0;
+        int sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            sink += regex(file.toFile());
+            regex += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sink += scanner(bytes);
+            scanner += System.nanoTime() - start;
+        }
+        report("regex", regex / iterations, bytes.length);
+        report("scanner", scanner / iterations, bytes.length);
+        System.out.println("(" + sink + ")");
+    }
+
+    /**
+     * Generates blocklist-style hosts file with comments, tabs and several aliases per line
+     *
+     * @param file  Destination
+     * @param lines Number of lines
+     * @throws IOException If the file couldn't be written
+     */
+    static void generate(Path file, int lines) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("# Generated blocklist\n127.0.0.1\tlocalhost\n::1\tip6-localhost ip6-loopback\n");
+            for (int i = 3; i < lines; i++) {
+                if (i % 100 == 0) {
+                    writer.write("# section " + i + "\n");
+                } else if (i % 10 == 0) {
+                    writer.write("0.0.0.0 ads" + i + ".example.com www.ads" + i + ".example.com # tracker\n");
+                } else {
+                    writer.write("0.0.0.0\tads" + i + ".example.com\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Scans the content with the hand-written scanner
+     *
+     * @param bytes Content of the hosts file
+     * @return Number of names found
+     */
+    static int scanner(byte[] bytes) {
+        int count = 0;
+        byte[] address = new byte[16];
+        HostsScanner scanner = new HostsScanner(bytes, 0, bytes.length);
+        while (scanner.nextLine()) {
+            if (scanner.parseAddress(address) == 0) continue;
+            while (scanner.nextName()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Old implementation: BufferedReader lines matched with regex and split
+     *
+     * @param file Hosts file
+     * @return Number of names found
+     * @throws IOException If the file couldn't be read
+     */
+    static int regex(File file) throws IOException {
+        Map<String, InetAddress> map = new HashMap<>();
+        Pattern regex = Pattern.compile("\\n?(\\d{0,3}\\.\\d{0,3}\\.\\d{0,3}\\.\\d{0,3})(\\t+|\\s*)(.*)\\n?");
+        byte[] bytes = new byte[4];
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = regex.matcher(line);
+                if (!matcher.matches()) continue;
+                String[] ip = matcher.group(1).split("\\.");
+                for (int i = 0; i < ip.length; i++) {
+                    bytes[i] = (byte) Integer.parseInt(ip[i]);
+                }
+                try {
+                    map.put(matcher.group(3), InetAddress.getByAddress(bytes));
+                } catch (UnknownHostException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        }
+        return map.size();
+    }
+
+    /**
+     * Prints the result
+     *
+     * @param name  Implementation name
+     * @param nanos Average time per parse
+     * @param bytes Size of the file
+     */
+    private static void report(String name, long nanos, int bytes) {
+        System.out.printf("%-8s %8.2f ms/op %8.1f MB/s%n", name, nanos / 1e6, bytes / 1048576.0 / (nanos / 1e9));
+    }
+}
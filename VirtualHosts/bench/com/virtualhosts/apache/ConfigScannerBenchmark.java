@@ -0,0 +1,62 @@
+package com.virtualhosts.apache;
+
+import com.virtualhosts.Config;
+import com.virtualhosts.Fixtures;
+
+import java.io.File;
+
+/**
+ * Benchmark of the cold index rebuild with different number of scanner workers
+ * <p>
+ * Usage: ConfigScannerBenchmark [sizes] [workers] eg. ConfigScannerBenchmark 10000,100000 1,2,4,8
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class ConfigScannerBenchmark {
+
+    /**
+     * Number of rebuilds measured for every configuration, the first one is warmup
+     */
+    private static final int ROUNDS = 4;
+
+    /**
+     * Entry point
+     *
+     * @param args Comma separated list of sites-available sizes and comma separated list of worker counts
+     * @throws Throwable If the benchmark fails
+     */
+    public static void main(String[] args) throws Throwable {
+        String sizes = args.length > 0 ? args[0] : "10000,100000";
+        String workers = args.length > 1 ? args[1] : "1," + Runtime.getRuntime().availableProcessors();
+        for (String size : sizes.split(",")) {
+            run(Integer.parseInt(size.trim()), workers.split(","));
+        }
+    }
+
+    /**
+     * Rebuilds the index of the data set with every worker count
+     *
+     * @param size    Number of virtual hosts, one file each
+     * @param workers Worker counts
+     * @throws Throwable If the benchmark fails
+     */
+    static void run(int size, String[] workers) throws Throwable {
+        Fixtures fixtures = Fixtures.create(size).sitesAvailable();
+        try {
+            File root = new File(Config.SITESAVAILABLE);
+            for (String count : workers) {
+                int parallelism = Integer.parseInt(count.trim());
+                VirtualHostIndex index = new VirtualHostIndex(root, new ConfigScanner(parallelism));
+                for (int round = 0; round < ROUNDS; round++) {
+                    ConfigScanner.Stats stats = index.rebuild();
+                    if (round > 0) {
+                        System.out.printf("index.rebuild size=%d workers=%d  %s%n", size, parallelism, stats);
+                    }
+                }
+            }
+        } finally {
+            fixtures.delete();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.virtualhosts.apache;
+
+import com.virtualhosts.Config;
+import com.virtualhosts.Fixtures;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark of the document root provisioning: empty roots, roots copied from a skeleton and roots hard linked to it,
+ * with different number of workers. The sequential mkdirs the batch did before is measured for comparison
+ * <p>
+ * Usage: DocumentRootBenchmark [sites] [workers] eg. DocumentRootBenchmark 1000,10000 1,4,8
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class DocumentRootBenchmark {
+
+    /**
+     * Entry point
+     *
+     * @param args Comma separated list of site counts and comma separated list of worker counts
+     * @throws Throwable If the benchmark fails
+     */
+    public static void main(String[] args) throws Throwable {
+        String sizes = args.length > 0 ? args[0] : "1000,10000";
+        String workers = args.length > 1 ? args[1] : "1," + Runtime.getRuntime().availableProcessors();
+        for (String size : sizes.split(",")) {
+            run(Integer.parseInt(size.trim()), workers.split(","));
+        }
+    }
+
+    /**
+     * Provisions the given number of sites in every mode and with every worker count
+     *
+     * @param size    Number of sites
+     * @param workers Worker counts
+     * @throws Throwable If the benchmark fails
+     */
+    static void run(int size, String[] workers) throws Throwable {
+        Fixtures fixtures = Fixtures.create(size);
+        try {
+            Path skeleton = skeleton(fixtures.getRoot().resolve("skeleton"));
+            int round = 0;
+            long start = System.nanoTime();
+            for (File directory : roots(size, round++)) {
+                directory.mkdirs();
+            }
+            System.out.printf("documentRoot.mkdirs size=%d  %.1f ms - %.0f sites/s%n", size,
+                    (System.nanoTime() - start) / 1e6, size * 1e9 / (System.nanoTime() - start));
+            for (String count : workers) {
+                int parallelism = Integer.parseInt(count.trim());
+                String[][] modes = {{"empty", null, "false"}, {"copy", skeleton.toString(), "false"}, {"link", skeleton.toString(), "true"}};
+                for (String[] mode : modes) {
+                    DocumentRootProvisioner provisioner = new DocumentRootProvisioner(mode[1], Boolean.parseBoolean(mode[2]), null, "755", null, parallelism);
+                    System.out.printf("documentRoot.%s size=%d workers=%d  %s%n", mode[0], size, parallelism,
+                            provisioner.provision(roots(size, round++)));
+                }
+            }
+        } finally {
+            fixtures.delete();
+        }
+    }
+
+    /**
+     * Document roots of one round, every round gets its own folder so nothing exists yet
+     *
+     * @param size  Number of sites
+     * @param round Round
+     * @return Document roots
+     */
+    private static List<File> roots(int size, int round) {
+        List<File> roots = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            roots.add(new File(Config.getSite("round" + round + File.separator + "site" + i)));
+        }
+        return roots;
+    }
+
+    /**
+     * Writes a skeleton like the one of a small PHP site: 8 files in 4 directories, about 200 KB
+     *
+     * @param skeleton Directory
+     * @return Directory
+     * @throws Throwable If the skeleton couldn't be written
+     */
+    private static Path skeleton(Path skeleton) throws Throwable {
+        Random random = new Random(42);
+        Files.createDirectories(skeleton.resolve("public/css"));
+        Files.createDirectories(skeleton.resolve("public/js"));
+        Files.createDirectories(skeleton.resolve("public/img"));
+        Files.write(skeleton.resolve("public/index.php"), "<?php ?>\n".getBytes());
+        Files.write(skeleton.resolve("public/.htaccess"), "RewriteEngine On\n".getBytes());
+        Files.write(skeleton.resolve("public/robots.txt"), "User-agent: *\n".getBytes());
+        String[] files = {"public/css/site.css", "public/js/app.js", "public/img/logo.png", "public/img/hero.jpg", "README"};
+        int[] sizes = {20_000, 50_000, 10_000, 120_000, 1_000};
+        for (int i = 0; i < files.length; i++) {
+            byte[] bytes = new byte[sizes[i]];
+            random.nextBytes(bytes);
+            Files.write(skeleton.resolve(files[i]), bytes);
+        }
+        return skeleton;
+    }
+}
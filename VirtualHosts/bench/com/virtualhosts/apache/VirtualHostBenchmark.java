@@ -0,0 +1,127 @@
+package com.virtualhosts.apache;
+
+import com.virtualhosts.Fixtures;
+import com.virtualhosts.Harness;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks for the {@link VirtualHost} hot paths: toString, hostExits and create,
+ * and the bulk rendering of {@link VirtualHostTemplate} into a channel
+ * <p>
+ * Usage: VirtualHostBenchmark [sizes] eg. VirtualHostBenchmark 1000,100000
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class VirtualHostBenchmark {
+
+    /**
+     * Entry point
+     *
+     * @param args Comma separated list of sites-available sizes
+     * @throws Throwable If the benchmark fails
+     */
+    public static void main(String[] args) throws Throwable {
+        String value = args.length > 0 ? args[0] : "1000,100000,1000000";
+        Harness.header();
+        for (String size : value.split(",")) {
+            run(Integer.parseInt(size.trim()));
+        }
+        render(100_000, 10);
+    }
+
+    /**
+     * Renders the virtual hosts into a channel that drops the bytes, once with the template
+     * and once with toString, and prints the throughput
+     *
+     * @param count  Number of virtual hosts
+     * @param rounds Number of measured rounds, as many are run before as warmup
+     * @throws Throwable If the benchmark fails
+     */
+    static void render(int count, int rounds) throws Throwable {
+        InetAddress address = InetAddress.getLoopbackAddress();
+        List<VirtualHost> hosts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            hosts.add(new VirtualHost(Fixtures.name(i), address, i % 2 == 0 ? "public" : null, null, "www." + Fixtures.name(i), i % 3 == 0));
+        }
+        VirtualHostTemplate template = VirtualHostTemplate.getInstance();
+        WritableByteChannel sink = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer source) {
+                int length = source.remaining();
+                source.position(source.limit());
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        long bytes = 0;
+        long start = 0;
+        for (int round = -rounds; round < rounds; round++) {
+            if (round == 0) start = System.nanoTime();
+            bytes = template.render(hosts, sink);
+        }
+        report("render template n=" + count, (System.nanoTime() - start) / rounds, bytes);
+        for (int round = -rounds; round < rounds; round++) {
+            if (round == 0) start = System.nanoTime();
+            bytes = 0;
+            for (VirtualHost host : hosts) {
+                bytes += sink.write(ByteBuffer.wrap(host.toString().getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        report("render toString n=" + count, (System.nanoTime() - start) / rounds, bytes);
+    }
+
+    /**
+     * Prints the result
+     *
+     * @param name  Benchmark name
+     * @param nanos Average time per round
+     * @param bytes Bytes rendered per round
+     */
+    private static void report(String name, long nanos, long bytes) {
+        System.out.printf("%-40s %8.2f ms/op %8.1f MB/s%n", name, nanos / 1e6, bytes / 1048576.0 / (nanos / 1e9));
+    }
+
+    /**
+     * Runs all virtual host benchmarks on the data set of the given size
+     *
+     * @param size Number of virtual hosts
+     * @throws Throwable If the benchmark fails
+     */
+    static void run(int size) throws Throwable {
+        Fixtures fixtures = Fixtures.create(size).hosts().sitesAvailable();
+        try {
+            InetAddress address = InetAddress.getLoopbackAddress();
+            VirtualHost template = new VirtualHost(Fixtures.name(size / 2), address, null, null, "www." + Fixtures.name(size / 2), false);
+            Harness.measure("vhost.toString size=" + size, 10_000, 100_000, i -> template.toString());
+
+            File shared = fixtures.sharedConfig().toFile();
+            int scans = Harness.iterations(size, 5_000_000);
+            Harness.measure("vhost.hostExits shared size=" + size, scans / 5 + 1, scans, i -> template.hostExits(shared));
+
+            int writes = Harness.iterations(size, 50_000_000);
+            Harness.measure("vhost.create size=" + size, writes / 5 + 1, writes, i -> {
+                VirtualHost host = new VirtualHost("new" + i + ".bench", address, null, null, null, false);
+                host.write();
+                return host;
+            });
+        } finally {
+            fixtures.delete();
+        }
+    }
+}
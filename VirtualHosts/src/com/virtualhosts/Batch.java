@@ -0,0 +1,534 @@
+package com.virtualhosts;
+
+import com.virtualhosts.apache.ConfigEditor;
+import com.virtualhosts.apache.DocumentRootProvisioner;
+import com.virtualhosts.apache.ReloadScheduler;
+import com.virtualhosts.apache.VirtualHost;
+import com.virtualhosts.apache.VirtualHostIndex;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Batch manifest - many host and virtual-host operations applied in one pass
+ * <p>
+ * Every line of the manifest is one operation written the same way as the console arguments, without --command:
+ * <pre>
+ * # comment
+ * host create --server-name example.com --ip-address 127.0.0.1
+ * host update --get example.com --server-name example.org
+ * host delete --get example.org
+ * virtual-host create --server-name example.com --alias www.example.com
+ * virtual-host update --get example.com --document-root /var/www/example
+ * virtual-host delete --get example.com
+ * </pre>
+ * All operations are validated up front against the in-memory state,
+ * then applied to it and the hosts file and every affected config file are written exactly once.
+ * Callers hold lock() from validation to the end of apply().
+ * When the config test before the reload fails, the written config files and the changed host entries are rolled back
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class Batch {
+
+    /**
+     * Operations in manifest order
+     */
+    private final List<Operation> operations = new ArrayList<>();
+
+    /**
+     * Manifest line of every operation, used in error messages
+     */
+    private final List<Integer> lines = new ArrayList<>();
+
+    /**
+     * Lock of the in-memory state held while the batch is rolled back, null if there is none
+     */
+    private Lock guard;
+
+    /**
+     * Parses the manifest
+     *
+     * @param reader Manifest content
+     * @return Parsed batch
+     * @throws Exception Throws exception if some of the lines are not valid operations
+     */
+    public static Batch parse(Reader reader) throws Exception {
+        Batch batch = new Batch();
+        BufferedReader buffered = new BufferedReader(reader);
+        String line;
+        int number = 0;
+        while ((line = buffered.readLine()) != null) {
+            number++;
+            String[] tokens = tokenize(line);
+            if (tokens.length == 0) continue;
+            String[] args = new String[tokens.length + 1];
+            args[0] = "--command";
+            System.arraycopy(tokens, 0, args, 1, tokens.length);
+            Operation operation;
+            try {
+                operation = Operation.parse(args);
+            } catch (Exception e) {
+                throw new Exception("Line " + number + ": " + e.getMessage());
+            }
+            if (operation != null && operation.isListing()) {
+                throw new Exception("Line " + number + ": " + operation.getAction() + " can't be used in the batch");
+            }
+            batch.add(operation, number);
+        }
+        return batch;
+    }
+
+    /**
+     * Splits the manifest line into arguments
+     * Double quotes group arguments with spaces, # starts a comment
+     *
+     * @param line Manifest line
+     * @return Arguments
+     */
+    static String[] tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        boolean any = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                any = true;
+            } else if (!quoted && c == '#') {
+                break;
+            } else if (!quoted && Character.isWhitespace(c)) {
+                if (any) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                    any = false;
+                }
+            } else {
+                token.append(c);
+                any = true;
+            }
+        }
+        if (any) tokens.add(token.toString());
+        return tokens.toArray(new String[0]);
+    }
+
+    /**
+     * Sets the lock of the in-memory state that the rollback takes first, eg. the write lock of the daemon
+     *
+     * @param guard Lock, null for none
+     */
+    public void setGuard(Lock guard) {
+        this.guard = guard;
+    }
+
+    /**
+     * Adds the operation at the end of the batch
+     *
+     * @param operation Operation
+     * @param line      Manifest line
+     */
+    public void add(Operation operation, int line) {
+        operations.add(operation);
+        lines.add(line);
+    }
+
+    /**
+     * @return Operations in manifest order
+     */
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * Locks every domain of the batch and the hosts file
+     * Batch should be validated and applied under the lock, so no other process changes the files in between
+     *
+     * @return Handle that releases the locks
+     * @throws IOException If the lock file couldn't be created or locked
+     */
+    public Locks.Handle lock() throws IOException {
+        List<String> names = new ArrayList<>();
+        for (Operation operation : operations) {
+            names.add(operation.getServerName());
+            names.add(operation.getGet());
+        }
+        return Host.getCache().lock(names.toArray(new String[0]));
+    }
+
+    /**
+     * Validates all operations against the current state as if the previous ones were already applied
+     *
+     * @return List of errors, empty if the batch can be applied
+     */
+    public List<String> validate() {
+        List<String> errors = new ArrayList<>();
+        HostsFile hosts = Host.getHostsFile();
+        if (hosts == null) {
+            errors.add("Hosts file couldn't be read");
+            return errors;
+        }
+        //Names created and deleted by the previous operations of the batch
+        Set<String> created = new HashSet<>();
+        Set<String> deleted = new HashSet<>();
+        Set<String> configs = new HashSet<>();
+        //Virtual hosts created, updated or deleted by the previous operations of the batch
+        Set<String> changed = new HashSet<>();
+        //ServerName and ServerAlias of the virtual hosts created or renamed by the previous operations of the batch
+        Set<String> claimed = new HashSet<>();
+        for (int i = 0; i < operations.size(); i++) {
+            Operation operation = operations.get(i);
+            String prefix = "Line " + lines.get(i) + ": ";
+            boolean host = operation.getType().equals("host");
+            String get = operation.getGet();
+            String name = operation.getServerName();
+            if (!operation.getAction().equals("create") && get == null) {
+                errors.add(prefix + "you must provide us with --get parameter");
+                continue;
+            }
+            if (!operation.getAction().equals("delete") && name == null && (host || operation.getAction().equals("create"))) {
+                errors.add(prefix + "you must provide us with --server-name parameter");
+                continue;
+            }
+            if (!host) {
+                if (!operation.getAction().equals("create")) {
+                    //Every section is changed at most once, ranges in the index are of the files as they are now
+                    if (!changed.add(get.toLowerCase(Locale.ROOT))) {
+                        errors.add(prefix + "Virtual host is already changed in this batch");
+                        continue;
+                    }
+                    try {
+                        if (VirtualHostIndex.getInstance().find(get) == null) {
+                            errors.add(prefix + "Wanted virtual host is not found");
+                            continue;
+                        }
+                    } catch (IOException e) {
+                        errors.add(prefix + e.getMessage());
+                        continue;
+                    }
+                    if (operation.getAction().equals("update")) {
+                        String clash = claim(claimed, name != null && !name.equalsIgnoreCase(get) ? name : null, operation.getAlias());
+                        if (clash != null) {
+                            errors.add(prefix + "Virtual host " + clash + " is already used in this batch");
+                        }
+                    }
+                    continue;
+                }
+                if (!changed.add(name.toLowerCase(Locale.ROOT))) {
+                    errors.add(prefix + "Virtual host is already changed in this batch");
+                    continue;
+                }
+                try {
+                    String existing = virtualHost(operation).existingName();
+                    if (existing != null) {
+                        errors.add(prefix + "Virtual host " + existing + " already exists");
+                        continue;
+                    }
+                    String clash = claim(claimed, name, operation.getAlias());
+                    if (clash != null) {
+                        errors.add(prefix + "Virtual host " + clash + " is already used in this batch");
+                        continue;
+                    }
+                } catch (IOException e) {
+                    errors.add(prefix + e.getMessage());
+                    continue;
+                }
+                File config = virtualHost(operation).getConfigFile();
+                if (config == null) {
+                    errors.add(prefix + "This type of operating system is not supported");
+                } else if (Config.getOs() == OsType.Linux && (config.exists() || !configs.add(config.getPath()))) {
+                    errors.add(prefix + "Config file exits");
+                }
+                continue;
+            }
+            switch (operation.getAction()) {
+                case "create":
+                    if (exists(hosts, created, deleted, name)) {
+                        errors.add(prefix + "Host already exists");
+                    } else {
+                        created.add(name);
+                        deleted.remove(name);
+                    }
+                    break;
+                case "update":
+                case "delete":
+                    if (!exists(hosts, created, deleted, get)) {
+                        errors.add(prefix + "Wanted host is not found");
+                        break;
+                    }
+                    created.remove(get);
+                    deleted.add(get);
+                    if (operation.getAction().equals("update")) {
+                        if (exists(hosts, created, deleted, name)) {
+                            errors.add(prefix + "Host already exists");
+                        } else {
+                            created.add(name);
+                            deleted.remove(name);
+                        }
+                    }
+                    break;
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Claims the ServerName and the aliases for a virtual host of the batch
+     * Nothing is claimed when one of them is already taken
+     *
+     * @param claimed Names claimed by the previous operations, lower case
+     * @param name    ServerName, null if it isn't changed
+     * @param alias   Aliases separated by spaces, null if they aren't changed
+     * @return Name that is already claimed, null if all of them have been claimed now
+     */
+    private static String claim(Set<String> claimed, String name, String alias) {
+        List<String> names = new ArrayList<>();
+        if (name != null) names.add(name.toLowerCase(Locale.ROOT));
+        if (alias != null) {
+            for (String each : alias.trim().split("\\s+")) {
+                if (!each.isEmpty()) names.add(each.toLowerCase(Locale.ROOT));
+            }
+        }
+        for (String each : names) {
+            if (claimed.contains(each)) return each;
+        }
+        claimed.addAll(names);
+        return null;
+    }
+
+    /**
+     * Checks if the host exists after the previous operations of the batch
+     *
+     * @param hosts   Hosts file
+     * @param created Names created by the batch
+     * @param deleted Names deleted by the batch
+     * @param name    Domain name
+     * @return Whether the host exists
+     */
+    private static boolean exists(HostsFile hosts, Set<String> created, Set<String> deleted, String name) {
+        return created.contains(name) || (hosts.contains(name) && !deleted.contains(name));
+    }
+
+    /**
+     * Creates the virtual host for the operation
+     *
+     * @param operation Operation
+     * @return Virtual host
+     */
+    private static VirtualHost virtualHost(Operation operation) {
+        return new VirtualHost(operation.getServerName(), operation.getAddress(), operation.getPublicFolder(),
+                operation.getDocumentRoot(), operation.getAlias(), operation.getRewriteEngine());
+    }
+
+    /**
+     * Creates the updated virtual host, parameters that are not given are taken from the existing one
+     *
+     * @param operation Operation
+     * @param old       Existing virtual host
+     * @return Virtual host
+     */
+    static VirtualHost virtualHost(Operation operation, VirtualHost old) {
+        String documentRoot = operation.getDocumentRoot();
+        if (documentRoot == null && operation.getPublicFolder() == null) {
+            //Existing DocumentRoot already ends with the public folder
+            documentRoot = old.getDocumentRoot();
+        }
+        return new VirtualHost(
+                operation.getServerName() != null ? operation.getServerName() : old.getServerName(),
+                operation.getAddress() != null ? operation.getAddress() : old.getAddress(),
+                operation.getPublicFolder(),
+                documentRoot,
+                operation.getAlias() != null ? operation.getAlias() : old.getAlias(),
+                operation.getRewriteEngine() != null ? operation.getRewriteEngine() : old.getRewriteEngine());
+    }
+
+    /**
+     * Address of the operation, loopback if it is not given
+     *
+     * @param operation Operation
+     * @return Ip address
+     */
+    private static InetAddress address(Operation operation) {
+        return operation.getAddress() == null ? InetAddress.getLoopbackAddress() : operation.getAddress();
+    }
+
+    /**
+     * Applies all operations to the in-memory state and writes the hosts file and every affected config file once
+     * Batch must be validated before it is applied.
+     * When the hosts file has a journal attached, hosts changes are group committed to the journal instead
+     *
+     * @return Completed when all changes are durable
+     * @throws IOException This exception is thrown when user doesn't have access to write to the files
+     */
+    public CompletableFuture<Void> apply() throws IOException {
+        HostsFile hosts = Host.getHostsFile();
+        if (hosts == null) {
+            throw new IOException("Hosts file couldn't be read");
+        }
+        boolean hostsChanged = false;
+        ConfigEditor configs = new ConfigEditor();
+        List<File> directories = new ArrayList<>();
+        //Host entries as they were before the batch, for the rollback
+        Map<String, InetAddress> before = new LinkedHashMap<>();
+        for (Operation operation : operations) {
+            if (operation.getType().equals("host")) {
+                touch(before, hosts, operation.getGet());
+                touch(before, hosts, operation.getServerName());
+                switch (operation.getAction()) {
+                    case "create":
+                        hosts.add(address(operation), operation.getServerName());
+                        break;
+                    case "update":
+                        InetAddress address = operation.getAddress() == null
+                                ? hosts.get(operation.getGet()).getAddress() : operation.getAddress();
+                        hosts.replace(operation.getGet(), address, operation.getServerName());
+                        break;
+                    case "delete":
+                        hosts.remove(operation.getGet());
+                        break;
+                }
+                hostsChanged = true;
+                continue;
+            }
+            VirtualHost old = null;
+            if (!operation.getAction().equals("create")) {
+                old = VirtualHost.get(operation.getGet());
+                if (old == null) {
+                    throw new IOException("Wanted virtual host is not found");
+                }
+            }
+            switch (operation.getAction()) {
+                case "create":
+                case "update":
+                    VirtualHost virtualHost = old == null ? virtualHost(operation) : virtualHost(operation, old);
+                    touch(before, hosts, old == null ? null : old.getServerName());
+                    touch(before, hosts, virtualHost.getServerName());
+                    if (old == null) {
+                        configs.append(virtualHost.getConfigFile(), virtualHost);
+                    } else {
+                        configs.update(old, virtualHost);
+                        HostsFile.Entry entry = hosts.get(old.getServerName());
+                        if (entry != null && (!old.getServerName().equals(virtualHost.getServerName())
+                                || !entry.getAddress().equals(virtualHost.getAddress()))) {
+                            hosts.remove(old.getServerName());
+                            hostsChanged = true;
+                        }
+                    }
+                    directories.add(new File(virtualHost.getDocumentRoot()));
+                    if (!hosts.contains(virtualHost.getServerName())) {
+                        hosts.add(virtualHost.getHost().getAddress(), virtualHost.getServerName());
+                        hostsChanged = true;
+                    }
+                    break;
+                case "delete":
+                    touch(before, hosts, old.getServerName());
+                    configs.remove(old);
+                    if (hosts.contains(old.getServerName())) {
+                        hosts.remove(old.getServerName());
+                        hostsChanged = true;
+                    }
+                    break;
+            }
+        }
+
+        int written = configs.getFiles().size();
+        configs.write();
+        int reloaded = 0;
+        for (Operation operation : operations) {
+            if (operation.getType().equals("virtual-host")) reloaded++;
+        }
+        reload(reloaded, rollback(configs, before, hosts, guard));
+        createDirectories(directories);
+        CompletableFuture<Void> durable = hostsChanged ? hosts.commit() : CompletableFuture.completedFuture(null);
+        System.out.println(operations.size() + " operations applied, " + written + " config files written");
+        return durable;
+    }
+
+    /**
+     * Schedules the reload of Apache after the virtual hosts have changed
+     * Sections are already checked in-process, the whole config is tested by the scheduler right before the reload
+     *
+     * @param changed  Number of changed virtual hosts, nothing is done for 0
+     * @param rollback Undoes the changes when the config test fails
+     */
+    static void reload(int changed, ReloadScheduler.Rollback rollback) {
+        if (changed == 0) return;
+        //Apache is reloaded once for the whole batch, together with the changes of other batches close to it
+        ReloadScheduler.getInstance().changed(changed, rollback);
+    }
+
+    /**
+     * Remembers the host entry as it is before the first change of the batch
+     *
+     * @param before Addresses before the batch by name, null value if the name wasn't defined
+     * @param hosts  Hosts file
+     * @param name   Domain, null is skipped
+     */
+    public static void touch(Map<String, InetAddress> before, HostsFile hosts, String name) {
+        if (name == null || before.containsKey(name)) return;
+        HostsFile.Entry entry = hosts.get(name);
+        before.put(name, entry == null ? null : entry.getAddress());
+    }
+
+    /**
+     * Creates the rollback of the applied changes
+     * Config files are restored by the editor, host entries are set back to their address before the changes,
+     * but only the ones that nobody has changed since. Locks are taken in the order the changes took them
+     *
+     * @param configs Editor that has written the config files
+     * @param before  Addresses before the changes by name, null value if the name wasn't defined
+     * @param hosts   Hosts file after the changes
+     * @param guard   Lock of the in-memory state, null if there is none
+     * @return Rollback
+     */
+    public static ReloadScheduler.Rollback rollback(ConfigEditor configs, Map<String, InetAddress> before, HostsFile hosts, Lock guard) {
+        Map<String, InetAddress> after = new HashMap<>();
+        for (String name : before.keySet()) {
+            HostsFile.Entry entry = hosts.get(name);
+            after.put(name, entry == null ? null : entry.getAddress());
+        }
+        return () -> {
+            if (guard != null) guard.lock();
+            try {
+                Locks.Handle files = Host.getCache().lock(before.keySet().toArray(new String[0]));
+                try {
+                    configs.undo();
+                    HostsFile current = Host.getHostsFile();
+                    if (current == null) {
+                        throw new IOException("Hosts file couldn't be read");
+                    }
+                    boolean changed = false;
+                    for (var name : before.entrySet()) {
+                        HostsFile.Entry entry = current.get(name.getKey());
+                        InetAddress now = entry == null ? null : entry.getAddress();
+                        if (!Objects.equals(now, after.get(name.getKey())) || Objects.equals(now, name.getValue())) {
+                            continue;
+                        }
+                        if (now != null) current.remove(name.getKey());
+                        if (name.getValue() != null) current.add(name.getValue(), name.getKey());
+                        changed = true;
+                    }
+                    if (changed) current.commit();
+                } finally {
+                    files.close();
+                }
+            } finally {
+                if (guard != null) guard.unlock();
+            }
+        };
+    }
+
+    /**
+     * Creates the document roots that don't exist yet, in parallel and seeded from the skeleton
+     *
+     * @param directories Document roots
+     */
+    static void createDirectories(List<File> directories) {
+        if (directories.isEmpty()) return;
+        System.out.println("Document roots: " + DocumentRootProvisioner.getInstance().provision(directories));
+    }
+}
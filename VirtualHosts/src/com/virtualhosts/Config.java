@@ -3,6 +3,7 @@ package com.virtualhosts;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Locale;
 
 /**
  * Class for managing configuration of the program
@@ -37,17 +38,34 @@ public class Config implements Serializable {
     private Config() {
     }
 
+    /**
+     * os.name the OS version was last detected for
+     */
+    private static volatile String osName;
+
+    /**
+     * Last detected OS version, written before osName
+     */
+    private static volatile OsType osType;
+
     /**
      * Gets the OS version
+     * Detected again only when os.name changes
      *
      * @return OsType Enum
      */
     public static OsType getOs() {
-        String os = System.getProperty("os.name");
-        if (os.toLowerCase().contains("windows")) return OsType.Windows;
-        else if (os.toLowerCase().contains("linux")) return OsType.Linux;
-        else if (os.toLowerCase().contains("mac")) return OsType.Mac;
-        else return null;
+        String name = System.getProperty("os.name");
+        if (name.equals(osName)) return osType;
+        String lower = name.toLowerCase(Locale.ROOT);
+        OsType type;
+        if (lower.contains("windows")) type = OsType.Windows;
+        else if (lower.contains("linux")) type = OsType.Linux;
+        else if (lower.contains("mac")) type = OsType.Mac;
+        else type = null;
+        osType = type;
+        osName = name;
+        return type;
     }
 
     /**
@@ -67,6 +85,18 @@ public class Config implements Serializable {
         }
     }
 
+    /**
+     * Path of the site inside SITES
+     * SITES is set with or without the trailing separator, so it is added only when missing
+     *
+     * @param name Folder of the site
+     * @return eg. /var/www/example for example
+     */
+    public static String getSite(String name) {
+        if (SITES.endsWith("/") || SITES.endsWith("\\")) return SITES + name;
+        return SITES + (getOs() == OsType.Windows ? "\\" : "/") + name;
+    }
+
     /**
      * Checks if the SITESAVAILABLE and SITES have absolute paths
      *
@@ -0,0 +1,627 @@
+package com.virtualhosts;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.virtualhosts.apache.ReloadScheduler;
+import com.virtualhosts.apache.VirtualHostIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Long-running provisioning daemon
+ * <p>
+ * Keeps the parsed hosts file in memory and serves it over HTTP on the loopback interface:
+ * <pre>
+ * GET    /hosts/{name}
+ * POST   /hosts                   server-name=example.com&amp;ip-address=127.0.0.1
+ * PUT    /hosts/{name}            server-name=example.org&amp;ip-address=127.0.0.2
+ * DELETE /hosts/{name}
+ * GET    /virtual-hosts/{name}
+ * POST   /virtual-hosts           server-name=example.com&amp;alias=www.example.com
+ * PUT    /virtual-hosts/{name}    document-root=/var/www/example
+ * DELETE /virtual-hosts/{name}
+ * GET    /metrics
+ * </pre>
+ * Parameters are the same as the console arguments without leading --, sent form encoded in the request body,
+ * a query string is rejected. Every request needs the header Authorization: Bearer with the token the daemon writes
+ * on start into a file only its owner can read (-Dvirtualhosts.daemon.token-file, daemon.token in the lock directory),
+ * and requests with an Origin header are rejected, so neither other local users nor web pages in a browser can use it.
+ * Every request runs on its own (virtual, when the JVM supports it) thread,
+ * all changes go through a single writer thread.
+ * Hosts changes are group committed to the journal and checkpointed to the hosts file every second.
+ * With serveDns() the same hosts are answered over DNS ({@link DnsResponder})
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class Daemon {
+
+    /**
+     * Default port of the daemon
+     */
+    public static final int PORT = 8765;
+
+    /**
+     * HTTP server
+     */
+    private final HttpServer server;
+
+    /**
+     * Executor for the requests
+     */
+    private final ExecutorService requests;
+
+    /**
+     * Largest request body
+     */
+    private static final int MAX_BODY = 64 * 1024;
+
+    /**
+     * Token the clients send in the Authorization header
+     */
+    private final byte[] token;
+
+    /**
+     * File the token is written to, readable only by the owner of the daemon
+     */
+    private final File tokenFile;
+
+    /**
+     * Number of journal records after which the hosts file is checkpointed right away
+     */
+    private static final int CHECKPOINT_RECORDS = 10_000;
+
+    /**
+     * Single writer, all changes of the hosts file and config files are serialized here,
+     * checkpoints are scheduled on the same thread
+     */
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "virtualhosts-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Readers share the in-memory state, writer has it exclusively
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * DNS responder sharing the in-memory state, null when it is not started
+     */
+    private volatile DnsResponder dns;
+
+    /**
+     * Starts the daemon on the loopback interface
+     *
+     * @param port Port, 0 for any free port
+     * @throws IOException If the port couldn't be bound or hosts file couldn't be read
+     */
+    public Daemon(int port) throws IOException {
+        if (Host.getHostsFile() == null) {
+            throw new IOException("Hosts file couldn't be read");
+        }
+        //Journal is opened under the lock of the hosts file, after the one left by a crash has been recovered
+        Locks.Handle files = Host.getCache().lock();
+        try {
+            Host.getHostsFile().attach(new Journal(Journal.of(Host.getFile())));
+        } finally {
+            files.close();
+        }
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : random) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        token = hex.toString().getBytes(StandardCharsets.US_ASCII);
+        tokenFile = tokenFile();
+        //Requests are served from memory, the file is checked only when the watcher sees a change
+        Host.getCache().watch();
+        writer.scheduleWithFixedDelay(this::checkpoint, 1, 1, TimeUnit.SECONDS);
+        requests = requestExecutor();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.createContext("/hosts", exchange -> handle(exchange, "host"));
+        server.createContext("/virtual-hosts", exchange -> handle(exchange, "virtual-host"));
+        server.createContext("/metrics", this::metrics);
+        server.setExecutor(requests);
+        //Written once the port is bound, so a second daemon doesn't replace the token of the running one
+        writeToken(tokenFile, token);
+        server.start();
+    }
+
+    /**
+     * File of the token
+     *
+     * @return -Dvirtualhosts.daemon.token-file, daemon.token in the lock directory by default
+     */
+    public static File tokenFile() {
+        String file = System.getProperty("virtualhosts.daemon.token-file");
+        return file != null && !file.isEmpty() ? new File(file) : new File(Locks.directory(), "daemon.token");
+    }
+
+    /**
+     * Writes the token into a new file that only the owner can read
+     * An existing file (or a link put in its place) is removed first, the new one is never opened through it
+     *
+     * @param file  Token file
+     * @param token Token
+     * @throws IOException If the file couldn't be written
+     */
+    private static void writeToken(File file, byte[] token) throws IOException {
+        Path path = file.toPath().toAbsolutePath();
+        if (path.getParent().equals(Locks.directory().toPath().toAbsolutePath())) {
+            Locks.createDirectory();
+        } else {
+            Files.createDirectories(path.getParent());
+        }
+        Files.deleteIfExists(path);
+        if (Files.getFileStore(path.getParent()).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(path);
+        }
+        Files.write(path, token);
+    }
+
+    /**
+     * @return File the token is written to
+     */
+    public File getTokenFile() {
+        return tokenFile;
+    }
+
+    /**
+     * Thread per task executor, virtual threads are used when the JVM has them
+     *
+     * @return Executor
+     */
+    private static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "virtualhosts-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * @return Port the daemon is listening on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Serves the hosts file over DNS as well, changes made through the daemon are answered right away
+     *
+     * @param port DNS port, 0 for any free port
+     * @return Responder
+     * @throws IOException If the port couldn't be bound
+     */
+    public DnsResponder serveDns(int port) throws IOException {
+        dns = new DnsResponder(port, lock);
+        return dns;
+    }
+
+    /**
+     * Stops the daemon, waits for the pending changes to be written
+     */
+    public void stop() {
+        server.stop(0);
+        if (dns != null) dns.stop();
+        writer.shutdown();
+        try {
+            writer.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        requests.shutdownNow();
+        ReloadScheduler.getInstance().close();
+        Host.getCache().close();
+        Journal journal = Host.getHostsFile().getJournal();
+        try {
+            //Removed under the lock of the hosts file, no other process is recovering from it meanwhile
+            Locks.Handle files = Host.getCache().lock();
+            try {
+                Host.getCache().checkpoint();
+                HostsFile hosts = Host.getHostsFile();
+                hosts.attach(null);
+                //Journal file of another process is never removed
+                boolean current = journal.isCurrent();
+                journal.close();
+                if (current && !journal.getFile().delete()) {
+                    System.out.println("Journal " + journal.getFile() + " couldn't be deleted");
+                }
+            } finally {
+                files.close();
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+        if (!tokenFile.delete()) {
+            System.out.println("Token " + tokenFile + " couldn't be deleted");
+        }
+    }
+
+    /**
+     * Writes the hosts file and truncates the journal when there are journaled changes
+     * Runs on the writer thread, so no change is applied in the meantime
+     */
+    private void checkpoint() {
+        HostsFile hosts = Host.getHostsFile();
+        if (hosts.getJournal() == null || hosts.getJournal().size() == 0) return;
+        lock.writeLock().lock();
+        try {
+            Host.getCache().checkpoint();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Handles one request
+     *
+     * @param exchange HTTP exchange
+     * @param type     host | virtual-host
+     * @throws IOException If the response couldn't be sent
+     */
+    private void handle(HttpExchange exchange, String type) throws IOException {
+        try {
+            if (!authorized(exchange)) return;
+            String path = exchange.getRequestURI().getPath();
+            String context = exchange.getHttpContext().getPath();
+            String name = path.length() > context.length() + 1 ? path.substring(context.length() + 1) : null;
+            Map<String, String> query = Collections.emptyMap();
+            if (!exchange.getRequestMethod().equals("GET")) {
+                query = body(exchange);
+                if (query == null) return;
+            }
+            switch (exchange.getRequestMethod()) {
+                case "GET":
+                    if (name == null) {
+                        respond(exchange, 400, error("server name is missing"));
+                        return;
+                    }
+                    get(exchange, type, name);
+                    return;
+                case "POST":
+                    change(exchange, type, "create", null, query);
+                    return;
+                case "PUT":
+                    change(exchange, type, "update", name, query);
+                    return;
+                case "DELETE":
+                    change(exchange, type, "delete", name, query);
+                    return;
+                default:
+                    respond(exchange, 405, error("method is not allowed"));
+            }
+        } catch (Exception e) {
+            respond(exchange, 500, error(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Checks the token and rejects the requests of web pages, sends the error response when the request is refused
+     *
+     * @param exchange HTTP exchange
+     * @return Whether the request can be served
+     * @throws IOException If the response couldn't be sent
+     */
+    private boolean authorized(HttpExchange exchange) throws IOException {
+        //Browsers send Origin with every cross-origin request, command line clients don't
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            respond(exchange, 403, error("requests from web pages are not allowed"));
+            return false;
+        }
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        byte[] given = header != null && header.startsWith("Bearer ")
+                ? header.substring(7).trim().getBytes(StandardCharsets.US_ASCII) : new byte[0];
+        if (!MessageDigest.isEqual(given, token)) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            respond(exchange, 401, error("token is missing or not valid"));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the form encoded parameters from the request body, sends the error response when they are not valid
+     *
+     * @param exchange HTTP exchange
+     * @return Parameters in the given order, null if the request has been refused
+     * @throws IOException If the body couldn't be read or the response couldn't be sent
+     */
+    private static Map<String, String> body(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestURI().getRawQuery() != null) {
+            respond(exchange, 400, error("parameters are accepted only in the request body"));
+            return null;
+        }
+        byte[] bytes = new byte[MAX_BODY + 1];
+        int length = 0;
+        try (InputStream in = exchange.getRequestBody()) {
+            for (int read; length < bytes.length && (read = in.read(bytes, length, bytes.length - length)) > 0; ) {
+                length += read;
+            }
+        }
+        if (length > MAX_BODY) {
+            respond(exchange, 413, error("request body is too large"));
+            return null;
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (length > 0 && (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("application/x-www-form-urlencoded"))) {
+            respond(exchange, 415, error("body has to be application/x-www-form-urlencoded"));
+            return null;
+        }
+        return query(new String(bytes, 0, length, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Serves the phase timings in the Prometheus text format
+     *
+     * @param exchange HTTP exchange
+     * @throws IOException If the response couldn't be sent
+     */
+    private void metrics(HttpExchange exchange) throws IOException {
+        try {
+            if (!authorized(exchange)) return;
+            if (!exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 405, error("method is not allowed"));
+                return;
+            }
+            StringWriter out = new StringWriter();
+            Metrics.writeTo(out);
+            respond(exchange, 200, "text/plain; version=0.0.4", out.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads single host or virtual host from the in-memory state
+     *
+     * @param exchange HTTP exchange
+     * @param type     host | virtual-host
+     * @param name     Server name
+     * @throws IOException If the response couldn't be sent
+     */
+    private void get(HttpExchange exchange, String type, String name) throws IOException {
+        if (type.equals("virtual-host")) {
+            VirtualHostIndex.Entry section;
+            lock.readLock().lock();
+            try {
+                section = VirtualHostIndex.getInstance().find(name);
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (section == null) {
+                respond(exchange, 404, error("Wanted virtual host is not found"));
+                return;
+            }
+            StringBuilder aliases = new StringBuilder();
+            for (String alias : section.getAliases()) {
+                aliases.append(aliases.length() == 0 ? "" : ",").append(json(alias));
+            }
+            respond(exchange, 200, "{\"serverName\":" + json(section.getServerName())
+                    + ",\"aliases\":[" + aliases + "]"
+                    + ",\"address\":" + json(section.getAddress())
+                    + ",\"port\":" + section.getPort()
+                    + ",\"documentRoot\":" + json(section.getDocumentRoot())
+                    + ",\"rewriteEngine\":" + section.isRewriteEngine()
+                    + ",\"file\":" + json(section.getFile().getPath())
+                    + ",\"line\":" + section.getLine() + "}");
+            return;
+        }
+        HostsFile.Entry entry;
+        lock.readLock().lock();
+        try {
+            entry = Host.getHostsFile().get(name);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (entry == null) {
+            respond(exchange, 404, error("Wanted host is not found"));
+            return;
+        }
+        respond(exchange, 200, "{\"serverName\":" + json(entry.getName())
+                + ",\"address\":" + json(entry.getAddress().getHostAddress()) + "}");
+    }
+
+    /**
+     * Validates and applies one change on the writer thread
+     *
+     * @param exchange HTTP exchange
+     * @param type     host | virtual-host
+     * @param action   create | update | delete
+     * @param name     Server name of the existing host, null for create
+     * @param query    Parameters from the request body
+     * @throws Exception If the change couldn't be applied
+     */
+    private void change(HttpExchange exchange, String type, String action, String name, Map<String, String> query) throws Exception {
+        List<String> args = new ArrayList<>(Arrays.asList("--command", type, action));
+        for (var parameter : query.entrySet()) {
+            args.add("--" + parameter.getKey());
+            args.add(parameter.getValue());
+        }
+        if (name != null) {
+            args.add("--get");
+            args.add(name);
+        }
+        Operation operation;
+        try {
+            operation = Operation.parse(args.toArray(new String[0]));
+        } catch (Exception e) {
+            respond(exchange, 400, error(e.getMessage()));
+            return;
+        }
+        Batch batch = new Batch();
+        batch.add(operation, 1);
+        //Rollback after a failed config test changes the model, readers are kept out like for any change
+        batch.setGuard(lock.writeLock());
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        Future<List<String>> result = writer.submit(() -> {
+            lock.writeLock().lock();
+            //Other processes (command line runs) are kept out of the hosts and config files while the change is applied
+            try {
+                Locks.Handle files = batch.lock();
+                try {
+                    List<String> errors = batch.validate();
+                    if (errors.isEmpty()) {
+                        //Writer doesn't wait for the fsync, concurrent changes end up in the same group commit
+                        batch.apply().whenComplete((v, e) -> {
+                            if (e != null) durable.completeExceptionally(e);
+                            else durable.complete(null);
+                        });
+                        if (Host.getHostsFile().getJournal().size() >= CHECKPOINT_RECORDS) {
+                            writer.execute(this::checkpoint);
+                        }
+                    } else {
+                        durable.complete(null);
+                    }
+                    return errors;
+                } finally {
+                    files.close();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+        List<String> errors;
+        try {
+            errors = result.get();
+            durable.get();
+        } catch (ExecutionException e) {
+            respond(exchange, 500, error(e.getCause().getMessage()));
+            return;
+        }
+        if (!errors.isEmpty()) {
+            String message = errors.get(0).replaceFirst("^Line \\d+: ", "");
+            int status = message.contains("not found") ? 404
+                    : message.contains("exists") || message.contains("exits") ? 409 : 400;
+            respond(exchange, status, error(message));
+            return;
+        }
+        respond(exchange, action.equals("create") ? 201 : 200, "{\"status\":\"ok\"}");
+    }
+
+    /**
+     * Parses the form encoded parameters
+     *
+     * @param raw Form encoded parameters
+     * @return Parameters in the given order
+     * @throws UnsupportedEncodingException Never, UTF-8 is always supported
+     */
+    private static Map<String, String> query(String raw) throws UnsupportedEncodingException {
+        Map<String, String> map = new LinkedHashMap<>();
+        if (raw == null || raw.isEmpty()) return map;
+        for (String pair : raw.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            map.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return map;
+    }
+
+    /**
+     * Builds JSON error body
+     *
+     * @param message Error message
+     * @return JSON
+     */
+    private static String error(String message) {
+        return "{\"error\":" + json(message) + "}";
+    }
+
+    /**
+     * Escapes JSON string
+     *
+     * @param value Value
+     * @return Quoted JSON string
+     */
+    static String json(String value) {
+        if (value == null) return "null";
+        StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) builder.append(String.format("\\u%04x", (int) c));
+                    else builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    /**
+     * Sends the response
+     *
+     * @param exchange HTTP exchange
+     * @param status   HTTP status
+     * @param body     JSON body
+     * @throws IOException If the response couldn't be sent
+     */
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        respond(exchange, status, "application/json", body);
+    }
+
+    /**
+     * Sends the response
+     *
+     * @param exchange    HTTP exchange
+     * @param status      HTTP status
+     * @param contentType Content type of the body
+     * @param body        Body
+     * @throws IOException If the response couldn't be sent
+     */
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
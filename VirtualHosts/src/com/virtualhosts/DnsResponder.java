@@ -0,0 +1,395 @@
+package com.virtualhosts;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Small DNS responder on the loopback interface, serving the hosts file from memory
+ * <p>
+ * The resolver of the C library scans the hosts file line by line on every lookup, which gets slow with tens of thousands
+ * of managed entries. Here the entries are looked up in the hash table of the parsed hosts file instead:
+ * A and AAAA by name, PTR by address. Every name resolves to its first definition, the same one the resolver would use.
+ * Names that are not in the hosts file are REFUSED, so the stub resolver goes on with the next nameserver.
+ * Queries are served over UDP and over TCP (length prefixed), the file is watched and read again only when it changes
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class DnsResponder {
+
+    /**
+     * Default port, the one the C library resolver asks
+     */
+    public static final int PORT = 53;
+
+    /**
+     * TTL of the answers in seconds, short so the changes of the hosts file are seen right away
+     */
+    static final int TTL = 5;
+
+    /**
+     * Record types
+     */
+    static final int A = 1, PTR = 12, AAAA = 28;
+
+    /**
+     * Response codes
+     */
+    static final int NOERROR = 0, FORMERR = 1, SERVFAIL = 2, NOTIMP = 4, REFUSED = 5;
+
+    /**
+     * Largest UDP message without EDNS
+     */
+    private static final int UDP_SIZE = 512;
+
+    /**
+     * Idle TCP connections are closed after this many milliseconds
+     */
+    private static final int TCP_TIMEOUT = 10_000;
+
+    /**
+     * UDP socket
+     */
+    private final DatagramSocket udp;
+
+    /**
+     * TCP socket
+     */
+    private final ServerSocket tcp;
+
+    /**
+     * Executor for the TCP connections
+     */
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "virtualhosts-dns-tcp");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Lookups share it, whoever changes the hosts file in this process has it exclusively
+     */
+    private final ReadWriteLock lock;
+
+    /**
+     * Starts the responder with its own lock, when nothing else in the process changes the hosts file
+     *
+     * @param port Port, 0 for any free port
+     * @throws IOException If the port couldn't be bound or hosts file couldn't be read
+     */
+    public DnsResponder(int port) throws IOException {
+        this(port, new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Starts the responder on UDP and TCP of the same port
+     *
+     * @param port Port, 0 for any free port
+     * @param lock Lock of the in-memory hosts file, read lock is taken for every lookup
+     * @throws IOException If the port couldn't be bound or hosts file couldn't be read
+     */
+    public DnsResponder(int port, ReadWriteLock lock) throws IOException {
+        if (Host.getHostsFile() == null) {
+            throw new IOException("Hosts file couldn't be read");
+        }
+        this.lock = lock;
+        Host.getCache().watch();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        udp = new DatagramSocket(new InetSocketAddress(loopback, port));
+        try {
+            tcp = new ServerSocket(udp.getLocalPort(), 128, loopback);
+        } catch (IOException e) {
+            udp.close();
+            throw e;
+        }
+        start("virtualhosts-dns-udp", this::serveUdp);
+        start("virtualhosts-dns-accept", this::accept);
+    }
+
+    /**
+     * Starts a daemon thread
+     *
+     * @param name Thread name
+     * @param task Task
+     */
+    private static void start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return Port the responder is listening on, same for UDP and TCP
+     */
+    public int getPort() {
+        return udp.getLocalPort();
+    }
+
+    /**
+     * Stops the responder
+     */
+    public void stop() {
+        udp.close();
+        try {
+            tcp.close();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+        connections.shutdownNow();
+    }
+
+    /**
+     * Answers the UDP queries one after another until the socket is closed
+     */
+    private void serveUdp() {
+        byte[] buffer = new byte[UDP_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!udp.isClosed()) {
+            try {
+                packet.setData(buffer);
+                udp.receive(packet);
+                byte[] response = answer(buffer, packet.getLength());
+                //Responses are never longer than 512 bytes, one answer with at most a 255 bytes long name
+                if (response == null) continue;
+                udp.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                if (!udp.isClosed()) System.out.println("DNS: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Accepts the TCP connections until the socket is closed
+     */
+    private void accept() {
+        while (!tcp.isClosed()) {
+            try {
+                Socket socket = tcp.accept();
+                connections.execute(() -> serveTcp(socket));
+            } catch (IOException e) {
+                if (!tcp.isClosed()) System.out.println("DNS: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Answers the queries of one TCP connection, every message is prefixed by its length
+     *
+     * @param socket Connection
+     */
+    private void serveTcp(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout(TCP_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte[] buffer = new byte[UDP_SIZE];
+            while (true) {
+                int length;
+                try {
+                    length = in.readUnsignedShort();
+                } catch (EOFException | SocketTimeoutException e) {
+                    return;
+                }
+                if (length > buffer.length) buffer = new byte[length];
+                in.readFully(buffer, 0, length);
+                byte[] response = answer(buffer, length);
+                if (response == null) return;
+                out.writeShort(response.length);
+                out.write(response);
+                out.flush();
+            }
+        } catch (IOException e) {
+            //Client went away
+        }
+    }
+
+    /**
+     * Answers one query
+     *
+     * @param query  Message
+     * @param length Length of the message
+     * @return Response, null if the message is not a query and is dropped
+     */
+    byte[] answer(byte[] query, int length) {
+        if (length < 12 || (query[2] & 0x80) != 0) return null;
+        int opcode = (query[2] >> 3) & 0x0F;
+        int questions = (query[4] & 0xFF) << 8 | query[5] & 0xFF;
+        if (opcode != 0) return response(query, 12, NOTIMP, 0, null);
+        if (questions != 1) return response(query, 12, FORMERR, 0, null);
+        StringBuilder name = new StringBuilder();
+        int position = 12;
+        while (true) {
+            if (position >= length) return response(query, 12, FORMERR, 0, null);
+            int label = query[position++] & 0xFF;
+            if (label == 0) break;
+            //Compression is never used in the question of a query
+            if (label > 63 || position + label > length) return response(query, 12, FORMERR, 0, null);
+            if (name.length() > 0) name.append('.');
+            for (int i = 0; i < label; i++) {
+                name.append((char) (query[position + i] & 0xFF));
+            }
+            position += label;
+        }
+        if (position + 4 > length) return response(query, 12, FORMERR, 0, null);
+        int type = (query[position] & 0xFF) << 8 | query[position + 1] & 0xFF;
+        int recordClass = (query[position + 2] & 0xFF) << 8 | query[position + 3] & 0xFF;
+        position += 4;
+        if (recordClass != 1) return response(query, position, REFUSED, 0, null);
+        long start = Metrics.start();
+        lock.readLock().lock();
+        try {
+            HostsFile hosts = Host.getHostsFile();
+            if (hosts == null) return response(query, position, SERVFAIL, 0, null);
+            String key = name.toString();
+            if (type == PTR) {
+                InetAddress address = reverse(key.toLowerCase(Locale.ROOT));
+                List<HostsFile.Entry> entries = address == null ? List.of() : hosts.findByAddress(address);
+                if (entries.isEmpty()) return response(query, position, REFUSED, 0, null);
+                return response(query, position, NOERROR, PTR, encode(entries.get(0).getName()));
+            }
+            //Names are compared as they are written in the hosts file, usually in lower case
+            HostsFile.Entry entry = hosts.get(key);
+            if (entry == null) entry = hosts.get(key.toLowerCase(Locale.ROOT));
+            if (entry == null) return response(query, position, REFUSED, 0, null);
+            byte[] address = entry.getAddress().getAddress();
+            //Name exists, but has no record of the asked type
+            if (type != (address.length == 4 ? A : AAAA)) return response(query, position, NOERROR, 0, null);
+            return response(query, position, NOERROR, type, address);
+        } finally {
+            lock.readLock().unlock();
+            Metrics.record(Metrics.Phase.LOOKUP, start, 0, 1);
+        }
+    }
+
+    /**
+     * Builds the response with the question of the query and at most one answer
+     *
+     * @param query    Query
+     * @param question Offset after the question, 12 when the question is not echoed
+     * @param code     Response code
+     * @param type     Type of the answer, 0 for none
+     * @param data     Data of the answer
+     * @return Response
+     */
+    private static byte[] response(byte[] query, int question, int code, int type, byte[] data) {
+        int length = question + (type == 0 ? 0 : 12 + data.length);
+        byte[] response = new byte[length];
+        System.arraycopy(query, 0, response, 0, question);
+        //QR set, AA only for the names from the hosts file, opcode and RD kept, everything else cleared
+        response[2] = (byte) (0x80 | query[2] & 0x79 | (code == NOERROR ? 0x04 : 0));
+        response[3] = (byte) code;
+        response[4] = 0;
+        response[5] = (byte) (question > 12 ? 1 : 0);
+        response[6] = 0;
+        response[7] = (byte) (type == 0 ? 0 : 1);
+        response[8] = response[9] = response[10] = response[11] = 0;
+        if (type == 0) return response;
+        int position = question;
+        //Name is a pointer to the question
+        response[position++] = (byte) 0xC0;
+        response[position++] = 12;
+        response[position++] = (byte) (type >> 8);
+        response[position++] = (byte) type;
+        response[position++] = 0;
+        response[position++] = 1;
+        response[position++] = (byte) (TTL >>> 24);
+        response[position++] = (byte) (TTL >>> 16);
+        response[position++] = (byte) (TTL >>> 8);
+        response[position++] = (byte) TTL;
+        response[position++] = (byte) (data.length >> 8);
+        response[position++] = (byte) data.length;
+        System.arraycopy(data, 0, response, position, data.length);
+        return response;
+    }
+
+    /**
+     * Encodes the domain name into labels
+     *
+     * @param name Domain name
+     * @return Wire format of the name
+     */
+    static byte[] encode(String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(name.length() + 2);
+        for (String label : name.split("\\.")) {
+            if (label.isEmpty()) continue;
+            byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+            out.write(Math.min(bytes.length, 63));
+            out.write(bytes, 0, Math.min(bytes.length, 63));
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    /**
+     * Parses the reverse lookup name, eg. 1.0.0.127.in-addr.arpa
+     *
+     * @param name Lower case name
+     * @return Address, null if the name is not a reverse lookup name
+     */
+    static InetAddress reverse(String name) {
+        String[] labels;
+        byte[] address;
+        if (name.endsWith(".in-addr.arpa")) {
+            labels = name.substring(0, name.length() - ".in-addr.arpa".length()).split("\\.");
+            if (labels.length != 4) return null;
+            address = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                int value;
+                try {
+                    value = Integer.parseInt(labels[3 - i]);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (value < 0 || value > 255) return null;
+                address[i] = (byte) value;
+            }
+        } else if (name.endsWith(".ip6.arpa")) {
+            labels = name.substring(0, name.length() - ".ip6.arpa".length()).split("\\.");
+            if (labels.length != 32) return null;
+            address = new byte[16];
+            for (int i = 0; i < 32; i++) {
+                int nibble = labels[31 - i].length() == 1 ? Character.digit(labels[31 - i].charAt(0), 16) : -1;
+                if (nibble < 0) return null;
+                address[i >> 1] |= (byte) ((i & 1) == 0 ? nibble << 4 : nibble);
+            }
+        } else {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds a query with one question, for the in-process clients
+     *
+     * @param id   Message id
+     * @param name Domain name
+     * @param type Record type
+     * @return Query
+     */
+    static byte[] query(int id, String name, int type) {
+        byte[] encoded = encode(name);
+        byte[] query = new byte[12 + encoded.length + 4];
+        query[0] = (byte) (id >> 8);
+        query[1] = (byte) id;
+        //RD set, as the C library resolver does
+        query[2] = 0x01;
+        query[5] = 1;
+        System.arraycopy(encoded, 0, query, 12, encoded.length);
+        int position = 12 + encoded.length;
+        query[position + 1] = (byte) type;
+        query[position + 3] = 1;
+        return query;
+    }
+}
@@ -0,0 +1,515 @@
+package com.virtualhosts;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Suffix and reverse address index of the domains in the {@link HostsEntryStore}
+ * <p>
+ * Domains are kept in a trie of their labels read from the right (test, example, www),
+ * so all domains under a suffix are found by walking only the branch of the suffix.
+ * Every node counts the domains below it and empty branches are skipped, so a query costs
+ * the size of its result, not the size of the file.
+ * Domains with the same address are chained in definition order behind an open addressing table of the addresses.
+ * Labels are compared ignoring ASCII case and point into the names in the store, no Strings are kept.
+ * Index is built from the store once and then updated with every added and removed domain
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public final class DomainIndex {
+
+    /**
+     * Indexed domains
+     */
+    private final HostsEntryStore store;
+
+    /**
+     * Parent of every node, -1 for the root
+     */
+    private int[] parents;
+
+    /**
+     * Slot whose name holds the label of the node
+     */
+    private int[] labelSlots;
+
+    /**
+     * Start of the label in the name source of the slot
+     */
+    private int[] labelStarts;
+
+    /**
+     * Length of the label
+     */
+    private int[] labelLengths;
+
+    /**
+     * Hash of the lower case label
+     */
+    private int[] labelHashes;
+
+    /**
+     * First child of every node, -1 if none
+     */
+    private int[] firstChildren;
+
+    /**
+     * Next child of the same parent, -1 if none
+     */
+    private int[] nextSiblings;
+
+    /**
+     * Number of domains at the node and below it
+     */
+    private int[] counts;
+
+    /**
+     * First slot whose domain ends at the node, -1 if none
+     */
+    private int[] heads;
+
+    /**
+     * Number of nodes, the root included
+     */
+    private int nodes;
+
+    /**
+     * Open addressing table of the nodes by parent and label, node + 1 or 0 when empty
+     */
+    private int[] children;
+
+    /**
+     * Node where the domain of the slot ends
+     */
+    private int[] slotNodes = new int[0];
+
+    /**
+     * Next slot ending at the same node, -1 if none
+     */
+    private int[] nextAtNode = new int[0];
+
+    /**
+     * Next slot with the same address, -1 if none
+     */
+    private int[] nextByAddress = new int[0];
+
+    /**
+     * Previous slot with the same address, the first one points to the last one
+     */
+    private int[] previousByAddress = new int[0];
+
+    /**
+     * Open addressing table of the first slot of every address, slot + 1 or 0 when empty
+     */
+    private int[] addresses;
+
+    /**
+     * Number of different addresses
+     */
+    private int addressCount;
+
+    /**
+     * Builds the index of all live domains in the store
+     *
+     * @param store Domains
+     */
+    public DomainIndex(HostsEntryStore store) {
+        this.store = store;
+        int capacity = Math.max(16, store.size() + 1);
+        parents = new int[capacity];
+        labelSlots = new int[capacity];
+        labelStarts = new int[capacity];
+        labelLengths = new int[capacity];
+        labelHashes = new int[capacity];
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        counts = new int[capacity];
+        heads = new int[capacity];
+        children = new int[tableSize(capacity)];
+        addresses = new int[16];
+        ensureSlots(store.slots());
+        //Root
+        nodes = 1;
+        parents[0] = -1;
+        firstChildren[0] = -1;
+        nextSiblings[0] = -1;
+        heads[0] = -1;
+        for (int slot = 0; slot < store.slots(); slot++) {
+            if (store.isLive(slot)) add(slot);
+        }
+    }
+
+    /**
+     * @param count Number of entries
+     * @return Power of two at least twice the count
+     */
+    private static int tableSize(int count) {
+        return Integer.highestOneBit(Math.max(8, count) * 2 - 1) << 1;
+    }
+
+    /**
+     * Indexes the domain
+     *
+     * @param slot Live slot of the store
+     */
+    public void add(int slot) {
+        ensureSlots(slot + 1);
+        byte[] source = store.nameSource(slot);
+        int start = store.nameStart(slot);
+        int end = start + store.nameLength(slot);
+        //Fully qualified name - example.com.
+        if (end > start && source[end - 1] == '.') end--;
+        int node = 0;
+        counts[0]++;
+        int labelEnd = end;
+        while (true) {
+            int dot = labelEnd - 1;
+            while (dot >= start && source[dot] != '.') dot--;
+            int labelStart = dot + 1;
+            node = child(node, source, labelStart, labelEnd, slot);
+            counts[node]++;
+            if (dot < start) break;
+            labelEnd = dot;
+        }
+        slotNodes[slot] = node;
+        nextAtNode[slot] = heads[node];
+        heads[node] = slot;
+        link(slot);
+    }
+
+    /**
+     * Takes the domain out of the index
+     *
+     * @param slot Indexed slot of the store
+     */
+    public void remove(int slot) {
+        int node = slotNodes[slot];
+        if (heads[node] == slot) {
+            heads[node] = nextAtNode[slot];
+        } else {
+            int previous = heads[node];
+            while (nextAtNode[previous] != slot) previous = nextAtNode[previous];
+            nextAtNode[previous] = nextAtNode[slot];
+        }
+        for (int n = node; n >= 0; n = parents[n]) {
+            counts[n]--;
+        }
+        unlink(slot);
+    }
+
+    /**
+     * Finds the domains under the suffix
+     * Suffix example.test selects example.test and its subdomains, .example.test and *.example.test only the subdomains
+     *
+     * @param suffix Domain suffix
+     * @return Slots in no particular order
+     */
+    public int[] suffix(String suffix) {
+        String normalized = suffix.toLowerCase(Locale.ROOT);
+        if (normalized.startsWith("*.")) normalized = normalized.substring(1);
+        boolean self = !normalized.startsWith(".");
+        if (!self) normalized = normalized.substring(1);
+        if (normalized.endsWith(".")) normalized = normalized.substring(0, normalized.length() - 1);
+        byte[] bytes = normalized.getBytes(StandardCharsets.UTF_8);
+        int node = 0;
+        int labelEnd = bytes.length;
+        while (!normalized.isEmpty()) {
+            int dot = labelEnd - 1;
+            while (dot >= 0 && bytes[dot] != '.') dot--;
+            node = find(node, bytes, dot + 1, labelEnd);
+            if (node < 0) return new int[0];
+            if (dot < 0) break;
+            labelEnd = dot;
+        }
+        int[] result = new int[counts[node]];
+        int size = 0;
+        if (self) {
+            for (int slot = heads[node]; slot >= 0; slot = nextAtNode[slot]) {
+                result[size++] = slot;
+            }
+        }
+        //Depth first over the branches that still have domains
+        int[] stack = new int[16];
+        int top = 0;
+        for (int child = firstChildren[node]; child >= 0; child = nextSiblings[child]) {
+            if (counts[child] == 0) continue;
+            if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+            stack[top++] = child;
+        }
+        while (top > 0) {
+            int current = stack[--top];
+            for (int slot = heads[current]; slot >= 0; slot = nextAtNode[slot]) {
+                result[size++] = slot;
+            }
+            for (int child = firstChildren[current]; child >= 0; child = nextSiblings[child]) {
+                if (counts[child] == 0) continue;
+                if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                stack[top++] = child;
+            }
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Finds the domains pointing to the address
+     *
+     * @param address Ip address
+     * @return Slots in definition order
+     */
+    public int[] address(InetAddress address) {
+        int mask = addresses.length - 1;
+        for (int i = HostsEntryStore.addressHash(address.getAddress()) & mask; addresses[i] != 0; i = (i + 1) & mask) {
+            int first = addresses[i] - 1;
+            if (!store.hasAddress(first, address)) continue;
+            int size = 0;
+            int[] result = new int[8];
+            for (int slot = first; slot >= 0; slot = nextByAddress[slot]) {
+                if (size == result.length) result = Arrays.copyOf(result, size * 2);
+                result[size++] = slot;
+            }
+            return Arrays.copyOf(result, size);
+        }
+        return new int[0];
+    }
+
+    /**
+     * Finds or creates the child node with the label
+     *
+     * @param parent Parent node
+     * @param source Bytes of the name
+     * @param start  Start of the label
+     * @param end    End of the label
+     * @param slot   Slot whose name is the source
+     * @return Child node
+     */
+    private int child(int parent, byte[] source, int start, int end, int slot) {
+        int hash = labelHash(source, start, end);
+        int mask = children.length - 1;
+        int i = key(parent, hash) & mask;
+        for (; children[i] != 0; i = (i + 1) & mask) {
+            int node = children[i] - 1;
+            if (parents[node] == parent && labelHashes[node] == hash && labelEquals(node, source, start, end)) return node;
+        }
+        if (nodes == parents.length) growNodes();
+        int node = nodes++;
+        parents[node] = parent;
+        labelSlots[node] = slot;
+        labelStarts[node] = start;
+        labelLengths[node] = end - start;
+        labelHashes[node] = hash;
+        firstChildren[node] = -1;
+        heads[node] = -1;
+        counts[node] = 0;
+        nextSiblings[node] = firstChildren[parent];
+        firstChildren[parent] = node;
+        if (nodes * 2 > children.length) {
+            rehashChildren();
+        } else {
+            children[i] = node + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Finds the child node with the label
+     *
+     * @param parent Parent node
+     * @param source Lower case bytes of the label
+     * @param start  Start of the label
+     * @param end    End of the label
+     * @return Child node or -1
+     */
+    private int find(int parent, byte[] source, int start, int end) {
+        int hash = labelHash(source, start, end);
+        int mask = children.length - 1;
+        for (int i = key(parent, hash) & mask; children[i] != 0; i = (i + 1) & mask) {
+            int node = children[i] - 1;
+            if (parents[node] == parent && labelHashes[node] == hash && labelEquals(node, source, start, end)) return node;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the label of the node ignoring ASCII case
+     *
+     * @param node   Node
+     * @param source Bytes
+     * @param start  Start of the label
+     * @param end    End of the label
+     * @return Whether the labels are equal
+     */
+    private boolean labelEquals(int node, byte[] source, int start, int end) {
+        if (labelLengths[node] != end - start) return false;
+        byte[] label = store.nameSource(labelSlots[node]);
+        int offset = labelStarts[node];
+        for (int i = 0; i < end - start; i++) {
+            if (lower(label[offset + i]) != lower(source[start + i])) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Chains the slot behind the other slots with its address
+     *
+     * @param slot Slot
+     */
+    private void link(int slot) {
+        nextByAddress[slot] = -1;
+        int mask = addresses.length - 1;
+        int i = store.addressHash(slot) & mask;
+        for (; addresses[i] != 0; i = (i + 1) & mask) {
+            int first = addresses[i] - 1;
+            if (store.sameAddress(first, slot)) {
+                int last = previousByAddress[first];
+                nextByAddress[last] = slot;
+                previousByAddress[slot] = last;
+                previousByAddress[first] = slot;
+                return;
+            }
+        }
+        previousByAddress[slot] = slot;
+        addressCount++;
+        if (addressCount * 2 > addresses.length) {
+            addresses[i] = slot + 1;
+            rehashAddresses(addresses.length * 2);
+        } else {
+            addresses[i] = slot + 1;
+        }
+    }
+
+    /**
+     * Takes the slot out of the chain of its address
+     *
+     * @param slot Slot
+     */
+    private void unlink(int slot) {
+        int mask = addresses.length - 1;
+        int i = store.addressHash(slot) & mask;
+        while (!store.sameAddress(addresses[i] - 1, slot)) i = (i + 1) & mask;
+        int first = addresses[i] - 1;
+        int next = nextByAddress[slot];
+        if (first != slot) {
+            int previous = previousByAddress[slot];
+            nextByAddress[previous] = next;
+            if (next >= 0) previousByAddress[next] = previous;
+            else previousByAddress[first] = previous;
+            return;
+        }
+        if (next >= 0) {
+            previousByAddress[next] = previousByAddress[slot];
+            addresses[i] = next + 1;
+            return;
+        }
+        //Last domain of the address, following entries are shifted back
+        addressCount--;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int entry = addresses[j];
+            if (entry == 0) break;
+            int home = store.addressHash(entry - 1) & mask;
+            boolean stays = i <= j ? i < home && home <= j : i < home || home <= j;
+            if (stays) continue;
+            addresses[i] = entry;
+            i = j;
+        }
+        addresses[i] = 0;
+    }
+
+    /**
+     * Builds the address table again
+     *
+     * @param capacity Table size, power of two
+     */
+    private void rehashAddresses(int capacity) {
+        int[] old = addresses;
+        addresses = new int[capacity];
+        int mask = capacity - 1;
+        for (int entry : old) {
+            if (entry == 0) continue;
+            int i = store.addressHash(entry - 1) & mask;
+            while (addresses[i] != 0) i = (i + 1) & mask;
+            addresses[i] = entry;
+        }
+    }
+
+    /**
+     * Builds the children table again, twice as big
+     */
+    private void rehashChildren() {
+        children = new int[children.length * 2];
+        int mask = children.length - 1;
+        for (int node = 1; node < nodes; node++) {
+            int i = key(parents[node], labelHashes[node]) & mask;
+            while (children[i] != 0) i = (i + 1) & mask;
+            children[i] = node + 1;
+        }
+    }
+
+    /**
+     * Doubles the node arrays
+     */
+    private void growNodes() {
+        int capacity = parents.length * 2;
+        parents = Arrays.copyOf(parents, capacity);
+        labelSlots = Arrays.copyOf(labelSlots, capacity);
+        labelStarts = Arrays.copyOf(labelStarts, capacity);
+        labelLengths = Arrays.copyOf(labelLengths, capacity);
+        labelHashes = Arrays.copyOf(labelHashes, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        heads = Arrays.copyOf(heads, capacity);
+    }
+
+    /**
+     * Makes room for the slots
+     *
+     * @param count Number of slots
+     */
+    private void ensureSlots(int count) {
+        if (count <= slotNodes.length) return;
+        int capacity = Math.max(count, slotNodes.length * 2);
+        slotNodes = Arrays.copyOf(slotNodes, capacity);
+        nextAtNode = Arrays.copyOf(nextAtNode, capacity);
+        nextByAddress = Arrays.copyOf(nextByAddress, capacity);
+        previousByAddress = Arrays.copyOf(previousByAddress, capacity);
+    }
+
+    /**
+     * @param parent Parent node
+     * @param hash   Hash of the label
+     * @return Hash of the child key
+     */
+    private static int key(int parent, int hash) {
+        int key = (parent * 0x9E3779B9) ^ hash;
+        return key ^ (key >>> 15);
+    }
+
+    /**
+     * FNV-1a hash of the lower case label
+     *
+     * @param source Bytes
+     * @param start  Start of the label
+     * @param end    End of the label
+     * @return Hash
+     */
+    private static int labelHash(byte[] source, int start, int end) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (lower(source[i]) & 0xff)) * 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * @param b Byte
+     * @return ASCII lower case of the byte
+     */
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
@@ -0,0 +1,383 @@
+package com.virtualhosts;
+
+import com.virtualhosts.apache.VirtualHostIndex;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * Streams the hosts and the virtual hosts as JSON Lines or TSV
+ * <p>
+ * Entries are written one by one while they are read, so memory doesn't grow with the number of entries.
+ * Every line starts with the type, so the hosts and the virtual hosts can be written to the same output:
+ * <pre>
+ * {"type":"host","serverName":"example.test","address":"127.0.0.1"}
+ * {"type":"virtual-host","serverName":"example.test","aliases":["www.example.test"],"address":"127.0.0.1","port":80,...}
+ * host          127.0.0.1  example.test
+ * virtual-host  127.0.0.1  80  example.test  www.example.test  /var/www/example  off  /etc/apache2/sites-available/example  2
+ * </pre>
+ * TSV columns are separated by a single tab, several aliases by a space and tabs and line breaks in values are escaped as \t and \n
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class Export {
+
+    /**
+     * Output format
+     */
+    public enum Format {
+        JSON_LINES,
+        TSV;
+
+        /**
+         * Parses the format from the console
+         *
+         * @param name jsonl | json | tsv
+         * @return Format
+         * @throws Exception If the format is not known
+         */
+        public static Format parse(String name) throws Exception {
+            switch (name.toLowerCase(Locale.ROOT)) {
+                case "jsonl":
+                case "json":
+                    return JSON_LINES;
+                case "tsv":
+                    return TSV;
+                default:
+                    throw new Exception("Format " + name + " is not supported, use jsonl or tsv");
+            }
+        }
+    }
+
+    /**
+     * Selects the entries by domain suffix and ip address
+     */
+    public static class Filter {
+
+        /**
+         * Filter that selects everything
+         */
+        public static final Filter ALL = new Filter(null, null);
+
+        /**
+         * Lower case domain suffix without leading *, null for any domain
+         */
+        private final String suffix;
+
+        /**
+         * UTF-8 bytes of the suffix
+         */
+        private final byte[] suffixBytes;
+
+        /**
+         * Bytes of the ip address, null for any address
+         */
+        private final byte[] address;
+
+        /**
+         * Primary constructor
+         * Suffix example.test selects example.test and its subdomains, .example.test only the subdomains
+         *
+         * @param suffix  Domain suffix, null for any domain
+         * @param address Ip address, null for any address
+         */
+        public Filter(String suffix, InetAddress address) {
+            if (suffix != null) {
+                suffix = suffix.toLowerCase(Locale.ROOT);
+                if (suffix.startsWith("*.")) suffix = suffix.substring(1);
+                if (suffix.isEmpty()) suffix = null;
+            }
+            this.suffix = suffix;
+            this.suffixBytes = suffix == null ? null : suffix.getBytes(StandardCharsets.UTF_8);
+            this.address = address == null ? null : address.getAddress();
+        }
+
+        /**
+         * Checks the domain
+         *
+         * @param name Domain
+         * @return Whether the domain has the suffix
+         */
+        public boolean matches(String name) {
+            if (suffix == null) return true;
+            if (name == null) return false;
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            return matches(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Checks the domain in its UTF-8 bytes, ASCII letters are compared ignoring case
+         *
+         * @param buffer Bytes
+         * @param start  Start of the domain
+         * @param end    End of the domain
+         * @return Whether the domain has the suffix
+         */
+        public boolean matches(byte[] buffer, int start, int end) {
+            if (suffix == null) return true;
+            int length = suffixBytes.length;
+            int offset = end - length;
+            if (offset < start) return false;
+            for (int i = 0; i < length; i++) {
+                byte b = buffer[offset + i];
+                if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+                if (b != suffixBytes[i]) return false;
+            }
+            return offset == start ? suffixBytes[0] != '.' : suffixBytes[0] == '.' || buffer[offset - 1] == '.';
+        }
+
+        /**
+         * Checks the parsed ip address
+         *
+         * @param bytes  Address
+         * @param length 4 for IPv4, 16 for IPv6
+         * @return Whether it is the address of the filter
+         */
+        public boolean matches(byte[] bytes, int length) {
+            if (address == null) return true;
+            if (length != address.length) return false;
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != address[i]) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Checks the ip address
+         *
+         * @param address Address
+         * @return Whether it is the address of the filter
+         */
+        public boolean hasAddress(InetAddress address) {
+            if (this.address == null) return true;
+            byte[] bytes = address.getAddress();
+            return matches(bytes, bytes.length);
+        }
+
+        /**
+         * Checks the ip address written in the config, * and names never match an address filter
+         *
+         * @param text Address
+         * @return Whether it is the address of the filter
+         */
+        public boolean hasAddress(String text) {
+            if (address == null) return true;
+            if (text == null) return false;
+            byte[] input = text.getBytes(StandardCharsets.US_ASCII);
+            byte[] bytes = new byte[16];
+            return matches(bytes, HostsScanner.parseAddress(input, 0, input.length, bytes));
+        }
+
+        /**
+         * Checks the section by its names and address, without loading it
+         *
+         * @param entry Virtual host
+         * @return Whether the ServerName or one of the aliases has the suffix and the address is the one of the filter
+         */
+        public boolean matches(VirtualHostIndex.Entry entry) {
+            if (!hasAddress(entry.getAddress())) return false;
+            if (matches(entry.getServerName())) return true;
+            for (String alias : entry.getAliases()) {
+                if (matches(alias)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return Domain suffix of the filter, null for any domain
+         */
+        public String getSuffix() {
+            return suffix;
+        }
+    }
+
+    /**
+     * Output
+     */
+    private final Writer out;
+
+    /**
+     * Output format
+     */
+    private final Format format;
+
+    /**
+     * Line being written, reused for all entries
+     */
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * Primary constructor
+     *
+     * @param out    Output, the caller flushes and closes it
+     * @param format Output format
+     */
+    public Export(Writer out, Format format) {
+        this.out = out;
+        this.format = format;
+    }
+
+    /**
+     * Writes the matching entries of the System Hosts file
+     *
+     * @param filter Entries that are written
+     * @return Number of entries written
+     * @throws IOException If the hosts file couldn't be read or the output couldn't be written
+     */
+    public long hosts(Filter filter) throws IOException {
+        try (Stream<Host> hosts = Host.stream(filter)) {
+            return write(hosts.iterator(), this::host);
+        }
+    }
+
+    /**
+     * Writes the hosts
+     *
+     * @param hosts Hosts, e.g. the result of Host.find()
+     * @return Number of entries written
+     * @throws IOException If the output couldn't be written
+     */
+    public long hosts(Iterable<Host> hosts) throws IOException {
+        return write(hosts.iterator(), this::host);
+    }
+
+    /**
+     * Writes the matching virtual hosts
+     *
+     * @param filter Virtual hosts that are written
+     * @return Number of virtual hosts written
+     * @throws IOException If some of the config files couldn't be read or the output couldn't be written
+     */
+    public long virtualHosts(Filter filter) throws IOException {
+        try (Stream<VirtualHostIndex.Entry> sections = VirtualHostIndex.getInstance().stream(filter::matches)) {
+            return write(sections.iterator(), this::virtualHost);
+        }
+    }
+
+    /**
+     * Line writer of one type of entries
+     *
+     * @param <T> Entry type
+     */
+    private interface Line<T> {
+        /**
+         * Appends the entry to the line
+         *
+         * @param entry Entry
+         */
+        void append(T entry);
+    }
+
+    /**
+     * Writes the entries line by line
+     *
+     * @param entries Entries
+     * @param writer  Line writer
+     * @param <T>     Entry type
+     * @return Number of entries written
+     * @throws IOException If the input couldn't be read or the output couldn't be written
+     */
+    private <T> long write(Iterator<T> entries, Line<T> writer) throws IOException {
+        long count = 0;
+        try {
+            while (entries.hasNext()) {
+                line.setLength(0);
+                writer.append(entries.next());
+                line.append('\n');
+                out.append(line);
+                count++;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return count;
+    }
+
+    /**
+     * Appends the host
+     *
+     * @param host Host
+     */
+    private void host(Host host) {
+        String address = host.getAddress().getHostAddress();
+        if (format == Format.TSV) {
+            line.append("host\t").append(address).append('\t');
+            tsv(host.getServerName());
+            return;
+        }
+        line.append("{\"type\":\"host\",\"serverName\":").append(Daemon.json(host.getServerName()))
+                .append(",\"address\":\"").append(address).append("\"}");
+    }
+
+    /**
+     * Appends the virtual host
+     *
+     * @param section Virtual host
+     */
+    private void virtualHost(VirtualHostIndex.Entry section) {
+        if (format == Format.TSV) {
+            line.append("virtual-host\t");
+            tsv(section.getAddress());
+            line.append('\t').append(section.getPort()).append('\t');
+            tsv(section.getServerName());
+            line.append('\t');
+            for (int i = 0; i < section.getAliases().size(); i++) {
+                if (i > 0) line.append(' ');
+                tsv(section.getAliases().get(i));
+            }
+            line.append('\t');
+            tsv(section.getDocumentRoot());
+            line.append('\t').append(section.isRewriteEngine() ? "on" : "off").append('\t');
+            tsv(section.getFile().getPath());
+            line.append('\t').append(section.getLine());
+            return;
+        }
+        line.append("{\"type\":\"virtual-host\",\"serverName\":").append(Daemon.json(section.getServerName()))
+                .append(",\"aliases\":[");
+        for (int i = 0; i < section.getAliases().size(); i++) {
+            if (i > 0) line.append(',');
+            line.append(Daemon.json(section.getAliases().get(i)));
+        }
+        line.append("],\"address\":").append(Daemon.json(section.getAddress()))
+                .append(",\"port\":").append(section.getPort())
+                .append(",\"documentRoot\":").append(Daemon.json(section.getDocumentRoot()))
+                .append(",\"rewriteEngine\":").append(section.isRewriteEngine())
+                .append(",\"file\":").append(Daemon.json(section.getFile().getPath()))
+                .append(",\"line\":").append(section.getLine()).append('}');
+    }
+
+    /**
+     * Appends the TSV value, null as empty
+     *
+     * @param value Value
+     */
+    private void tsv(String value) {
+        if (value == null) return;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                default:
+                    line.append(c);
+            }
+        }
+    }
+}
@@ -5,9 +5,10 @@ import com.virtualhosts.apache.HostNotFoundException;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
@@ -29,14 +30,9 @@ public class Host {
     private String serverName;
 
     /**
-     * System Hosts file
+     * Cache of the parsed System Hosts file, shared between all hosts
      */
-    private static final File file = new File(Config.HOSTS);
-
-    /**
-     * Content of the HOSTS file
-     */
-    private static List<String> content;
+    private static volatile HostsCache cache;
 
     /**
      * Cleans the ip address
@@ -46,13 +42,8 @@ public class Host {
      * @return Cleaned ip address
      */
     public String cleanIpAddress(String ipAddress) {
-        Pattern replace = Pattern.compile("((\\w+)?/)(.*)");
-        Matcher matcher = replace.matcher(ipAddress);
-
-        if (matcher.matches()) {
-            ipAddress = ipAddress.replaceFirst("((\\w+)?/)", "");
-        }
-        return ipAddress;
+        int slash = ipAddress.indexOf('/');
+        return slash < 0 ? ipAddress : ipAddress.substring(slash + 1);
     }
 
     /**
@@ -64,11 +55,6 @@ public class Host {
     public Host(InetAddress address, String serverName) {
         this.address = address;
         this.serverName = serverName;
-        try {
-            content = readFile();
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
-        }
     }
 
     /**
@@ -126,23 +112,60 @@ public class Host {
      * @return List of lines
      */
     public static List<String> getContent() {
-        if (content == null) {
-            try {
-                content = readFile();
-            } catch (Exception e) {
-                System.out.println(e.getMessage());
-            }
-        }
-        return content;
+        var hosts = getHostsFile();
+        return hosts == null ? null : hosts.getLines();
     }
 
     /**
-     * Getter for this.file
+     * Getter for the System Hosts file
      *
      * @return Hosts file
      */
     public static File getFile() {
-        return Host.file;
+        return new File(Config.HOSTS);
+    }
+
+    /**
+     * Returns the parsed System Hosts file
+     * File is parsed on the first call, after that only validated with a single stat
+     * (or not touched at all while it is watched)
+     *
+     * @return Hosts file model, or null if the file couldn't be read
+     */
+    public static HostsFile getHostsFile() {
+        try {
+            return getCache().get();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cache of the System Hosts file, a new one is created when Config.HOSTS changes
+     *
+     * @return Cache
+     */
+    public static HostsCache getCache() {
+        HostsCache current = cache;
+        if (current != null && current.getFile().getPath().equals(Config.HOSTS)) {
+            return current;
+        }
+        synchronized (Host.class) {
+            if (cache == null || !cache.getFile().getPath().equals(Config.HOSTS)) {
+                if (cache != null) cache.close();
+                cache = new HostsCache(getFile());
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Drops the parsed hosts file, next call to getHostsFile() will read it again
+     */
+    public static synchronized void reload() {
+        if (cache != null) cache.close();
+        cache = null;
     }
 
     /**
@@ -151,7 +174,11 @@ public class Host {
      * @return returns whether the host exits or not
      */
     private boolean hostExits() {
-        return read().containsKey(this.serverName) && read().containsValue(this.address);
+        var hosts = getHostsFile();
+        long start = Metrics.start();
+        boolean exists = hosts != null && hosts.contains(this.serverName, this.address);
+        Metrics.record(Metrics.Phase.LOOKUP, start, 0, exists ? 1 : 0);
+        return exists;
     }
 
     /**
@@ -161,100 +188,214 @@ public class Host {
      * @return List of hosts
      */
     public static List<Host> getAllHosts() {
-        try {
-            var read = Host.read();
-            List<Host> list = new ArrayList<>(5);
-            for (var key : read.keySet()) {
-                list.add(new Host(read.get(key), key));
-            }
-            return list;
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
+        var hosts = getHostsFile();
+        if (hosts == null) return null;
+        List<Host> list = new ArrayList<>(hosts.size());
+        for (var entry : hosts.entries()) {
+            list.add(new Host(entry.getAddress(), entry.getName()));
         }
-        return null;
+        return list;
     }
 
     /**
-     * Writes to hosts file
+     * Streams all entries of the hosts file
      *
-     * @throws Exception Throws exception if host already exits or file is not writable
+     * @return Entries in file order, the stream must be closed
+     * @throws IOException If the hosts file couldn't be opened
+     * @see #stream(Export.Filter)
      */
-    public void write() throws Exception {
-        if (hostExits()) {
-            throw new Exception("Host already exists");
+    public static Stream<Host> stream() throws IOException {
+        return stream(Export.Filter.ALL);
+    }
+
+    /**
+     * Streams the matching entries of the hosts file without loading the whole file
+     * Every definition is returned, also the later ones of a domain that the resolver doesn't use.
+     * Changes journaled by the daemon of this process are not in the file yet, so the parsed model is streamed then
+     *
+     * @param filter Entries that are returned
+     * @return Entries in file order, the stream must be closed
+     * @throws IOException If the hosts file couldn't be opened
+     */
+    public static Stream<Host> stream(Export.Filter filter) throws IOException {
+        if (getCache().isJournaled()) {
+            var hosts = getHostsFile();
+            if (hosts == null) throw new IOException("Hosts file couldn't be read");
+            return hosts.entries().stream()
+                    .filter(entry -> filter.matches(entry.getName()) && filter.hasAddress(entry.getAddress()))
+                    .map(entry -> new Host(entry.getAddress(), entry.getName()));
         }
-        write(this.toString(), true);
-        System.out.println("You host added successfully");
+        HostsReader reader = new HostsReader(getFile(), filter);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(reader, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(reader::close);
     }
 
     /**
-     * Private method that writes to system hosts file
+     * Finds the hosts by the domain suffix and/or the ip address through the index of the hosts file
+     * Suffix example.test selects example.test and its subdomains, .example.test and *.example.test only the subdomains.
+     * Only the definitions the resolver uses are returned, in the order they are defined
      *
-     * @param output Actual string that will be dumped to the system Hosts file
-     * @param append Deferments if the first parameter will be appended to the file or file will be completely rewritten
-     * @throws Exception This exception is thrown when user doesn't have permission to write to file
+     * @param suffix  Domain suffix, null for any domain
+     * @param address Ip address, null for any address
+     * @return Hosts matching both, null if the hosts file couldn't be read
      */
-    private void write(String output, boolean append) throws Exception {
+    public static List<Host> find(String suffix, InetAddress address) {
+        var hosts = getHostsFile();
+        if (hosts == null) return null;
+        long start = Metrics.start();
+        List<HostsFile.Entry> entries;
+        if (suffix != null) {
+            entries = hosts.findBySuffix(suffix);
+        } else if (address != null) {
+            entries = hosts.findByAddress(address);
+        } else {
+            entries = new ArrayList<>(hosts.entries());
+        }
+        List<Host> list = new ArrayList<>(entries.size());
+        for (var entry : entries) {
+            if (suffix != null && address != null && !address.equals(entry.getAddress())) continue;
+            list.add(new Host(entry.getAddress(), entry.getName()));
+        }
+        Metrics.record(Metrics.Phase.LOOKUP, start, 0, list.size());
+        return list;
+    }
+
+    /**
+     * Finds the hosts by the domain suffix
+     *
+     * @param suffix Domain suffix
+     * @return Hosts in the order they are defined, null if the hosts file couldn't be read
+     * @see #find(String, InetAddress)
+     */
+    public static List<Host> findBySuffix(String suffix) {
+        return find(suffix, null);
+    }
+
+    /**
+     * Finds the hosts pointing to the address
+     *
+     * @param address Ip address
+     * @return Hosts in the order they are defined, null if the hosts file couldn't be read
+     */
+    public static List<Host> findByAddress(InetAddress address) {
+        return find(null, address);
+    }
+
+    /**
+     * Deletes every host under the domain suffix
+     * Matching domains are locked, found again under the lock and removed in one commit
+     *
+     * @param suffix Domain suffix, *.example.test deletes only the subdomains
+     * @return Number of deleted hosts
+     * @throws Exception If the suffix doesn't name a domain or the hosts file couldn't be read or written
+     */
+    public static int deleteBySuffix(String suffix) throws Exception {
+        String domain = suffix.startsWith("*") ? suffix.substring(1) : suffix;
+        if (domain.replace(".", "").isEmpty()) {
+            throw new Exception("Suffix must name a domain");
+        }
+        List<Host> matched = findBySuffix(suffix);
+        if (matched == null) {
+            throw new Exception("Hosts file couldn't be read");
+        }
+        String[] names = new String[matched.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = matched.get(i).serverName;
+        }
+        int count = 0;
+        Locks.Handle lock = getCache().lock(names);
         try {
-            //Check if the file is writable
-            if (!file.canWrite()) {
-                throw new Exception("File is not writable, try running as Administrator/Root");
+            var hosts = getHostsFile();
+            if (hosts == null) {
+                throw new Exception("Hosts file couldn't be read");
             }
-            String address = cleanIpAddress(this.address.toString());
-            //Writes to hosts file
-            FileWriter writer = new FileWriter(file, append);
-            writer.append(output);
-            writer.close();
-//            System.out.println("You host added successfully");
-        } catch (IOException e) {
-            System.out.println(e.getMessage());
+            //Another process may have changed the file before the lock
+            for (var entry : hosts.findBySuffix(suffix)) {
+                if (hosts.remove(entry.getName())) count++;
+            }
+            if (count > 0) hosts.commit();
+        } finally {
+            lock.close();
         }
+        return count;
     }
 
     /**
-     * Gets single host from the Hosts file
+     * Rewrites the hosts file canonically, see {@link HostsCompactor}
+     * The file is locked while it is read and replaced, nothing written by another process in the meantime is lost
      *
-     * @param hostName domain
-     * @return new instance of Hosts class
-     * @throws HostNotFoundException if the hosts isn't found
+     * @param write False to only report what the compaction would do
+     * @return Sizes, lines and parse times before and after
+     * @throws Exception If the hosts file couldn't be read or written
      */
-    public static Host get(String hostName) throws HostNotFoundException {
+    public static HostsCompactor.Result compact(boolean write) throws Exception {
+        File file = getFile();
+        HostsCompactor.Result result = new HostsCompactor.Result();
+        Locks.Handle lock = getCache().lock();
         try {
-            var read = read();
-            //Checks for the hostname
-            if (read.containsKey(hostName)) {
-                var address = read.get(hostName);
-                return new Host(address, hostName);
+            var hosts = getHostsFile();
+            if (hosts == null) {
+                throw new Exception("Hosts file couldn't be read");
             }
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
+            //Changes still in the journal of a running daemon are written first
+            if (hosts.hasPendingChanges()) hosts.checkpoint();
+            byte[] before = Files.readAllBytes(file.toPath());
+            byte[] after = HostsCompactor.compact(before, System.lineSeparator(), result);
+            HostsCompactor.measure(file, before, after, result);
+            if (write && !Arrays.equals(before, after)) {
+                if (!file.canWrite()) {
+                    throw new Exception("File is not writable, try running as Administrator/Root");
+                }
+                Journal.writeAtomically(file, out -> out.write(after));
+                getCache().invalidate();
+            }
+        } finally {
+            lock.close();
         }
-        throw new HostNotFoundException();
+        return result;
     }
 
     /**
-     * Reads all Lines of the HOSTS file in List
+     * Writes to hosts file
+     * Only the new line is appended to the file, while the hosts file is locked against other processes
      *
-     * @return List of strings
-     * @throws Exception This exception is thrown when file is not readable or user doesn't have permission to read it
+     * @throws Exception Throws exception if host already exits or file is not writable
      */
-    private static List<String> readFile() throws Exception {
-        ArrayList<String> lines = new ArrayList<>(20);
-        if (!file.canRead()) {
-            throw new Exception("File is not readable, try running it as Administrator/Root");
-        }
-        String line;
-        FileReader fileReader = new FileReader(file);
-        BufferedReader reader = new BufferedReader(fileReader);
-        while ((line = reader.readLine()) != null) {
-            lines.add(line);
+    public void write() throws Exception {
+        Locks.Handle lock = getCache().lock(this.serverName);
+        try {
+            var hosts = getHostsFile();
+            if (hosts == null) {
+                throw new Exception("Hosts file couldn't be read");
+            }
+            if (hostExits()) {
+                throw new Exception("Host already exists");
+            }
+            hosts.add(this.address, this.serverName);
+            hosts.commit();
+        } finally {
+            lock.close();
         }
+        System.out.println("You host added successfully");
+    }
 
-        //Cleaning up
-        reader.close();
-        fileReader.close();
-        lines.trimToSize();
-        return lines;
+    /**
+     * Gets single host from the Hosts file
+     *
+     * @param hostName domain
+     * @return new instance of Hosts class
+     * @throws HostNotFoundException if the hosts isn't found
+     */
+    public static Host get(String hostName) throws HostNotFoundException {
+        var hosts = getHostsFile();
+        long start = Metrics.start();
+        //Checks for the hostname
+        var entry = hosts == null ? null : hosts.get(hostName);
+        Metrics.record(Metrics.Phase.LOOKUP, start, 0, entry == null ? 0 : 1);
+        if (entry == null) {
+            throw new HostNotFoundException();
+        }
+        return new Host(entry.getAddress(), hostName);
     }
 
     /**
@@ -264,63 +405,61 @@ public class Host {
      */
     public static Map<String, InetAddress> read() {
         var map = new HashMap<String, InetAddress>();
-        String pattern = "\\n?(\\d{0,3}\\.\\d{0,3}\\.\\d{0,3}\\.\\d{0,3})(\\t+|\\s*)(.*)\\n?";
-        Pattern regex = Pattern.compile(pattern);
-        Matcher matcher;
-        byte[] bytes = new byte[4];
-        for (var line : getContent()) {
-            matcher = regex.matcher(line);
-            if (!matcher.matches()) continue;
-            var ipStr = matcher.group(1);
-            String[] ip = ipStr.split("\\.");
-            for (int i = 0; i < ip.length; i++) {
-                bytes[i] = Byte.parseByte(ip[i]);
-            }
-            try {
-                map.put(matcher.group(3), InetAddress.getByAddress(bytes));
-            } catch (UnknownHostException e) {
-                System.out.println(e.getMessage());
-            }
+        var hosts = getHostsFile();
+        if (hosts == null) return map;
+        for (var entry : hosts.entries()) {
+            map.put(entry.getName(), entry.getAddress());
         }
         return map;
     }
 
     /**
-     * Rewriting Hosts file after update or delete
+     * Removes the host from the Hosts file after update or delete
+     * Line is tombstoned in place, the whole file is rewritten only on compaction
      *
      * @throws Exception This exception is thrown when user doesn't have access to read or write to the file
      */
     private void rewrite() throws Exception {
-        if (!hostExits()) {
-            throw new Exception("Host doesn't exist");
-        }
-        StringBuilder builder = new StringBuilder();
-        Matcher matcher;
-        Pattern regex = Pattern.compile("\\n?" + cleanIpAddress(this.address.toString()) + "[\\t|\\s]+" + this.serverName + "\\n?");
-        for (var line : getContent()) {
-            matcher = regex.matcher(line);
-            if (!matcher.matches()) {
-                builder.append(line);
-            }
-        }
+        Locks.Handle lock = getCache().lock(this.serverName);
         try {
-            write(builder.toString(), false);
-        } catch (IOException e) {
-            System.out.println(e.getMessage());
+            if (!hostExits()) {
+                throw new Exception("Host doesn't exist");
+            }
+            var hosts = getHostsFile();
+            hosts.remove(this.serverName);
+            hosts.commit();
+        } finally {
+            lock.close();
         }
     }
 
     /**
      * Updates existing host
+     * Old line is tombstoned and the new one appended in one change, with one journal record or one flush
      *
      * @param newHost new Host to override the existing one
      * @throws Exception This exception is thrown when user doesn't have access to read or write to the file
      */
     public void update(Host newHost) throws Exception {
-        //Rewrites the whole HOSTS file
-        rewrite();
-        //Adds new host at the bottom
-        newHost.write();
+        //Both domains are locked, nobody sees the old one removed and the new one not added yet
+        Locks.Handle lock = getCache().lock(this.serverName, newHost.serverName);
+        try {
+            var hosts = getHostsFile();
+            if (hosts == null) {
+                throw new Exception("Hosts file couldn't be read");
+            }
+            if (!hostExits()) {
+                throw new Exception("Host doesn't exist");
+            }
+            //Everything is checked before the model is changed, a failed update changes nothing
+            if (!newHost.serverName.equals(this.serverName) && hosts.contains(newHost.serverName)) {
+                throw new Exception("Host already exists");
+            }
+            hosts.replace(this.serverName, newHost.address, newHost.serverName);
+            hosts.commit();
+        } finally {
+            lock.close();
+        }
         this.address = newHost.address;
         this.serverName = newHost.serverName;
         System.out.println("Host updated successfully");
@@ -346,6 +485,6 @@ public class Host {
      */
     @Override
     public String toString() {
-        return "\r\n" + this.cleanIpAddress(this.address.toString()) + "\t" + this.serverName;
+        return this.cleanIpAddress(this.address.toString()) + "\t" + this.serverName;
     }
 }
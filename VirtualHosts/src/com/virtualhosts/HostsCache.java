@@ -0,0 +1,306 @@
+package com.virtualhosts;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Change-aware cache of the parsed System Hosts file
+ * <p>
+ * The cached model is validated with a single stat of the file (size, modification time and file key).
+ * When the file has only grown, just the appended part is read and parsed.
+ * A refresh never changes the published model, a new one is built and swapped in, so readers that don't hold
+ * the lock of the writers (DNS and the daemon GETs under the shared read lock) always see a consistent model.
+ * With watch() a WatchService marks the cache stale on change, until then get() doesn't touch the disk at all.
+ * Writers take lock() first, so the model they change includes the changes of the other processes
+ * and the changes left in the journal by a crashed one.
+ * A long-running model (daemon) never frees the memory of the removed domains, so after a checkpoint it is loaded again
+ * from the file once they hold more than a quarter of it
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class HostsCache {
+
+    /**
+     * Memory of the removed domains that is always kept, the model is not loaded again for less
+     */
+    private static final long RECLAIM_BYTES = 1 << 20;
+
+    /**
+     * Hosts file
+     */
+    private final File file;
+
+    /**
+     * Cached model
+     */
+    private volatile HostsFile hosts;
+
+    /**
+     * Set by the watcher when the file has changed
+     */
+    private volatile boolean stale = true;
+
+    /**
+     * Watch service, null when the file is not watched
+     */
+    private volatile WatchService watcher;
+
+    /**
+     * Number of full loads
+     */
+    private volatile long loads;
+
+    /**
+     * Number of loads of appended lines only
+     */
+    private volatile long incrementalLoads;
+
+    /**
+     * Primary constructor
+     *
+     * @param file Hosts file
+     */
+    public HostsCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return Hosts file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the up to date model
+     *
+     * @return Parsed hosts file
+     * @throws IOException If the file couldn't be read
+     */
+    public HostsFile get() throws IOException {
+        HostsFile current = hosts;
+        if (current != null && watcher != null && !stale) {
+            return current;
+        }
+        synchronized (this) {
+            //Cleared before the check, so a change during the check is not lost
+            stale = false;
+            if (hosts == null) {
+                hosts = load();
+                return hosts;
+            }
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            //Pending changes are never dropped, flush() notices the change on disk and saves the whole model
+            if (hosts.isCurrent(attributes) || hosts.hasPendingChanges()) {
+                return hosts;
+            }
+            HostsFile extended = hosts.extend(attributes);
+            if (extended != null) {
+                incrementalLoads++;
+                hosts = extended;
+                return hosts;
+            }
+            //Journal in use stays attached to the new model
+            HostsFile fresh = load();
+            fresh.attach(hosts.getJournal());
+            hosts = fresh;
+            return hosts;
+        }
+    }
+
+    /**
+     * Loads the whole file
+     *
+     * @return Parsed hosts file
+     * @throws IOException If the file couldn't be read
+     */
+    private HostsFile load() throws IOException {
+        HostsFile loaded = HostsFile.load(file);
+        loads++;
+        return loaded;
+    }
+
+    /**
+     * Applies the changes left in the journal by a crashed process
+     * Called under the lock of the hosts file only. A journal locked by its owner (a running daemon) is left alone,
+     * an orphaned one is replayed, saved and truncated while it is locked - it is never deleted here
+     *
+     * @throws IOException If the journal couldn't be read or the hosts file saved
+     */
+    private synchronized void recover() throws IOException {
+        if (hosts != null && hosts.getJournal() != null) return;
+        File journal = Journal.of(file);
+        if (journal.length() == 0) return;
+        try (FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock owner = Journal.tryLock(channel);
+            if (owner == null) return;
+            HostsFile loaded = load();
+            if (loaded.replay(Journal.read(channel)) > 0) {
+                loaded.save();
+            }
+            channel.truncate(0);
+            channel.force(true);
+            hosts = loaded;
+        } catch (NoSuchFileException e) {
+            //Checkpointed and removed by its owner in the meantime
+        }
+    }
+
+    /**
+     * Locks the hosts file against the other processes and the domains against the other threads
+     * Cache is marked stale, so get() under the lock validates the file even while it is watched.
+     * Changes left in the journal by a crashed process are recovered under the lock
+     *
+     * @param names Domains that are changed
+     * @return Handle that releases the locks
+     * @throws IOException If the lock file couldn't be created or locked, or the journal couldn't be recovered
+     */
+    public Locks.Handle lock(String... names) throws IOException {
+        Locks.Handle handle = Locks.lock(Arrays.asList(names), Collections.singletonList(file));
+        stale = true;
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            handle.close();
+            throw e;
+        }
+        return handle;
+    }
+
+    /**
+     * @return Whether the model has a journal attached - its changes reach the file only on checkpoint
+     */
+    public boolean isJournaled() {
+        HostsFile current = hosts;
+        return current != null && current.getJournal() != null;
+    }
+
+    /**
+     * Writes the journaled changes to the hosts file and truncates the journal
+     * If another process has changed the file in the meantime, the file is loaded again
+     * and the records of the journal are replayed on top of it, so the changes of both are kept.
+     * Records are taken from the open journal, not from its path
+     *
+     * @throws IOException If the file couldn't be read or saved
+     */
+    public void checkpoint() throws IOException {
+        Locks.Handle files = lock();
+        try {
+            synchronized (this) {
+                if (hosts == null) return;
+                Journal journal = hosts.getJournal();
+                if (journal == null || hosts.isCurrent(Files.readAttributes(file.toPath(), BasicFileAttributes.class))) {
+                    hosts.checkpoint();
+                    reclaim();
+                    return;
+                }
+                journal.flush().join();
+                HostsFile merged = HostsFile.load(file);
+                loads++;
+                merged.replay(journal.records());
+                merged.save();
+                journal.reset();
+                merged.attach(journal);
+                hosts = merged;
+            }
+        } finally {
+            files.close();
+        }
+    }
+
+    /**
+     * Loads the model again from the file when the removed domains hold too much of its memory
+     * Called right after the checkpoint under the lock, while the file and the model are the same
+     *
+     * @throws IOException If the file couldn't be read
+     */
+    private void reclaim() throws IOException {
+        if (hosts.getDeadMemory() < Math.max(RECLAIM_BYTES, hosts.getStoreMemory() / 4)) return;
+        HostsFile fresh = load();
+        fresh.attach(hosts.getJournal());
+        hosts = fresh;
+    }
+
+    /**
+     * Marks the cache stale, next get() validates the file
+     */
+    public void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * Starts watching the directory of the hosts file
+     * Until the file changes get() returns the cached model without touching the disk
+     *
+     * @throws IOException If the watch service couldn't be started
+     */
+    public synchronized void watch() throws IOException {
+        if (watcher != null) return;
+        Path path = file.toPath().toAbsolutePath();
+        WatchService service = path.getFileSystem().newWatchService();
+        path.getParent().register(service,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = service.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        Object context = event.context();
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                                || (context instanceof Path && ((Path) context).equals(path.getFileName()))) {
+                            stale = true;
+                        }
+                    }
+                    if (!key.reset()) {
+                        stale = true;
+                        watcher = null;
+                        return;
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                stale = true;
+            }
+        }, "virtualhosts-hosts-watcher");
+        thread.setDaemon(true);
+        stale = true;
+        watcher = service;
+        thread.start();
+    }
+
+    /**
+     * Stops watching the hosts file
+     */
+    public synchronized void close() {
+        WatchService service = watcher;
+        watcher = null;
+        stale = true;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return Number of full loads
+     */
+    public long getLoads() {
+        return loads;
+    }
+
+    /**
+     * @return Number of loads of appended lines only
+     */
+    public long getIncrementalLoads() {
+        return incrementalLoads;
+    }
+}
@@ -0,0 +1,334 @@
+package com.virtualhosts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Rewrites the System Hosts file canonically
+ * <p>
+ * Years of appends leave one line per domain, CRLF line endings and later definitions the resolver never uses.
+ * The compactor keeps the first definition of every domain only, merges the single-domain lines of the same address
+ * into one line (at the place of the first of them, at most {@link #MAX_NAMES} domains and {@link #MAX_LINE} bytes per line)
+ * and writes every line with the line separator of the OS.
+ * Comments, blank lines and the lines written by hand (several domains, an inline comment or a domain without a dot,
+ * eg. localhost) stay where they are, lines are merged only inside a section between two of them
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public final class HostsCompactor {
+
+    /**
+     * Most domains on one merged line, the Windows resolver ignores the ones after the ninth
+     */
+    public static final int MAX_NAMES = 8;
+
+    /**
+     * Longest merged line in bytes, older resolvers truncate longer lines
+     */
+    public static final int MAX_LINE = 255;
+
+    /**
+     * Statistics of one compaction
+     */
+    public static final class Result {
+        /**
+         * Size of the file before and after
+         */
+        private long bytesBefore, bytesAfter;
+
+        /**
+         * Number of lines before and after
+         */
+        private int linesBefore, linesAfter;
+
+        /**
+         * Number of definitions removed because the domain was already defined
+         */
+        private int duplicates;
+
+        /**
+         * Number of lines merged into an earlier line of the same address
+         */
+        private int merged;
+
+        /**
+         * Time to parse the file before and after in nanoseconds, 0 when not measured
+         */
+        private long parseBefore, parseAfter;
+
+        /**
+         * @return Size of the file before
+         */
+        public long getBytesBefore() {
+            return bytesBefore;
+        }
+
+        /**
+         * @return Size of the file after
+         */
+        public long getBytesAfter() {
+            return bytesAfter;
+        }
+
+        /**
+         * @return Number of lines before
+         */
+        public int getLinesBefore() {
+            return linesBefore;
+        }
+
+        /**
+         * @return Number of lines after
+         */
+        public int getLinesAfter() {
+            return linesAfter;
+        }
+
+        /**
+         * @return Number of removed duplicate definitions
+         */
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * @return Number of merged lines
+         */
+        public int getMerged() {
+            return merged;
+        }
+
+        /**
+         * @return Time to parse the file before in nanoseconds
+         */
+        public long getParseBefore() {
+            return parseBefore;
+        }
+
+        /**
+         * @return Time to parse the file after in nanoseconds
+         */
+        public long getParseAfter() {
+            return parseAfter;
+        }
+
+        /**
+         * Report for people
+         *
+         * @return eg. 1048576 -> 262144 bytes, 40000 -> 5002 lines, 12 duplicates removed, 34986 lines merged, parse 9.8 -> 3.1 ms
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d -> %d bytes, %d -> %d lines, %d duplicates removed, %d lines merged, parse %.1f -> %.1f ms",
+                    bytesBefore, bytesAfter, linesBefore, linesAfter, duplicates, merged, parseBefore / 1e6, parseAfter / 1e6);
+        }
+    }
+
+    /**
+     * Line of single-domain entries of one address that is still being filled
+     */
+    private static final class Group {
+        /**
+         * Address as it is written on the first line
+         */
+        final byte[] address;
+
+        /**
+         * Domains in the order they are defined
+         */
+        final List<byte[]> names = new ArrayList<>(MAX_NAMES);
+
+        /**
+         * Length of the line without the line separator
+         */
+        int length;
+
+        Group(byte[] address, byte[] name) {
+            this.address = address;
+            this.names.add(name);
+            this.length = address.length + 1 + name.length;
+        }
+
+        /**
+         * Adds the domain if the line has room for it
+         *
+         * @param name Domain
+         * @return Whether the domain has been added
+         */
+        boolean add(byte[] name) {
+            if (names.size() >= MAX_NAMES || length + 1 + name.length > MAX_LINE) return false;
+            names.add(name);
+            length += 1 + name.length;
+            return true;
+        }
+    }
+
+    private HostsCompactor() {
+    }
+
+    /**
+     * Compacts the content of the hosts file
+     *
+     * @param data      Content of the hosts file
+     * @param separator Line separator to write
+     * @param result    Statistics, filled in
+     * @return Compacted content
+     */
+    public static byte[] compact(byte[] data, String separator, Result result) {
+        //Lines are byte[] when written as they are, Group when merged
+        List<Object> lines = new ArrayList<>();
+        Set<String> defined = new HashSet<>();
+        Map<String, Group> section = new HashMap<>();
+        byte[] address = new byte[16];
+        boolean blank = false;
+        HostsScanner scanner = new HostsScanner(data, 0, data.length);
+        while (scanner.nextLine()) {
+            result.linesBefore++;
+            int start = scanner.lineStart();
+            int end = trimEnd(data, start, scanner.lineEnd());
+            if (HostsFile.isTombstone(data, scanner.lineStart(), scanner.lineEnd())) continue;
+            int length = scanner.isEntry() ? scanner.parseAddress(address) : 0;
+            if (length == 0) {
+                //Comments, blank lines and lines that are not entries end the section
+                section.clear();
+                boolean empty = start == end;
+                if (!(empty && (blank || lines.isEmpty()))) {
+                    lines.add(Arrays.copyOfRange(data, start, end));
+                }
+                blank = empty;
+                continue;
+            }
+            blank = false;
+            List<byte[]> names = new ArrayList<>();
+            int count = 0;
+            while (scanner.nextName()) {
+                count++;
+                byte[] name = Arrays.copyOfRange(data, scanner.nameStart(), scanner.nameEnd());
+                //Resolver uses the first definition, the later ones are dead
+                if (!defined.add(new String(name, StandardCharsets.UTF_8).toLowerCase(Locale.ROOT))) {
+                    result.duplicates++;
+                    continue;
+                }
+                names.add(name);
+            }
+            boolean comment = scanner.contentEnd() < scanner.lineEnd();
+            byte[] text = Arrays.copyOfRange(data, scanner.addressStart(), scanner.addressEnd());
+            //Decided by the domains that are left, so a second compaction changes nothing
+            if (comment || names.size() > 1 || (names.size() == 1 && !contains(names.get(0), (byte) '.'))) {
+                //Written by hand, only the dead domains are removed
+                section.clear();
+                if (names.size() == count) {
+                    lines.add(Arrays.copyOfRange(data, start, end));
+                } else {
+                    ByteArrayOutputStream line = new ByteArrayOutputStream(end - start);
+                    if (!names.isEmpty()) {
+                        line.write(text, 0, text.length);
+                        for (int i = 0; i < names.size(); i++) {
+                            line.write(i == 0 ? '\t' : ' ');
+                            line.write(names.get(i), 0, names.get(i).length);
+                        }
+                        if (comment) line.write(' ');
+                    }
+                    if (comment) line.write(data, scanner.contentEnd(), end - scanner.contentEnd());
+                    lines.add(line.toByteArray());
+                }
+                continue;
+            }
+            if (names.isEmpty()) continue;
+            String key = new String(address, 0, length, StandardCharsets.ISO_8859_1);
+            Group group = section.get(key);
+            if (group != null && group.add(names.get(0))) {
+                result.merged++;
+                continue;
+            }
+            group = new Group(text, names.get(0));
+            section.put(key, group);
+            lines.add(group);
+        }
+        while (!lines.isEmpty() && lines.get(lines.size() - 1) instanceof byte[] && ((byte[]) lines.get(lines.size() - 1)).length == 0) {
+            lines.remove(lines.size() - 1);
+        }
+        byte[] newline = separator.getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        for (Object line : lines) {
+            if (line instanceof byte[]) {
+                out.write((byte[]) line, 0, ((byte[]) line).length);
+            } else {
+                Group group = (Group) line;
+                out.write(group.address, 0, group.address.length);
+                for (int i = 0; i < group.names.size(); i++) {
+                    out.write(i == 0 ? '\t' : ' ');
+                    out.write(group.names.get(i), 0, group.names.get(i).length);
+                }
+            }
+            out.write(newline, 0, newline.length);
+        }
+        result.linesAfter = lines.size();
+        result.bytesBefore = data.length;
+        result.bytesAfter = out.size();
+        return out.toByteArray();
+    }
+
+    /**
+     * Measures how long the content takes to parse once
+     *
+     * @param file File the content belongs to
+     * @param data Content
+     * @return Nanoseconds
+     */
+    private static long parseNanos(File file, byte[] data) {
+        long start = System.nanoTime();
+        new HostsFile(file, data);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Fills in the parse times before and after, the fastest of a few runs of each
+     * Runs alternate and both are parsed once first, so the second one doesn't look faster only because the parser is warm
+     *
+     * @param file   Hosts file
+     * @param before Content before
+     * @param after  Content after
+     * @param result Statistics
+     */
+    static void measure(File file, byte[] before, byte[] after, Result result) {
+        boolean same = Arrays.equals(before, after);
+        result.parseBefore = result.parseAfter = Long.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            long nanos = parseNanos(file, before);
+            if (i > 0) result.parseBefore = Math.min(result.parseBefore, nanos);
+            if (same) continue;
+            nanos = parseNanos(file, after);
+            if (i > 0) result.parseAfter = Math.min(result.parseAfter, nanos);
+        }
+        if (same) result.parseAfter = result.parseBefore;
+    }
+
+    /**
+     * Finds the end of the line without trailing blanks
+     *
+     * @param data  Bytes
+     * @param start Start of the line
+     * @param end   End of the line
+     * @return End without the blanks
+     */
+    private static int trimEnd(byte[] data, int start, int end) {
+        while (end > start && (data[end - 1] == ' ' || data[end - 1] == '\t' || data[end - 1] == '\r')) end--;
+        return end;
+    }
+
+    /**
+     * @param bytes Bytes
+     * @param b     Byte
+     * @return Whether the byte is in the array
+     */
+    private static boolean contains(byte[] bytes, byte b) {
+        for (byte value : bytes) {
+            if (value == b) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,615 @@
+package com.virtualhosts;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact store of the domains in the hosts file
+ * <p>
+ * Every domain is one slot in parallel primitive arrays: IPv4 address as int, IPv6 address as two longs,
+ * line index and the name as a byte range. Names of the loaded file point into its content, names added later
+ * are copied into a byte arena, so no String or InetAddress is kept per domain.
+ * Slots are found by name through an open addressing table with linear probing,
+ * removed slots are taken out of the table by shifting the following ones back, no tombstones are left.
+ * Names are compared as bytes, case sensitive, and the first definition of the name wins as it does in the resolver.
+ * Later definitions are chained behind the first one, they are not in the table and are removed together with it.
+ * Removed slots and their names in the arena are never reused, dead() tells how much they hold,
+ * the HostsCache builds the store again from the file once it is too much
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public final class HostsEntryStore {
+
+    /**
+     * Flag of the kind, set when the slot has been removed - its name and address stay readable
+     */
+    private static final byte REMOVED = 0x20;
+
+    /**
+     * Flag of the kind, set on a later definition of a name that the resolver doesn't use
+     */
+    private static final byte SHADOWED = 0x02;
+
+    /**
+     * Bytes of one slot in the parallel arrays, the table not counted
+     */
+    private static final int SLOT_BYTES = 1 + 4 * 6;
+
+    /**
+     * Kind of the slot with IPv4 address
+     */
+    private static final byte IPV4 = 4;
+
+    /**
+     * Kind of the slot with IPv6 address
+     */
+    private static final byte IPV6 = 16;
+
+    /**
+     * Flag of the kind, set when the name is in the arena instead of the base content
+     */
+    private static final byte ARENA = 0x40;
+
+    /**
+     * Content the names of the loaded file point into
+     */
+    private final byte[] base;
+
+    /**
+     * Names added after the load
+     */
+    private byte[] arena = new byte[256];
+
+    /**
+     * Used bytes of the arena
+     */
+    private int arenaLength;
+
+    /**
+     * Address kind of every slot, with the ARENA flag
+     */
+    private byte[] kinds;
+
+    /**
+     * IPv4 address, or the index into high and low for IPv6
+     */
+    private int[] addresses;
+
+    /**
+     * Upper half of the IPv6 addresses
+     */
+    private long[] high = new long[16];
+
+    /**
+     * Lower half of the IPv6 addresses
+     */
+    private long[] low = new long[16];
+
+    /**
+     * Number of IPv6 addresses
+     */
+    private int ipv6Count;
+
+    /**
+     * Start of the name in the base or in the arena
+     */
+    private int[] nameStarts;
+
+    /**
+     * Length of the name in bytes
+     */
+    private int[] nameLengths;
+
+    /**
+     * Line where the name is defined
+     */
+    private int[] lines;
+
+    /**
+     * Hash of the name
+     */
+    private int[] hashes;
+
+    /**
+     * Next definition of the same name, -1 at the last one
+     */
+    private int[] nexts;
+
+    /**
+     * Number of used slots, removed ones included
+     */
+    private int slots;
+
+    /**
+     * Number of live slots
+     */
+    private int size;
+
+    /**
+     * Bytes held by the removed slots, their IPv6 addresses and their names in the arena
+     */
+    private long dead;
+
+    /**
+     * Open addressing table, slot + 1 or 0 when empty, length is a power of two
+     */
+    private int[] table;
+
+    /**
+     * Primary constructor
+     *
+     * @param base     Content the names of the loaded file point into
+     * @param expected Expected number of domains
+     */
+    public HostsEntryStore(byte[] base, int expected) {
+        this.base = base;
+        int capacity = Math.max(16, expected);
+        this.kinds = new byte[capacity];
+        this.addresses = new int[capacity];
+        this.nameStarts = new int[capacity];
+        this.nameLengths = new int[capacity];
+        this.lines = new int[capacity];
+        this.hashes = new int[capacity];
+        this.nexts = new int[capacity];
+        this.table = new int[tableSize(capacity)];
+    }
+
+    /**
+     * Copy of the store, changes of one are not seen by the other
+     * The base content is shared, it is never changed
+     *
+     * @param other Copied store
+     */
+    public HostsEntryStore(HostsEntryStore other) {
+        this.base = other.base;
+        this.arena = other.arena.clone();
+        this.arenaLength = other.arenaLength;
+        this.kinds = other.kinds.clone();
+        this.addresses = other.addresses.clone();
+        this.high = other.high.clone();
+        this.low = other.low.clone();
+        this.ipv6Count = other.ipv6Count;
+        this.nameStarts = other.nameStarts.clone();
+        this.nameLengths = other.nameLengths.clone();
+        this.lines = other.lines.clone();
+        this.hashes = other.hashes.clone();
+        this.nexts = other.nexts.clone();
+        this.slots = other.slots;
+        this.size = other.size;
+        this.dead = other.dead;
+        this.table = other.table.clone();
+    }
+
+    /**
+     * @param count Number of slots
+     * @return Power of two at least twice the count
+     */
+    private static int tableSize(int count) {
+        return Integer.highestOneBit(Math.max(8, count) * 2 - 1) << 1;
+    }
+
+    /**
+     * Adds the domain
+     *
+     * @param address       Parsed address
+     * @param addressLength 4 for IPv4, 16 for IPv6
+     * @param source        Bytes of the name, the base content or any other array that is copied
+     * @param start         Start of the name
+     * @param end           End of the name
+     * @param line          Line index
+     * @return Slot of the domain, -1 if the name is already defined - the definition is chained behind the first one
+     */
+    public int add(byte[] address, int addressLength, byte[] source, int start, int end, int line) {
+        int hash = hash(source, start, end);
+        int first = find(hash, source, start, end);
+        if (slots == kinds.length) grow();
+        int slot = slots++;
+        byte kind;
+        if (addressLength == 16) {
+            if (ipv6Count == high.length) {
+                high = Arrays.copyOf(high, ipv6Count * 2);
+                low = Arrays.copyOf(low, ipv6Count * 2);
+            }
+            high[ipv6Count] = toLong(address, 0);
+            low[ipv6Count] = toLong(address, 8);
+            addresses[slot] = ipv6Count++;
+            kind = IPV6;
+        } else {
+            addresses[slot] = toInt(address);
+            kind = IPV4;
+        }
+        if (source == base) {
+            nameStarts[slot] = start;
+        } else {
+            int length = end - start;
+            if (arenaLength + length > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + length));
+            }
+            System.arraycopy(source, start, arena, arenaLength, length);
+            nameStarts[slot] = arenaLength;
+            arenaLength += length;
+            kind |= ARENA;
+        }
+        nameLengths[slot] = end - start;
+        lines[slot] = line;
+        hashes[slot] = hash;
+        nexts[slot] = -1;
+        if (first >= 0) {
+            int last = first;
+            while (nexts[last] >= 0) last = nexts[last];
+            nexts[last] = slot;
+            kinds[slot] = (byte) (kind | SHADOWED);
+            return -1;
+        }
+        kinds[slot] = kind;
+        size++;
+        //Table rebuilt with the live slots already holds the new one
+        if (size * 2 > table.length) rehash(tableSize(size * 2));
+        else insert(slot);
+        return slot;
+    }
+
+    /**
+     * Adds the domain
+     *
+     * @param address Ip address
+     * @param name    Domain name
+     * @param line    Line index
+     * @return Slot of the domain, -1 if the name is already defined - the definition is chained behind the first one
+     */
+    public int add(InetAddress address, String name, int line) {
+        byte[] bytes = address.getAddress();
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        return add(bytes, bytes.length, encoded, 0, encoded.length, line);
+    }
+
+    /**
+     * Finds the slot of the domain
+     *
+     * @param name Domain name
+     * @return Slot or -1 if the domain is not defined
+     */
+    public int find(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return find(hash(bytes, 0, bytes.length), bytes, 0, bytes.length);
+    }
+
+    /**
+     * Removes the domain together with its later definitions
+     *
+     * @param name Domain name
+     * @return Removed slot of the first definition, the others follow it through next(), or -1 if the domain is not defined
+     */
+    public int remove(String name) {
+        int slot = find(name);
+        if (slot < 0) return -1;
+        unlink(slot);
+        size--;
+        for (int next = slot; next >= 0; next = nexts[next]) {
+            kinds[next] |= REMOVED;
+            dead += SLOT_BYTES + (isIpv6(next) ? 16 : 0) + ((kinds[next] & ARENA) != 0 ? nameLengths[next] : 0);
+        }
+        return slot;
+    }
+
+    /**
+     * @param slot Slot
+     * @return Next definition of the same name, -1 if there is none
+     */
+    public int next(int slot) {
+        return nexts[slot];
+    }
+
+    /**
+     * @return Number of domains
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Number of slots, removed ones included - slots are numbered from 0
+     */
+    public int slots() {
+        return slots;
+    }
+
+    /**
+     * @param slot Slot
+     * @return Whether the slot holds a domain that the resolver uses
+     */
+    public boolean isLive(int slot) {
+        return (kinds[slot] & (REMOVED | SHADOWED)) == 0;
+    }
+
+    /**
+     * @param slot Slot
+     * @return Line index of the domain
+     */
+    public int line(int slot) {
+        return lines[slot];
+    }
+
+    /**
+     * @param slot Slot
+     * @return Domain name
+     */
+    public String name(int slot) {
+        byte[] source = (kinds[slot] & ARENA) != 0 ? arena : base;
+        return new String(source, nameStarts[slot], nameLengths[slot], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param slot Slot
+     * @return Bytes of the address, 4 for IPv4 and 16 for IPv6
+     */
+    public byte[] addressBytes(int slot) {
+        int index = addresses[slot];
+        if (isIpv6(slot)) {
+            byte[] bytes = new byte[16];
+            fromLong(high[index], bytes, 0);
+            fromLong(low[index], bytes, 8);
+            return bytes;
+        }
+        return new byte[]{(byte) (index >>> 24), (byte) (index >>> 16), (byte) (index >>> 8), (byte) index};
+    }
+
+    /**
+     * @param slot Slot
+     * @return Ip address of the domain
+     */
+    public InetAddress address(int slot) {
+        try {
+            return InetAddress.getByAddress(addressBytes(slot));
+        } catch (UnknownHostException e) {
+            //Never, the length is always 4 or 16
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compares the address of the slot without creating InetAddress
+     *
+     * @param slot    Slot
+     * @param address Ip address
+     * @return Whether the domain points to the address
+     */
+    public boolean hasAddress(int slot, InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int index = addresses[slot];
+        if (isIpv6(slot)) {
+            return bytes.length == 16 && high[index] == toLong(bytes, 0) && low[index] == toLong(bytes, 8);
+        }
+        return bytes.length == 4 && index == toInt(bytes);
+    }
+
+    /**
+     * @param slot Slot
+     * @return Whether the address of the slot is IPv6
+     */
+    private boolean isIpv6(int slot) {
+        return (kinds[slot] & IPV6) != 0;
+    }
+
+    /**
+     * @param slot Slot
+     * @return Bytes the name of the slot is in - the base content or the arena
+     */
+    byte[] nameSource(int slot) {
+        return (kinds[slot] & ARENA) != 0 ? arena : base;
+    }
+
+    /**
+     * @param slot Slot
+     * @return Start of the name in its source
+     */
+    int nameStart(int slot) {
+        return nameStarts[slot];
+    }
+
+    /**
+     * @param slot Slot
+     * @return Length of the name in bytes
+     */
+    int nameLength(int slot) {
+        return nameLengths[slot];
+    }
+
+    /**
+     * @param slot Slot
+     * @return Hash of the address of the slot, equal to addressHash() of its bytes
+     */
+    int addressHash(int slot) {
+        if (isIpv6(slot)) {
+            int index = addresses[slot];
+            return mix(high[index], low[index]);
+        }
+        return mix(0, addresses[slot] & 0xffffffffL);
+    }
+
+    /**
+     * @param bytes Ip address
+     * @return Hash of the address
+     */
+    static int addressHash(byte[] bytes) {
+        if (bytes.length == 16) return mix(toLong(bytes, 0), toLong(bytes, 8));
+        return mix(0, toInt(bytes) & 0xffffffffL);
+    }
+
+    /**
+     * @param first  Slot
+     * @param second Slot
+     * @return Whether both slots have the same address
+     */
+    boolean sameAddress(int first, int second) {
+        if (isIpv6(first) != isIpv6(second)) return false;
+        if (!isIpv6(first)) return addresses[first] == addresses[second];
+        return high[addresses[first]] == high[addresses[second]] && low[addresses[first]] == low[addresses[second]];
+    }
+
+    /**
+     * @param high Upper bits
+     * @param low  Lower bits
+     * @return Spread hash of the two longs
+     */
+    private static int mix(long high, long low) {
+        long hash = (high * 0x9E3779B97F4A7C15L) ^ low;
+        hash *= 0xC2B2AE3D27D4EB4FL;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Approximate memory taken by the store, the base content is not counted
+     *
+     * @return Bytes
+     */
+    public long memory() {
+        return kinds.length * (long) SLOT_BYTES + high.length * 16L + arena.length + table.length * 4L;
+    }
+
+    /**
+     * Approximate memory held by the removed domains, it is freed only when the store is built again
+     *
+     * @return Bytes
+     */
+    public long dead() {
+        return dead;
+    }
+
+    /**
+     * Finds the slot of the name
+     *
+     * @param hash   Hash of the name
+     * @param source Bytes of the name
+     * @param start  Start of the name
+     * @param end    End of the name
+     * @return Slot or -1
+     */
+    private int find(int hash, byte[] source, int start, int end) {
+        int mask = table.length - 1;
+        int length = end - start;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int entry = table[i];
+            if (entry == 0) return -1;
+            int slot = entry - 1;
+            if (hashes[slot] == hash && nameLengths[slot] == length) {
+                byte[] name = (kinds[slot] & ARENA) != 0 ? arena : base;
+                if (Arrays.equals(name, nameStarts[slot], nameStarts[slot] + length, source, start, end)) return slot;
+            }
+        }
+    }
+
+    /**
+     * Puts the slot into the table
+     *
+     * @param slot Slot
+     */
+    private void insert(int slot) {
+        int mask = table.length - 1;
+        int i = hashes[slot] & mask;
+        while (table[i] != 0) i = (i + 1) & mask;
+        table[i] = slot + 1;
+    }
+
+    /**
+     * Takes the slot out of the table and shifts back the slots probed after it
+     *
+     * @param slot Slot
+     */
+    private void unlink(int slot) {
+        int mask = table.length - 1;
+        int i = hashes[slot] & mask;
+        while (table[i] != slot + 1) i = (i + 1) & mask;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int entry = table[j];
+            if (entry == 0) break;
+            int home = hashes[entry - 1] & mask;
+            //Slot stays if its home is cyclically between the hole and its position
+            boolean stays = i <= j ? i < home && home <= j : i < home || home <= j;
+            if (stays) continue;
+            table[i] = entry;
+            i = j;
+        }
+        table[i] = 0;
+    }
+
+    /**
+     * Builds the table of the live slots again
+     *
+     * @param capacity Table size, power of two
+     */
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        for (int slot = 0; slot < slots; slot++) {
+            if (isLive(slot)) insert(slot);
+        }
+    }
+
+    /**
+     * Doubles the slot arrays
+     */
+    private void grow() {
+        int capacity = kinds.length * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        addresses = Arrays.copyOf(addresses, capacity);
+        nameStarts = Arrays.copyOf(nameStarts, capacity);
+        nameLengths = Arrays.copyOf(nameLengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        nexts = Arrays.copyOf(nexts, capacity);
+    }
+
+    /**
+     * FNV-1a hash of the name, spread over the high bits
+     *
+     * @param source Bytes
+     * @param start  Start of the name
+     * @param end    End of the name
+     * @return Hash
+     */
+    private static int hash(byte[] source, int start, int end) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (source[i] & 0xff)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @param bytes IPv4 address
+     * @return Address as int
+     */
+    private static int toInt(byte[] bytes) {
+        return (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+    }
+
+    /**
+     * @param bytes  Address
+     * @param offset Offset of the 8 bytes
+     * @return Bytes as long
+     */
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = value << 8 | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * @param value  Bytes as long
+     * @param bytes  Address
+     * @param offset Offset of the 8 bytes
+     */
+    private static void fromLong(long value, byte[] bytes, int offset) {
+        for (int i = offset + 7; i >= offset; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,1013 @@
+package com.virtualhosts;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * In-memory model of the System Hosts file
+ * <p>
+ * The file is parsed once with {@link HostsScanner}, after that every lookup is served from the {@link HostsEntryStore},
+ * which keeps the addresses as primitives and the names as byte ranges of the file content.
+ * Original lines are kept as byte ranges of the file content and turned into Strings only when edited.
+ * <p>
+ * Every line knows its byte range on disk, so flush() changes only what has changed:
+ * removed lines are overwritten in place with a tombstone (# virtualhosts:dead and spaces), shortened lines are padded
+ * with spaces and new lines are appended. The whole file is rewritten only when dead space grows over the threshold.
+ * Only lines with the marker are dead, comments written by hand are kept whatever they look like
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class HostsFile {
+
+    /**
+     * Single domain name in the hosts file, created from the store when it is asked for
+     */
+    public static class Entry {
+        /**
+         * Ip address of the domain
+         */
+        private final InetAddress address;
+
+        /**
+         * Domain name
+         */
+        private final String name;
+
+        /**
+         * Line in the hosts file where the domain is defined
+         */
+        private final int line;
+
+        /**
+         * Primary constructor
+         *
+         * @param address Ip address
+         * @param name    Domain name
+         * @param line    Line index
+         */
+        Entry(InetAddress address, String name, int line) {
+            this.address = address;
+            this.name = name;
+            this.line = line;
+        }
+
+        /**
+         * @return Ip address of the domain
+         */
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * @return Domain name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Line index in the hosts file
+         */
+        public int getLine() {
+            return line;
+        }
+    }
+
+    /**
+     * Start of the tombstone, the rest of the line is spaces
+     */
+    static final byte[] TOMBSTONE = "# virtualhosts:dead".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Dead bytes (tombstones and padding) allowed before the file is compacted, as part of the file size
+     */
+    private static final double COMPACTION_RATIO = 0.25;
+
+    /**
+     * Files with less dead bytes than this are never compacted
+     */
+    private static final long COMPACTION_MIN_BYTES = 64 * 1024;
+
+    /**
+     * File from which the model is loaded
+     */
+    private final File file;
+
+    /**
+     * Content of the hosts file at load time
+     */
+    private final byte[] data;
+
+    /**
+     * Start offsets of the original lines
+     */
+    private int[] starts;
+
+    /**
+     * End offsets of the original lines, without line terminator
+     */
+    private int[] ends;
+
+    /**
+     * Number of the original lines
+     */
+    private int lineCount;
+
+    /**
+     * Lines added after the file has been loaded
+     */
+    private final List<String> appended = new ArrayList<>();
+
+    /**
+     * Lines changed after the file has been loaded, null value means the line has been removed
+     */
+    private final Map<Integer, String> edits = new HashMap<>();
+
+    /**
+     * Domains of the file, first definition of the domain wins as it does in the resolver
+     */
+    private final HostsEntryStore store;
+
+    /**
+     * Suffix and address index of the store, built on the first query
+     */
+    private DomainIndex index;
+
+    /**
+     * Start offset of every line in the file on disk, -1 if the line is not on disk
+     */
+    private int[] diskStarts;
+
+    /**
+     * Length of every line in the file on disk, without line terminator
+     */
+    private int[] diskLengths;
+
+    /**
+     * Lines on disk changed since the last flush
+     */
+    private final Set<Integer> dirty = new TreeSet<>();
+
+    /**
+     * Number of appended lines already written to disk
+     */
+    private int flushedAppended;
+
+    /**
+     * Size of the file on disk after the last load or flush
+     */
+    private long diskLength;
+
+    /**
+     * Modification time of the file on disk after the last load or flush
+     */
+    private long diskModified;
+
+    /**
+     * Whether the file on disk ends with line terminator
+     */
+    private boolean endsWithNewline;
+
+    /**
+     * Bytes on disk taken by tombstones and padding
+     */
+    private long deadBytes;
+
+    /**
+     * File key (inode on Linux) of the file on disk after the last load or flush, null if not supported
+     */
+    private Object diskKey;
+
+    /**
+     * Checksum of the last bytes of the file on disk, used to detect appends
+     */
+    private long tailChecksum;
+
+    /**
+     * Number of bytes covered by tailChecksum
+     */
+    private static final int TAIL = 256;
+
+    /**
+     * Journal of the changes, null when every change is saved straight to the file
+     */
+    private Journal journal;
+
+    /**
+     * Completed when the last journaled change is durable
+     */
+    private CompletableFuture<Void> lastChange = CompletableFuture.completedFuture(null);
+
+    /**
+     * Primary constructor
+     *
+     * @param file Hosts file
+     * @param data Content of the hosts file
+     */
+    HostsFile(File file, byte[] data) {
+        this.file = file;
+        this.data = data;
+        this.starts = new int[64];
+        this.ends = new int[64];
+        //Roughly one domain per 24 bytes of a typical hosts file
+        this.store = new HostsEntryStore(data, data.length / 24);
+        HostsScanner scanner = new HostsScanner(data, 0, data.length);
+        byte[] bytes = new byte[16];
+        while (scanner.nextLine()) {
+            if (lineCount == starts.length) {
+                starts = Arrays.copyOf(starts, lineCount * 2);
+                ends = Arrays.copyOf(ends, lineCount * 2);
+            }
+            int line = lineCount++;
+            starts[line] = scanner.lineStart();
+            ends[line] = scanner.lineEnd();
+            if (isTombstone(data, starts[line], ends[line])) {
+                deadBytes += scanner.nextLineStart() - scanner.lineStart();
+                continue;
+            }
+            if (!scanner.isEntry()) continue;
+            int length = scanner.parseAddress(bytes);
+            if (length == 0) continue;
+            while (scanner.nextName()) {
+                store.add(bytes, length, data, scanner.nameStart(), scanner.nameEnd(), line);
+            }
+        }
+        diskStarts = Arrays.copyOf(starts, Math.max(16, lineCount + 16));
+        diskLengths = new int[diskStarts.length];
+        for (int i = 0; i < lineCount; i++) {
+            diskLengths[i] = ends[i] - starts[i];
+        }
+        diskLength = data.length;
+        diskModified = file.lastModified();
+        endsWithNewline = data.length == 0 || data[data.length - 1] == '\n';
+        CRC32 crc = new CRC32();
+        crc.update(data, Math.max(0, data.length - TAIL), Math.min(TAIL, data.length));
+        tailChecksum = crc.getValue();
+    }
+
+    /**
+     * Copy of the model, changes of one are not seen by the other
+     * The loaded content and the offsets of its lines are shared, they are never changed.
+     * The index is not copied, the copy builds its own on the first query
+     *
+     * @param other Copied model
+     */
+    private HostsFile(HostsFile other) {
+        this.file = other.file;
+        this.data = other.data;
+        this.starts = other.starts;
+        this.ends = other.ends;
+        this.lineCount = other.lineCount;
+        this.appended.addAll(other.appended);
+        this.edits.putAll(other.edits);
+        this.store = new HostsEntryStore(other.store);
+        this.diskStarts = other.diskStarts.clone();
+        this.diskLengths = other.diskLengths.clone();
+        this.dirty.addAll(other.dirty);
+        this.flushedAppended = other.flushedAppended;
+        this.diskLength = other.diskLength;
+        this.diskModified = other.diskModified;
+        this.endsWithNewline = other.endsWithNewline;
+        this.deadBytes = other.deadBytes;
+        this.diskKey = other.diskKey;
+        this.tailChecksum = other.tailChecksum;
+        this.journal = other.journal;
+        this.lastChange = other.lastChange;
+    }
+
+    /**
+     * Checks if the line is a tombstone left by flush() - the marker followed only by spaces
+     *
+     * @param data  Bytes
+     * @param start Start of the line
+     * @param end   End of the line
+     * @return Whether the line is a tombstone
+     */
+    static boolean isTombstone(byte[] data, int start, int end) {
+        if (end - start < TOMBSTONE.length) return false;
+        for (int i = 0; i < TOMBSTONE.length; i++) {
+            if (data[start + i] != TOMBSTONE[i]) return false;
+        }
+        for (int i = start + TOMBSTONE.length; i < end; i++) {
+            if (data[i] != ' ') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Loads and parses the hosts file
+     *
+     * @param file Hosts file
+     * @return Parsed model
+     * @throws IOException This exception is thrown when file is not readable
+     */
+    public static HostsFile load(File file) throws IOException {
+        if (!file.canRead()) {
+            throw new IOException("File is not readable, try running it as Administrator/Root");
+        }
+        Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        long start = Metrics.start();
+        byte[] data = Files.readAllBytes(file.toPath());
+        Metrics.record(Metrics.Phase.READ, start, data.length, 1);
+        start = Metrics.start();
+        HostsFile hosts = new HostsFile(file, data);
+        Metrics.record(Metrics.Phase.PARSE, start, data.length, hosts.size());
+        hosts.diskKey = key;
+        return hosts;
+    }
+
+    /**
+     * Gets the line as String
+     *
+     * @param index Line index
+     * @return Line, or null if the line has been removed
+     */
+    private String line(int index) {
+        if (edits.containsKey(index)) return edits.get(index);
+        if (index >= lineCount) return appended.get(index - lineCount);
+        return new String(data, starts[index], ends[index] - starts[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks if the domain is defined
+     *
+     * @param name Domain name
+     * @return Whether the domain exists
+     */
+    public boolean contains(String name) {
+        return store.find(name) >= 0;
+    }
+
+    /**
+     * Checks if the domain is defined and points to the given address
+     *
+     * @param name    Domain name
+     * @param address Ip address
+     * @return Whether the domain exists
+     */
+    public boolean contains(String name, InetAddress address) {
+        int slot = store.find(name);
+        return slot >= 0 && store.hasAddress(slot, address);
+    }
+
+    /**
+     * Gets the entry for the domain
+     *
+     * @param name Domain name
+     * @return Entry or null if domain doesn't exist
+     */
+    public Entry get(String name) {
+        int slot = store.find(name);
+        return slot < 0 ? null : entry(slot);
+    }
+
+    /**
+     * Gets all domains pointing to the address
+     *
+     * @param address Ip address
+     * @return Set of domain names in the order they are defined
+     */
+    public Set<String> names(InetAddress address) {
+        Set<String> set = new LinkedHashSet<>();
+        for (int slot : index().address(address)) {
+            set.add(store.name(slot));
+        }
+        return Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * Gets all entries under the domain suffix
+     * Suffix example.test selects example.test and its subdomains, .example.test and *.example.test only the subdomains
+     *
+     * @param suffix Domain suffix
+     * @return Entries in the order they are defined
+     */
+    public List<Entry> findBySuffix(String suffix) {
+        int[] slots = index().suffix(suffix);
+        Arrays.sort(slots);
+        List<Entry> list = new ArrayList<>(slots.length);
+        for (int slot : slots) {
+            list.add(entry(slot));
+        }
+        return list;
+    }
+
+    /**
+     * Gets all entries pointing to the address
+     *
+     * @param address Ip address
+     * @return Entries in the order they are defined
+     */
+    public List<Entry> findByAddress(InetAddress address) {
+        int[] slots = index().address(address);
+        List<Entry> list = new ArrayList<>(slots.length);
+        for (int slot : slots) {
+            list.add(entry(slot));
+        }
+        return list;
+    }
+
+    /**
+     * @return Index of the domains, built from the store on the first call
+     */
+    private synchronized DomainIndex index() {
+        if (index == null) index = new DomainIndex(store);
+        return index;
+    }
+
+    /**
+     * Gets all entries
+     * Entries are created while the collection is iterated, none are kept
+     *
+     * @return Entries in the order they are defined
+     */
+    public Collection<Entry> entries() {
+        return new AbstractCollection<Entry>() {
+            @Override
+            public Iterator<Entry> iterator() {
+                return new Iterator<Entry>() {
+                    private int slot = next(0);
+
+                    private int next(int from) {
+                        while (from < store.slots() && !store.isLive(from)) from++;
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot < store.slots();
+                    }
+
+                    @Override
+                    public Entry next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        Entry entry = entry(slot);
+                        slot = next(slot + 1);
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return store.size();
+            }
+        };
+    }
+
+    /**
+     * Creates the entry of the slot
+     *
+     * @param slot Slot of the store
+     * @return Entry
+     */
+    private Entry entry(int slot) {
+        return new Entry(store.address(slot), store.name(slot), store.line(slot));
+    }
+
+    /**
+     * @return Number of domains in the file
+     */
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * @return Approximate memory taken by the domains, without the file content
+     */
+    public long getStoreMemory() {
+        return store.memory();
+    }
+
+    /**
+     * @return Approximate memory held by the removed domains, freed only when the file is loaded again
+     */
+    public long getDeadMemory() {
+        return store.dead();
+    }
+
+    /**
+     * Gets the lines of the file
+     *
+     * @return List of lines
+     */
+    public List<String> getLines() {
+        int total = lineCount + appended.size();
+        List<String> list = new ArrayList<>(total);
+        for (int i = 0; i < total; i++) {
+            String line = line(i);
+            if (line != null) list.add(line);
+        }
+        return list;
+    }
+
+    /**
+     * @return Hosts file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Adds new domain at the end of the file
+     *
+     * @param address Ip address
+     * @param name    Domain name
+     * @return Line that has been added
+     */
+    public String add(InetAddress address, String name) {
+        String line = insert(address, name);
+        if (journal != null) {
+            lastChange = journal.append("add", address.getHostAddress(), name);
+        }
+        return line;
+    }
+
+    /**
+     * Adds the line of the domain to the model, without journaling it
+     *
+     * @param address Ip address
+     * @param name    Domain name
+     * @return Line that has been added
+     */
+    private String insert(InetAddress address, String name) {
+        String line = address.getHostAddress() + "\t" + name;
+        appended.add(line);
+        int index = lineCount + appended.size() - 1;
+        if (index >= diskStarts.length) {
+            diskStarts = Arrays.copyOf(diskStarts, index * 2);
+            diskLengths = Arrays.copyOf(diskLengths, index * 2);
+        }
+        diskStarts[index] = -1;
+        int slot = store.add(address, name, index);
+        if (slot >= 0 && this.index != null) this.index.add(slot);
+        return line;
+    }
+
+    /**
+     * Removes the domain from the model
+     * Every definition of the domain is removed, otherwise the resolver would fall back to the next one.
+     * If the line defines more domains, only this one is removed from the line
+     *
+     * @param name Domain name
+     * @return Whether the domain has been removed
+     */
+    public boolean remove(String name) {
+        if (!erase(name)) return false;
+        if (journal != null) {
+            lastChange = journal.append("remove", name);
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the domain with another one as one change
+     * The journal gets a single record, so a crash never leaves the old domain removed and the new one not added
+     *
+     * @param old     Domain name to remove
+     * @param address Ip address of the new domain
+     * @param name    New domain name, added unless it is still defined after the removal
+     * @return Whether the old domain has been replaced
+     */
+    public boolean replace(String old, InetAddress address, String name) {
+        if (!erase(old)) return false;
+        if (!contains(name)) insert(address, name);
+        if (journal != null) {
+            lastChange = journal.append("replace", old, address.getHostAddress(), name);
+        }
+        return true;
+    }
+
+    /**
+     * Removes every definition of the domain from the model, without journaling it
+     *
+     * @param name Domain name
+     * @return Whether the domain has been removed
+     */
+    private boolean erase(String name) {
+        int slot = store.remove(name);
+        if (slot < 0) return false;
+        //Removed slot keeps its name and address, so the index can still find it
+        if (this.index != null) this.index.remove(slot);
+        //Later definitions are in later slots, so the ones on the same line follow each other
+        int previous = -1;
+        for (; slot >= 0; slot = store.next(slot)) {
+            int index = store.line(slot);
+            if (index != previous) strip(index, name);
+            previous = index;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the domain from the line, the line is removed when no domain is left on it
+     *
+     * @param index Line index
+     * @param name  Domain name
+     */
+    private void strip(int index, String name) {
+        byte[] line = line(index).getBytes(StandardCharsets.UTF_8);
+        HostsScanner scanner = new HostsScanner(line, 0, line.length);
+        scanner.nextLine();
+        StringBuilder builder = new StringBuilder(line.length);
+        builder.append(new String(line, scanner.addressStart(), scanner.addressEnd() - scanner.addressStart(), StandardCharsets.UTF_8));
+        int left = 0;
+        while (scanner.nextName()) {
+            if (scanner.nameEquals(name)) continue;
+            builder.append('\t').append(new String(line, scanner.nameStart(), scanner.nameEnd() - scanner.nameStart(), StandardCharsets.UTF_8));
+            left++;
+        }
+        if (diskStarts[index] >= 0) {
+            dirty.add(index);
+        }
+        if (left == 0) {
+            edits.put(index, null);
+        } else {
+            if (scanner.contentEnd() < scanner.lineEnd()) {
+                builder.append(' ').append(new String(line, scanner.contentEnd(), scanner.lineEnd() - scanner.contentEnd(), StandardCharsets.UTF_8));
+            }
+            edits.put(index, builder.toString());
+        }
+    }
+
+    /**
+     * Writes the whole model back to the hosts file
+     * File is replaced atomically, so readers never see half written hosts file
+     *
+     * @throws IOException This exception is thrown when user doesn't have permission to write to file
+     */
+    public void save() throws IOException {
+        if (!file.canWrite()) {
+            throw new IOException("File is not writable, try running as Administrator/Root");
+        }
+        Journal.writeAtomically(file, this::writeTo);
+        dirty.clear();
+        flushedAppended = appended.size();
+        deadBytes = 0;
+        endsWithNewline = true;
+        snapshot();
+    }
+
+    /**
+     * Writes only the changes since the last flush
+     * Removed lines are tombstoned in place, shortened lines padded, new lines appended.
+     * Falls back to save() when the file has been changed by someone else, when an edited line got longer,
+     * when a removed line is too short for the tombstone or when the dead space is over the compaction threshold
+     *
+     * @throws IOException This exception is thrown when user doesn't have permission to write to file
+     */
+    public void flush() throws IOException {
+        if (!file.canWrite()) {
+            throw new IOException("File is not writable, try running as Administrator/Root");
+        }
+        if (!isCurrent(Files.readAttributes(file.toPath(), BasicFileAttributes.class))) {
+            save();
+            return;
+        }
+        //Everything is prepared first, so nothing is written if the flush has to fall back to save()
+        List<Integer> positions = new ArrayList<>(dirty.size());
+        List<byte[]> replacements = new ArrayList<>(dirty.size());
+        long dead = 0;
+        for (int index : dirty) {
+            String line = line(index);
+            int length = diskLengths[index];
+            byte[] bytes = line == null ? new byte[0] : line.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > length || (line == null && length < TOMBSTONE.length)) {
+                save();
+                return;
+            }
+            byte[] replacement = Arrays.copyOf(bytes, length);
+            if (line == null) {
+                System.arraycopy(TOMBSTONE, 0, replacement, 0, TOMBSTONE.length);
+                Arrays.fill(replacement, TOMBSTONE.length, length, (byte) ' ');
+                dead += length + System.lineSeparator().length();
+            } else {
+                Arrays.fill(replacement, bytes.length, length, (byte) ' ');
+                dead += length - bytes.length;
+            }
+            positions.add(diskStarts[index]);
+            replacements.add(replacement);
+        }
+        if (deadBytes + dead > Math.max(COMPACTION_MIN_BYTES, (long) (diskLength * COMPACTION_RATIO))) {
+            save();
+            return;
+        }
+
+        byte[] separator = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        if (!endsWithNewline && flushedAppended < appended.size()) {
+            tail.write(separator);
+        }
+        for (int i = flushedAppended; i < appended.size(); i++) {
+            int index = lineCount + i;
+            String line = line(index);
+            if (line == null) continue;
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            diskStarts[index] = (int) (diskLength + tail.size());
+            diskLengths[index] = bytes.length;
+            tail.write(bytes);
+            tail.write(separator);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            long start = Metrics.start();
+            long written = tail.size();
+            for (int i = 0; i < positions.size(); i++) {
+                ByteBuffer buffer = ByteBuffer.wrap(replacements.get(i));
+                long position = positions.get(i);
+                written += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(tail.toByteArray());
+            long position = diskLength;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            int lines = dirty.size() + appended.size() - flushedAppended;
+            Metrics.record(Metrics.Phase.WRITE, start, written, lines);
+            start = Metrics.start();
+            channel.force(false);
+            Metrics.record(Metrics.Phase.FSYNC, start, written, lines);
+            diskLength = position;
+        }
+        if (tail.size() > 0) endsWithNewline = true;
+        deadBytes += dead;
+        dirty.clear();
+        flushedAppended = appended.size();
+        snapshot();
+    }
+
+    /**
+     * Remembers size, modification time, file key and tail checksum of the file on disk
+     *
+     * @throws IOException If the attributes couldn't be read
+     */
+    private void snapshot() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        diskKey = attributes.fileKey();
+        diskLength = attributes.size();
+        diskModified = attributes.lastModifiedTime().toMillis();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            tailChecksum = tailChecksum(channel, diskLength);
+        }
+    }
+
+    /**
+     * Checksum of the last bytes before the given offset
+     *
+     * @param channel File channel
+     * @param end     Offset
+     * @return CRC32 of up to 256 bytes before the offset
+     * @throws IOException If the file couldn't be read
+     */
+    private static long tailChecksum(FileChannel channel, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TAIL, end));
+        long position = end - buffer.capacity();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) break;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        return crc.getValue();
+    }
+
+    /**
+     * Checks if the file on disk is the one this model has been loaded from or flushed to
+     *
+     * @param attributes Current attributes of the file
+     * @return Whether the model is up to date
+     */
+    public boolean isCurrent(BasicFileAttributes attributes) {
+        return attributes.size() == diskLength
+                && attributes.lastModifiedTime().toMillis() == diskModified
+                && Objects.equals(attributes.fileKey(), diskKey);
+    }
+
+    /**
+     * @return Whether there are changes in the model that are not on disk yet
+     */
+    public boolean hasPendingChanges() {
+        return !dirty.isEmpty() || flushedAppended < appended.size();
+    }
+
+    /**
+     * Reads lines appended to the file by someone else into a copy of the model
+     * This model is not changed, readers that hold it keep seeing it as it was.
+     * Works only if the file is the same one, it has grown and the bytes known to the model are unchanged
+     *
+     * @param attributes Current attributes of the file
+     * @return Model with the appended lines, null if the file has been changed in some other way and has to be loaded again
+     * @throws IOException If the file couldn't be read
+     */
+    public HostsFile extend(BasicFileAttributes attributes) throws IOException {
+        if (hasPendingChanges() || !endsWithNewline || attributes.size() <= diskLength
+                || !Objects.equals(attributes.fileKey(), diskKey)) {
+            return null;
+        }
+        byte[] tail;
+        long checksum;
+        long start = Metrics.start();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (tailChecksum(channel, diskLength) != tailChecksum) return null;
+            ByteBuffer buffer = ByteBuffer.allocate((int) (attributes.size() - diskLength));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, diskLength + buffer.position()) < 0) break;
+            }
+            tail = Arrays.copyOf(buffer.array(), buffer.position());
+            checksum = tailChecksum(channel, diskLength + tail.length);
+        }
+        Metrics.record(Metrics.Phase.READ, start, tail.length, 1);
+        HostsFile extended = new HostsFile(this);
+        extended.parse(tail);
+        //Known end is where the read stopped, lines appended meanwhile are read by the next refresh
+        extended.diskLength = diskLength + tail.length;
+        extended.diskModified = attributes.lastModifiedTime().toMillis();
+        extended.tailChecksum = checksum;
+        return extended;
+    }
+
+    /**
+     * Adds the lines appended to the file on disk to the model
+     *
+     * @param tail Bytes after the known end of the file
+     */
+    private void parse(byte[] tail) {
+        long start = Metrics.start();
+        int before = size();
+        HostsScanner scanner = new HostsScanner(tail, 0, tail.length);
+        byte[] bytes = new byte[16];
+        while (scanner.nextLine()) {
+            String line = new String(tail, scanner.lineStart(), scanner.lineEnd() - scanner.lineStart(), StandardCharsets.UTF_8);
+            appended.add(line);
+            int index = lineCount + appended.size() - 1;
+            if (index >= diskStarts.length) {
+                diskStarts = Arrays.copyOf(diskStarts, index * 2);
+                diskLengths = Arrays.copyOf(diskLengths, index * 2);
+            }
+            diskStarts[index] = (int) diskLength + scanner.lineStart();
+            diskLengths[index] = scanner.lineEnd() - scanner.lineStart();
+            if (isTombstone(tail, scanner.lineStart(), scanner.lineEnd())) {
+                deadBytes += scanner.nextLineStart() - scanner.lineStart();
+                continue;
+            }
+            if (!scanner.isEntry()) continue;
+            int length = scanner.parseAddress(bytes);
+            if (length == 0) continue;
+            while (scanner.nextName()) {
+                int slot = store.add(bytes, length, tail, scanner.nameStart(), scanner.nameEnd(), index);
+                if (slot >= 0 && this.index != null) this.index.add(slot);
+            }
+        }
+        flushedAppended = appended.size();
+        endsWithNewline = tail.length == 0 || tail[tail.length - 1] == '\n';
+        Metrics.record(Metrics.Phase.PARSE, start, tail.length, size() - before);
+    }
+
+    /**
+     * @return Bytes on disk taken by tombstones and padding
+     */
+    public long getDeadBytes() {
+        return deadBytes;
+    }
+
+    /**
+     * Writes the model
+     *
+     * @param out Output stream
+     * @throws IOException If writing fails
+     */
+    private void writeTo(OutputStream out) throws IOException {
+        byte[] separator = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+        int total = lineCount + appended.size();
+        int position = 0;
+        for (int i = 0; i < total; i++) {
+            int length;
+            if (i < lineCount && !edits.containsKey(i)) {
+                //Untouched lines are copied straight from the loaded bytes, tombstones are dropped
+                length = ends[i] - starts[i];
+                if (isTombstone(data, starts[i], ends[i])) {
+                    diskStarts[i] = -1;
+                    continue;
+                }
+                out.write(data, starts[i], length);
+            } else {
+                String line = line(i);
+                if (line == null) {
+                    diskStarts[i] = -1;
+                    continue;
+                }
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                length = bytes.length;
+                out.write(bytes);
+            }
+            out.write(separator);
+            diskStarts[i] = position;
+            diskLengths[i] = length;
+            position += length + separator.length;
+        }
+    }
+
+    /**
+     * Records every following change in the journal instead of saving the file
+     * Changes reach the hosts file on checkpoint()
+     *
+     * @param journal Journal, null to save changes directly again
+     */
+    public void attach(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return Journal of the changes or null
+     */
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Persists the changes made so far
+     * With the journal attached the changes are group committed, otherwise the file is flushed
+     *
+     * @return Completed when the changes are durable
+     * @throws IOException If the file couldn't be saved
+     */
+    public CompletableFuture<Void> commit() throws IOException {
+        if (journal != null) return lastChange;
+        flush();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Flushes the model to the hosts file and truncates the journal
+     *
+     * @throws IOException If the file couldn't be saved
+     */
+    public void checkpoint() throws IOException {
+        if (journal == null) {
+            flush();
+            return;
+        }
+        journal.flush().join();
+        flush();
+        journal.reset();
+    }
+
+    /**
+     * Replays the records left in the journal by a crash
+     * Records are idempotent, replaying the ones that already reached the file changes nothing
+     *
+     * @param journalFile Journal file
+     * @return Number of replayed records
+     * @throws IOException If the journal couldn't be read
+     */
+    public int replay(File journalFile) throws IOException {
+        return replay(Journal.read(journalFile));
+    }
+
+    /**
+     * Replays the records read from the journal
+     *
+     * @param records Fields of the records
+     * @return Number of replayed records
+     */
+    public int replay(List<String[]> records) {
+        int count = 0;
+        for (String[] record : records) {
+            if (record.length == 3 && record[0].equals("add")) {
+                if (!contains(record[2])) {
+                    try {
+                        add(Operation.parseAddress(record[1]), record[2]);
+                    } catch (Exception e) {
+                        continue;
+                    }
+                }
+                count++;
+            } else if (record.length == 2 && record[0].equals("remove")) {
+                remove(record[1]);
+                count++;
+            } else if (record.length == 4 && record[0].equals("replace")) {
+                try {
+                    InetAddress address = Operation.parseAddress(record[2]);
+                    if (!replace(record[1], address, record[3]) && !contains(record[3])) add(address, record[3]);
+                } catch (Exception e) {
+                    continue;
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,237 @@
+package com.virtualhosts;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Sequential reader of the System Hosts file
+ * <p>
+ * File is read in chunks of 64 KiB and tokenized with the HostsScanner, so memory doesn't grow with the file.
+ * Every name of every line is returned in file order, comments and tombstones are skipped.
+ * Unlike HostsFile a domain defined twice is returned twice, the resolver uses the first one.
+ * Filter is applied to the bytes, Strings and addresses are created only for the matching entries
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class HostsReader implements Iterator<Host>, Closeable {
+
+    /**
+     * Size of one read
+     */
+    private static final int CHUNK = 64 * 1024;
+
+    /**
+     * Open hosts file
+     */
+    private final FileChannel channel;
+
+    /**
+     * Entries that are returned
+     */
+    private final Export.Filter filter;
+
+    /**
+     * Read bytes, a line longer than the buffer grows it
+     */
+    private byte[] buffer = new byte[CHUNK];
+
+    /**
+     * View of the buffer for the channel
+     */
+    private ByteBuffer view = ByteBuffer.wrap(buffer);
+
+    /**
+     * Number of bytes in the buffer
+     */
+    private int limit;
+
+    /**
+     * End of the complete lines given to the scanner
+     */
+    private int scanned;
+
+    /**
+     * Whether the whole file has been read
+     */
+    private boolean eof;
+
+    /**
+     * Scanner of the complete lines in the buffer
+     */
+    private HostsScanner scanner;
+
+    /**
+     * Whether the scanner is on a matching line and its names are returned
+     */
+    private boolean line;
+
+    /**
+     * Parsed address of the current line
+     */
+    private final byte[] bytes = new byte[16];
+
+    /**
+     * Parsed address of the previous line
+     */
+    private final byte[] previous = new byte[16];
+
+    /**
+     * Length of the previous address
+     */
+    private int previousLength;
+
+    /**
+     * Address of the current line, shared by the consecutive lines with the same address
+     */
+    private InetAddress address;
+
+    /**
+     * Next entry, null when it is not read yet
+     */
+    private Host next;
+
+    /**
+     * Primary constructor
+     *
+     * @param file   Hosts file
+     * @param filter Entries that are returned
+     * @throws IOException If the file couldn't be opened
+     */
+    public HostsReader(File file, Export.Filter filter) throws IOException {
+        if (!file.canRead()) {
+            throw new IOException("File is not readable, try running it as Administrator/Root");
+        }
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.filter = filter;
+    }
+
+    /**
+     * @return Whether there is another entry
+     * @throws UncheckedIOException If the file couldn't be read
+     */
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = advance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    /**
+     * @return Next entry
+     * @throws UncheckedIOException If the file couldn't be read
+     */
+    @Override
+    public Host next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Host host = next;
+        next = null;
+        return host;
+    }
+
+    /**
+     * Closes the file
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Finds the next matching entry
+     *
+     * @return Entry or null at the end of the file
+     * @throws IOException If the file couldn't be read
+     */
+    private Host advance() throws IOException {
+        while (true) {
+            if (line && scanner.nextName()) {
+                if (filter.matches(buffer, scanner.nameStart(), scanner.nameEnd())) {
+                    return new Host(address, new String(buffer, scanner.nameStart(), scanner.nameEnd() - scanner.nameStart(), StandardCharsets.UTF_8));
+                }
+                continue;
+            }
+            line = false;
+            if (scanner == null || !scanner.nextLine()) {
+                if (!fill()) return null;
+                continue;
+            }
+            if (HostsFile.isTombstone(buffer, scanner.lineStart(), scanner.lineEnd()) || !scanner.isEntry()) continue;
+            int length = scanner.parseAddress(bytes);
+            if (length == 0 || !filter.matches(bytes, length)) continue;
+            if (address == null || length != previousLength || !Arrays.equals(bytes, 0, length, previous, 0, length)) {
+                try {
+                    address = InetAddress.getByAddress(Arrays.copyOf(bytes, length));
+                } catch (UnknownHostException e) {
+                    continue;
+                }
+                System.arraycopy(bytes, 0, previous, 0, length);
+                previousLength = length;
+            }
+            line = true;
+        }
+    }
+
+    /**
+     * Moves the unfinished line to the start of the buffer and reads after it
+     *
+     * @return False when there are no more lines
+     * @throws IOException If the file couldn't be read
+     */
+    private boolean fill() throws IOException {
+        int remaining = limit - scanned;
+        System.arraycopy(buffer, scanned, buffer, 0, remaining);
+        limit = remaining;
+        scanned = 0;
+        while (true) {
+            while (!eof && limit < buffer.length) {
+                view.limit(buffer.length).position(limit);
+                int read = channel.read(view);
+                if (read < 0) eof = true;
+                else limit += read;
+            }
+            int end = eof ? limit : lastLineEnd();
+            if (end > 0) {
+                scanned = end;
+                scanner = new HostsScanner(buffer, 0, end);
+                return true;
+            }
+            if (eof) return false;
+            //Single line longer than the buffer
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            view = ByteBuffer.wrap(buffer);
+        }
+    }
+
+    /**
+     * @return Offset after the last line terminator in the buffer, 0 if there is none
+     */
+    private int lastLineEnd() {
+        for (int i = limit - 1; i >= 0; i--) {
+            if (buffer[i] == '\n') return i + 1;
+        }
+        return 0;
+    }
+}
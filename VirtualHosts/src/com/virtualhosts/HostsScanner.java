@@ -0,0 +1,370 @@
+package com.virtualhosts;
+
+/**
+ * Hand-written tokenizer for the System Hosts file
+ * <p>
+ * Works directly on the bytes of the file and only moves offsets,
+ * no Strings or Matchers are created while scanning.
+ * Handles tabs and spaces, several domain names per line, inline # comments, CRLF and IPv6 addresses
+ * <p>
+ * Usage:
+ * <pre>
+ * HostsScanner scanner = new HostsScanner(bytes, 0, bytes.length);
+ * while (scanner.nextLine()) {
+ *     if (scanner.parseAddress(address) == 0) continue;
+ *     while (scanner.nextName()) {
+ *         // scanner.nameStart() - scanner.nameEnd()
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public final class HostsScanner {
+
+    /**
+     * Bytes being scanned
+     */
+    private final byte[] buffer;
+
+    /**
+     * Index after the last byte to be scanned
+     */
+    private final int limit;
+
+    /**
+     * Start of the next line
+     */
+    private int position;
+
+    /**
+     * Start of the current line
+     */
+    private int lineStart;
+
+    /**
+     * End of the current line, without line terminator
+     */
+    private int lineEnd;
+
+    /**
+     * End of the current line without the comment
+     */
+    private int contentEnd;
+
+    /**
+     * Start of the ip address on the current line
+     */
+    private int addressStart;
+
+    /**
+     * End of the ip address on the current line
+     */
+    private int addressEnd;
+
+    /**
+     * Start of the current domain name
+     */
+    private int nameStart;
+
+    /**
+     * End of the current domain name
+     */
+    private int nameEnd;
+
+    /**
+     * Primary constructor
+     *
+     * @param buffer Content of the hosts file
+     * @param offset Index of the first byte
+     * @param limit  Index after the last byte
+     */
+    public HostsScanner(byte[] buffer, int offset, int limit) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = limit;
+    }
+
+    /**
+     * Checks if the byte is space or tab
+     *
+     * @param b Byte
+     * @return Whether it is whitespace
+     */
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    /**
+     * Moves to the next line
+     *
+     * @return False when there are no more lines
+     */
+    public boolean nextLine() {
+        if (position >= limit) return false;
+        int i = position;
+        lineStart = i;
+        contentEnd = -1;
+        while (i < limit && buffer[i] != '\n') {
+            if (buffer[i] == '#' && contentEnd < 0) contentEnd = i;
+            i++;
+        }
+        position = i < limit ? i + 1 : limit;
+        lineEnd = i;
+        if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') lineEnd--;
+        if (contentEnd < 0 || contentEnd > lineEnd) contentEnd = lineEnd;
+
+        i = lineStart;
+        while (i < contentEnd && isBlank(buffer[i])) i++;
+        addressStart = i;
+        while (i < contentEnd && !isBlank(buffer[i])) i++;
+        addressEnd = i;
+        nameStart = nameEnd = addressEnd;
+        return true;
+    }
+
+    /**
+     * Moves to the next domain name on the current line
+     *
+     * @return False when there are no more names on the line
+     */
+    public boolean nextName() {
+        int i = nameEnd;
+        while (i < contentEnd && isBlank(buffer[i])) i++;
+        if (i >= contentEnd) {
+            nameStart = nameEnd = contentEnd;
+            return false;
+        }
+        nameStart = i;
+        while (i < contentEnd && !isBlank(buffer[i])) i++;
+        nameEnd = i;
+        return true;
+    }
+
+    /**
+     * Checks if the current line has an ip address followed by at least one name
+     *
+     * @return Whether the line is a host entry
+     */
+    public boolean isEntry() {
+        if (addressStart == addressEnd) return false;
+        for (int i = addressEnd; i < contentEnd; i++) {
+            if (!isBlank(buffer[i])) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses the ip address of the current line
+     *
+     * @param out Array of at least 16 bytes where the address will be written
+     * @return 4 for IPv4, 16 for IPv6, 0 if the line doesn't start with valid ip address
+     */
+    public int parseAddress(byte[] out) {
+        return parseAddress(buffer, addressStart, addressEnd, out);
+    }
+
+    /**
+     * Parses IPv4 or IPv6 address
+     *
+     * @param buffer Bytes
+     * @param start  Start of the address
+     * @param end    End of the address
+     * @param out    Array of at least 16 bytes where the address will be written
+     * @return 4 for IPv4, 16 for IPv6, 0 if the address is not valid
+     */
+    public static int parseAddress(byte[] buffer, int start, int end, byte[] out) {
+        if (start >= end) return 0;
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == ':') return parseIpv6(buffer, start, end, out) ? 16 : 0;
+        }
+        return parseIpv4(buffer, start, end, out, 0) ? 4 : 0;
+    }
+
+    /**
+     * Parses dotted IPv4 address
+     *
+     * @param buffer Bytes
+     * @param start  Start of the address
+     * @param end    End of the address
+     * @param out    Output array
+     * @param offset Index in the output array
+     * @return Whether the address is valid
+     */
+    private static boolean parseIpv4(byte[] buffer, int start, int end, byte[] out, int offset) {
+        int octets = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                if (++digits > 3 || value > 255) return false;
+            } else if (b == '.') {
+                if (digits == 0 || octets == 3) return false;
+                out[offset + octets++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else {
+                return false;
+            }
+        }
+        if (digits == 0 || octets != 3) return false;
+        out[offset + 3] = (byte) value;
+        return true;
+    }
+
+    /**
+     * Parses IPv6 address, including :: compression, embedded IPv4 and %zone suffix
+     *
+     * @param buffer Bytes
+     * @param start  Start of the address
+     * @param end    End of the address
+     * @param out    Output array
+     * @return Whether the address is valid
+     */
+    private static boolean parseIpv6(byte[] buffer, int start, int end, byte[] out) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == '%') {
+                end = i;
+                break;
+            }
+        }
+        int written = 0;
+        int gap = -1;
+        int i = start;
+        if (i + 1 < end && buffer[i] == ':' && buffer[i + 1] == ':') {
+            gap = 0;
+            i += 2;
+        } else if (buffer[i] == ':') {
+            return false;
+        }
+        while (i < end) {
+            if (written == 16) return false;
+            int groupStart = i;
+            int value = 0;
+            int digits = 0;
+            while (i < end) {
+                int hex = hex(buffer[i]);
+                if (hex < 0) break;
+                value = (value << 4) | hex;
+                i++;
+                if (++digits > 4) return false;
+            }
+            if (i < end && buffer[i] == '.') {
+                //Embedded IPv4 takes the last 32 bits
+                if (written > 12 || !parseIpv4(buffer, groupStart, end, out, written)) return false;
+                written += 4;
+                i = end;
+                break;
+            }
+            if (digits == 0) return false;
+            out[written++] = (byte) (value >> 8);
+            out[written++] = (byte) value;
+            if (i == end) break;
+            if (buffer[i] != ':') return false;
+            i++;
+            if (i < end && buffer[i] == ':') {
+                if (gap >= 0) return false;
+                gap = written;
+                i++;
+            } else if (i == end) {
+                return false;
+            }
+        }
+        if (gap >= 0) {
+            int shift = 16 - written;
+            if (shift == 0) return false;
+            System.arraycopy(out, gap, out, gap + shift, written - gap);
+            for (int j = gap; j < gap + shift; j++) out[j] = 0;
+        } else if (written != 16) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Converts hex digit into the value
+     *
+     * @param b Byte
+     * @return Value or -1 if byte is not hex digit
+     */
+    private static int hex(byte b) {
+        if (b >= '0' && b <= '9') return b - '0';
+        if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+        if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Compares the current domain name with the given one
+     *
+     * @param name Domain name
+     * @return Whether the names are equal
+     */
+    public boolean nameEquals(String name) {
+        int length = nameEnd - nameStart;
+        if (length != name.length()) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer[nameStart + i] != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Start of the current line
+     */
+    public int lineStart() {
+        return lineStart;
+    }
+
+    /**
+     * @return End of the current line, without line terminator
+     */
+    public int lineEnd() {
+        return lineEnd;
+    }
+
+    /**
+     * @return Start of the next line, current line terminator included
+     */
+    public int nextLineStart() {
+        return position;
+    }
+
+    /**
+     * @return End of the current line without the comment
+     */
+    public int contentEnd() {
+        return contentEnd;
+    }
+
+    /**
+     * @return Start of the ip address on the current line
+     */
+    public int addressStart() {
+        return addressStart;
+    }
+
+    /**
+     * @return End of the ip address on the current line
+     */
+    public int addressEnd() {
+        return addressEnd;
+    }
+
+    /**
+     * @return Start of the current domain name
+     */
+    public int nameStart() {
+        return nameStart;
+    }
+
+    /**
+     * @return End of the current domain name
+     */
+    public int nameEnd() {
+        return nameEnd;
+    }
+}
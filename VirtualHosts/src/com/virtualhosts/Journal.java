@@ -0,0 +1,583 @@
+package com.virtualhosts;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal with group commit
+ * <p>
+ * Every change is appended to the journal as one record before the target file is rewritten.
+ * Records appended at the same time are written together and made durable with a single fsync.
+ * The target file itself is replaced only on checkpoint: written to a temporary file and atomically renamed over it,
+ * after that the journal is truncated. Records that survive a crash are replayed by the next writer.
+ * The journal file is locked while it is open, so nobody replays or removes the journal of a running process.
+ * Records since the last checkpoint are kept in memory as well, a checkpoint never reads them back through the path,
+ * and the file is created again when somebody has removed or replaced it in the meantime.
+ * <p>
+ * Record format: sequence, fields and CRC32 separated by tabs, one record per line
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class Journal implements Closeable {
+
+    /**
+     * Writes content of the file
+     */
+    public interface Content {
+        /**
+         * Writes the whole content of the file
+         *
+         * @param out Output stream
+         * @throws IOException If writing fails
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Record waiting for the group commit
+     */
+    private static class Pending {
+        /**
+         * Encoded record, null when the caller only waits for the previous records
+         */
+        final byte[] record;
+
+        /**
+         * Completed when the record is durable
+         */
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(byte[] record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * Maximum number of records written with one fsync
+     */
+    private static final int MAX_GROUP = 4096;
+
+    /**
+     * Journal file
+     */
+    private final File file;
+
+    /**
+     * Channel for appending to the journal
+     */
+    private volatile FileChannel channel;
+
+    /**
+     * Lock of the journal file, held while the journal is open
+     */
+    private FileLock owner;
+
+    /**
+     * File key (inode on Linux) of the open journal file, null if not supported
+     */
+    private Object key;
+
+    /**
+     * Fields of the records since the last checkpoint
+     */
+    private final List<String[]> log = new ArrayList<>();
+
+    /**
+     * Records waiting to be written
+     */
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Thread writing the records
+     */
+    private final Thread committer;
+
+    /**
+     * Sequence of the last record
+     */
+    private long sequence;
+
+    /**
+     * Number of records since the last checkpoint
+     */
+    private volatile int size;
+
+    /**
+     * Number of group commits, every one of them is one fsync
+     */
+    private volatile long commits;
+
+    /**
+     * Number of records written
+     */
+    private volatile long records;
+
+    /**
+     * Whether the journal has been closed
+     */
+    private volatile boolean closed;
+
+    /**
+     * Opens and locks the journal for appending
+     *
+     * @param file Journal file
+     * @throws IOException If the journal couldn't be opened or another process has it open
+     */
+    public Journal(File file) throws IOException {
+        this.file = file;
+        if (!open()) {
+            throw new IOException("Journal " + file + " is used by another process");
+        }
+        this.committer = new Thread(this::run, "virtualhosts-journal");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * Opens and locks the journal file
+     *
+     * @return False if the file is locked by somebody else or it isn't empty while it should be
+     * @throws IOException If the journal couldn't be opened
+     */
+    private boolean open() throws IOException {
+        FileChannel opened = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        FileLock lock = tryLock(opened);
+        if (lock == null || (channel != null && opened.size() > 0)) {
+            opened.close();
+            return false;
+        }
+        channel = opened;
+        owner = lock;
+        key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        return true;
+    }
+
+    /**
+     * Checks if the journal path still names the open journal file
+     *
+     * @return False if somebody has removed or replaced the file since it was opened
+     */
+    public boolean isCurrent() {
+        try {
+            return key == null || key.equals(Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Locks the whole journal file without waiting
+     *
+     * @param channel Journal file
+     * @return Lock, null if the journal is locked by another process or by another journal of this one
+     * @throws IOException If the journal couldn't be locked
+     */
+    public static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Journal file for the target file
+     *
+     * @param target File protected by the journal
+     * @return Journal file next to the target
+     */
+    public static File of(File target) {
+        return new File(target.getPath() + ".journal");
+    }
+
+    /**
+     * Appends the record
+     *
+     * @param fields Fields of the record
+     * @return Completed when the record is durable
+     */
+    public synchronized CompletableFuture<Void> append(String... fields) {
+        if (closed) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Journal is closed"));
+            return failed;
+        }
+        Pending pending = new Pending(encode(++sequence, fields));
+        log.add(fields.clone());
+        size++;
+        queue.add(pending);
+        return pending.future;
+    }
+
+    /**
+     * Waits for all records appended so far
+     *
+     * @return Completed when all previous records are durable
+     */
+    public CompletableFuture<Void> flush() {
+        Pending pending = new Pending(null);
+        queue.add(pending);
+        return pending.future;
+    }
+
+    /**
+     * Group commit loop, writes everything that is waiting and syncs once
+     */
+    private void run() {
+        List<Pending> group = new ArrayList<>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 16);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                group.add(first);
+                queue.drainTo(group, MAX_GROUP);
+                buffer.reset();
+                int count = 0;
+                for (Pending pending : group) {
+                    if (pending.record == null) continue;
+                    buffer.write(pending.record);
+                    count++;
+                }
+                if (count > 0) {
+                    FileChannel target = channel;
+                    long start = Metrics.start();
+                    ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+                    while (bytes.hasRemaining()) {
+                        target.write(bytes);
+                    }
+                    Metrics.record(Metrics.Phase.WRITE, start, bytes.limit(), count);
+                    start = Metrics.start();
+                    target.force(false);
+                    Metrics.record(Metrics.Phase.FSYNC, start, bytes.limit(), count);
+                    commits++;
+                    records += count;
+                }
+                for (Pending pending : group) {
+                    pending.future.complete(null);
+                }
+            } catch (IOException e) {
+                for (Pending pending : group) {
+                    pending.future.completeExceptionally(e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    /**
+     * Truncates the journal after the checkpoint
+     * Must be called only when all records are durable and applied to the target file.
+     * If the journal file has been removed or replaced meanwhile, it is created and locked again
+     *
+     * @throws IOException If the journal couldn't be truncated or the replaced file is used by somebody else
+     */
+    public synchronized void reset() throws IOException {
+        flush().join();
+        if (isCurrent()) {
+            channel.truncate(0);
+            long start = Metrics.start();
+            channel.force(true);
+            Metrics.record(Metrics.Phase.FSYNC, start);
+        } else {
+            FileChannel previous = channel;
+            if (!open()) {
+                throw new IOException("Journal " + file + " has been replaced by another process");
+            }
+            previous.close();
+            System.out.println("Journal " + file + " has been removed by another process, it is created again");
+        }
+        log.clear();
+        size = 0;
+    }
+
+    /**
+     * Records since the last checkpoint, read from memory - the journal path may name another file by now
+     *
+     * @return Fields of the records, without sequence and checksum
+     */
+    public synchronized List<String[]> records() {
+        return new ArrayList<>(log);
+    }
+
+    /**
+     * @return Number of records since the last checkpoint
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Number of group commits (fsyncs) so far
+     */
+    public long getCommits() {
+        return commits;
+    }
+
+    /**
+     * @return Number of records written so far
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return Journal file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the pending records and closes the journal
+     *
+     * @throws IOException If the journal couldn't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Encodes the record
+     *
+     * @param sequence Sequence of the record
+     * @param fields   Fields
+     * @return Record line
+     */
+    private static byte[] encode(long sequence, String[] fields) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(sequence);
+        for (String field : fields) {
+            builder.append('\t');
+            escape(builder, field);
+        }
+        byte[] body = builder.toString().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        builder.append('\t').append(Long.toHexString(crc.getValue())).append('\n');
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Escapes tabs, new lines and backslashes
+     *
+     * @param builder Output
+     * @param value   Field value
+     */
+    private static void escape(StringBuilder builder, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+    }
+
+    /**
+     * Reverts escape()
+     *
+     * @param value Escaped value
+     * @return Original value
+     */
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) return value;
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                builder.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads all valid records of the journal
+     * Reading stops at the first torn or corrupted record
+     *
+     * @param file Journal file
+     * @return Fields of the records, without sequence and checksum
+     * @throws IOException If the journal couldn't be read
+     */
+    public static List<String[]> read(File file) throws IOException {
+        if (!file.isFile()) return new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            return read(reader);
+        }
+    }
+
+    /**
+     * Reads all valid records of the open journal from its start, the channel stays open
+     *
+     * @param channel Journal file, opened for reading
+     * @return Fields of the records, without sequence and checksum
+     * @throws IOException If the journal couldn't be read
+     */
+    public static List<String[]> read(FileChannel channel) throws IOException {
+        channel.position(0);
+        return read(new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Reads the records up to the first torn or corrupted one
+     *
+     * @param reader Journal content
+     * @return Fields of the records, without sequence and checksum
+     * @throws IOException If the journal couldn't be read
+     */
+    private static List<String[]> read(BufferedReader reader) throws IOException {
+        List<String[]> list = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int tab = line.lastIndexOf('\t');
+            if (tab < 0) break;
+            CRC32 crc = new CRC32();
+            crc.update(line.substring(0, tab).getBytes(StandardCharsets.UTF_8));
+            if (!Long.toHexString(crc.getValue()).equals(line.substring(tab + 1))) break;
+            String[] parts = line.substring(0, tab).split("\t", -1);
+            String[] fields = new String[parts.length - 1];
+            for (int i = 1; i < parts.length; i++) {
+                fields[i - 1] = unescape(parts[i]);
+            }
+            list.add(fields);
+        }
+        return list;
+    }
+
+    /**
+     * Replaces the target file atomically
+     * Content is written to a temporary file in the same directory, synced and renamed over the target.
+     * The temporary file gets the owner, group and permissions of the target first.
+     * If the target can't be replaced by rename (eg. bind mounted /etc/hosts in a container) or its owner can't be kept,
+     * it is overwritten in place and synced
+     *
+     * @param target  File to be replaced
+     * @param content Content of the file
+     * @throws IOException If the file couldn't be written
+     */
+    public static void writeAtomically(File target, Content content) throws IOException {
+        Path path = target.toPath().toAbsolutePath();
+        Path temporary = path.resolveSibling("." + path.getFileName() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temporary.toFile());
+             OutputStream out = new BufferedOutputStream(stream, 1 << 16)) {
+            long start = Metrics.start();
+            content.writeTo(out);
+            out.flush();
+            long written = stream.getChannel().position();
+            Metrics.record(Metrics.Phase.WRITE, start, written, 1);
+            start = Metrics.start();
+            stream.getFD().sync();
+            Metrics.record(Metrics.Phase.FSYNC, start, written, 1);
+        }
+        try {
+            copyAttributes(path, temporary);
+            try {
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            try (FileOutputStream stream = new FileOutputStream(target, false);
+                 OutputStream out = new BufferedOutputStream(stream, 1 << 16)) {
+                long start = Metrics.start();
+                content.writeTo(out);
+                out.flush();
+                long written = stream.getChannel().position();
+                Metrics.record(Metrics.Phase.WRITE, start, written, 1);
+                start = Metrics.start();
+                stream.getFD().sync();
+                Metrics.record(Metrics.Phase.FSYNC, start, written, 1);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            return;
+        }
+        syncDirectory(path.getParent());
+    }
+
+    /**
+     * Gives the temporary file the owner, group and permissions of the target it replaces
+     * Otherwise the renamed file would get the user and the umask of this process.
+     * Nothing is copied when the target doesn't exist yet or the file system has no POSIX attributes (Windows)
+     *
+     * @param target    Replaced file
+     * @param temporary New content of the file
+     * @throws IOException If the attributes couldn't be set, eg. the owner by a user other than root
+     */
+    private static void copyAttributes(Path target, Path temporary) throws IOException {
+        PosixFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(target, PosixFileAttributes.class);
+        } catch (NoSuchFileException | UnsupportedOperationException e) {
+            return;
+        }
+        PosixFileAttributeView view = Files.getFileAttributeView(temporary, PosixFileAttributeView.class);
+        PosixFileAttributes current = view.readAttributes();
+        //Owner first, changing it clears the set-user-ID bit
+        if (!current.owner().equals(attributes.owner())) view.setOwner(attributes.owner());
+        if (!current.group().equals(attributes.group())) view.setGroup(attributes.group());
+        view.setPermissions(attributes.permissions());
+    }
+
+    /**
+     * Syncs the directory so the rename is durable, ignored where directories can't be opened (Windows)
+     *
+     * @param directory Directory
+     */
+    private static void syncDirectory(Path directory) {
+        if (directory == null) return;
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            long start = Metrics.start();
+            channel.force(true);
+            Metrics.record(Metrics.Phase.FSYNC, start);
+        } catch (IOException ignored) {
+        }
+    }
+}
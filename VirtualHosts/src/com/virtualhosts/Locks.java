@@ -0,0 +1,324 @@
+package com.virtualhosts;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks of the domains and of the shared files
+ * <p>
+ * Domains are locked in the process only, with a fixed number of striped locks keyed by the lower case name,
+ * so operations on different domains run in parallel. Shared files (hosts file, config files) are locked across processes
+ * with FileChannel.lock on a lock file in a directory of their own (the file itself is replaced by rename, so it can't be locked,
+ * and a file next to it would be picked up by the Include globs of Apache). The directory is -Dvirtualhosts.lock.dir,
+ * /run/lock/virtualhosts by default or virtualhosts-locks in the temporary directory where there is no /run/lock.
+ * It is created with mode 0700 and refused when it is a link, is owned by another user than root or the current one,
+ * or when the group or others can write to it, so nobody else can replace the lock files or read the daemon token.
+ * The index of the virtual hosts is kept there as well.
+ * All locks are reentrant. To avoid deadlocks everything is locked at once - domains first, then files, both in a fixed order
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class Locks {
+
+    /**
+     * Held locks, released in reverse order on close
+     */
+    public static class Handle implements Closeable {
+        /**
+         * Released on close, last one first
+         */
+        private final Deque<Closeable> held = new ArrayDeque<>();
+
+        /**
+         * Whether the locks have been released
+         */
+        private boolean closed;
+
+        private Handle() {
+        }
+
+        /**
+         * Releases all locks
+         *
+         * @throws IOException If some of the lock files couldn't be unlocked
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            IOException failure = null;
+            while (!held.isEmpty()) {
+                try {
+                    held.removeLast().close();
+                } catch (IOException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+            if (failure != null) throw failure;
+        }
+    }
+
+    /**
+     * Lock of one file, shared by all threads of the process
+     */
+    private static class FileHolder {
+        /**
+         * Threads of this process, FileChannel.lock can be held only once per process
+         */
+        final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Open lock file while the lock is held
+         */
+        FileChannel channel;
+
+        /**
+         * Lock of the other processes while the lock is held
+         */
+        FileLock fileLock;
+    }
+
+    /**
+     * Number of domain locks
+     */
+    private static final int STRIPES = 64;
+
+    /**
+     * Domain locks
+     */
+    private static final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Longest name of a lock file, longer paths are shortened with their hash
+     */
+    private static final int NAME_LENGTH = 200;
+
+    /**
+     * File locks by the lock file
+     */
+    private static final Map<File, FileHolder> files = new ConcurrentHashMap<>();
+
+    /**
+     * Lock directories that have been checked by this process
+     */
+    private static final Set<Path> checked = ConcurrentHashMap.newKeySet();
+
+    private Locks() {
+    }
+
+    /**
+     * Directory of the lock files
+     *
+     * @return -Dvirtualhosts.lock.dir, /run/lock/virtualhosts if there is /run/lock, otherwise virtualhosts-locks in java.io.tmpdir
+     */
+    public static File directory() {
+        String directory = System.getProperty("virtualhosts.lock.dir");
+        if (directory != null && !directory.isEmpty()) return new File(directory);
+        File run = new File("/run/lock");
+        if (run.isDirectory()) return new File(run, "virtualhosts");
+        return new File(System.getProperty("java.io.tmpdir"), "virtualhosts-locks");
+    }
+
+    /**
+     * Creates the lock directory with mode 0700, or checks the existing one
+     *
+     * @return Lock directory
+     * @throws IOException If the directory couldn't be created, or it is a link, owned by another user or writable by others
+     */
+    public static File createDirectory() throws IOException {
+        Path path = directory().toPath().toAbsolutePath();
+        if (checked.contains(path)) return path.toFile();
+        if (!path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(path);
+            checked.add(path);
+            return path.toFile();
+        }
+        Files.createDirectories(path.getParent());
+        try {
+            Files.createDirectory(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (FileAlreadyExistsException e) {
+            //Directory left by an earlier run, or put there by somebody else - checked below
+        }
+        PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attributes.isDirectory()) {
+            throw new IOException("Lock directory " + path + " is not a directory");
+        }
+        String owner = attributes.owner().getName();
+        String user = System.getProperty("user.name");
+        if (!owner.equals("root") && !owner.equals(user)) {
+            throw new IOException("Lock directory " + path + " is owned by " + owner + ", not by root or " + user);
+        }
+        Set<PosixFilePermission> permissions = attributes.permissions();
+        if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+            throw new IOException("Lock directory " + path + " can be written by other users, it has to be 0700");
+        }
+        checked.add(path);
+        return path.toFile();
+    }
+
+    /**
+     * Lock file of the target
+     * Name is the escaped absolute path, so every target has its own file - eg. %2Fetc%2Fhosts.lock for /etc/hosts
+     *
+     * @param target Locked file
+     * @return File in the lock directory
+     */
+    public static File of(File target) {
+        return file(target, ".lock");
+    }
+
+    /**
+     * File of the target in the lock directory, named after its escaped absolute path
+     *
+     * @param target    Target file or directory
+     * @param extension Extension appended to the name, eg. .lock
+     * @return File in the lock directory
+     */
+    public static File file(File target, String extension) {
+        String path = target.getAbsolutePath();
+        StringBuilder name = new StringBuilder(path.length() + 16);
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '%' || c == '/' || c == '\\' || c == ':') {
+                name.append('%').append(String.format("%02X", (int) c));
+            } else {
+                name.append(c);
+            }
+        }
+        if (name.length() > NAME_LENGTH) {
+            String hash = Integer.toHexString(path.hashCode()) + Long.toHexString(path.length());
+            name.replace(0, name.length() - NAME_LENGTH + hash.length() + 1, hash + "_");
+        }
+        return new File(directory(), name.append(extension).toString());
+    }
+
+    /**
+     * Locks the domains and the files
+     *
+     * @param names Domains, case insensitive
+     * @param paths Shared files
+     * @return Handle that releases the locks
+     * @throws IOException If some of the lock files couldn't be created or locked
+     */
+    public static Handle lock(Collection<String> names, Collection<File> paths) throws IOException {
+        Handle handle = lockStripes(names);
+        TreeSet<File> sorted = new TreeSet<>();
+        for (File path : paths) {
+            sorted.add(of(path));
+        }
+        try {
+            for (File file : sorted) {
+                lockFile(file, handle);
+            }
+        } catch (IOException | RuntimeException e) {
+            handle.close();
+            throw e;
+        }
+        return handle;
+    }
+
+    /**
+     * Locks the domains
+     *
+     * @param names Domains, case insensitive
+     * @return Handle that releases the locks
+     */
+    public static Handle lockDomains(String... names) {
+        return lockStripes(Arrays.asList(names));
+    }
+
+    /**
+     * Locks the files
+     *
+     * @param paths Shared files
+     * @return Handle that releases the locks
+     * @throws IOException If some of the lock files couldn't be created or locked
+     */
+    public static Handle lockFiles(Collection<File> paths) throws IOException {
+        return lock(Collections.emptyList(), paths);
+    }
+
+    /**
+     * Locks the stripes of the domains in the order of their index
+     *
+     * @param names Domains, null names are skipped
+     * @return Handle that releases the locks
+     */
+    private static Handle lockStripes(Collection<String> names) {
+        Handle handle = new Handle();
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for (String name : names) {
+            if (name != null) indexes.add(stripe(name));
+        }
+        for (int index : indexes) {
+            ReentrantLock lock = stripes[index];
+            lock.lock();
+            handle.held.add(lock::unlock);
+        }
+        return handle;
+    }
+
+    /**
+     * Stripe of the domain
+     *
+     * @param name Domain
+     * @return Index of the lock
+     */
+    private static int stripe(String name) {
+        int hash = name.toLowerCase(Locale.ROOT).hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Locks the lock file, other processes wait until it is released
+     *
+     * @param file   Lock file
+     * @param handle Handle the lock is added to
+     * @throws IOException If the lock file couldn't be created or locked
+     */
+    private static void lockFile(File file, Handle handle) throws IOException {
+        FileHolder holder = files.computeIfAbsent(file, f -> new FileHolder());
+        holder.lock.lock();
+        if (holder.lock.getHoldCount() > 1) {
+            handle.held.add(holder.lock::unlock);
+            return;
+        }
+        try {
+            createDirectory();
+            holder.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            holder.fileLock = holder.channel.lock();
+        } catch (IOException | RuntimeException e) {
+            if (holder.channel != null) holder.channel.close();
+            holder.channel = null;
+            holder.lock.unlock();
+            throw e;
+        }
+        handle.held.add(() -> {
+            try {
+                holder.fileLock.release();
+                holder.channel.close();
+            } finally {
+                holder.fileLock = null;
+                holder.channel = null;
+                holder.lock.unlock();
+            }
+        });
+    }
+}
@@ -3,10 +3,11 @@ package com.virtualhosts;
 
 import com.virtualhosts.apache.HostNotFoundException;
 import com.virtualhosts.apache.VirtualHost;
+import com.virtualhosts.apache.VirtualHostIndex;
 
-import java.io.File;
+import java.io.*;
 import java.net.InetAddress;
-import java.util.regex.Pattern;
+import java.nio.charset.StandardCharsets;
 
 
 /**
@@ -23,53 +24,98 @@ public class Main {
     private static OsType type = Config.getOs();
 
     /**
-     * Commands passed to the application
-     * [0] - virtual-host (manipulating with apache virtual hosts) | host (modifies system hosts file)
-     * [1] - create | update | delete
+     * Command passed to the application
      */
-    private static String[] commands = new String[2];
+    private static Operation operation = null;
 
     /**
-     * Domain name
+     * Path to the batch manifest, - for standard input
      */
-    private static String serverName = null;
+    private static String batch = null;
 
     /**
-     * Ip address for virtual-host or host
+     * Path to the desired state manifest, - for standard input
      */
-    private static InetAddress address = null;
+    private static String sync = null;
 
     /**
-     * Folder from where apache will serve website
+     * Whether the sync only prints the plan and the compact only reports
      */
-    private static String publicFolder = null;
+    private static boolean dryRun = false;
 
     /**
-     * Path to the website
+     * Domain suffix of the entries owned by the sync manifest, null for all virtual hosts
      */
-    private static String documentRoot = null;
+    private static String syncSuffix = null;
 
     /**
-     * Alias for website
+     * Whether the application runs as daemon
      */
-    private static String alias = null;
+    private static boolean daemon = false;
 
     /**
-     * Determent's if the RewriteEngine will be activated or not
+     * Port of the daemon
      */
-    private static Boolean rewriteEngine = false;
+    private static int port = Daemon.PORT;
 
     /**
-     * Gets the host by the server name
+     * Whether the hosts file is served by the DNS responder
      */
-    private static String get;
+    private static boolean dns = false;
+
+    /**
+     * Port of the DNS responder
+     */
+    private static int dnsPort = DnsResponder.PORT;
+
+    /**
+     * Whether the virtual host index is rebuilt from all config files
+     */
+    private static boolean reindex = false;
+
+    /**
+     * Whether the latency breakdown is printed after the command
+     */
+    private static boolean stats = false;
+
+    /**
+     * File the metrics are written to after the command, - for standard output
+     */
+    private static String metrics = null;
 
     /**
      * Entry point
+     * With --stats the time spent in every phase is printed after the command,
+     * with --metrics the same counters are written in the Prometheus text format
      *
      * @param args Argument passed through the console
      */
     public static void main(String[] args) {
+        Metrics.reset();
+        long start = Metrics.start();
+        run(args);
+        if (stats) {
+            System.out.print(Metrics.breakdown(System.nanoTime() - start));
+        }
+        if (metrics != null) {
+            try {
+                if (metrics.equals("-")) {
+                    Metrics.writeTo(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+                } else {
+                    Metrics.writeTo(new File(metrics));
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs the command
+     *
+     * @param args Argument passed through the console
+     */
+    private static void run(String[] args) {
         try {
             setDefaults();
         } catch (Exception e) {
@@ -85,16 +131,51 @@ public class Main {
             System.out.println("--sites-available and --sites-dest parameters must be absolute path to xampp or other apache installation");
             return;
         }
-
+        if (reindex) {
+            try {
+                var stats = VirtualHostIndex.getInstance().rebuild();
+                System.out.println(VirtualHostIndex.getInstance().entries().size() + " virtual hosts indexed, " + stats);
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+            if (operation == null && batch == null && sync == null && !daemon && !dns) return;
+        }
+        if (daemon) {
+            runDaemon();
+            return;
+        }
+        if (dns) {
+            runDns();
+            return;
+        }
+        if (batch != null) {
+            runBatch();
+            return;
+        }
+        if (sync != null) {
+            runSync();
+            return;
+        }
+        if (operation == null) {
+            System.out.println("you must provide us with --command, --batch, --sync or --dns parameter");
+            return;
+        }
+        String serverName = operation.getServerName();
+        InetAddress address = operation.getAddress();
+        String publicFolder = operation.getPublicFolder();
+        String documentRoot = operation.getDocumentRoot();
+        String alias = operation.getAlias();
+        Boolean rewriteEngine = operation.getRewriteEngine();
+        String get = operation.getGet();
 
         Host host;
         VirtualHost virtualHost;
-        switch (commands[1]) {
+        switch (operation.getAction()) {
             case "create":
-                if (commands[0].equals("virtual-host")) {
+                if (operation.getType().equals("virtual-host")) {
                     virtualHost = new VirtualHost(serverName, address, publicFolder ,documentRoot, alias, rewriteEngine);
                     virtualHost.createNewVirtualHost();
-                } else if (commands[0].equals("host")) {
+                } else if (operation.getType().equals("host")) {
                     host = new Host(address, serverName);
                     try {
                         host.write();
@@ -109,19 +190,23 @@ public class Main {
                     System.out.println("you must provide us with --get parameter");
                     return;
                 }
-                if (commands[0].equals("virtual-host")) {
+                if (operation.getType().equals("virtual-host")) {
                     virtualHost = VirtualHost.get(get);
                     if (virtualHost != null) {
-                        System.out.println("This method is not implemented yet");
-                        virtualHost.updateVirtualHost(new VirtualHost(serverName, address, publicFolder, documentRoot, alias, rewriteEngine));
+                        virtualHost.updateVirtualHost(Batch.virtualHost(operation, virtualHost));
                         return;
                     } else {
                         System.out.println("virtual host doesn't exist");
                     }
-                } else if (commands[0].equals("host")) {
+                } else if (operation.getType().equals("host")) {
+                    if (serverName == null) {
+                        System.out.println("you must provide us with --server-name parameter");
+                        return;
+                    }
                     try {
                         host = Host.get(get);
-                        host.update(new Host(address, serverName));
+                        //Address that is not given is kept, like in the batch
+                        host.update(new Host(address != null ? address : host.getAddress(), serverName));
                     } catch (HostNotFoundException | Exception e) {
                         System.out.println(e.getMessage());
                         return;
@@ -129,21 +214,24 @@ public class Main {
                 }
                 break;
             case "delete":
+                if (get == null && operation.getSuffix() != null) {
+                    runDeleteBySuffix();
+                    return;
+                }
                 if (get == null) {
                     System.out.println("you must provide us with --get parameter");
                     return;
                 }
-                if (commands[0].equals("virtual-host")) {
+                if (operation.getType().equals("virtual-host")) {
                     virtualHost = VirtualHost.get(get);
                     if (virtualHost != null) {
-                        System.out.println("This method is not implemented yet");
                         virtualHost.deleteVirtualHost();
                         return;
                     }
                     else {
                         System.out.println("Virtual host doesn't exist");
                     }
-                } else if (commands[0].equals("host")) {
+                } else if (operation.getType().equals("host")) {
                     try {
 
                         host = Host.get(get);
@@ -154,11 +242,189 @@ public class Main {
                     }
                 }
                 break;
+            case "list":
+            case "export":
+                runExport();
+                break;
+            case "find":
+                runFind();
+                break;
+            case "compact":
+                runCompact();
+                break;
             default:
                 System.out.println("This command doesn't exist");
         }
     }
 
+    /**
+     * Streams the hosts and/or virtual hosts to the standard output
+     * Output is flushed in 64 KiB blocks, nothing else is printed unless something fails
+     */
+    private static void runExport() {
+        Export.Filter filter = new Export.Filter(operation.getSuffix(), operation.getAddress());
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024);
+        Export export = new Export(out, operation.getFormat());
+        try {
+            if (!operation.getType().equals("virtual-host")) {
+                export.hosts(filter);
+            }
+            if (!operation.getType().equals("host")) {
+                export.virtualHosts(filter);
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the hosts found by --suffix and/or --ip-address through the index of the hosts file
+     */
+    private static void runFind() {
+        if (operation.getSuffix() == null && operation.getAddress() == null) {
+            System.out.println("you must provide us with --suffix or --ip-address parameter");
+            return;
+        }
+        var hosts = Host.find(operation.getSuffix(), operation.getAddress());
+        if (hosts == null) return;
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024);
+        try {
+            new Export(out, operation.getFormat()).hosts(hosts);
+            out.flush();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrites the hosts file canonically and reports the sizes and parse times, with --dry-run only reports
+     */
+    private static void runCompact() {
+        try {
+            var result = Host.compact(!dryRun);
+            System.out.println((dryRun ? "Would compact " : "Compacted ") + Host.getFile() + ": " + result);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes every host under --suffix
+     */
+    private static void runDeleteBySuffix() {
+        if (!operation.getType().equals("host")) {
+            System.out.println("--suffix can only delete hosts, use --get for virtual hosts");
+            return;
+        }
+        try {
+            int count = Host.deleteBySuffix(operation.getSuffix());
+            System.out.println(count + (count == 1 ? " host" : " hosts") + " deleted");
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the daemon until the process is stopped
+     */
+    private static void runDaemon() {
+        try {
+            Daemon server = new Daemon(port);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+            System.out.println("Listening on http://127.0.0.1:" + server.getPort() + ", token in " + server.getTokenFile());
+            if (dns) {
+                System.out.println("Answering DNS on 127.0.0.1:" + server.serveDns(dnsPort).getPort());
+            }
+            Thread.currentThread().join();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Serves the hosts file over DNS until the process is stopped
+     */
+    private static void runDns() {
+        try {
+            DnsResponder responder = new DnsResponder(dnsPort);
+            Runtime.getRuntime().addShutdownHook(new Thread(responder::stop));
+            System.out.println("Answering DNS on 127.0.0.1:" + responder.getPort());
+            Thread.currentThread().join();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs all operations from the batch manifest
+     */
+    private static void runBatch() {
+        try {
+            Batch manifest;
+            if (batch.equals("-")) {
+                manifest = Batch.parse(new InputStreamReader(System.in));
+            } else {
+                try (Reader reader = new FileReader(batch)) {
+                    manifest = Batch.parse(reader);
+                }
+            }
+            Locks.Handle lock = manifest.lock();
+            try {
+                var errors = manifest.validate();
+                if (!errors.isEmpty()) {
+                    for (var error : errors) {
+                        System.out.println(error);
+                    }
+                    System.out.println("Batch is not valid, nothing has been changed");
+                    return;
+                }
+                manifest.apply();
+            } finally {
+                lock.close();
+            }
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Brings the hosts and virtual hosts to the state of the manifest
+     * Plan is printed first, with --dry-run nothing else is done
+     */
+    private static void runSync() {
+        try {
+            Sync manifest;
+            if (sync.equals("-")) {
+                manifest = Sync.parse(new InputStreamReader(System.in), syncSuffix);
+            } else {
+                try (Reader reader = new FileReader(sync)) {
+                    manifest = Sync.parse(reader, syncSuffix);
+                }
+            }
+            Locks.Handle lock = manifest.lock();
+            try {
+                var plan = manifest.plan();
+                for (var change : plan) {
+                    System.out.println(change);
+                }
+                long added = plan.stream().filter(change -> change.getKind() == '+').count();
+                long removed = plan.stream().filter(change -> change.getKind() == '-').count();
+                System.out.println("Plan: " + added + " to add, " + (plan.size() - added - removed) + " to change, " + removed + " to remove");
+                if (dryRun || plan.isEmpty()) return;
+                manifest.apply();
+            } finally {
+                lock.close();
+            }
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
     /**
      * Parsing the command given from the console
      *
@@ -168,68 +434,55 @@ public class Main {
     private static void parseArgs(String[] args) throws Exception {
         for (var i = 0; i < args.length; i++)
             switch (args[i].toLowerCase()) {
-                case "--command":
-                    commands[0] = args[i + 1];
-                    commands[1] = args[i + 2];
-                    if (!validateCommand()) {
-                        throw new Exception("Command are not valid");
-                    }
+                case "--sites-available":
+                    Config.SITESAVAILABLE = args[i + 1];
                     break;
-                case "--server-name":
-                    serverName = args[i + 1];
+                case "--sites-dest":
+                    Config.SITES = args[i + 1];
                     break;
-                case "--ip-address":
-                    String[] strBytes;
-                    if (Pattern.matches(
-                            "\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}",
-                            args[i + 1]
-                    )) {
-                        strBytes = args[i + 1].split("\\.");
-                    } else
-                        throw new Exception("Ip address is not in correct format");
-                    byte[] bytes = new byte[4];
-                    for (int j = 0; j < strBytes.length; j++) {
-                        bytes[j] = Byte.parseByte(strBytes[j]);
-                    }
-                    address = InetAddress.getByAddress(bytes);
+                case "--batch":
+                    batch = args[i + 1];
                     break;
-                case "--public-folder":
-                    publicFolder = args[i + 1];
+                case "--sync":
+                    sync = args[i + 1];
                     break;
-                case "--document-root":
-                    documentRoot = args[i + 1];
+                case "--dry-run":
+                    dryRun = true;
                     break;
-                case "--alias":
-                    alias = args[i + 1];
+                case "--suffix":
+                    syncSuffix = args[i + 1];
                     break;
-                case "--rewrite-engine":
-                    rewriteEngine = Boolean.getBoolean(args[i + 1]);
+                case "--daemon":
+                    daemon = true;
                     break;
-                case "--sites-available":
-                    Config.SITESAVAILABLE = args[i + 1];
+                case "--reindex":
+                    reindex = true;
                     break;
-                case "--sites-dest":
-                    Config.SITES = args[i + 1];
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--dns":
+                    dns = true;
+                    break;
+                case "--dns-port":
+                    dnsPort = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--hosts":
+                    Config.HOSTS = args[i + 1];
+                    break;
+                case "--stats":
+                    stats = true;
+                    break;
+                case "--metrics":
+                    metrics = args[i + 1];
                     break;
-                case "--get":
-                    get = args[i + 1];
-
             }
+        operation = Operation.parse(args);
         if ((Config.SITESAVAILABLE.equals("/etc/apache2/sites-available/") || Config.SITES.equals("/var/www")) && type == OsType.Windows) {
             throw new Exception("--sites-available and --sites-dest parameters must be provided, because xampp is not installed in default location");
         }
     }
 
-    /**
-     * Validates the commands given from the console
-     *
-     * @return If the command is valid
-     */
-    private static boolean validateCommand() {
-        return (commands[0].equals("virtual-host") || commands[0].equals("host")) &&
-                (commands[1].equals("create") || commands[1].equals("update") || commands[1].equals("delete"));
-    }
-
     /**
      * Sets the default parameters for the different OSes
      *
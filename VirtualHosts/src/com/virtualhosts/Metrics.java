@@ -0,0 +1,275 @@
+package com.virtualhosts;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide timing of the phases every operation goes through
+ * <p>
+ * Each phase keeps the number of calls, the total and the longest time, and the bytes and entries it handled.
+ * Callers take {@link #start()} before the phase and {@link #record(Phase, long, long, long)} after it, nothing is allocated.
+ * Phases nest: a lookup that has to read the changed config files includes their parse.
+ * Counters are printed by --stats, written by --metrics and served by the daemon on /metrics in the Prometheus text format
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public final class Metrics {
+
+    /**
+     * Phases of the operations
+     */
+    public enum Phase {
+        /**
+         * Reading the hosts file or a config file
+         */
+        READ,
+        /**
+         * Parsing the hosts file or tokenizing a config file
+         */
+        PARSE,
+        /**
+         * Finding a host or a virtual host
+         */
+        LOOKUP,
+        /**
+         * Rendering a virtual host section from the template
+         */
+        RENDER,
+        /**
+         * Writing the hosts file, the journal, a config file or the sidecar
+         */
+        WRITE,
+        /**
+         * Making the written bytes durable
+         */
+        FSYNC,
+        /**
+         * Creating the document root directories
+         */
+        DIRECTORY,
+        /**
+         * Running the apache reload command
+         */
+        RELOAD;
+
+        /**
+         * @return Name used in the output, eg. read
+         */
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * All phases, in the order they are printed
+     */
+    private static final Phase[] PHASES = Phase.values();
+
+    /**
+     * Number of calls per phase
+     */
+    private static final LongAdder[] counts = adders();
+
+    /**
+     * Total nanoseconds per phase
+     */
+    private static final LongAdder[] nanos = adders();
+
+    /**
+     * Bytes read, parsed, rendered or written per phase
+     */
+    private static final LongAdder[] bytes = adders();
+
+    /**
+     * Hosts, sections or files handled per phase
+     */
+    private static final LongAdder[] entries = adders();
+
+    /**
+     * Longest call per phase in nanoseconds
+     */
+    private static final AtomicLongArray max = new AtomicLongArray(PHASES.length);
+
+    private Metrics() {
+    }
+
+    /**
+     * @return One adder per phase
+     */
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[Phase.values().length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Marks the start of a phase
+     *
+     * @return Start to be passed to record()
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records one finished call of the phase
+     *
+     * @param phase   Phase
+     * @param start   Value of start() taken before the phase
+     * @param bytes   Bytes handled, 0 if not known
+     * @param entries Entries handled, 0 if not known
+     */
+    public static void record(Phase phase, long start, long bytes, long entries) {
+        long elapsed = System.nanoTime() - start;
+        int i = phase.ordinal();
+        counts[i].increment();
+        nanos[i].add(elapsed);
+        if (bytes != 0) Metrics.bytes[i].add(bytes);
+        if (entries != 0) Metrics.entries[i].add(entries);
+        long longest;
+        while (elapsed > (longest = max.get(i)) && !max.compareAndSet(i, longest, elapsed)) {
+            //Another thread recorded a longer one in the meantime, checked again
+        }
+    }
+
+    /**
+     * Records one finished call of the phase without bytes and entries
+     *
+     * @param phase Phase
+     * @param start Value of start() taken before the phase
+     */
+    public static void record(Phase phase, long start) {
+        record(phase, start, 0, 0);
+    }
+
+    /**
+     * @param phase Phase
+     * @return Number of calls
+     */
+    public static long getCount(Phase phase) {
+        return counts[phase.ordinal()].sum();
+    }
+
+    /**
+     * @param phase Phase
+     * @return Total time in nanoseconds
+     */
+    public static long getNanos(Phase phase) {
+        return nanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * @param phase Phase
+     * @return Longest call in nanoseconds
+     */
+    public static long getMax(Phase phase) {
+        return max.get(phase.ordinal());
+    }
+
+    /**
+     * @param phase Phase
+     * @return Bytes handled
+     */
+    public static long getBytes(Phase phase) {
+        return bytes[phase.ordinal()].sum();
+    }
+
+    /**
+     * @param phase Phase
+     * @return Entries handled
+     */
+    public static long getEntries(Phase phase) {
+        return entries[phase.ordinal()].sum();
+    }
+
+    /**
+     * Clears all counters
+     */
+    public static void reset() {
+        for (int i = 0; i < PHASES.length; i++) {
+            counts[i].reset();
+            nanos[i].reset();
+            bytes[i].reset();
+            entries[i].reset();
+            max.set(i, 0);
+        }
+    }
+
+    /**
+     * Latency breakdown for people, only the phases that ran are listed
+     *
+     * @param wall Wall time of the whole operation in nanoseconds
+     * @return Table, one phase per line
+     */
+    public static String breakdown(long wall) {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.ROOT, "%-10s %8s %12s %12s %12s %14s %10s%n",
+                "phase", "count", "total ms", "mean us", "max ms", "bytes", "entries"));
+        for (Phase phase : PHASES) {
+            long count = getCount(phase);
+            if (count == 0) continue;
+            long total = getNanos(phase);
+            out.append(String.format(Locale.ROOT, "%-10s %8d %12.3f %12.1f %12.3f %14d %10d%n",
+                    phase.getName(), count, total / 1e6, total / 1e3 / count, getMax(phase) / 1e6,
+                    getBytes(phase), getEntries(phase)));
+        }
+        out.append(String.format(Locale.ROOT, "%-10s %8s %12.3f%n", "wall", "", wall / 1e6));
+        return out.toString();
+    }
+
+    /**
+     * Writes all counters in the Prometheus text format
+     *
+     * @param out Output
+     * @throws IOException If the output couldn't be written
+     */
+    public static void writeTo(Writer out) throws IOException {
+        metric(out, "virtualhosts_phase_calls_total", "counter", "Number of calls of the phase", counts, 0);
+        metric(out, "virtualhosts_phase_seconds_total", "counter", "Time spent in the phase", nanos, 9);
+        out.write("# HELP virtualhosts_phase_max_seconds Longest call of the phase\n");
+        out.write("# TYPE virtualhosts_phase_max_seconds gauge\n");
+        for (Phase phase : PHASES) {
+            out.write("virtualhosts_phase_max_seconds{phase=\"" + phase.getName() + "\"} " + BigDecimal.valueOf(getMax(phase), 9).toPlainString() + "\n");
+        }
+        metric(out, "virtualhosts_phase_bytes_total", "counter", "Bytes handled by the phase", bytes, 0);
+        metric(out, "virtualhosts_phase_entries_total", "counter", "Hosts, sections or files handled by the phase", entries, 0);
+        out.flush();
+    }
+
+    /**
+     * Writes one metric family, a sample per phase
+     *
+     * @param out    Output
+     * @param name   Metric name
+     * @param type   Prometheus type
+     * @param help   Description
+     * @param values Value per phase
+     * @param scale  Decimal places the values are shifted by, 9 for nanoseconds to seconds
+     * @throws IOException If the output couldn't be written
+     */
+    private static void metric(Writer out, String name, String type, String help, LongAdder[] values, int scale) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+        for (Phase phase : PHASES) {
+            long value = values[phase.ordinal()].sum();
+            out.write(name + "{phase=\"" + phase.getName() + "\"} " + BigDecimal.valueOf(value, scale).toPlainString() + "\n");
+        }
+    }
+
+    /**
+     * Writes all counters to the file atomically, eg. for the textfile collector of the node exporter
+     *
+     * @param file Target file
+     * @throws IOException If the file couldn't be written
+     */
+    public static void writeTo(File file) throws IOException {
+        Journal.writeAtomically(file, stream -> writeTo(new OutputStreamWriter(stream, StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,362 @@
+package com.virtualhosts;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * Single command for the host or virtual-host
+ * Parsed from the console arguments or from one line of the batch manifest.
+ * Values end up in the hosts file and in the Apache config line by line, so they are checked here:
+ * server names and aliases are RFC 1123 host names, paths have no line breaks, control characters or quotes
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class Operation {
+
+    /**
+     * virtual-host (manipulating with apache virtual hosts) | host (modifies system hosts file) | all (list and export only)
+     */
+    private String type;
+
+    /**
+     * create | update | delete | list | export | find | compact
+     */
+    private String action;
+
+    /**
+     * Domain name
+     */
+    private String serverName = null;
+
+    /**
+     * Ip address for virtual-host or host
+     */
+    private InetAddress address = null;
+
+    /**
+     * Folder from where apache will serve website
+     */
+    private String publicFolder = null;
+
+    /**
+     * Path to the website
+     */
+    private String documentRoot = null;
+
+    /**
+     * Alias for website
+     */
+    private String alias = null;
+
+    /**
+     * Determent's if the RewriteEngine will be activated or not, null if it is not given
+     */
+    private Boolean rewriteEngine = null;
+
+    /**
+     * Gets the host by the server name
+     */
+    private String get;
+
+    /**
+     * Domain suffix the list, export and find are filtered by, or the domains removed by the delete without --get
+     */
+    private String suffix;
+
+    /**
+     * Output format of the list and export, null for the default of the action
+     */
+    private Export.Format format;
+
+    /**
+     * Parses the operation from the arguments
+     * Arguments that don't belong to the operation are ignored
+     *
+     * @param args Arguments
+     * @return Operation or null if --command is not given
+     * @throws Exception Throws Exception if some of the arguments are not correct
+     */
+    public static Operation parse(String[] args) throws Exception {
+        Operation operation = new Operation();
+        boolean command = false;
+        for (var i = 0; i < args.length; i++)
+            switch (args[i].toLowerCase()) {
+                case "--command":
+                    if (i + 2 >= args.length) {
+                        throw new Exception("Command are not valid");
+                    }
+                    operation.type = args[i + 1];
+                    operation.action = args[i + 2];
+                    if (!operation.isValid()) {
+                        throw new Exception("Command are not valid");
+                    }
+                    command = true;
+                    break;
+                case "--server-name":
+                    operation.serverName = hostName(value(args, i), "--server-name");
+                    break;
+                case "--ip-address":
+                    operation.address = parseAddress(value(args, i));
+                    break;
+                case "--public-folder":
+                    operation.publicFolder = path(value(args, i), "--public-folder");
+                    break;
+                case "--document-root":
+                    operation.documentRoot = path(value(args, i), "--document-root");
+                    break;
+                case "--alias":
+                    operation.alias = alias(value(args, i));
+                    break;
+                case "--rewrite-engine":
+                    operation.rewriteEngine = Boolean.parseBoolean(value(args, i));
+                    break;
+                case "--get":
+                    operation.get = name(value(args, i), "--get");
+                    break;
+                case "--suffix":
+                    String suffix = value(args, i);
+                    hostName(suffix.startsWith("*.") ? suffix.substring(2) : suffix.startsWith(".") ? suffix.substring(1) : suffix, "--suffix");
+                    operation.suffix = suffix;
+                    break;
+                case "--format":
+                    operation.format = Export.Format.parse(value(args, i));
+                    break;
+            }
+        return command ? operation : null;
+    }
+
+    /**
+     * Gets the value of the argument
+     *
+     * @param args  Arguments
+     * @param index Index of the argument name
+     * @return Value of the argument
+     * @throws Exception If the value is missing
+     */
+    private static String value(String[] args, int index) throws Exception {
+        if (index + 1 >= args.length) {
+            throw new Exception(args[index] + " parameter requires a value");
+        }
+        return args[index + 1];
+    }
+
+    /**
+     * Checks if the name is an RFC 1123 host name: labels of letters, digits and hyphens separated by dots,
+     * 1 to 63 characters each and not starting or ending with a hyphen, 253 characters at most
+     *
+     * @param name     Domain name
+     * @param wildcard Whether the first label can be * (ServerAlias)
+     * @return Whether the name is valid
+     */
+    public static boolean isHostName(String name, boolean wildcard) {
+        if (name == null) return false;
+        if (wildcard && name.startsWith("*.")) name = name.substring(2);
+        if (name.isEmpty() || name.length() > 253) return false;
+        int label = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '.') {
+                if (label == 0 || name.charAt(i - 1) == '-') return false;
+                label = 0;
+            } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || (c == '-' && label > 0)) {
+                if (++label > 63) return false;
+            } else {
+                return false;
+            }
+        }
+        return label > 0 && name.charAt(name.length() - 1) != '-';
+    }
+
+    /**
+     * Checks the domain name
+     *
+     * @param name      Domain name
+     * @param parameter Parameter name for the error
+     * @return Domain name
+     * @throws Exception If the name is not an RFC 1123 host name
+     */
+    private static String hostName(String name, String parameter) throws Exception {
+        if (!isHostName(name, false)) {
+            throw new Exception(parameter + " is not a valid domain name");
+        }
+        return name;
+    }
+
+    /**
+     * Checks the aliases, separated by spaces, * is allowed as the first label
+     *
+     * @param alias Aliases
+     * @return Aliases
+     * @throws Exception If some of the aliases is not an RFC 1123 host name
+     */
+    private static String alias(String alias) throws Exception {
+        for (String name : alias.split(" ")) {
+            if (!name.isEmpty() && !isHostName(name, true)) {
+                throw new Exception("--alias has to be domain names separated by spaces");
+            }
+        }
+        return alias;
+    }
+
+    /**
+     * Checks the name of an existing entry, it is only looked up, but it may be written to the journal
+     *
+     * @param name      Name
+     * @param parameter Parameter name for the error
+     * @return Name
+     * @throws Exception If the name has whitespace or control characters
+     */
+    private static String name(String name, String parameter) throws Exception {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isWhitespace(c) || Character.isISOControl(c) || c == '#') {
+                throw new Exception(parameter + " is not a valid domain name");
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Checks the path, it is written into DocumentRoot - quoted when it has spaces
+     *
+     * @param path      Path
+     * @param parameter Parameter name for the error
+     * @return Path
+     * @throws Exception If the path has control characters (line breaks and tabs included) or double quotes
+     */
+    private static String path(String path, String parameter) throws Exception {
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (Character.isISOControl(c) || c == '"' || (Character.isWhitespace(c) && c != ' ')) {
+                throw new Exception(parameter + " can't contain line breaks, control characters or double quotes");
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Parses IPv4 or IPv6 address without DNS lookup
+     *
+     * @param ip Ip address
+     * @return InetAddress
+     * @throws Exception If the ip address is not in correct format
+     */
+    public static InetAddress parseAddress(String ip) throws Exception {
+        byte[] bytes = new byte[16];
+        byte[] input = ip.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+        int length = HostsScanner.parseAddress(input, 0, input.length, bytes);
+        if (length == 0) {
+            throw new Exception("Ip address is not in correct format");
+        }
+        return InetAddress.getByAddress(Arrays.copyOf(bytes, length));
+    }
+
+    /**
+     * Validates the command
+     *
+     * @return If the command is valid
+     */
+    private boolean isValid() {
+        if (action.equals("find") || action.equals("compact")) {
+            return type.equals("host");
+        }
+        if (isListing()) {
+            return type.equals("virtual-host") || type.equals("host") || type.equals("all");
+        }
+        return (type.equals("virtual-host") || type.equals("host")) &&
+                (action.equals("create") || action.equals("update") || action.equals("delete"));
+    }
+
+    /**
+     * @return Whether the operation only reads - list, export or find
+     */
+    public boolean isListing() {
+        return action.equals("list") || action.equals("export") || action.equals("find");
+    }
+
+    /**
+     * @return virtual-host | host | all
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return create | update | delete | list | export | find | compact
+     */
+    public String getAction() {
+        return action;
+    }
+
+    /**
+     * @return Domain name
+     */
+    public String getServerName() {
+        return serverName;
+    }
+
+    /**
+     * @return Ip address, null if not given
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return Public folder, null if not given
+     */
+    public String getPublicFolder() {
+        return publicFolder;
+    }
+
+    /**
+     * @return Document root, null if not given
+     */
+    public String getDocumentRoot() {
+        return documentRoot;
+    }
+
+    /**
+     * @return Alias, null if not given
+     */
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * @return Whether the RewriteEngine will be activated, null if it is not given
+     */
+    public Boolean getRewriteEngine() {
+        return rewriteEngine;
+    }
+
+    /**
+     * @return Server name of the existing host for update and delete
+     */
+    public String getGet() {
+        return get;
+    }
+
+    /**
+     * @return Domain suffix of the list, export, find and delete, null if not given
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Output format, list and find are TSV and export JSON Lines unless --format is given
+     *
+     * @return Format
+     */
+    public Export.Format getFormat() {
+        if (format != null) return format;
+        return !action.equals("export") ? Export.Format.TSV : Export.Format.JSON_LINES;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + action + " " + (get != null ? get : serverName);
+    }
+}
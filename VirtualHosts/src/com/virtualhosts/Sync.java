@@ -0,0 +1,380 @@
+package com.virtualhosts;
+
+import com.virtualhosts.apache.ConfigEditor;
+import com.virtualhosts.apache.VirtualHost;
+import com.virtualhosts.apache.VirtualHostIndex;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Desired state of the hosts and the virtual hosts, applied as the difference from the current state
+ * <p>
+ * Every line of the manifest declares one entry that should exist, written the same way as the console arguments
+ * without --command and the action (create is allowed, so a batch of creates is also a manifest):
+ * <pre>
+ * # comment
+ * host --server-name example.com --ip-address 127.0.0.1
+ * virtual-host --server-name example.org --alias www.example.org --rewrite-engine true
+ * </pre>
+ * Every virtual host also declares the host entry of its ServerName.
+ * The manifest is compared with the parsed hosts file and the index of sites-available in one pass and the plan
+ * lists only the entries that are added, changed or removed. Applying the plan writes only the files of those entries,
+ * so a run without changes writes nothing and doesn't reload Apache.
+ * <p>
+ * The manifest owns every virtual host in sites-available and the host entries of their ServerNames,
+ * other host entries (localhost etc.) are never removed. With a suffix it owns only the virtual hosts and
+ * the host entries under the suffix, everything else is left as it is
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class Sync {
+
+    /**
+     * One step of the plan
+     */
+    public static class Change {
+
+        /**
+         * + add | ~ change | - remove
+         */
+        private final char kind;
+
+        /**
+         * host | virtual-host
+         */
+        private final String type;
+
+        /**
+         * Domain name
+         */
+        private final String name;
+
+        /**
+         * Ip address of the host, null for removal and for virtual hosts
+         */
+        private final InetAddress address;
+
+        /**
+         * Desired virtual host, null for removal and for hosts
+         */
+        private final VirtualHost virtualHost;
+
+        Change(char kind, String type, String name, InetAddress address, VirtualHost virtualHost) {
+            this.kind = kind;
+            this.type = type;
+            this.name = name;
+            this.address = address;
+            this.virtualHost = virtualHost;
+        }
+
+        /**
+         * @return + add | ~ change | - remove
+         */
+        public char getKind() {
+            return kind;
+        }
+
+        /**
+         * @return host | virtual-host
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return Domain name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Plan line - eg. + host example.com 127.0.0.1
+         *
+         * @return String
+         */
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder().append(kind).append(' ').append(type).append(' ').append(name);
+            if (address != null) line.append(' ').append(address.getHostAddress());
+            if (virtualHost != null) {
+                line.append(' ').append(virtualHost.getAddress().getHostAddress()).append(' ').append(virtualHost.getDocumentRoot());
+            }
+            return line.toString();
+        }
+    }
+
+    /**
+     * Desired hosts by domain name, in manifest order
+     */
+    private final Map<String, InetAddress> hosts = new LinkedHashMap<>();
+
+    /**
+     * Desired virtual hosts by lower case ServerName, in manifest order
+     */
+    private final Map<String, VirtualHost> virtualHosts = new LinkedHashMap<>();
+
+    /**
+     * Entries owned by the manifest, null for all virtual hosts and their host entries
+     */
+    private final String suffix;
+
+    /**
+     * Config files written under one set of locks, every locked file holds a descriptor
+     */
+    private static final int FILES_PER_WRITE = 512;
+
+    /**
+     * Plan from the last call of plan()
+     */
+    private List<Change> plan;
+
+    /**
+     * Primary constructor
+     *
+     * @param suffix Domain suffix of the entries owned by the manifest, null for all virtual hosts
+     */
+    public Sync(String suffix) {
+        this.suffix = suffix;
+    }
+
+    /**
+     * Parses the manifest
+     *
+     * @param reader Manifest content
+     * @param suffix Domain suffix of the entries owned by the manifest, null for all virtual hosts
+     * @return Desired state
+     * @throws Exception Throws exception if some of the lines are not valid or declare the same name twice
+     */
+    public static Sync parse(Reader reader, String suffix) throws Exception {
+        Sync sync = new Sync(suffix);
+        BufferedReader buffered = new BufferedReader(reader);
+        //Host entries declared by the virtual hosts, an explicit host line may declare the same one
+        Set<String> implied = new HashSet<>();
+        String line;
+        int number = 0;
+        while ((line = buffered.readLine()) != null) {
+            number++;
+            String[] tokens = Batch.tokenize(line);
+            if (tokens.length == 0) continue;
+            int skip = tokens.length > 1 && tokens[1].equals("create") ? 2 : 1;
+            String[] args = new String[tokens.length - skip + 3];
+            args[0] = "--command";
+            args[1] = tokens[0];
+            args[2] = "create";
+            System.arraycopy(tokens, skip, args, 3, tokens.length - skip);
+            Operation operation;
+            try {
+                operation = Operation.parse(args);
+            } catch (Exception e) {
+                throw new Exception("Line " + number + ": " + e.getMessage());
+            }
+            String name = operation.getServerName();
+            if (name == null) {
+                throw new Exception("Line " + number + ": you must provide us with --server-name parameter");
+            }
+            InetAddress address = operation.getAddress() == null ? InetAddress.getLoopbackAddress() : operation.getAddress();
+            boolean virtual = operation.getType().equals("virtual-host");
+            if (virtual) {
+                //Virtual host without --alias has no aliases, the ones in its section are removed
+                String alias = operation.getAlias() == null ? "" : operation.getAlias();
+                VirtualHost virtualHost = new VirtualHost(name, operation.getAddress(), operation.getPublicFolder(),
+                        operation.getDocumentRoot(), alias, operation.getRewriteEngine());
+                if (sync.virtualHosts.putIfAbsent(name.toLowerCase(Locale.ROOT), virtualHost) != null) {
+                    throw new Exception("Line " + number + ": virtual host " + name + " is declared twice");
+                }
+            }
+            InetAddress declared = sync.hosts.get(name);
+            if (declared == null) {
+                sync.hosts.put(name, address);
+                if (virtual) implied.add(name);
+            } else if (declared.equals(address) && (virtual || implied.remove(name))) {
+                //Host line and virtual host of the same entry
+                implied.remove(name);
+            } else {
+                throw new Exception("Line " + number + ": host " + name + " is declared twice");
+            }
+        }
+        return sync;
+    }
+
+    /**
+     * Locks every declared domain and the hosts file
+     * Plan should be made and applied under the lock, so no other process changes the files in between
+     *
+     * @return Handle that releases the locks
+     * @throws IOException If the lock file couldn't be created or locked
+     */
+    public Locks.Handle lock() throws IOException {
+        return Host.getCache().lock(hosts.keySet().toArray(new String[0]));
+    }
+
+    /**
+     * Compares the desired state with the hosts file and sites-available
+     * Virtual hosts are compared by their structure, see VirtualHost.matches(), straight from the index,
+     * so the config files are only checked for changes, not read
+     *
+     * @return Changes, hosts first and then virtual hosts - removals, changes and additions
+     * @throws IOException If the hosts file or some of the config files couldn't be read,
+     *                     or a new virtual host uses a name of a virtual host that stays
+     */
+    public List<Change> plan() throws IOException {
+        HostsFile file = Host.getHostsFile();
+        if (file == null) {
+            throw new IOException("Hosts file couldn't be read");
+        }
+        Export.Filter filter = new Export.Filter(suffix, null);
+        List<Change> changes = new ArrayList<>();
+        //Existing virtual hosts owned by the manifest, compared as they are in the index without reading the sections
+        Map<String, VirtualHostIndex.Entry> existing = new LinkedHashMap<>();
+        //Lower case ServerName of every section by its names
+        Map<String, String> owners = new HashMap<>();
+        for (VirtualHostIndex.Entry entry : VirtualHostIndex.getInstance().indexed()) {
+            String owner = entry.getServerName() == null ? "" : entry.getServerName().toLowerCase(Locale.ROOT);
+            owners.putIfAbsent(owner, owner);
+            for (String alias : entry.getAliases()) {
+                owners.putIfAbsent(alias.toLowerCase(Locale.ROOT), owner);
+            }
+            if (!owner.isEmpty() && filter.matches(entry)) existing.putIfAbsent(owner, entry);
+        }
+        List<Change> virtual = new ArrayList<>();
+        Set<File> emptied = new HashSet<>();
+        for (var entry : existing.entrySet()) {
+            if (virtualHosts.containsKey(entry.getKey())) continue;
+            virtual.add(new Change('-', "virtual-host", entry.getValue().getServerName(), null, null));
+            emptied.add(entry.getValue().getFile().getAbsoluteFile());
+        }
+        for (var desired : virtualHosts.entrySet()) {
+            VirtualHost virtualHost = desired.getValue();
+            VirtualHostIndex.Entry entry = existing.get(desired.getKey());
+            if (entry != null) {
+                if (!virtualHost.matches(entry)) {
+                    virtual.add(new Change('~', "virtual-host", entry.getServerName(), null, virtualHost));
+                }
+                continue;
+            }
+            //Name taken by a virtual host that stays, e.g. as its alias
+            String taken = takenName(virtualHost, owners, existing);
+            if (taken != null) {
+                throw new IOException("Virtual host " + taken + " already exists, it can't be added for " + virtualHost.getServerName());
+            }
+            File config = virtualHost.getConfigFile();
+            if (config == null) {
+                throw new IOException("This type of operating system is not supported");
+            }
+            if (Config.getOs() == OsType.Linux && config.exists() && !emptied.contains(config.getAbsoluteFile())) {
+                throw new IOException("Config file " + config + " of " + virtualHost.getServerName() + " exits");
+            }
+            virtual.add(new Change('+', "virtual-host", virtualHost.getServerName(), null, virtualHost));
+        }
+        //Host entries owned by the manifest
+        Set<String> ownedHosts = new LinkedHashSet<>();
+        if (suffix != null) {
+            for (var entry : file.findBySuffix(suffix)) {
+                ownedHosts.add(entry.getName());
+            }
+        } else {
+            for (var entry : existing.values()) {
+                if (file.contains(entry.getServerName())) ownedHosts.add(entry.getServerName());
+            }
+        }
+        for (String name : ownedHosts) {
+            if (!hosts.containsKey(name)) changes.add(new Change('-', "host", name, null, null));
+        }
+        for (var desired : hosts.entrySet()) {
+            HostsFile.Entry entry = file.get(desired.getKey());
+            if (entry == null) {
+                changes.add(new Change('+', "host", desired.getKey(), desired.getValue(), null));
+            } else if (!entry.getAddress().equals(desired.getValue())) {
+                changes.add(new Change('~', "host", desired.getKey(), desired.getValue(), null));
+            }
+        }
+        changes.addAll(virtual);
+        plan = changes;
+        return Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * Finds the ServerName or alias of the new virtual host that is served by an existing virtual host that stays
+     *
+     * @param virtualHost New virtual host
+     * @param owners      ServerName of every existing section by its names
+     * @param existing    Owned virtual hosts by lower case ServerName
+     * @return Taken name or null
+     */
+    private String takenName(VirtualHost virtualHost, Map<String, String> owners, Map<String, VirtualHostIndex.Entry> existing) {
+        List<String> names = new ArrayList<>();
+        names.add(virtualHost.getServerName());
+        names.addAll(Arrays.asList(virtualHost.getAlias().trim().split("\\s+")));
+        for (String name : names) {
+            if (name.isEmpty()) continue;
+            String owner = owners.get(name.toLowerCase(Locale.ROOT));
+            //Removed or rewritten by the same plan
+            if (owner == null || existing.containsKey(owner)) continue;
+            return name;
+        }
+        return null;
+    }
+
+    /**
+     * Applies the plan from the last call of plan()
+     * Only the files of the changed entries are written, Apache is reloaded only when a virtual host has changed.
+     * Config files are validated and written in groups of FILES_PER_WRITE, a failing group stops the rest
+     *
+     * @return Completed when all changes are durable
+     * @throws IOException This exception is thrown when user doesn't have access to write to the files
+     */
+    public CompletableFuture<Void> apply() throws IOException {
+        if (plan == null) {
+            throw new IOException("Plan has to be made before it is applied");
+        }
+        HostsFile file = Host.getHostsFile();
+        if (file == null) {
+            throw new IOException("Hosts file couldn't be read");
+        }
+        boolean hostsChanged = false;
+        ConfigEditor configs = new ConfigEditor();
+        List<File> directories = new ArrayList<>();
+        int reloaded = 0;
+        int written = 0;
+        //Host entries as they were before the changes, for the rollback
+        Map<String, InetAddress> before = new LinkedHashMap<>();
+        for (Change change : plan) {
+            Batch.touch(before, file, change.name);
+            if (change.type.equals("host")) {
+                if (change.kind != '+') file.remove(change.name);
+                if (change.kind != '-') file.add(change.address, change.name);
+                hostsChanged = true;
+                continue;
+            }
+            reloaded++;
+            if (change.kind == '+') {
+                configs.append(change.virtualHost.getConfigFile(), change.virtualHost);
+            } else {
+                VirtualHost old = VirtualHost.get(change.name);
+                if (old == null) {
+                    throw new IOException("Virtual host " + change.name + " has been removed in the meantime");
+                }
+                if (change.kind == '-') configs.remove(old);
+                else configs.update(old, change.virtualHost);
+            }
+            if (change.kind != '-') directories.add(new File(change.virtualHost.getDocumentRoot()));
+            if (configs.getFiles().size() >= FILES_PER_WRITE) {
+                written += configs.getFiles().size();
+                configs.write();
+            }
+        }
+        written += configs.getFiles().size();
+        if (!configs.getFiles().isEmpty()) configs.write();
+        Batch.reload(reloaded, Batch.rollback(configs, before, file, null));
+        Batch.createDirectories(directories);
+        CompletableFuture<Void> durable = hostsChanged ? file.commit() : CompletableFuture.completedFuture(null);
+        System.out.println(plan.size() + " changes applied, " + written + " config files written");
+        plan = null;
+        return durable;
+    }
+}
@@ -0,0 +1,388 @@
+package com.virtualhosts.apache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streaming tokenizer for Apache config files
+ * <p>
+ * Reads the config one logical line at a time and returns directives and section tags with their byte range in the file.
+ * Lines ending with backslash are continued on the next line, lines starting with # are comments,
+ * arguments can be quoted with double or single quotes.
+ * Tombstones (comment lines with nothing but spaces after #, left by in-place removals) are counted as dead bytes
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class ApacheConfigTokenizer implements Closeable {
+
+    /**
+     * Kind of the token
+     */
+    public enum Kind {
+        /**
+         * Directive - eg. ServerName example.com
+         */
+        DIRECTIVE,
+        /**
+         * Opening tag of the section - eg. &lt;VirtualHost *:80&gt;
+         */
+        SECTION_START,
+        /**
+         * Closing tag of the section - eg. &lt;/VirtualHost&gt;
+         */
+        SECTION_END
+    }
+
+    /**
+     * One directive or section tag
+     */
+    public static class Token {
+        /**
+         * Kind of the token
+         */
+        private final Kind kind;
+
+        /**
+         * Name of the directive or section
+         */
+        private final String name;
+
+        /**
+         * Arguments, unquoted
+         */
+        private final List<String> args;
+
+        /**
+         * Offset of the first byte of the line
+         */
+        private final long start;
+
+        /**
+         * Offset after the line break of the last line
+         */
+        private final long end;
+
+        /**
+         * Line number of the first line
+         */
+        private final int line;
+
+        Token(Kind kind, String name, List<String> args, long start, long end, int line) {
+            this.kind = kind;
+            this.name = name;
+            this.args = Collections.unmodifiableList(args);
+            this.start = start;
+            this.end = end;
+            this.line = line;
+        }
+
+        /**
+         * @return Kind of the token
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return Name of the directive or section
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Checks the name, Apache names are case insensitive
+         *
+         * @param name Name
+         * @return Whether the token has the given name
+         */
+        public boolean is(String name) {
+            return this.name.equalsIgnoreCase(name);
+        }
+
+        /**
+         * @return Arguments, unquoted
+         */
+        public List<String> getArgs() {
+            return args;
+        }
+
+        /**
+         * @return First argument or null
+         */
+        public String getArg() {
+            return args.isEmpty() ? null : args.get(0);
+        }
+
+        /**
+         * @return Offset of the first byte of the line
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return Offset after the line break of the last line
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return Line number of the first line
+         */
+        public int getLine() {
+            return line;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + name + " " + args;
+        }
+    }
+
+    /**
+     * Config content
+     */
+    private final InputStream in;
+
+    /**
+     * Read buffer
+     */
+    private final byte[] buffer;
+
+    /**
+     * Position in the buffer
+     */
+    private int position;
+
+    /**
+     * Number of bytes in the buffer
+     */
+    private int limit;
+
+    /**
+     * Offset of the next byte in the file
+     */
+    private long offset;
+
+    /**
+     * Number of lines read
+     */
+    private int lines;
+
+    /**
+     * Bytes of the tombstones read so far
+     */
+    private long dead;
+
+    /**
+     * Current logical line
+     */
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+    /**
+     * Primary constructor
+     *
+     * @param in Config content, it is not buffered again
+     */
+    public ApacheConfigTokenizer(InputStream in) {
+        this(in, 1 << 16);
+    }
+
+    /**
+     * Constructor overload for small configs, where the default 64 KiB buffer would cost more than the reading
+     *
+     * @param in   Config content, it is not buffered again
+     * @param size Size of the read buffer
+     */
+    public ApacheConfigTokenizer(InputStream in, int size) {
+        this(in, size, 1);
+    }
+
+    /**
+     * Constructor overload for a part of the config file
+     *
+     * @param in   Content, it is not buffered again
+     * @param size Size of the read buffer
+     * @param line Line number of the first line of the content
+     */
+    public ApacheConfigTokenizer(InputStream in, int size, int line) {
+        this.in = in;
+        this.buffer = new byte[Math.max(16, size)];
+        this.lines = line - 1;
+    }
+
+    /**
+     * Reads the next directive or section tag
+     *
+     * @return Token or null at the end of the file
+     * @throws IOException If the config couldn't be read
+     */
+    public Token next() throws IOException {
+        while (true) {
+            long start = offset;
+            int first = lines + 1;
+            if (!readLine()) return null;
+            String text = line.toString(StandardCharsets.UTF_8.name());
+            Token token = parse(text, start, offset, first);
+            if (token != null) return token;
+            dead += tombstoneLength(text);
+        }
+    }
+
+    /**
+     * @return Bytes of the tombstones read so far
+     */
+    public long getDead() {
+        return dead;
+    }
+
+    /**
+     * Length of the tombstone that starts with the line, see {@link ManagedConfig}
+     *
+     * @param text Line without the line break
+     * @return Bytes declared by the tombstone, 0 if the line is not one
+     */
+    static long tombstoneLength(String text) {
+        if (!text.startsWith(ManagedConfig.DEAD)) return 0;
+        int from = ManagedConfig.DEAD.length();
+        int to = from;
+        while (to < text.length() && to - from < 18 && text.charAt(to) >= '0' && text.charAt(to) <= '9') to++;
+        return to == from ? 0 : Long.parseLong(text.substring(from, to));
+    }
+
+    /**
+     * Reads one logical line, joining the lines ending with backslash
+     *
+     * @return False at the end of the file
+     * @throws IOException If the config couldn't be read
+     */
+    private boolean readLine() throws IOException {
+        line.reset();
+        boolean any = false;
+        while (true) {
+            int c = read();
+            if (c < 0) return any;
+            any = true;
+            if (c != '\n') {
+                line.write(c);
+                continue;
+            }
+            lines++;
+            byte[] bytes = line.toByteArray();
+            int length = bytes.length;
+            if (length > 0 && bytes[length - 1] == '\r') length--;
+            if (length > 0 && bytes[length - 1] == '\\') {
+                //Continuation, backslash and line break are dropped
+                line.reset();
+                line.write(bytes, 0, length - 1);
+                continue;
+            }
+            if (length != bytes.length) {
+                line.reset();
+                line.write(bytes, 0, length);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads one byte
+     *
+     * @return Byte or -1 at the end of the file
+     * @throws IOException If the config couldn't be read
+     */
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        offset++;
+        return buffer[position++] & 0xff;
+    }
+
+    /**
+     * Parses the logical line
+     *
+     * @param text  Line without line breaks
+     * @param start Offset of the line
+     * @param end   Offset after the line
+     * @param line  Line number
+     * @return Token or null for blank lines and comments
+     */
+    static Token parse(String text, long start, long end, int line) {
+        String trimmed = text.trim();
+        if (trimmed.isEmpty() || trimmed.charAt(0) == '#') return null;
+        if (trimmed.startsWith("</")) {
+            int close = trimmed.indexOf('>');
+            String name = trimmed.substring(2, close < 0 ? trimmed.length() : close).trim();
+            return new Token(Kind.SECTION_END, name, new ArrayList<>(), start, end, line);
+        }
+        if (trimmed.charAt(0) == '<') {
+            int close = trimmed.lastIndexOf('>');
+            List<String> words = split(trimmed.substring(1, close < 1 ? trimmed.length() : close));
+            String name = words.isEmpty() ? "" : words.remove(0);
+            return new Token(Kind.SECTION_START, name, words, start, end, line);
+        }
+        List<String> words = split(trimmed);
+        String name = words.remove(0);
+        return new Token(Kind.DIRECTIVE, name, words, start, end, line);
+    }
+
+    /**
+     * Splits the arguments, quotes group the arguments with spaces
+     *
+     * @param text Arguments
+     * @return Unquoted arguments
+     */
+    static List<String> split(String text) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            word.setLength(0);
+            if (c == '"' || c == '\'') {
+                i++;
+                while (i < length && text.charAt(i) != c) {
+                    char next = text.charAt(i);
+                    if (next == '\\' && i + 1 < length && text.charAt(i + 1) == c) {
+                        next = c;
+                        i++;
+                    }
+                    word.append(next);
+                    i++;
+                }
+                i++;
+            } else {
+                while (i < length && !Character.isWhitespace(text.charAt(i))) {
+                    word.append(text.charAt(i++));
+                }
+            }
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,366 @@
+package com.virtualhosts.apache;
+
+import com.virtualhosts.Config;
+import com.virtualhosts.Journal;
+import com.virtualhosts.Locks;
+import com.virtualhosts.Metrics;
+import com.virtualhosts.OsType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.*;
+
+/**
+ * Collects changes of the virtual host sections and writes every affected config file once
+ * <p>
+ * Sections are updated and removed by the byte range from the VirtualHostIndex,
+ * so the rest of the file is kept byte for byte. Files are replaced atomically, except the shared
+ * httpd-vhosts.conf on Windows which is edited in place (ManagedConfig).
+ * Files are locked against other processes while they are written and the sections are found again under the lock,
+ * so a section moved by another process in the meantime is still changed, not its old range.
+ * Changed sections are checked by the ConfigValidator before anything is written. While the external config test is on,
+ * the content of every written file is kept, so undo() can restore the files when the test fails
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class ConfigEditor {
+
+    /**
+     * One change of the config file
+     */
+    static class Edit {
+        /**
+         * Offset of the replaced range, -1 for append
+         */
+        final long start;
+
+        /**
+         * Offset after the replaced range
+         */
+        final long end;
+
+        /**
+         * Appended content, null when the appended virtual host is rendered from the template
+         */
+        final String text;
+
+        /**
+         * Virtual host as it is in the section, null for append
+         */
+        final VirtualHost old;
+
+        /**
+         * New virtual host, null for removal
+         */
+        final VirtualHost updated;
+
+        Edit(long start, long end, String text, VirtualHost old, VirtualHost updated) {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+            this.old = old;
+            this.updated = updated;
+        }
+
+        /**
+         * @return Appended content
+         */
+        String text() {
+            return text != null ? text : VirtualHostTemplate.getInstance().render(updated);
+        }
+    }
+
+    /**
+     * Changes per file, in the order they were added
+     */
+    private final Map<File, List<Edit>> edits = new LinkedHashMap<>();
+
+    /**
+     * Content of the written files before the first and after the last write, null when the file didn't exist
+     */
+    private final Map<File, byte[][]> written = new LinkedHashMap<>();
+
+    /**
+     * Appends the section at the end of the file, the file is created if it doesn't exist
+     *
+     * @param file Config file
+     * @param text Section
+     */
+    public void append(File file, String text) {
+        add(file, new Edit(-1, -1, text, null, null));
+    }
+
+    /**
+     * Appends the section of the new virtual host at the end of the file, the file is created if it doesn't exist
+     * Section is rendered by the VirtualHostTemplate straight into the write buffer
+     *
+     * @param file        Config file
+     * @param virtualHost New virtual host
+     */
+    public void append(File file, VirtualHost virtualHost) {
+        add(file, new Edit(-1, -1, null, null, virtualHost));
+    }
+
+    /**
+     * Updates the section of the existing virtual host
+     * Only the changed directives are rewritten, everything else in the section is kept
+     *
+     * @param old     Existing virtual host, read with VirtualHost.get()
+     * @param updated New virtual host
+     */
+    public void update(VirtualHost old, VirtualHost updated) {
+        VirtualHostIndex.Entry entry = old.getLocation();
+        add(entry.getFile(), new Edit(entry.getStart(), entry.getEnd(), null, old, updated));
+    }
+
+    /**
+     * Removes the section of the existing virtual host
+     *
+     * @param old Existing virtual host, read with VirtualHost.get()
+     */
+    public void remove(VirtualHost old) {
+        VirtualHostIndex.Entry entry = old.getLocation();
+        add(entry.getFile(), new Edit(entry.getStart(), entry.getEnd(), null, old, null));
+    }
+
+    /**
+     * Adds the change
+     *
+     * @param file Config file
+     * @param edit Change
+     */
+    private void add(File file, Edit edit) {
+        edits.computeIfAbsent(file.getAbsoluteFile(), f -> new ArrayList<>()).add(edit);
+    }
+
+    /**
+     * @return Files that will be written
+     */
+    public Set<File> getFiles() {
+        return Collections.unmodifiableSet(edits.keySet());
+    }
+
+    /**
+     * Writes all changed files
+     * On Linux a file left without any section after removal is deleted
+     *
+     * @throws IOException If some of the files couldn't be written or changed since they were indexed,
+     *                     or some of the sections are not valid - nothing is written then
+     */
+    public void write() throws IOException {
+        VirtualHostIndex index = VirtualHostIndex.getInstance();
+        try {
+            Locks.Handle lock = Locks.lockFiles(edits.keySet());
+            try {
+                Map<File, List<Edit>> resolved = new LinkedHashMap<>();
+                for (var file : edits.entrySet()) {
+                    resolved.put(file.getKey(), resolve(index, file.getKey(), file.getValue()));
+                }
+                List<String> errors = ConfigValidator.getInstance().check(resolved);
+                if (!errors.isEmpty()) {
+                    throw new IOException(String.join(System.lineSeparator(), errors));
+                }
+                boolean kept = !ConfigValidator.getInstance().getCommand().isEmpty();
+                for (var file : resolved.entrySet()) {
+                    if (kept && !written.containsKey(file.getKey())) {
+                        written.put(file.getKey(), new byte[][]{read(file.getKey()), null});
+                    }
+                    List<Edit> changes = file.getValue();
+                    if (!ManagedConfig.isManaged(file.getKey()) || !new ManagedConfig(file.getKey(), index).write(changes)) {
+                        write(file.getKey(), changes);
+                        index.invalidate(file.getKey());
+                    }
+                    if (kept) written.get(file.getKey())[1] = read(file.getKey());
+                }
+            } finally {
+                lock.close();
+            }
+        } finally {
+            edits.clear();
+            //Sidecar is updated right away, next run finds the changed sections without reading all files
+            index.refresh();
+        }
+    }
+
+    /**
+     * Restores the written files as they were before the first write
+     * A file that somebody has changed since it was written is left as it is
+     *
+     * @throws IOException If some of the files couldn't be restored
+     */
+    public void undo() throws IOException {
+        if (written.isEmpty()) return;
+        VirtualHostIndex index = VirtualHostIndex.getInstance();
+        try {
+            Locks.Handle lock = Locks.lockFiles(written.keySet());
+            try {
+                for (var file : written.entrySet()) {
+                    byte[] before = file.getValue()[0];
+                    if (!Arrays.equals(read(file.getKey()), file.getValue()[1])) {
+                        System.out.println("Config file " + file.getKey() + " has changed since it was written, it is not rolled back");
+                        continue;
+                    }
+                    if (before == null) {
+                        Files.deleteIfExists(file.getKey().toPath());
+                    } else {
+                        Journal.writeAtomically(file.getKey(), stream -> stream.write(before));
+                    }
+                    index.invalidate(file.getKey());
+                }
+            } finally {
+                lock.close();
+            }
+        } finally {
+            written.clear();
+            index.refresh();
+        }
+    }
+
+    /**
+     * Reads the whole file
+     *
+     * @param file Config file
+     * @return Content, null if the file doesn't exist
+     * @throws IOException If the file couldn't be read
+     */
+    private static byte[] read(File file) throws IOException {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the changed sections in the file as it is now
+     *
+     * @param index   Index of the config files
+     * @param file    Config file, locked
+     * @param changes Changes with the ranges from the time the virtual hosts were read
+     * @return Changes with the current ranges
+     * @throws IOException If the file couldn't be read or the section is no longer in it
+     */
+    private static List<Edit> resolve(VirtualHostIndex index, File file, List<Edit> changes) throws IOException {
+        VirtualHostIndex.Parsed parsed = null;
+        List<Edit> resolved = new ArrayList<>(changes.size());
+        for (Edit edit : changes) {
+            if (edit.start < 0) {
+                resolved.add(edit);
+                continue;
+            }
+            if (parsed == null) parsed = index.current(file);
+            String name = edit.old.getServerName().toLowerCase(Locale.ROOT);
+            VirtualHostIndex.Entry found = null;
+            if (parsed != null) {
+                for (VirtualHostIndex.Entry entry : parsed.entries) {
+                    if (!entry.isNamed(name)) continue;
+                    //Same place as before, otherwise the first section with the name
+                    if (found == null || entry.getStart() == edit.start) found = entry;
+                    if (entry.getStart() == edit.start) break;
+                }
+            }
+            if (found == null) {
+                throw new IOException("Virtual host " + name + " has been removed from " + file + " in the meantime");
+            }
+            resolved.add(new Edit(found.getStart(), found.getEnd(), null, edit.old, edit.updated));
+        }
+        return resolved;
+    }
+
+    /**
+     * Applies the changes to one file
+     *
+     * @param file    Config file
+     * @param changes Changes
+     * @throws IOException If the file couldn't be written or changed since it was indexed
+     */
+    private static void write(File file, List<Edit> changes) throws IOException {
+        long read = Metrics.start();
+        byte[] content = file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+        Metrics.record(Metrics.Phase.READ, read, content.length, 1);
+        List<Edit> ranges = new ArrayList<>();
+        ByteBuffer appended = ByteBuffer.allocate(1024);
+        VirtualHostTemplate template = VirtualHostTemplate.getInstance();
+        boolean removed = false;
+        for (Edit edit : changes) {
+            if (edit.start < 0) {
+                if (edit.text != null) {
+                    appended = VirtualHostTemplate.put(appended, edit.text.getBytes(StandardCharsets.UTF_8));
+                } else {
+                    appended = template.render(edit.updated, appended);
+                }
+                continue;
+            }
+            if (edit.end > content.length || !startsSection(content, (int) edit.start)) {
+                throw new IOException("Config file " + file + " has changed since it was read");
+            }
+            ranges.add(edit);
+            removed |= edit.updated == null;
+        }
+        ranges.sort(Comparator.comparingLong(e -> e.start));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + appended.position());
+        int position = 0;
+        for (Edit edit : ranges) {
+            if (edit.start < position) {
+                throw new IOException("Virtual host in " + file + " is changed twice");
+            }
+            int start = (int) edit.start;
+            if (edit.updated == null) {
+                //Blank line written in front of the section by VirtualHost.toString() goes away with it
+                start = blankLineBefore(content, position, start);
+            }
+            out.write(content, position, start - position);
+            if (edit.updated != null) {
+                byte[] section = Arrays.copyOfRange(content, start, (int) edit.end);
+                out.write(edit.updated.rewrite(section, edit.old).getBytes(StandardCharsets.UTF_8));
+            }
+            position = (int) edit.end;
+        }
+        out.write(content, position, content.length - position);
+        out.write(appended.array(), 0, appended.position());
+        byte[] result = out.toByteArray();
+        if (removed && Config.getOs() == OsType.Linux && new String(result, StandardCharsets.UTF_8).trim().isEmpty()) {
+            Files.deleteIfExists(file.toPath());
+            return;
+        }
+        Journal.writeAtomically(file, stream -> stream.write(result));
+    }
+
+    /**
+     * Checks that the range still starts with the section tag
+     *
+     * @param content File content
+     * @param start   Offset of the range
+     * @return Whether the first non blank character is &lt;
+     */
+    private static boolean startsSection(byte[] content, int start) {
+        for (int i = start; i < content.length; i++) {
+            if (content[i] == '<') return true;
+            if (content[i] != ' ' && content[i] != '\t') return false;
+        }
+        return false;
+    }
+
+    /**
+     * Finds the blank line directly in front of the offset
+     *
+     * @param content File content
+     * @param min     Offset before which nothing can be removed
+     * @param start   Offset of the line
+     * @return Offset of the blank line, or start if there is none
+     */
+    private static int blankLineBefore(byte[] content, int min, int start) {
+        int i = start;
+        if (i > min && content[i - 1] == '\n') i--;
+        else return start;
+        if (i > min && content[i - 1] == '\r') i--;
+        if (i == min || content[i - 1] == '\n') return i;
+        return start;
+    }
+}
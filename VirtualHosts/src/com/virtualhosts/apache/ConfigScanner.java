@@ -0,0 +1,255 @@
+package com.virtualhosts.apache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel scanner of the config files
+ * <p>
+ * Files are split between the workers of a fork-join pool, every worker checks and reads its own files.
+ * Number of workers bounds the number of files read at the same time, it is the number of cores by default
+ * and can be changed with -Dvirtualhosts.scan.threads
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class ConfigScanner {
+
+    /**
+     * Work done on one file
+     *
+     * @param <T> Result
+     */
+    public interface Task<T> {
+        /**
+         * Checks or reads the file
+         *
+         * @param file Config file
+         * @return Result, can be null
+         * @throws IOException If the file couldn't be read
+         */
+        T apply(File file) throws IOException;
+    }
+
+    /**
+     * Statistics of one scan
+     */
+    public static class Stats {
+        /**
+         * Number of files checked
+         */
+        private final long checked;
+
+        /**
+         * Number of files read
+         */
+        private final long files;
+
+        /**
+         * Number of bytes read
+         */
+        private final long bytes;
+
+        /**
+         * Duration in nanoseconds
+         */
+        private final long nanos;
+
+        Stats(long checked, long files, long bytes, long nanos) {
+            this.checked = checked;
+            this.files = files;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return Number of files checked
+         */
+        public long getChecked() {
+            return checked;
+        }
+
+        /**
+         * @return Number of files read
+         */
+        public long getFiles() {
+            return files;
+        }
+
+        /**
+         * @return Number of bytes read
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return Duration in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return Files read per second
+         */
+        public double filesPerSecond() {
+            return nanos == 0 ? 0 : files * 1e9 / nanos;
+        }
+
+        /**
+         * @return Megabytes read per second
+         */
+        public double megabytesPerSecond() {
+            return nanos == 0 ? 0 : bytes * 1e9 / nanos / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files checked, %d files read (%.1f MB) in %.1f ms - %.0f files/s, %.1f MB/s",
+                    checked, files, bytes / (1024.0 * 1024), nanos / 1e6, filesPerSecond(), megabytesPerSecond());
+        }
+    }
+
+    /**
+     * Number of files one worker takes at once
+     */
+    private static final int THRESHOLD = 16;
+
+    /**
+     * Shared scanner
+     */
+    private static ConfigScanner instance;
+
+    /**
+     * Workers
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Primary constructor
+     *
+     * @param parallelism Maximum number of files read at the same time
+     */
+    public ConfigScanner(int parallelism) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism), pool -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("virtualhosts-scanner-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Returns the shared scanner
+     *
+     * @return Scanner with -Dvirtualhosts.scan.threads workers, number of cores by default
+     */
+    public static synchronized ConfigScanner getInstance() {
+        if (instance == null) {
+            instance = new ConfigScanner(Integer.getInteger("virtualhosts.scan.threads", Runtime.getRuntime().availableProcessors()));
+        }
+        return instance;
+    }
+
+    /**
+     * @return Maximum number of files read at the same time
+     */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Runs the task on every file in parallel
+     *
+     * @param input Files
+     * @param task  Task
+     * @param <T>   Result
+     * @return Results in the order of the files
+     * @throws IOException If some of the files couldn't be read
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> map(List<File> input, Task<T> task) throws IOException {
+        File[] array = input.toArray(new File[0]);
+        Object[] results = new Object[array.length];
+        if (array.length <= THRESHOLD) {
+            for (int i = 0; i < array.length; i++) {
+                results[i] = task.apply(array[i]);
+            }
+        } else {
+            try {
+                pool.invoke(new Split<>(array, results, task, 0, array.length));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        return (List<T>) new ArrayList<>(Arrays.asList(results));
+    }
+
+    /**
+     * Splits the files in halves until there are at most THRESHOLD of them
+     *
+     * @param <T> Result
+     */
+    private static class Split<T> extends RecursiveAction {
+        /**
+         * Version of the serialized form, tasks are never serialized
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * All files
+         */
+        private final File[] input;
+
+        /**
+         * Results, same index as the file
+         */
+        private final Object[] results;
+
+        /**
+         * Task
+         */
+        private final Task<T> task;
+
+        /**
+         * First file of this part
+         */
+        private final int from;
+
+        /**
+         * End of this part, exclusive
+         */
+        private final int to;
+
+        Split(File[] input, Object[] results, Task<T> task, int from, int to) {
+            this.input = input;
+            this.results = results;
+            this.task = task;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                try {
+                    for (int i = from; i < to; i++) {
+                        results[i] = task.apply(input[i]);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Split<>(input, results, task, from, middle), new Split<>(input, results, task, middle, to));
+        }
+    }
+}
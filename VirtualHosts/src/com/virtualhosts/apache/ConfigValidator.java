@@ -0,0 +1,786 @@
+package com.virtualhosts.apache;
+
+import com.virtualhosts.Config;
+import com.virtualhosts.Operation;
+import com.virtualhosts.OsType;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * In-process validator of the virtual host sections, checked before they are written
+ * <p>
+ * Checks what apachectl configtest would reject or what would silently break other sites:
+ * syntax of the section (balanced tags, arguments of ServerName, ServerAlias, DocumentRoot and RewriteEngine),
+ * names already served by another section, DocumentRoot that is not a directory and can't be created,
+ * address and port of the &lt;VirtualHost&gt; tag and addresses that hide the sections on *:port.
+ * Sections generated from a virtual host are tokenized again and must have the directives they were generated with:
+ * the same directives as the old section (or the template) and ServerName and ServerAlias with exactly the given values,
+ * so a value with a line break or a quote can't add a directive of its own.
+ * Names and addresses of all sections are kept in memory and brought up to date file by file from the VirtualHostIndex,
+ * only the files changed since the last check are read again and only the changed sections are checked.
+ * The external configtest is run by the ReloadScheduler, once before every reload - see configtest()
+ * <pre>
+ * -Dvirtualhosts.configtest.command="apachectl configtest"   empty to never run it, httpd -t on Windows
+ * </pre>
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class ConfigValidator {
+
+    /**
+     * Sections of one file as they were added to the state
+     */
+    private static class Seen {
+        /**
+         * Tokenized file
+         */
+        final VirtualHostIndex.Parsed parsed;
+
+        /**
+         * Number of in-place writes patched into the file at the time
+         */
+        final int patches;
+
+        /**
+         * Sections of the file at the time, the parsed file is patched in place by in-place writes
+         */
+        final List<VirtualHostIndex.Entry> entries;
+
+        Seen(VirtualHostIndex.Parsed parsed) {
+            this.parsed = parsed;
+            this.patches = parsed.patches;
+            this.entries = new ArrayList<>(parsed.entries);
+        }
+
+        /**
+         * @param parsed Tokenized file as it is now
+         * @return Whether the file is the same as when it was added
+         */
+        boolean is(VirtualHostIndex.Parsed parsed) {
+            return this.parsed == parsed && patches == parsed.patches;
+        }
+    }
+
+    /**
+     * Shared validator
+     */
+    private static ConfigValidator instance;
+
+    /**
+     * Directives of the &lt;VirtualHost&gt; section set from the values of the virtual host, lower case
+     */
+    private static final Set<String> MANAGED = Set.of("servername", "serveralias", "documentroot", "rewriteengine");
+
+    /**
+     * Index the sections are read from
+     */
+    private final VirtualHostIndex index;
+
+    /**
+     * External config test and its arguments, empty when it is disabled
+     */
+    private final List<String> command;
+
+    /**
+     * Files in the state
+     */
+    private final Map<File, Seen> files = new HashMap<>();
+
+    /**
+     * Lower case ServerName and ServerAlias to the sections that serve it
+     */
+    private final Map<String, List<VirtualHostIndex.Entry>> names = new HashMap<>();
+
+    /**
+     * Port to the canonical addresses of the sections on it and their number
+     */
+    private final Map<Integer, Map<String, Integer>> ports = new HashMap<>();
+
+    /**
+     * Number of sections added to the state
+     */
+    private long synced;
+
+    /**
+     * Number of sections checked
+     */
+    private long checked;
+
+    /**
+     * Number of external config tests run
+     */
+    private long configtests;
+
+    /**
+     * Primary constructor
+     *
+     * @param index   Index the sections are read from
+     * @param command External config test and its arguments, empty to never run it
+     */
+    public ConfigValidator(VirtualHostIndex index, List<String> command) {
+        this.index = index;
+        this.command = Collections.unmodifiableList(new ArrayList<>(command));
+    }
+
+    /**
+     * Returns the validator of the shared index, a new one is created when the index changes
+     *
+     * @return Shared validator
+     */
+    public static synchronized ConfigValidator getInstance() {
+        VirtualHostIndex index = VirtualHostIndex.getInstance();
+        if (instance == null || instance.index != index) {
+            String command = System.getProperty("virtualhosts.configtest.command",
+                    Config.getOs() == OsType.Windows ? "httpd -t" : "apachectl configtest");
+            instance = new ConfigValidator(index, ApacheConfigTokenizer.split(command));
+        }
+        return instance;
+    }
+
+    /**
+     * Checks the sections that are about to be written
+     * Sections are checked as they will be in the files, against all other sections of the config and each other
+     *
+     * @param changes Changes per file, with the current ranges
+     * @return List of errors, empty if the changes can be written
+     * @throws IOException If some of the config files couldn't be read
+     */
+    synchronized List<String> check(Map<File, List<ConfigEditor.Edit>> changes) throws IOException {
+        sync();
+        List<String> errors = new ArrayList<>();
+        //Sections that are replaced or removed don't hold their names anymore
+        Set<String> replaced = new HashSet<>();
+        for (var file : changes.entrySet()) {
+            for (ConfigEditor.Edit edit : file.getValue()) {
+                if (edit.start >= 0) replaced.add(key(file.getKey(), edit.start));
+            }
+        }
+        Map<String, String> claimed = new HashMap<>();
+        for (var file : changes.entrySet()) {
+            for (ConfigEditor.Edit edit : file.getValue()) {
+                byte[] section;
+                //Section the new one is generated from, null when it is appended as it is
+                byte[] source = null;
+                if (edit.start < 0) {
+                    section = edit.text().getBytes(StandardCharsets.UTF_8);
+                    if (edit.text == null) {
+                        source = VirtualHostTemplate.getInstance().render(probe(edit.updated)).getBytes(StandardCharsets.UTF_8);
+                    }
+                } else if (edit.updated != null) {
+                    source = read(file.getKey(), edit.start, edit.end);
+                    section = edit.updated.rewrite(source, edit.old).getBytes(StandardCharsets.UTF_8);
+                } else {
+                    continue;
+                }
+                checked++;
+                boolean moved = edit.old == null || !edit.old.getAddress().equals(edit.updated.getAddress());
+                check(file.getKey(), section, source, edit.updated, edit.old == null ? Collections.emptySet() : names(edit.old),
+                        moved, replaced, claimed, errors);
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Runs the external config test, once for all changes reloaded together
+     *
+     * @throws IOException          If the config test couldn't be started or the config is not valid
+     * @throws InterruptedException If the caller is interrupted
+     */
+    public void configtest() throws IOException, InterruptedException {
+        if (command.isEmpty()) return;
+        synchronized (this) {
+            configtests++;
+        }
+        ReloadScheduler.run(command);
+    }
+
+    /**
+     * Brings the state up to date with the index
+     * Only the changed files are compared and only their new and removed sections are added and removed,
+     * a file patched in place keeps all other sections as they are.
+     * Both lists are sorted by offset and the kept sections are the same objects, so they are walked side by side
+     *
+     * @throws IOException If some of the config files couldn't be read
+     */
+    private void sync() throws IOException {
+        Map<File, VirtualHostIndex.Parsed> current = index.files();
+        Iterator<Map.Entry<File, Seen>> iterator = files.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var seen = iterator.next();
+            if (!current.containsKey(seen.getKey())) {
+                for (VirtualHostIndex.Entry entry : seen.getValue().entries) {
+                    unregister(entry);
+                }
+                iterator.remove();
+            }
+        }
+        for (var file : current.entrySet()) {
+            Seen seen = files.get(file.getKey());
+            if (seen != null && seen.is(file.getValue())) continue;
+            List<VirtualHostIndex.Entry> before = seen == null ? Collections.emptyList() : seen.entries;
+            List<VirtualHostIndex.Entry> after = file.getValue().entries;
+            int i = 0;
+            int j = 0;
+            while (i < before.size() || j < after.size()) {
+                VirtualHostIndex.Entry old = i < before.size() ? before.get(i) : null;
+                VirtualHostIndex.Entry now = j < after.size() ? after.get(j) : null;
+                if (old == now) {
+                    i++;
+                    j++;
+                    continue;
+                }
+                //Section out of order is removed and added again, which leaves the state right as well
+                if (now == null || (old != null && old.getStart() <= now.getStart())) {
+                    unregister(old);
+                    i++;
+                }
+                if (old == null || (now != null && now.getStart() <= old.getStart())) {
+                    register(now);
+                    synced++;
+                    j++;
+                }
+            }
+            files.put(file.getKey(), new Seen(file.getValue()));
+        }
+    }
+
+    /**
+     * Adds the names and the address of the section to the state
+     *
+     * @param entry Section
+     */
+    private void register(VirtualHostIndex.Entry entry) {
+        for (String name : names(entry)) {
+            names.computeIfAbsent(name, n -> new ArrayList<>(1)).add(entry);
+        }
+        ports.computeIfAbsent(entry.getPort(), p -> new HashMap<>()).merge(canonical(entry.getAddress()), 1, Integer::sum);
+    }
+
+    /**
+     * Removes the names and the address of the section from the state
+     *
+     * @param entry Section
+     */
+    private void unregister(VirtualHostIndex.Entry entry) {
+        for (String name : names(entry)) {
+            List<VirtualHostIndex.Entry> list = names.get(name);
+            if (list == null) continue;
+            list.remove(entry);
+            if (list.isEmpty()) names.remove(name);
+        }
+        Map<String, Integer> addresses = ports.get(entry.getPort());
+        if (addresses == null) return;
+        addresses.computeIfPresent(canonical(entry.getAddress()), (a, count) -> count == 1 ? null : count - 1);
+        if (addresses.isEmpty()) ports.remove(entry.getPort());
+    }
+
+    /**
+     * Checks one section
+     *
+     * @param file     Config file the section is written to
+     * @param section  Section as it will be written
+     * @param source   Old section of the update or the template rendered with harmless values, null if not generated
+     * @param expected Virtual host the section is generated from, null if not generated
+     * @param kept     Names the section already had, duplicates of them are not new
+     * @param moved    Whether the section is new or its address changes
+     * @param replaced Sections replaced or removed by the changes
+     * @param claimed  Names of the sections checked before, to the section that has them
+     * @param errors   Output
+     * @throws IOException Never, section is already in memory
+     */
+    private void check(File file, byte[] section, byte[] source, VirtualHost expected, Set<String> kept, boolean moved,
+                       Set<String> replaced, Map<String, String> claimed, List<String> errors) throws IOException {
+        VirtualHostIndex.Parsed parsed = new VirtualHostIndex.Parsed();
+        VirtualHostIndex.parse(new ApacheConfigTokenizer(new ByteArrayInputStream(section), section.length + 1), file, 0, parsed);
+        String label = parsed.entries.size() == 1 && parsed.entries.get(0).getServerName() != null
+                ? "Virtual host " + parsed.entries.get(0).getServerName() : "Virtual host in " + file;
+        List<String> problems = new ArrayList<>();
+        syntax(section, problems);
+        if (parsed.entries.size() != 1) {
+            if (problems.isEmpty()) problems.add("section must have exactly one <VirtualHost>");
+            addAll(errors, label, problems);
+            return;
+        }
+        VirtualHostIndex.Entry entry = parsed.entries.get(0);
+        if (entry.getServerName() == null) {
+            problems.add("ServerName is missing");
+        }
+        if (expected != null) {
+            generated(section, source, expected, entry, problems);
+        }
+        for (String name : names(entry)) {
+            if (!validName(name, !name.equals(lower(entry.getServerName())))) {
+                problems.add(name + " is not a valid domain");
+                continue;
+            }
+            for (VirtualHostIndex.Entry other : kept.contains(name) ? Collections.<VirtualHostIndex.Entry>emptyList()
+                    : names.getOrDefault(name, Collections.emptyList())) {
+                if (replaced.contains(key(other.getFile(), other.getStart()))) continue;
+                problems.add(name + " is already served by " + other.getFile() + ":" + other.getLine());
+                break;
+            }
+            String previous = claimed.putIfAbsent(name, label);
+            if (previous != null) {
+                problems.add(name + " is also used by " + previous + " in the same change");
+            }
+        }
+        documentRoot(entry.getDocumentRoot(), problems);
+        if (moved) shadowed(entry, label);
+        addAll(errors, label, problems);
+    }
+
+    /**
+     * Checks that the section tokenizes into the directives it has been generated with
+     * Other directives and sections must be the same as in the source, ServerName, DocumentRoot and RewriteEngine
+     * can be there once and ServerName and ServerAlias must have exactly the values of the virtual host
+     *
+     * @param section  Section as it will be written
+     * @param source   Old section of the update, or the template rendered with harmless values
+     * @param expected Virtual host the section is generated from
+     * @param entry    Section as it has been parsed
+     * @param problems Output
+     * @throws IOException Never, sections are already in memory
+     */
+    private static void generated(byte[] section, byte[] source, VirtualHost expected, VirtualHostIndex.Entry entry,
+                                  List<String> problems) throws IOException {
+        boolean plain = plain(expected.getServerName(), false);
+        if (!plain) {
+            problems.add("ServerName can't contain whitespace or line breaks");
+        }
+        if (expected.getAlias() != null && !plain(expected.getAlias(), true)) {
+            problems.add("ServerAlias can't contain line breaks or whitespace other than spaces");
+            plain = false;
+        }
+        if (!plain) return;
+        Map<String, Integer> managed = new HashMap<>();
+        List<String> written = structure(section, managed);
+        boolean same = written.equals(structure(source, new HashMap<>()))
+                && managed.getOrDefault("servername", 0) == 1
+                && managed.getOrDefault("documentroot", 0) <= 1
+                && managed.getOrDefault("rewriteengine", 0) <= 1
+                && expected.getServerName().equalsIgnoreCase(entry.getServerName());
+        if (same && expected.getAlias() != null) {
+            Set<String> aliases = new HashSet<>();
+            for (String alias : expected.getAlias().split(" ")) {
+                if (!alias.isEmpty()) aliases.add(lower(alias));
+            }
+            Set<String> found = new HashSet<>();
+            for (String alias : entry.getAliases()) {
+                found.add(lower(alias));
+            }
+            same = aliases.equals(found);
+        }
+        if (!same) {
+            problems.add("directives of the section are not the ones it has been generated with");
+        }
+    }
+
+    /**
+     * @param value  Value of the directive
+     * @param spaces Whether spaces separate several values, as in ServerAlias
+     * @return Whether the value has no whitespace (other than spaces if allowed) and no control characters
+     */
+    private static boolean plain(String value, boolean spaces) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isISOControl(c) || (Character.isWhitespace(c) && !(spaces && c == ' '))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Directives and tags of the section in their order, the directives set from the values are only counted
+     *
+     * @param section Section
+     * @param managed Output, number of ServerName, ServerAlias, DocumentRoot and RewriteEngine directives of the section
+     * @return Lower case names of the other directives, tags as &lt;name and &lt;/name
+     * @throws IOException Never, section is already in memory
+     */
+    private static List<String> structure(byte[] section, Map<String, Integer> managed) throws IOException {
+        List<String> structure = new ArrayList<>();
+        int depth = 0;
+        try (ApacheConfigTokenizer tokenizer = new ApacheConfigTokenizer(new ByteArrayInputStream(section), section.length + 1)) {
+            ApacheConfigTokenizer.Token token;
+            while ((token = tokenizer.next()) != null) {
+                String name = token.getName().toLowerCase(Locale.ROOT);
+                switch (token.getKind()) {
+                    case SECTION_START:
+                        depth++;
+                        structure.add("<" + name);
+                        break;
+                    case SECTION_END:
+                        depth--;
+                        structure.add("</" + name);
+                        break;
+                    case DIRECTIVE:
+                        if (depth == 1 && MANAGED.contains(name)) {
+                            managed.merge(name, 1, Integer::sum);
+                        } else {
+                            structure.add(name);
+                        }
+                        break;
+                }
+            }
+        }
+        return structure;
+    }
+
+    /**
+     * Copy of the virtual host with harmless values, rendered as the source of the appended section
+     * Values that are set stay set, so the template renders the same optional parts
+     *
+     * @param virtualHost Virtual host
+     * @return Copy
+     */
+    private static VirtualHost probe(VirtualHost virtualHost) {
+        String alias = virtualHost.getAlias();
+        return new VirtualHost("probe.invalid", virtualHost.getAddress(),
+                virtualHost.getPublicFolder() == null ? null : "probe", "/probe",
+                alias == null ? null : alias.trim().isEmpty() ? "" : "probe.invalid", virtualHost.getRewriteEngine());
+    }
+
+    /**
+     * Checks the tags and the arguments of the directives
+     *
+     * @param section  Section as it will be written
+     * @param problems Output
+     * @throws IOException Never, section is already in memory
+     */
+    private static void syntax(byte[] section, List<String> problems) throws IOException {
+        Deque<String> open = new ArrayDeque<>();
+        try (ApacheConfigTokenizer tokenizer = new ApacheConfigTokenizer(new ByteArrayInputStream(section), section.length + 1)) {
+            ApacheConfigTokenizer.Token token;
+            while ((token = tokenizer.next()) != null) {
+                String where = " on line " + token.getLine();
+                switch (token.getKind()) {
+                    case SECTION_START:
+                    case SECTION_END:
+                        String text = new String(section, (int) token.getStart(), (int) (token.getEnd() - token.getStart()), StandardCharsets.UTF_8).trim();
+                        if (!text.endsWith(">")) {
+                            problems.add("tag is not closed with >" + where);
+                        }
+                        if (token.getKind() == ApacheConfigTokenizer.Kind.SECTION_END) {
+                            if (open.isEmpty()) {
+                                problems.add("</" + token.getName() + "> without matching <" + token.getName() + ">" + where);
+                            } else if (!open.peek().equalsIgnoreCase(token.getName())) {
+                                problems.add("expected </" + open.peek() + "> but saw </" + token.getName() + ">" + where);
+                                //Sections left open inside the closed one are already reported
+                                String closed;
+                                do {
+                                    closed = open.pop();
+                                } while (!closed.equalsIgnoreCase(token.getName()) && !open.isEmpty());
+                            } else {
+                                open.pop();
+                            }
+                            break;
+                        }
+                        if (token.is("VirtualHost")) {
+                            if (!open.isEmpty()) problems.add("<VirtualHost> is nested" + where);
+                            if (token.getArgs().isEmpty()) problems.add("<VirtualHost> has no address" + where);
+                            for (String listen : token.getArgs()) {
+                                if (!validListen(listen)) problems.add(listen + " is not a valid address and port" + where);
+                            }
+                        }
+                        open.push(token.getName());
+                        break;
+                    case DIRECTIVE:
+                        if (open.isEmpty()) {
+                            problems.add(token.getName() + " is outside of <VirtualHost>" + where);
+                        } else if (open.size() == 1) {
+                            directive(token, where, problems);
+                        }
+                        break;
+                }
+            }
+        }
+        for (String name : open) {
+            problems.add("<" + name + "> is not closed");
+        }
+    }
+
+    /**
+     * Checks the arguments of the directive of the &lt;VirtualHost&gt; section
+     *
+     * @param token    Directive
+     * @param where    Line of the directive, for the message
+     * @param problems Output
+     */
+    private static void directive(ApacheConfigTokenizer.Token token, String where, List<String> problems) {
+        int args = token.getArgs().size();
+        if (token.is("ServerName") || token.is("DocumentRoot")) {
+            if (args != 1) problems.add(token.getName() + " takes one argument, " + args + " given" + where);
+        } else if (token.is("ServerAlias")) {
+            if (args == 0) problems.add("ServerAlias takes at least one argument" + where);
+        } else if (token.is("RewriteEngine")) {
+            if (args != 1 || !(token.getArg().equalsIgnoreCase("on") || token.getArg().equalsIgnoreCase("off"))) {
+                problems.add("RewriteEngine must be on or off" + where);
+            }
+        }
+    }
+
+    /**
+     * Checks that the DocumentRoot is a directory or it can be created
+     * Relative paths are resolved by Apache against its ServerRoot, they are not checked
+     *
+     * @param documentRoot Document root, null if the section uses the one of the server
+     * @param problems     Output
+     */
+    private static void documentRoot(String documentRoot, List<String> problems) {
+        if (documentRoot == null) return;
+        File root = new File(documentRoot);
+        if (!root.isAbsolute()) return;
+        if (root.exists()) {
+            if (!root.isDirectory()) problems.add("DocumentRoot " + documentRoot + " is not a directory");
+            return;
+        }
+        //Missing directory is created after the section is written
+        File parent = root.getParentFile();
+        while (parent != null && !parent.exists()) {
+            parent = parent.getParentFile();
+        }
+        if (parent == null || !parent.isDirectory()) {
+            problems.add("DocumentRoot " + documentRoot + " can't be created");
+        }
+    }
+
+    /**
+     * Warns when the address of the section hides other sections on the same port
+     * Apache picks the sections with the most specific address first, so a section on 127.0.0.1:80
+     * makes the sections on *:80 unreachable through 127.0.0.1. The config is still valid, so it is not an error
+     *
+     * @param entry Section
+     * @param label Section, for the message
+     */
+    private void shadowed(VirtualHostIndex.Entry entry, String label) {
+        Map<String, Integer> addresses = ports.get(entry.getPort());
+        if (addresses == null) return;
+        String address = canonical(entry.getAddress());
+        int port = entry.getPort();
+        if (wildcard(address)) {
+            for (String other : addresses.keySet()) {
+                if (!wildcard(other)) {
+                    System.out.println("Warning: " + label + " on *:" + port + " is not served through " + other + ":" + port
+                            + ", other sections are bound to it");
+                    return;
+                }
+            }
+        } else if (!addresses.containsKey(address) && addresses.containsKey("*")) {
+            System.out.println("Warning: " + label + " on " + address + ":" + port
+                    + " makes the sections on *:" + port + " unreachable through " + address);
+        }
+    }
+
+    /**
+     * Checks the address and port of the &lt;VirtualHost&gt; tag - eg. *:80, 127.0.0.1:8080, [::1]:80 or _default_
+     *
+     * @param listen Argument of the tag
+     * @return Whether Apache accepts it
+     */
+    private static boolean validListen(String listen) {
+        String host = listen;
+        String port = null;
+        if (listen.startsWith("[")) {
+            int close = listen.indexOf(']');
+            if (close < 0) return false;
+            host = listen.substring(1, close);
+            if (close + 1 < listen.length()) {
+                if (listen.charAt(close + 1) != ':') return false;
+                port = listen.substring(close + 2);
+            }
+            if (!validAddress(host)) return false;
+        } else {
+            int colon = listen.lastIndexOf(':');
+            if (colon >= 0 && listen.indexOf(':') == colon) {
+                host = listen.substring(0, colon);
+                port = listen.substring(colon + 1);
+            }
+            if (!host.equals("*") && !host.equalsIgnoreCase("_default_") && !validAddress(host) && !validName(host, false)) {
+                return false;
+            }
+        }
+        if (port == null || port.equals("*")) return true;
+        try {
+            int number = Integer.parseInt(port);
+            return number > 0 && number < 65536;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param address Address
+     * @return Whether it is IPv4 or IPv6 address
+     */
+    private static boolean validAddress(String address) {
+        try {
+            Operation.parseAddress(address);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks the domain - labels of letters, digits, - and _ separated by dots
+     *
+     * @param name     Lower case domain
+     * @param wildcard Whether * and ? are allowed, as in ServerAlias
+     * @return Whether the domain is valid
+     */
+    private static boolean validName(String name, boolean wildcard) {
+        if (name.isEmpty() || name.length() > 253) return false;
+        int label = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '.') {
+                if (label == 0) return false;
+                label = 0;
+                continue;
+            }
+            boolean allowed = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || (c == '-' && label > 0) || (wildcard && (c == '*' || c == '?'));
+            if (!allowed || ++label > 63) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Lower case ServerName and ServerAlias of the section
+     *
+     * @param entry Section
+     * @return Names, each once
+     */
+    private static Set<String> names(VirtualHostIndex.Entry entry) {
+        Set<String> set = new LinkedHashSet<>();
+        if (entry.getServerName() != null) set.add(lower(entry.getServerName()));
+        for (String alias : entry.getAliases()) {
+            set.add(lower(alias));
+        }
+        return set;
+    }
+
+    /**
+     * Lower case ServerName and ServerAlias of the virtual host
+     *
+     * @param virtualHost Virtual host
+     * @return Names, each once
+     */
+    private static Set<String> names(VirtualHost virtualHost) {
+        Set<String> set = new HashSet<>();
+        set.add(lower(virtualHost.getServerName()));
+        if (virtualHost.getAlias() != null) {
+            for (String alias : ApacheConfigTokenizer.split(virtualHost.getAlias())) {
+                set.add(lower(alias));
+            }
+        }
+        return set;
+    }
+
+    /**
+     * @param name Name, can be null
+     * @return Lower case name
+     */
+    private static String lower(String name) {
+        return name == null ? null : name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Canonical form of the address, so 127.0.0.1 and 127.000.000.001 are the same
+     *
+     * @param address Address from the tag
+     * @return Canonical address, * for all wildcards
+     */
+    private static String canonical(String address) {
+        if (address == null || address.equals("*") || address.equalsIgnoreCase("_default_")) return "*";
+        try {
+            return Operation.parseAddress(address).getHostAddress();
+        } catch (Exception e) {
+            return address.toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * @param address Canonical address
+     * @return Whether the address matches all interfaces
+     */
+    private static boolean wildcard(String address) {
+        return address.equals("*");
+    }
+
+    /**
+     * Key of the section
+     *
+     * @param file  Config file
+     * @param start Offset of the section
+     * @return Key
+     */
+    private static String key(File file, long start) {
+        return file.getAbsolutePath() + "#" + start;
+    }
+
+    /**
+     * Reads the section from the config file
+     *
+     * @param file  Config file
+     * @param start Offset of the section
+     * @param end   Offset after the section
+     * @return Bytes of the section
+     * @throws IOException If the file couldn't be read
+     */
+    private static byte[] read(File file, long start, long end) throws IOException {
+        byte[] section = new byte[(int) (end - start)];
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.seek(start);
+            input.readFully(section);
+        }
+        return section;
+    }
+
+    /**
+     * Adds the problems of the section to the errors
+     *
+     * @param errors   Output
+     * @param label    Section
+     * @param problems Problems of the section
+     */
+    private static void addAll(List<String> errors, String label, List<String> problems) {
+        for (String problem : problems) {
+            errors.add(label + ": " + problem);
+        }
+    }
+
+    /**
+     * @return External config test and its arguments, empty when it is disabled
+     */
+    public List<String> getCommand() {
+        return command;
+    }
+
+    /**
+     * @return Number of sections added to the state, a section is added again only when it changes
+     */
+    public synchronized long getSynced() {
+        return synced;
+    }
+
+    /**
+     * @return Number of sections checked
+     */
+    public synchronized long getChecked() {
+        return checked;
+    }
+
+    /**
+     * @return Number of external config tests run
+     */
+    public synchronized long getConfigtests() {
+        return configtests;
+    }
+}
@@ -0,0 +1,479 @@
+package com.virtualhosts.apache;
+
+import com.virtualhosts.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Creates the document roots of new virtual hosts and seeds them from a skeleton directory
+ * <p>
+ * The skeleton (-Dvirtualhosts.skeleton) is listed once per run. Every document root is built in a hidden directory
+ * next to it and renamed into place, so a half-seeded root is never left behind and the next run tries it again.
+ * Files are copied with FileChannel.transferTo, which stays inside the kernel, or hard linked to the skeleton with
+ * -Dvirtualhosts.skeleton.link=true (copied again when the link fails, eg. across file systems).
+ * Owner (-Dvirtualhosts.documentroot.owner=user[:group]) and permissions (-Dvirtualhosts.documentroot.mode and
+ * -Dvirtualhosts.documentroot.file-mode, octal or rwxr-x---) are set while the root is built. A hard link shares the owner
+ * and permissions of the skeleton file, so with an owner or a file mode the files are copied instead and a warning is printed.
+ * Document roots are built in parallel on -Dvirtualhosts.provision.threads workers, the number of cores by default
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class DocumentRootProvisioner {
+
+    /**
+     * Statistics of one run
+     */
+    public static class Stats {
+        /**
+         * Number of document roots created
+         */
+        private final long created;
+
+        /**
+         * Number of document roots that already existed
+         */
+        private final long existing;
+
+        /**
+         * Number of document roots that couldn't be created
+         */
+        private final long failed;
+
+        /**
+         * Number of files copied or linked from the skeleton
+         */
+        private final long files;
+
+        /**
+         * Number of bytes copied, linked files are not counted
+         */
+        private final long bytes;
+
+        /**
+         * Duration in nanoseconds
+         */
+        private final long nanos;
+
+        Stats(long created, long existing, long failed, long files, long bytes, long nanos) {
+            this.created = created;
+            this.existing = existing;
+            this.failed = failed;
+            this.files = files;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return Number of document roots created
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * @return Number of document roots that already existed
+         */
+        public long getExisting() {
+            return existing;
+        }
+
+        /**
+         * @return Number of document roots that couldn't be created
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return Number of files copied or linked
+         */
+        public long getFiles() {
+            return files;
+        }
+
+        /**
+         * @return Number of bytes copied
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return Duration in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return Document roots created per second
+         */
+        public double sitesPerSecond() {
+            return nanos == 0 ? 0 : created * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d created, %d existing, %d failed, %d files (%.1f MB) in %.1f ms - %.0f sites/s",
+                    created, existing, failed, files, bytes / (1024.0 * 1024), nanos / 1e6, sitesPerSecond());
+        }
+    }
+
+    /**
+     * Shared provisioner
+     */
+    private static DocumentRootProvisioner instance;
+
+    /**
+     * Skeleton directory, null when the document roots are created empty
+     */
+    private final Path skeleton;
+
+    /**
+     * Directories of the skeleton relative to it, parents before children
+     */
+    private final List<Path> directories = new ArrayList<>();
+
+    /**
+     * Files of the skeleton relative to it
+     */
+    private final List<Path> files = new ArrayList<>();
+
+    /**
+     * Permissions of the files of the skeleton, in the order of the files, null where they are not POSIX
+     */
+    private final List<Set<PosixFilePermission>> modes = new ArrayList<>();
+
+    /**
+     * Symbolic links of the skeleton relative to it, created as they are
+     */
+    private final List<Path> links = new ArrayList<>();
+
+    /**
+     * Whether the files are hard linked to the skeleton, turned off by the first worker whose link fails
+     */
+    private final AtomicBoolean link;
+
+    /**
+     * Owner of the created files, null to keep the one of the process
+     */
+    private final UserPrincipal owner;
+
+    /**
+     * Group of the created files, null to keep the default one
+     */
+    private final GroupPrincipal group;
+
+    /**
+     * Permissions of the created directories, null to keep the umask
+     */
+    private final Set<PosixFilePermission> directoryMode;
+
+    /**
+     * Permissions of the copied files, null to copy the ones of the skeleton
+     */
+    private final Set<PosixFilePermission> fileMode;
+
+    /**
+     * Workers
+     */
+    private final ConfigScanner workers;
+
+    /**
+     * Primary constructor
+     *
+     * @param skeleton      Skeleton directory, null for empty document roots
+     * @param link          Whether the files are hard linked instead of copied, they are copied with an owner or a file mode
+     * @param owner         user or user:group, null to keep the owner of the process
+     * @param directoryMode Permissions of the directories (750 or rwxr-x---), null to keep the umask
+     * @param fileMode      Permissions of the files, null to keep the ones of the skeleton
+     * @param parallelism   Maximum number of document roots built at the same time
+     * @throws IOException If the skeleton couldn't be listed or the owner doesn't exist
+     */
+    public DocumentRootProvisioner(String skeleton, boolean link, String owner, String directoryMode, String fileMode, int parallelism) throws IOException {
+        this.skeleton = skeleton == null || skeleton.isEmpty() ? null : Paths.get(skeleton).toAbsolutePath();
+        this.directoryMode = mode(directoryMode);
+        this.fileMode = mode(fileMode);
+        this.workers = new ConfigScanner(parallelism);
+        if (owner == null || owner.isEmpty()) {
+            this.owner = null;
+            this.group = null;
+        } else {
+            UserPrincipalLookupService lookup = FileSystems.getDefault().getUserPrincipalLookupService();
+            int colon = owner.indexOf(':');
+            String user = colon < 0 ? owner : owner.substring(0, colon);
+            this.owner = user.isEmpty() ? null : lookup.lookupPrincipalByName(user);
+            this.group = colon < 0 ? null : lookup.lookupPrincipalByGroupName(owner.substring(colon + 1));
+        }
+        //Directories are always created, only the files would silently keep the owner and permissions of the skeleton
+        if (link && this.skeleton != null && (this.owner != null || this.group != null || this.fileMode != null)) {
+            System.out.println("Skeleton files are copied, not linked: hard links can't have their own owner or file mode");
+            link = false;
+        }
+        this.link = new AtomicBoolean(link);
+        if (this.skeleton != null) list();
+    }
+
+    /**
+     * Returns the shared provisioner
+     * Configured by the system properties once, a broken configuration is reported and empty document roots are created
+     *
+     * @return Provisioner
+     */
+    public static synchronized DocumentRootProvisioner getInstance() {
+        if (instance == null) {
+            int parallelism = Integer.getInteger("virtualhosts.provision.threads", Runtime.getRuntime().availableProcessors());
+            try {
+                instance = new DocumentRootProvisioner(System.getProperty("virtualhosts.skeleton"),
+                        Boolean.getBoolean("virtualhosts.skeleton.link"),
+                        System.getProperty("virtualhosts.documentroot.owner"),
+                        System.getProperty("virtualhosts.documentroot.mode"),
+                        System.getProperty("virtualhosts.documentroot.file-mode"), parallelism);
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Document roots are created empty: " + e.getMessage());
+                try {
+                    instance = new DocumentRootProvisioner(null, false, null, null, null, parallelism);
+                } catch (IOException impossible) {
+                    throw new IllegalStateException(impossible);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Parses the permissions
+     *
+     * @param mode Octal (750) or symbolic (rwxr-x---) permissions, null or empty for none
+     * @return Permissions or null
+     */
+    private static Set<PosixFilePermission> mode(String mode) {
+        if (mode == null || mode.isEmpty()) return null;
+        if (mode.length() == 9) return PosixFilePermissions.fromString(mode);
+        int bits = Integer.parseInt(mode, 8);
+        StringBuilder symbolic = new StringBuilder(9);
+        for (int shift = 6; shift >= 0; shift -= 3) {
+            symbolic.append((bits >> shift & 4) != 0 ? 'r' : '-')
+                    .append((bits >> shift & 2) != 0 ? 'w' : '-')
+                    .append((bits >> shift & 1) != 0 ? 'x' : '-');
+        }
+        return PosixFilePermissions.fromString(symbolic.toString());
+    }
+
+    /**
+     * Lists the skeleton once
+     *
+     * @throws IOException If the skeleton is not a directory or couldn't be read
+     */
+    private void list() throws IOException {
+        if (!Files.isDirectory(skeleton)) {
+            throw new NotDirectoryException(skeleton.toString());
+        }
+        Files.walkFileTree(skeleton, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(skeleton)) directories.add(skeleton.relativize(dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isSymbolicLink()) {
+                    links.add(skeleton.relativize(file));
+                } else if (attrs.isRegularFile()) {
+                    files.add(skeleton.relativize(file));
+                    modes.add(Files.getFileAttributeView(file, PosixFileAttributeView.class) == null ? null : Files.getPosixFilePermissions(file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Creates the document roots that don't exist yet, in parallel
+     * Failures are reported per document root and don't stop the others
+     *
+     * @param roots Document roots
+     * @return Statistics
+     */
+    public Stats provision(List<File> roots) {
+        long start = Metrics.start();
+        LongAdder created = new LongAdder(), existing = new LongAdder(), failed = new LongAdder();
+        LongAdder copied = new LongAdder(), bytes = new LongAdder();
+        try {
+            workers.map(roots, root -> {
+                if (root.isDirectory()) {
+                    existing.increment();
+                    return null;
+                }
+                try {
+                    build(root.toPath().toAbsolutePath(), copied, bytes);
+                    created.increment();
+                } catch (IOException | UnsupportedOperationException e) {
+                    if (root.isDirectory()) {
+                        //Created by another run or listed twice
+                        existing.increment();
+                    } else {
+                        failed.increment();
+                        System.out.println("Error accured while creating directory " + root + ": " + e.getMessage());
+                    }
+                }
+                return null;
+            });
+        } catch (IOException impossible) {
+            //Every failure is handled per document root
+        }
+        Metrics.record(Metrics.Phase.DIRECTORY, start, bytes.sum(), created.sum());
+        return new Stats(created.sum(), existing.sum(), failed.sum(), copied.sum(), bytes.sum(), System.nanoTime() - start);
+    }
+
+    /**
+     * Creates one document root
+     *
+     * @param root Document root
+     * @return Whether the document root has been created, false if it already existed or couldn't be created
+     */
+    public boolean provision(File root) {
+        return provision(Collections.singletonList(root)).getCreated() == 1;
+    }
+
+    /**
+     * Builds the document root next to it and renames it into place
+     *
+     * @param root   Document root
+     * @param copied Counter of the files
+     * @param bytes  Counter of the bytes
+     * @throws IOException If the document root couldn't be built, nothing is left behind
+     */
+    private void build(Path root, LongAdder copied, LongAdder bytes) throws IOException {
+        Path parent = root.getParent();
+        Files.createDirectories(parent);
+        Path temporary = parent.resolve("." + root.getFileName() + ".provisioning");
+        delete(temporary);
+        try {
+            directory(temporary);
+            for (Path directory : directories) {
+                directory(temporary.resolve(directory.toString()));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                Path file = files.get(i);
+                bytes.add(seed(skeleton.resolve(file), temporary.resolve(file.toString()), fileMode != null ? fileMode : modes.get(i)));
+                copied.increment();
+            }
+            for (Path symlink : links) {
+                Files.createSymbolicLink(temporary.resolve(symlink.toString()), Files.readSymbolicLink(skeleton.resolve(symlink)));
+            }
+            try {
+                Files.move(temporary, root, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, root);
+            }
+        } catch (IOException | RuntimeException e) {
+            delete(temporary);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates the directory with the owner and permissions
+     *
+     * @param directory Directory
+     * @throws IOException If the directory couldn't be created
+     */
+    private void directory(Path directory) throws IOException {
+        Files.createDirectory(directory);
+        attributes(directory, directoryMode);
+    }
+
+    /**
+     * Links or copies one file of the skeleton
+     *
+     * @param source      File of the skeleton
+     * @param target      New file
+     * @param permissions Permissions of the copy
+     * @return Number of bytes copied, 0 when linked
+     * @throws IOException If the file couldn't be copied
+     */
+    private long seed(Path source, Path target, Set<PosixFilePermission> permissions) throws IOException {
+        if (link.get()) {
+            try {
+                Files.createLink(target, source);
+                return 0;
+            } catch (IOException | UnsupportedOperationException e) {
+                //Workers race here, only the first one reports it
+                if (link.compareAndSet(true, false)) {
+                    System.out.println("Skeleton files are copied, they can't be linked: " + e.getMessage());
+                }
+            }
+        }
+        long size;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            size = in.size();
+            long position = 0;
+            //transferTo may copy less than asked, eg. 2 GB at most per call on Linux
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) break;
+                position += transferred;
+            }
+        }
+        //New file gets the umask, the permissions of the skeleton are set again unless others are configured
+        attributes(target, permissions);
+        return size;
+    }
+
+    /**
+     * Sets the owner, the group and the permissions
+     *
+     * @param path        Created file or directory
+     * @param permissions Permissions, null to keep them
+     * @throws IOException If they couldn't be set
+     */
+    private void attributes(Path path, Set<PosixFilePermission> permissions) throws IOException {
+        if (owner == null && group == null && permissions == null) return;
+        PosixFileAttributeView posix = Files.getFileAttributeView(path, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        if (posix == null) {
+            //Windows has owners but no POSIX groups and permissions
+            if (owner != null) Files.setOwner(path, owner);
+            return;
+        }
+        if (owner != null) posix.setOwner(owner);
+        if (group != null) posix.setGroup(group);
+        if (permissions != null) posix.setPermissions(permissions);
+    }
+
+    /**
+     * Deletes the leftover of a build
+     *
+     * @param path Directory
+     * @throws IOException If it couldn't be deleted
+     */
+    private static void delete(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) return;
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
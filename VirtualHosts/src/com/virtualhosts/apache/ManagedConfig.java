@@ -0,0 +1,537 @@
+package com.virtualhosts.apache;
+
+import com.virtualhosts.Config;
+import com.virtualhosts.Journal;
+import com.virtualhosts.Locks;
+import com.virtualhosts.Metrics;
+import com.virtualhosts.OsType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Segmented layout of the shared httpd-vhosts.conf on Windows
+ * <p>
+ * Every virtual host written by this tool is a managed region between two marker comments:
+ * <pre>
+ * # virtualhosts:begin
+ * &lt;VirtualHost 127.0.0.1:80&gt;
+ *     ...
+ * &lt;/VirtualHost&gt;
+ * # virtualhosts:end
+ * </pre>
+ * Byte ranges of the sections come from the VirtualHostIndex, it is the offset table of the file.
+ * New regions are appended and removed regions are tombstoned in place, with the same length and number of lines,
+ * so nothing after them moves. Tombstone is a comment with its own length in bytes - # virtualhosts:dead 120 -
+ * followed by spaces and the line breaks of the region. Updated section is written over the old one when it fits
+ * and the rest is padded with a tombstone, otherwise the old region is tombstoned and the new one appended.
+ * Dead bytes are compacted away in the background once they are over max(64 KiB, 25 % of the file),
+ * only the tombstones are removed, comments written by hand are kept whatever they look like
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class ManagedConfig {
+
+    /**
+     * Marker in front of the region
+     */
+    static final String BEGIN = "# virtualhosts:begin";
+
+    /**
+     * Marker after the region
+     */
+    static final String END = "# virtualhosts:end";
+
+    /**
+     * Start of the tombstone, followed by its length
+     */
+    static final String DEAD = "# virtualhosts:dead ";
+
+    /**
+     * Line break of httpd-vhosts.conf
+     */
+    private static final String LINE = "\r\n";
+
+    /**
+     * Part of the file that can be dead before it is compacted
+     */
+    private static final double COMPACTION_RATIO = 0.25;
+
+    /**
+     * Files with less dead bytes than this are never compacted
+     */
+    private static final long COMPACTION_MIN_BYTES = 64 * 1024;
+
+    /**
+     * Files being compacted right now
+     */
+    private static final Set<File> compacting = ConcurrentHashMap.newKeySet();
+
+    /**
+     * One positional write
+     */
+    private static class Write {
+        /**
+         * Offset in the file
+         */
+        final long position;
+
+        /**
+         * Written bytes
+         */
+        final byte[] bytes;
+
+        /**
+         * Number of bytes at the start that hold a live section, 0 for a tombstone
+         */
+        final int live;
+
+        /**
+         * Line number of the first line
+         */
+        final int line;
+
+        Write(long position, byte[] bytes, int live, int line) {
+            this.position = position;
+            this.bytes = bytes;
+            this.live = live;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Config file
+     */
+    private final File file;
+
+    /**
+     * Index of the config file
+     */
+    private final VirtualHostIndex index;
+
+    /**
+     * Primary constructor
+     *
+     * @param file  Config file
+     * @param index Index that holds the file
+     */
+    public ManagedConfig(File file, VirtualHostIndex index) {
+        this.file = file.getAbsoluteFile();
+        this.index = index;
+    }
+
+    /**
+     * Constructor overload for Config.SITESAVAILABLE
+     */
+    public ManagedConfig() {
+        this(new File(Config.SITESAVAILABLE), VirtualHostIndex.getInstance());
+    }
+
+    /**
+     * Checks if the file is edited in place
+     *
+     * @param file Config file
+     * @return Whether it is the shared httpd-vhosts.conf on Windows
+     */
+    public static boolean isManaged(File file) {
+        return Config.getOs() == OsType.Windows
+                && file.getAbsoluteFile().equals(new File(Config.SITESAVAILABLE).getAbsoluteFile());
+    }
+
+    /**
+     * Wraps the section into the markers
+     *
+     * @param section Section, as written by VirtualHost.toString()
+     * @return Region, starting with a line break so it can be appended to a file that doesn't end with one
+     */
+    static String region(String section) {
+        int from = 0;
+        int to = section.length();
+        while (from < to && (section.charAt(from) == '\r' || section.charAt(from) == '\n')) from++;
+        while (to > from && (section.charAt(to - 1) == '\r' || section.charAt(to - 1) == '\n')) to--;
+        return LINE + BEGIN + LINE + section.substring(from, to) + LINE + END;
+    }
+
+    /**
+     * Applies the changes in place
+     *
+     * @param changes Changes of this file
+     * @return False if the file has to be rewritten instead - it doesn't exist or changed since it was indexed
+     * @throws IOException If the file couldn't be written
+     */
+    boolean write(List<ConfigEditor.Edit> changes) throws IOException {
+        VirtualHostIndex.Parsed parsed;
+        synchronized (index) {
+            parsed = index.current(file);
+            if (parsed == null) return false;
+            long size = parsed.length;
+            List<Write> writes = new ArrayList<>();
+            Set<VirtualHostIndex.Entry> removed = new HashSet<>();
+            StringBuilder appended = new StringBuilder();
+            long dead = 0;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                //Everything is prepared first, so nothing is written if the file has to be rewritten instead
+                for (ConfigEditor.Edit edit : changes) {
+                    if (edit.start < 0) {
+                        appended.append(region(edit.text()));
+                        continue;
+                    }
+                    VirtualHostIndex.Entry entry = entryAt(parsed, edit.start, edit.end);
+                    if (entry == null) return false;
+                    if (!removed.add(entry)) {
+                        throw new IOException("Virtual host in " + file + " is changed twice");
+                    }
+                    byte[] section = read(channel, edit.start, (int) (edit.end - edit.start));
+                    if (edit.updated != null) {
+                        byte[] bytes = edit.updated.rewrite(section, edit.old).getBytes(StandardCharsets.UTF_8);
+                        int spare = section.length - bytes.length;
+                        if (spare >= 0 && (spare == 0 || fits(spare)) && endsWithLine(section) && endsWithLine(bytes)) {
+                            byte[] replacement = Arrays.copyOf(bytes, section.length);
+                            pad(replacement, bytes.length);
+                            writes.add(new Write(edit.start, replacement, bytes.length, entry.getLine()));
+                            dead += spare;
+                            continue;
+                        }
+                        appended.append(region(new String(bytes, StandardCharsets.UTF_8)));
+                    }
+                    long from = regionStart(channel, edit.start);
+                    long to = regionEnd(channel, edit.end, size);
+                    byte[] region = read(channel, from, (int) (to - from));
+                    if (tombstone(region)) dead += region.length;
+                    writes.add(new Write(from, region, 0, 0));
+                }
+                byte[] tail = appended.toString().getBytes(StandardCharsets.UTF_8);
+                int tailLine = tail.length == 0 ? 0 : lineAt(channel, parsed, size);
+                long start = Metrics.start();
+                long written = tail.length;
+                for (Write write : writes) {
+                    write(channel, write.position, write.bytes);
+                    written += write.bytes.length;
+                }
+                write(channel, size, tail);
+                Metrics.record(Metrics.Phase.WRITE, start, written, changes.size());
+                start = Metrics.start();
+                channel.force(false);
+                Metrics.record(Metrics.Phase.FSYNC, start, written, changes.size());
+
+                //Index is patched with the written sections only, the file is not tokenized again
+                parsed.entries.removeIf(removed::contains);
+                for (Write write : writes) {
+                    if (write.live == 0) continue;
+                    VirtualHostIndex.parse(new ApacheConfigTokenizer(new ByteArrayInputStream(write.bytes, 0, write.live),
+                            write.live + 1, write.line), file, write.position, parsed);
+                }
+                if (tail.length > 0) {
+                    for (VirtualHostIndex.Entry entry : parsed.entries) {
+                        //Last line of the file without a line break is now ended by the region
+                        if (entry.getEnd() == size) entry.setEnd(size + LINE.length());
+                    }
+                    VirtualHostIndex.parse(new ApacheConfigTokenizer(new ByteArrayInputStream(tail), tail.length + 1, tailLine),
+                            file, size, parsed);
+                }
+                parsed.dead += dead;
+            }
+            index.patched(file, parsed);
+        }
+        if (parsed.dead > Math.max(COMPACTION_MIN_BYTES, (long) (parsed.length * COMPACTION_RATIO))) {
+            schedule();
+        }
+        return true;
+    }
+
+    /**
+     * Starts the compaction in the background, unless it is already running
+     */
+    public void schedule() {
+        if (!compacting.add(file)) return;
+        //Not a daemon, the command line waits for the compaction to finish before it exits
+        Thread thread = new Thread(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.out.println("Compaction of " + file + " failed: " + e.getMessage());
+            } finally {
+                compacting.remove(file);
+            }
+        }, "virtualhosts-compaction");
+        thread.start();
+    }
+
+    /**
+     * Removes the tombstones from the file
+     * File is read without any lock, it is replaced under the lock only if nobody changed it in the meantime
+     *
+     * @return Number of bytes reclaimed, 0 if there was nothing to compact or the file changed meanwhile
+     * @throws IOException If the file couldn't be read or written
+     */
+    public long compact() throws IOException {
+        BasicFileAttributes before = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        byte[] content = Files.readAllBytes(file.toPath());
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length);
+        int position = 0;
+        boolean continued = false;
+        while (position < content.length) {
+            int end = position;
+            while (end < content.length && content[end] != '\n') end++;
+            int next = end < content.length ? end + 1 : end;
+            long dead = content[position] != '#' || continued ? 0
+                    : ApacheConfigTokenizer.tombstoneLength(new String(content, position, end - position, StandardCharsets.UTF_8));
+            if (dead > 0 && isTombstone(content, position, dead)) {
+                position += (int) dead;
+                continue;
+            }
+            out.write(content, position, next - position);
+            //Line ending with backslash continues on the next one, which is kept whatever it is
+            int last = end > position && content[end - 1] == '\r' ? end - 2 : end - 1;
+            continued = last >= position && content[last] == '\\';
+            position = next;
+        }
+        byte[] result = out.toByteArray();
+        if (result.length == content.length) return 0;
+        Locks.Handle lock = Locks.lockFiles(Collections.singletonList(file));
+        try {
+            synchronized (index) {
+                BasicFileAttributes now = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                if (now.size() != before.size() || !now.lastModifiedTime().equals(before.lastModifiedTime())) {
+                    //Changed while it was compacted, the next write schedules it again
+                    return 0;
+                }
+                Journal.writeAtomically(file, stream -> stream.write(result));
+                index.invalidate(file);
+                index.refresh();
+            }
+        } finally {
+            lock.close();
+        }
+        return content.length - result.length;
+    }
+
+    /**
+     * @return Bytes of the tombstones in the file that can be compacted
+     * @throws IOException If the file couldn't be read
+     */
+    public long getDead() throws IOException {
+        VirtualHostIndex.Parsed parsed = index.current(file);
+        return parsed == null ? 0 : parsed.dead;
+    }
+
+    /**
+     * Finds the indexed section with the range
+     *
+     * @param parsed Sections of the file
+     * @param start  Offset of the section
+     * @param end    Offset after the section
+     * @return Section or null if the file has changed since
+     */
+    private static VirtualHostIndex.Entry entryAt(VirtualHostIndex.Parsed parsed, long start, long end) {
+        for (VirtualHostIndex.Entry entry : parsed.entries) {
+            if (entry.getStart() == start && entry.getEnd() == end) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Extends the section to the begin marker in front of it
+     *
+     * @param channel File
+     * @param start   Offset of the section
+     * @return Offset of the marker line, or start if there is no marker
+     * @throws IOException If the file couldn't be read
+     */
+    private static long regionStart(FileChannel channel, long start) throws IOException {
+        long from = Math.max(0, start - 64);
+        byte[] window = read(channel, from, (int) (start - from));
+        int end = window.length;
+        if (end == 0 || window[end - 1] != '\n') return start;
+        int i = end - 1;
+        while (i > 0 && window[i - 1] != '\n') i--;
+        if (i == 0 && from > 0) return start;
+        String line = new String(window, i, end - i, StandardCharsets.UTF_8).trim();
+        return line.equals(BEGIN) ? from + i : start;
+    }
+
+    /**
+     * Extends the section to the end marker after it
+     *
+     * @param channel File
+     * @param end     Offset after the section
+     * @param size    Size of the file
+     * @return Offset after the marker line, or end if there is no marker
+     * @throws IOException If the file couldn't be read
+     */
+    private static long regionEnd(FileChannel channel, long end, long size) throws IOException {
+        byte[] window = read(channel, end, (int) Math.min(64, size - end));
+        int i = 0;
+        while (i < window.length && window[i] != '\n') i++;
+        if (i == window.length && end + i < size) return end;
+        String line = new String(window, 0, i, StandardCharsets.UTF_8).trim();
+        if (!line.equals(END)) return end;
+        return end + Math.min(i + 1, window.length);
+    }
+
+    /**
+     * Line number of the offset, counted from the last section in front of it
+     *
+     * @param channel  File
+     * @param parsed   Sections of the file
+     * @param position Offset at the start of a line
+     * @return Line number
+     * @throws IOException If the file couldn't be read
+     */
+    private static int lineAt(FileChannel channel, VirtualHostIndex.Parsed parsed, long position) throws IOException {
+        long from = 0;
+        int line = 1;
+        for (VirtualHostIndex.Entry entry : parsed.entries) {
+            if (entry.getStart() <= position && entry.getStart() >= from) {
+                from = entry.getStart();
+                line = entry.getLine();
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        while (from < position) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), position - from));
+            int read = channel.read(buffer, from);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') line++;
+            }
+            from += read;
+        }
+        return line;
+    }
+
+    /**
+     * Checks that the tombstone covers only its own spaces and line breaks and ends at the end of a line
+     *
+     * @param content  File content
+     * @param position Start of the tombstone
+     * @param length   Length declared by the tombstone
+     * @return Whether the bytes can be removed
+     */
+    private static boolean isTombstone(byte[] content, int position, long length) {
+        if (position + length > content.length) return false;
+        int end = position + (int) length;
+        if (end < content.length && content[end - 1] != '\n') return false;
+        int i = position + DEAD.length();
+        while (i < end && content[i] >= '0' && content[i] <= '9') i++;
+        for (; i < end; i++) {
+            if (content[i] != ' ' && content[i] != '\r' && content[i] != '\n') return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param length Number of bytes
+     * @return Whether a tombstone of the length has room for its marker and a line break
+     */
+    static boolean fits(int length) {
+        return DEAD.length() + Integer.toString(length).length() + 1 <= length;
+    }
+
+    /**
+     * Turns the region into a tombstone of the same length and number of lines
+     * First line is the marker with the length, padded with spaces, the line breaks of the region follow it.
+     * Region too short for the marker gets every line commented out instead, it is never compacted
+     *
+     * @param region Bytes of whole lines
+     * @return Whether the region has become a tombstone that can be compacted
+     */
+    static boolean tombstone(byte[] region) {
+        int breaks = 0;
+        for (byte b : region) {
+            if (b == '\r' || b == '\n') breaks++;
+        }
+        byte[] marker = (DEAD + region.length).getBytes(StandardCharsets.US_ASCII);
+        if (marker.length + breaks <= region.length) {
+            byte[] lineBreaks = new byte[breaks];
+            int j = 0;
+            for (byte b : region) {
+                if (b == '\r' || b == '\n') lineBreaks[j++] = b;
+            }
+            System.arraycopy(marker, 0, region, 0, marker.length);
+            Arrays.fill(region, marker.length, region.length - breaks, (byte) ' ');
+            System.arraycopy(lineBreaks, 0, region, region.length - breaks, breaks);
+            return true;
+        }
+        int i = 0;
+        while (i < region.length) {
+            int end = i;
+            while (end < region.length && region[end] != '\n') end++;
+            int content = end;
+            if (content - i >= 2 && region[content - 1] == '\r') content--;
+            if (content > i) {
+                region[i] = '#';
+                Arrays.fill(region, i + 1, content, (byte) ' ');
+            }
+            i = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Fills the end of the buffer with a tombstone line
+     *
+     * @param buffer Section followed by the space to be filled, the space must fit() the tombstone
+     * @param from   Offset of the space
+     */
+    private static void pad(byte[] buffer, int from) {
+        int length = buffer.length - from;
+        if (length == 0) return;
+        byte[] marker = (DEAD + length).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(marker, 0, buffer, from, marker.length);
+        Arrays.fill(buffer, from + marker.length, buffer.length - 1, (byte) ' ');
+        buffer[buffer.length - 1] = '\n';
+    }
+
+    /**
+     * @param bytes Content
+     * @return Whether the content ends with a line break
+     */
+    private static boolean endsWithLine(byte[] bytes) {
+        return bytes.length > 0 && bytes[bytes.length - 1] == '\n';
+    }
+
+    /**
+     * Reads the range of the file
+     *
+     * @param channel  File
+     * @param position Offset
+     * @param length   Number of bytes
+     * @return Bytes, fewer at the end of the file
+     * @throws IOException If the file couldn't be read
+     */
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) break;
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Writes the bytes at the offset
+     *
+     * @param channel  File
+     * @param position Offset
+     * @param bytes    Bytes
+     * @throws IOException If the file couldn't be written
+     */
+    private static void write(FileChannel channel, long position, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
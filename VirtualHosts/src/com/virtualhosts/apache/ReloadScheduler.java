@@ -0,0 +1,318 @@
+package com.virtualhosts.apache;
+
+import com.virtualhosts.Config;
+import com.virtualhosts.Metrics;
+import com.virtualhosts.OsType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Coalescing scheduler of the Apache reloads
+ * <p>
+ * Every change of the virtual hosts asks for a reload, but the command runs only once the changes stop coming
+ * for the debounce time, at the latest max delay after the first waiting change, or right away when max batch changes are waiting.
+ * One reload runs at a time, changes made while it runs wait for the next one.
+ * The external config test runs on the worker right before every reload, once for all the changes it reloads,
+ * so nobody who writes the config waits for it. Apache is not reloaded when the test fails and the changes of the reload
+ * are rolled back, last one first, so a broken section doesn't stay in the config.
+ * Settings are read from the system properties:
+ * <pre>
+ * -Dvirtualhosts.reload.command="apachectl graceful"   empty to never reload, httpd -k restart on Windows
+ * -Dvirtualhosts.reload.debounce=500                   milliseconds
+ * -Dvirtualhosts.reload.max-delay=5000                 milliseconds
+ * -Dvirtualhosts.reload.max-batch=100                  changes
+ * </pre>
+ * The worker is not a daemon thread and it ends when idle, so the command line waits for the pending reload before it exits
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class ReloadScheduler {
+
+    /**
+     * Undoes a change that failed the config test
+     */
+    public interface Rollback {
+        /**
+         * Restores what the change has written, unless somebody has changed it since
+         *
+         * @throws Exception If the change couldn't be undone
+         */
+        void undo() throws Exception;
+    }
+
+    /**
+     * Shared scheduler
+     */
+    private static ReloadScheduler instance;
+
+    /**
+     * Reload command and its arguments, empty when reloads are disabled
+     */
+    private final List<String> command;
+
+    /**
+     * Quiet time after the last change in nanoseconds
+     */
+    private final long debounce;
+
+    /**
+     * Longest wait after the first change in nanoseconds
+     */
+    private final long maxDelay;
+
+    /**
+     * Number of changes that are reloaded right away
+     */
+    private final int maxBatch;
+
+    /**
+     * Runs the reloads, one at a time
+     */
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Number of changes waiting for the reload
+     */
+    private int pending;
+
+    /**
+     * Time of the first waiting change
+     */
+    private long first;
+
+    /**
+     * Scheduled reload
+     */
+    private ScheduledFuture<?> scheduled;
+
+    /**
+     * Rollbacks of the waiting changes, in the order of the changes
+     */
+    private List<Rollback> rollbacks = new ArrayList<>();
+
+    /**
+     * Completed when the reload of the waiting changes is done
+     */
+    private CompletableFuture<Void> next = new CompletableFuture<>();
+
+    /**
+     * Number of reloads run
+     */
+    private volatile long reloads;
+
+    /**
+     * Number of changes reloaded
+     */
+    private volatile long changes;
+
+    /**
+     * Primary constructor
+     *
+     * @param command  Reload command and its arguments, empty to never reload
+     * @param debounce Quiet time after the last change in milliseconds
+     * @param maxDelay Longest wait after the first change in milliseconds
+     * @param maxBatch Number of changes that are reloaded right away
+     */
+    public ReloadScheduler(List<String> command, long debounce, long maxDelay, int maxBatch) {
+        this.command = Collections.unmodifiableList(new ArrayList<>(command));
+        this.debounce = TimeUnit.MILLISECONDS.toNanos(debounce);
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(debounce, maxDelay));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.executor = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "virtualhosts-reload"));
+        this.executor.setKeepAliveTime(1, TimeUnit.SECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Returns the shared scheduler, configured by the system properties
+     *
+     * @return Scheduler
+     */
+    public static synchronized ReloadScheduler getInstance() {
+        if (instance == null) {
+            String command = System.getProperty("virtualhosts.reload.command",
+                    Config.getOs() == OsType.Windows ? "httpd -k restart" : "apachectl graceful");
+            instance = new ReloadScheduler(ApacheConfigTokenizer.split(command),
+                    Long.getLong("virtualhosts.reload.debounce", 500),
+                    Long.getLong("virtualhosts.reload.max-delay", 5000),
+                    Integer.getInteger("virtualhosts.reload.max-batch", 100));
+        }
+        return instance;
+    }
+
+    /**
+     * Asks for the reload after the virtual hosts have changed
+     *
+     * @param count Number of changed virtual hosts
+     * @return Completed when the reload that includes these changes is done
+     */
+    public CompletableFuture<Void> changed(int count) {
+        return changed(count, null);
+    }
+
+    /**
+     * Asks for the reload after the virtual hosts have changed
+     *
+     * @param count    Number of changed virtual hosts
+     * @param rollback Undoes the change when the config test fails, can be null
+     * @return Completed when the reload that includes these changes is done,
+     * exceptionally when the config test has failed and the changes have been rolled back
+     */
+    public synchronized CompletableFuture<Void> changed(int count, Rollback rollback) {
+        if (count <= 0 || (command.isEmpty() && ConfigValidator.getInstance().getCommand().isEmpty())) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long now = System.nanoTime();
+        if (pending == 0) first = now;
+        pending += count;
+        if (rollback != null) rollbacks.add(rollback);
+        CompletableFuture<Void> result = next;
+        if (scheduled != null) scheduled.cancel(false);
+        long delay = pending >= maxBatch ? 0 : Math.min(debounce, first + maxDelay - now);
+        scheduled = executor.schedule(this::reload, Math.max(0, delay), TimeUnit.NANOSECONDS);
+        return result;
+    }
+
+    /**
+     * Reloads the waiting changes right away
+     *
+     * @return Completed when the reload is done, right away if nothing is waiting
+     */
+    public synchronized CompletableFuture<Void> flush() {
+        if (pending == 0) return CompletableFuture.completedFuture(null);
+        if (scheduled != null) scheduled.cancel(false);
+        scheduled = executor.schedule(this::reload, 0, TimeUnit.NANOSECONDS);
+        return next;
+    }
+
+    /**
+     * Reloads the waiting changes and stops the worker
+     */
+    public void close() {
+        try {
+            flush().get();
+        } catch (ExecutionException e) {
+            //Already reported by the worker
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Tests the config and runs the reload command for all waiting changes
+     */
+    private void reload() {
+        CompletableFuture<Void> done;
+        List<Rollback> undo;
+        int batch;
+        synchronized (this) {
+            if (pending == 0) return;
+            batch = pending;
+            pending = 0;
+            undo = rollbacks;
+            rollbacks = new ArrayList<>();
+            done = next;
+            next = new CompletableFuture<>();
+            scheduled = null;
+        }
+        try {
+            ConfigValidator.getInstance().configtest();
+        } catch (IOException e) {
+            System.out.println("Apache config test failed, Apache is not reloaded: " + e.getMessage());
+            rollback(undo);
+            done.completeExceptionally(e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done.completeExceptionally(e);
+            return;
+        }
+        long start = Metrics.start();
+        try {
+            if (!command.isEmpty()) {
+                run(command);
+                Metrics.record(Metrics.Phase.RELOAD, start, 0, batch);
+                reloads++;
+                changes += batch;
+            }
+            done.complete(null);
+        } catch (IOException e) {
+            System.out.println("Apache couldn't be reloaded: " + e.getMessage());
+            done.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Undoes the changes that failed the config test, last one first
+     * A change that couldn't be undone is reported and the rest are still undone
+     *
+     * @param undo Rollbacks in the order of the changes
+     */
+    private static void rollback(List<Rollback> undo) {
+        if (undo.isEmpty()) return;
+        int failed = 0;
+        for (int i = undo.size() - 1; i >= 0; i--) {
+            try {
+                undo.get(i).undo();
+            } catch (Exception e) {
+                failed++;
+                System.out.println("Change couldn't be rolled back: " + e.getMessage());
+            }
+        }
+        System.out.println((undo.size() - failed) + " of " + undo.size() + " changes rolled back");
+    }
+
+    /**
+     * Runs the command and waits for it
+     *
+     * @param command Command and its arguments
+     * @throws IOException          If the command couldn't be started or it failed
+     * @throws InterruptedException If the caller is interrupted
+     */
+    static void run(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            in.transferTo(output);
+        }
+        int exit = process.waitFor();
+        if (exit != 0) {
+            throw new IOException(String.join(" ", command) + " exited with " + exit + ": "
+                    + output.toString(StandardCharsets.UTF_8.name()).trim());
+        }
+    }
+
+    /**
+     * @return Reload command and its arguments, empty when reloads are disabled
+     */
+    public List<String> getCommand() {
+        return command;
+    }
+
+    /**
+     * @return Number of reloads run
+     */
+    public long getReloads() {
+        return reloads;
+    }
+
+    /**
+     * @return Number of changes reloaded
+     */
+    public long getChanges() {
+        return changes;
+    }
+}
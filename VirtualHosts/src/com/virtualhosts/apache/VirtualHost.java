@@ -1,17 +1,29 @@
 package com.virtualhosts.apache;
 
+import com.virtualhosts.Batch;
 import com.virtualhosts.Config;
 import com.virtualhosts.Host;
+import com.virtualhosts.HostsFile;
+import com.virtualhosts.Locks;
+import com.virtualhosts.Operation;
 import com.virtualhosts.OsType;
 import org.jetbrains.annotations.Nullable;
 
 import java.awt.*;
 import java.io.*;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.nio.file.NotDirectoryException;
-import java.util.regex.Pattern;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Class for manipulating Apache VirtualHosts
@@ -77,6 +89,16 @@ public class VirtualHost {
      */
     private OsType Os = Config.getOs();
 
+    /**
+     * Section in the config file, null if the virtual host is not read from the config
+     */
+    private VirtualHostIndex.Entry location;
+
+    /**
+     * Address as it is written in the &lt;VirtualHost&gt; tag, built on the first render
+     */
+    private String listen;
+
     /**
      * Default constructor
      *
@@ -101,10 +123,12 @@ public class VirtualHost {
         if (publicFolder != null) {
             this.publicFolder = publicFolder;
         }
-        if (documentRoot != null) {
+        if (documentRoot == null) {
+            this.documentRoot = Config.getSite(this.hostName);
+        } else if (new File(documentRoot).isAbsolute()) {
             this.documentRoot = documentRoot;
         } else {
-            this.documentRoot = Config.SITES + this.hostName;
+            this.documentRoot = Config.getSite(documentRoot);
         }
         if (rewriteEngine != null) {
             this.rewriteEngine = rewriteEngine;
@@ -133,44 +157,220 @@ public class VirtualHost {
      */
     public void createNewVirtualHost() {
         try {
-            if (Config.getOs() == OsType.Linux)
-                if (apacheExits()) {
-                    throw new NotDirectoryException("Apache is not installed");
-                }
-            write();
-            if(! (new File(this.documentRoot).isDirectory())) {
-                createDirectoryForVirtualHost();
-            }
+            Locks.Handle lock = Locks.lockDomains(this.serverName);
             try {
-                this.hosts.write();
-            } catch (Exception e) {
-                System.out.println(e.getMessage());
+                if (this.Os == OsType.Linux)
+                    if (apacheExits()) {
+                        throw new NotDirectoryException("Apache is not installed");
+                    }
+                File config = getConfigFile();
+                boolean created = config != null && !config.exists();
+                ConfigEditor editor;
+                //Config file stays locked from the check to the write, so another process can't add the same name in between
+                Locks.Handle file = Locks.lockFiles(config == null ? Collections.emptyList() : Collections.singletonList(config));
+                try {
+                    String existing = existingName();
+                    if (existing != null) {
+                        System.out.println("Virtual host " + existing + " already exits");
+                        return;
+                    }
+                    editor = write();
+                    VirtualHostIndex.getInstance().refresh();
+                } finally {
+                    file.close();
+                }
+                if(! (new File(this.documentRoot).isDirectory())) {
+                    createDirectoryForVirtualHost();
+                }
+                Map<String, InetAddress> before = before(this.serverName);
+                try {
+                    this.hosts.write();
+                } catch (Exception e) {
+                    System.out.println(e.getMessage());
+                }
+                if (editor != null) {
+                    reload(editor, before, created ? config : null);
+                }
+            } finally {
+                lock.close();
             }
         } catch (IOException e) {
             System.out.println(e.getMessage());
         }
     }
 
-    //TODO - Create update and delete methods
-
     /**
-     *  Gets the existing virtual host
-     * @return an Existing virtual host
+     * Gets the existing virtual host
+     * Looked up by ServerName or ServerAlias in the index of Config.SITESAVAILABLE
+     *
+     * @param serverName Domain name or alias
+     * @return an Existing virtual host, or null if it doesn't exist
      */
     public static VirtualHost get(String serverName) {
+        VirtualHostIndex.Entry entry;
+        try {
+            entry = VirtualHostIndex.getInstance().find(serverName);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return null;
+        }
+        if (entry == null) {
+            return null;
+        }
+        String name = entry.getServerName() == null ? serverName : entry.getServerName();
+        String alias = entry.getAliases().isEmpty() ? null : String.join(" ", entry.getAliases());
+        VirtualHost virtualHost = new VirtualHost(name, address(entry.getAddress()), null, entry.getDocumentRoot(), alias, entry.isRewriteEngine());
+        virtualHost.location = entry;
+        return virtualHost;
+    }
+
+    /**
+     * Parses the address of the section, * and names are served on the loopback address
+     *
+     * @param address Address from the &lt;VirtualHost&gt; tag
+     * @return Ip address or null
+     */
+    private static InetAddress address(String address) {
+        try {
+            return Operation.parseAddress(address);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Looks up the ServerName and every alias in the index
+     *
+     * @return Name that is already served by some virtual host, null if there is none
+     * @throws IOException If some of the config files couldn't be read
+     */
+    public String existingName() throws IOException {
+        VirtualHostIndex index = VirtualHostIndex.getInstance();
+        if (index.find(this.serverName) != null) {
+            return this.serverName;
+        }
+        if (this.alias != null) {
+            for (String name : this.alias.trim().split("\\s+")) {
+                if (!name.isEmpty() && index.find(name) != null) {
+                    return name;
+                }
+            }
+        }
         return null;
     }
 
     /**
      * Deletes an existing virtual host
+     * Section is removed from its config file together with the host entry, document root is left as it is
      */
-    public void deleteVirtualHost() { }
+    public void deleteVirtualHost() {
+        if (this.location == null) {
+            System.out.println("Virtual host doesn't exist");
+            return;
+        }
+        ConfigEditor editor = new ConfigEditor();
+        editor.remove(this);
+        try {
+            Locks.Handle lock = Locks.lockDomains(this.serverName);
+            try {
+                editor.write();
+                this.location = null;
+                Map<String, InetAddress> before = before(this.serverName);
+                try {
+                    HostsFile hostsFile = Host.getHostsFile();
+                    if (hostsFile != null && hostsFile.contains(this.serverName)) {
+                        this.hosts.delete();
+                    }
+                } finally {
+                    reload(editor, before, null);
+                }
+                System.out.println("Virtual host deleted successfully");
+            } finally {
+                lock.close();
+            }
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
 
     /**
      * Updates an existing virtual host
+     * Only the changed directives of the section are rewritten, in the same config file
+     *
      * @param newHost New host that will replace the old one
      */
-    public void updateVirtualHost(VirtualHost newHost) { }
+    public void updateVirtualHost(VirtualHost newHost) {
+        if (this.location == null) {
+            System.out.println("Virtual host doesn't exist");
+            return;
+        }
+        ConfigEditor editor = new ConfigEditor();
+        editor.update(this, newHost);
+        try {
+            Locks.Handle lock = Locks.lockDomains(this.serverName, newHost.serverName);
+            try {
+                editor.write();
+                Map<String, InetAddress> before = before(this.serverName, newHost.serverName);
+                try {
+                    newHost.location = VirtualHostIndex.getInstance().find(newHost.serverName);
+                    File directory = new File(newHost.documentRoot);
+                    if (!directory.isDirectory()) {
+                        DocumentRootProvisioner.getInstance().provision(directory);
+                    }
+                    HostsFile hostsFile = Host.getHostsFile();
+                    if (hostsFile != null && hostsFile.contains(this.serverName)) {
+                        if (!this.serverName.equals(newHost.serverName) || !this.address.equals(newHost.address)) {
+                            this.hosts.update(newHost.hosts);
+                        }
+                    } else if (hostsFile != null && !hostsFile.contains(newHost.serverName)) {
+                        newHost.hosts.write();
+                    }
+                } finally {
+                    reload(editor, before, null);
+                }
+                System.out.println("Virtual host updated successfully");
+            } finally {
+                lock.close();
+            }
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Remembers the host entries before they are changed, so the change can be rolled back
+     *
+     * @param names Domains
+     * @return Addresses by name, null value if the name isn't defined - see Batch.touch
+     */
+    private static Map<String, InetAddress> before(String... names) {
+        Map<String, InetAddress> before = new HashMap<>();
+        HostsFile hosts = Host.getHostsFile();
+        if (hosts != null) {
+            for (String name : names) {
+                Batch.touch(before, hosts, name);
+            }
+        }
+        return before;
+    }
+
+    /**
+     * Schedules the reload of Apache, the config file and the host entries are rolled back when the config test fails
+     *
+     * @param editor  Editor that has written the config file
+     * @param before  Host entries before the change
+     * @param created Config file created for the change, deleted when it is empty after the rollback, null if there is none
+     */
+    private static void reload(ConfigEditor editor, Map<String, InetAddress> before, @Nullable File created) {
+        HostsFile hosts = Host.getHostsFile();
+        ReloadScheduler.Rollback rollback = hosts == null ? editor::undo : Batch.rollback(editor, before, hosts, null);
+        ReloadScheduler.getInstance().changed(1, created == null ? rollback : () -> {
+            rollback.undo();
+            if (created.isFile() && created.length() == 0) {
+                Files.deleteIfExists(created.toPath());
+            }
+        });
+    }
 
     /**
      * Checks for the apache folder, to determent if the apache is installed or not
@@ -183,67 +383,67 @@ public class VirtualHost {
     }
 
     /**
-     * Created the directory for the given virtual host
+     * Created the document root for the given virtual host, seeded from the skeleton
      *
      * @throws FileAlreadyExistsException Throws an error if the folder exits
      */
     private void createDirectoryForVirtualHost() throws FileAlreadyExistsException {
-        File site = new File(Config.SITES.concat(hostName));
+        File site = new File(this.documentRoot);
         if (site.isDirectory()) {
             throw new FileAlreadyExistsException("Directory already exits");
         }
-        if (site.mkdir()) {
+        if (DocumentRootProvisioner.getInstance().provision(site)) {
             System.out.println("Directory created");
-        } else {
-            System.out.println("Error accured while creating directory");
         }
     }
 
 
     /**
-     * Reads the file until it hits the EOF
-     * @param file File to be read
-     * @return Content of the file
+     * Check if the host exits
+     * Sections are compared by their structure - address, port, names and document root,
+     * so formatting, comments and the order of the directives don't matter
+     * @param host Virtual Host file
+     * @return If the hosts file exits
      * @throws IOException This exception is thrown if the file is not found or its not readable
      */
-    private String readToEnd(File file) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        BufferedReader bufferedReader = new BufferedReader(new FileReader(file));
-        String line;
-        while((line = bufferedReader.readLine()) != null) {
-            sb.append(line);
-        }
-        return sb.toString();
+    boolean hostExits(File host) throws IOException {
+        return VirtualHostIndex.getInstance().contains(host, fingerprint());
     }
 
     /**
-     * Check if the host exits
-     * @param host Virtual Host file
-     * @return If the hosts file exits
-     * @throws IOException This exception is thrown if the file is not found or its not readable
+     * Structural fingerprint of the section this virtual host writes
+     *
+     * @return Fingerprint comparable with VirtualHostIndex.Entry.getFingerprint()
      */
-    private boolean hostExits(File host) throws IOException {
-        String match = this.toString();
-        Pattern p = Pattern.compile(match);
-        String content = readToEnd(host);
-        if(p.matcher(content).matches()) {
-            return true;
-        }
-        return false;
+    long fingerprint() {
+        List<String> aliases = alias == null ? Collections.emptyList() : ApacheConfigTokenizer.split(alias);
+        return VirtualHostIndex.fingerprint(this.hosts.cleanIpAddress(address.toString()), VirtualHostTemplate.getInstance().getPort(),
+                serverName, aliases, documentRootPath());
+    }
+
+    /**
+     * Checks if the section already is this virtual host
+     * Structure is compared by the fingerprint, so formatting, comments and the order of the directives don't matter
+     *
+     * @param entry Loaded section
+     * @return Whether the section has the same address, port, names, document root and RewriteEngine
+     */
+    public boolean matches(VirtualHostIndex.Entry entry) {
+        return entry.getFingerprint() == fingerprint() && entry.isRewriteEngine() == rewriteEngine;
     }
 
     /**
      * Adds the configuration to apache for the given parameters
+     * Apache is not reloaded here, the caller schedules the reload once the host entry is written
      *
+     * @return Editor that has written the section, null if the virtual host already exists
      * @throws FileAlreadyExistsException Throws an error if the config file exit
      * @throws IOException                If it fails to create new config file, mainly because of root access
      * @throws NullPointerException       This exception is thrown when file (on windows default apache config file | on linux if new apache host couldn't be created
      */
-    private void write() throws FileAlreadyExistsException, IOException, NullPointerException {
-        File newSite = null;
-        FileWriter writer;
+    ConfigEditor write() throws FileAlreadyExistsException, IOException, NullPointerException {
+        File newSite = getConfigFile();
         if (this.Os == OsType.Linux) {
-            newSite = new File(Config.SITESAVAILABLE.concat(this.hostName));
             if (newSite.isFile() || newSite.exists()) {
                 throw new FileAlreadyExistsException("Config file exits");
             }
@@ -251,10 +451,9 @@ public class VirtualHost {
                 System.out.println("File created");
             } else {
                 System.out.println("Error has accured");
-                return;
+                return null;
             }
         } else if (this.Os == OsType.Windows) {
-            newSite = new File(Config.SITESAVAILABLE);
             if (!newSite.exists())
                 throw new FileNotFoundException();
         }
@@ -262,39 +461,216 @@ public class VirtualHost {
             throw new NullPointerException();
         }
         if(!hostExits(newSite)) {
-            writer = new FileWriter(newSite, true);
-            writer.write(this.toString());
-            writer.close();
+            //On Windows the section is appended as a managed region of httpd-vhosts.conf
+            ConfigEditor editor = new ConfigEditor();
+            editor.append(newSite, this);
+            try {
+                editor.write();
+            } catch (IOException e) {
+                //Section is not valid, the empty file created for it goes away
+                if (this.Os == OsType.Linux && newSite.length() == 0) {
+                    Files.deleteIfExists(newSite.toPath());
+                }
+                throw e;
+            }
+            return editor;
         } else {
             System.out.println("Virtual Hosts already exits");
+            return null;
         }
     }
 
-    @Override
-    public String toString() {
+    /**
+     * Gets the apache config file where this virtual host is written
+     * On Linux every virtual host has its own file in sites-available, on Windows all of them are in httpd-vhosts.conf
+     *
+     * @return Config file, or null if the operating system is not supported
+     */
+    public File getConfigFile() {
+        if (this.Os == OsType.Linux) {
+            return new File(Config.SITESAVAILABLE.concat(this.hostName));
+        } else if (this.Os == OsType.Windows) {
+            return new File(Config.SITESAVAILABLE);
+        }
+        return null;
+    }
 
-        StringBuilder builder = new StringBuilder();
-        builder.append("\r\n<VirtualHost ").append(this.hosts.cleanIpAddress(this.address.toString())).append(":80>");
-        builder.append("\r\n\tServerName ").append(serverName);
-        File f = new File(documentRoot);
-        if (!f.isAbsolute()) {
-            documentRoot = Config.SITES + documentRoot;
+    /**
+     * @return Folder name
+     */
+    public String getHostName() {
+        return hostName;
+    }
+
+    /**
+     * @return Folder from where site is served, empty if it is the document root itself
+     */
+    public String getPublicFolder() {
+        return publicFolder;
+    }
+
+    /**
+     * Address as it is written in the &lt;VirtualHost&gt; tag, IPv6 addresses are in brackets
+     *
+     * @return Address without the port
+     */
+    String listenAddress() {
+        if (listen == null) {
+            String text = this.hosts.cleanIpAddress(address.toString());
+            listen = address instanceof Inet6Address ? "[" + text + "]" : text;
         }
+        return listen;
+    }
+
+    /**
+     * @return Domain name
+     */
+    public String getServerName() {
+        return serverName;
+    }
+
+    /**
+     * @return Folder where website will be stored
+     */
+    public String getDocumentRoot() {
+        return documentRoot;
+    }
+
+    /**
+     * @return Ip Address of the website
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return Alias of the website
+     */
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * @return Whether the RewriteEngine is on
+     */
+    public Boolean getRewriteEngine() {
+        return rewriteEngine;
+    }
+
+    /**
+     * @return Section in the config file, null if the virtual host is not read from the config
+     */
+    public VirtualHostIndex.Entry getLocation() {
+        return location;
+    }
+
+    /**
+     * @return Host entry of this virtual host
+     */
+    public Host getHost() {
+        return hosts;
+    }
+
+    /**
+     * Full path from where the site is served, as written in the DocumentRoot directive
+     *
+     * @return Document root with the public folder
+     */
+    private String documentRootPath() {
         if (publicFolder.equals("")) {
-            if (Config.getOs() == OsType.Windows)
-                builder.append("\r\n\tDocumentRoot \"").append(documentRoot).append("\"");
-            else
-                builder.append("\r\n\tDocumentRoot ").append(documentRoot);
-        } else {
-            builder.append("\r\n\tDocumentRoot ").append(documentRoot).append(Config.getOs() == OsType.Linux ? "/" : "\\").append(publicFolder);
+            return documentRoot;
+        }
+        return documentRoot + (this.Os == OsType.Linux ? "/" : "\\") + publicFolder;
+    }
+
+    /**
+     * Rewrites the existing section with the values of this virtual host
+     * Only the directives whose values differ from the old virtual host are replaced, missing ones are added
+     * in front of the closing tag, comments, nested sections and other directives are kept as they are.
+     * Null alias keeps the aliases of the section, an empty one removes them
+     *
+     * @param section Bytes of the section, from the opening to the closing tag
+     * @param old     Virtual host as it is in the section
+     * @return New section
+     * @throws IOException Never, section is already in memory
+     */
+    String rewrite(byte[] section, VirtualHost old) throws IOException {
+        String text = new String(section, StandardCharsets.UTF_8);
+        String lineBreak = text.contains("\r\n") ? "\r\n" : "\n";
+        Map<String, String> changed = new LinkedHashMap<>();
+        if (!serverName.equals(old.serverName)) {
+            changed.put("servername", "ServerName " + serverName);
+        }
+        if (!documentRootPath().equals(old.documentRootPath())) {
+            String path = documentRootPath();
+            changed.put("documentroot", "DocumentRoot " + (path.indexOf(' ') >= 0 || Os == OsType.Windows ? "\"" + path + "\"" : path));
         }
-        if (rewriteEngine) {
-            builder.append("\r\n\tRewriteEngine on");
+        if (!rewriteEngine.equals(old.rewriteEngine)) {
+            changed.put("rewriteengine", "RewriteEngine " + (rewriteEngine ? "on" : "off"));
         }
-        if (alias != null) {
-            builder.append("\r\n\tServerAlias ").append(alias);
+        boolean aliasChanged = alias != null && !alias.equals(old.alias);
+        if (aliasChanged && !alias.trim().isEmpty()) {
+            changed.put("serveralias", "ServerAlias " + alias);
         }
-        builder.append("\r\n</VirtualHost>");
-        return builder.toString();
+        StringBuilder out = new StringBuilder(text.length() + 64);
+        int position = 0;
+        int depth = -1;
+        //Offsets are in bytes, section is copied through the byte array to keep them exact
+        try (ApacheConfigTokenizer tokenizer = new ApacheConfigTokenizer(new ByteArrayInputStream(section))) {
+            ApacheConfigTokenizer.Token token;
+            while ((token = tokenizer.next()) != null) {
+                int start = (int) token.getStart();
+                int end = (int) token.getEnd();
+                String replacement = null;
+                boolean keep = true;
+                if (token.getKind() == ApacheConfigTokenizer.Kind.SECTION_START) {
+                    if (++depth == 0 && !address.equals(old.address)) {
+                        int port = old.location.getPort();
+                        replacement = "<VirtualHost " + listenAddress() + ":" + port + ">";
+                    }
+                } else if (token.getKind() == ApacheConfigTokenizer.Kind.SECTION_END) {
+                    if (depth-- == 0) {
+                        //Directives that are not in the section yet
+                        out.append(new String(section, position, start - position, StandardCharsets.UTF_8));
+                        for (String directive : changed.values()) {
+                            out.append('\t').append(directive).append(lineBreak);
+                        }
+                        changed.clear();
+                        position = start;
+                    }
+                } else if (depth == 0) {
+                    String name = token.getName().toLowerCase(Locale.ROOT);
+                    if (changed.containsKey(name)) {
+                        replacement = changed.remove(name);
+                    } else if (name.equals("serveralias") && aliasChanged) {
+                        //Aliases from the other ServerAlias lines are already in the first one
+                        keep = false;
+                    }
+                }
+                if (replacement == null && keep) continue;
+                out.append(new String(section, position, start - position, StandardCharsets.UTF_8));
+                if (replacement != null) {
+                    int indent = start;
+                    while (indent < end && (section[indent] == ' ' || section[indent] == '\t')) indent++;
+                    int terminator = end;
+                    while (terminator > start && (section[terminator - 1] == '\n' || section[terminator - 1] == '\r')) terminator--;
+                    out.append(new String(section, start, indent - start, StandardCharsets.UTF_8)).append(replacement)
+                            .append(new String(section, terminator, end - terminator, StandardCharsets.UTF_8));
+                }
+                position = end;
+            }
+        }
+        out.append(new String(section, position, section.length - position, StandardCharsets.UTF_8));
+        return out.toString();
+    }
+
+    /**
+     * Section of this virtual host, rendered by the shared VirtualHostTemplate
+     *
+     * @return Section
+     */
+    @Override
+    public String toString() {
+        return VirtualHostTemplate.getInstance().render(this);
     }
 }
@@ -0,0 +1,1145 @@
+package com.virtualhosts.apache;
+
+import com.virtualhosts.Config;
+import com.virtualhosts.Metrics;
+import com.virtualhosts.Operation;
+import com.virtualhosts.OsType;
+
+import java.io.*;
+import java.nio.file.FileSystems;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Index of the virtual hosts in Config.SITESAVAILABLE
+ * <p>
+ * Every ServerName and ServerAlias is mapped to the config file, byte range and parsed fields of its &lt;VirtualHost&gt; section.
+ * Files are tokenized once, on the next lookup only their size and modification time are checked
+ * and just the changed files are tokenized again. Include and IncludeOptional are followed.
+ * Index is kept between runs in a memory mapped sidecar (VirtualHostIndexFile) in the lock directory,
+ * so a lookup of one name reads only its own section
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class VirtualHostIndex {
+
+    /**
+     * One &lt;VirtualHost&gt; section
+     */
+    public static class Entry {
+        /**
+         * Config file
+         */
+        private final File file;
+
+        /**
+         * Offset of the opening tag
+         */
+        private final long start;
+
+        /**
+         * Offset after the closing tag
+         */
+        private long end;
+
+        /**
+         * Line of the opening tag
+         */
+        private final int line;
+
+        /**
+         * Address from the opening tag - eg. 127.0.0.1, * or _default_
+         */
+        private String address;
+
+        /**
+         * Port from the opening tag, 80 if it is not given
+         */
+        private int port;
+
+        /**
+         * Domain
+         */
+        private String serverName;
+
+        /**
+         * Aliases in the order they are written
+         */
+        private final List<String> aliases = new ArrayList<>();
+
+        /**
+         * Document root
+         */
+        private String documentRoot;
+
+        /**
+         * Apache Rewrite Engine
+         */
+        private boolean rewriteEngine;
+
+        /**
+         * Structural fingerprint - address, port, names and document root
+         */
+        private long fingerprint;
+
+        /**
+         * False while only the names, the address, the range and the fingerprint are known (read from the sidecar)
+         */
+        private boolean loaded;
+
+        Entry(File file, ApacheConfigTokenizer.Token token, long base) {
+            this.file = file;
+            this.start = base + token.getStart();
+            this.end = base + token.getEnd();
+            this.line = token.getLine();
+            this.loaded = true;
+            open(token);
+        }
+
+        Entry(File file, long start, long end, int line) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.line = line;
+        }
+
+        /**
+         * Reads the address and port from the opening tag
+         *
+         * @param token Opening tag
+         */
+        private void open(ApacheConfigTokenizer.Token token) {
+            //First address of the section - eg. *:80, 127.0.0.1:8080 or [::1]:80
+            String listen = token.getArg() == null ? "*" : token.getArg();
+            String host = listen;
+            int port = 80;
+            int colon = listen.indexOf(':');
+            if (listen.startsWith("[")) {
+                int close = listen.indexOf(']');
+                host = listen.substring(1, close < 0 ? listen.length() : close);
+                if (close > 0 && close + 1 < listen.length() && listen.charAt(close + 1) == ':') {
+                    port = parsePort(listen.substring(close + 2));
+                }
+            } else if (colon > 0 && colon == listen.lastIndexOf(':')) {
+                host = listen.substring(0, colon);
+                port = parsePort(listen.substring(colon + 1));
+            }
+            this.address = host;
+            this.port = port;
+        }
+
+        /**
+         * Parses the port, 80 if it is not a number
+         *
+         * @param port Port
+         * @return Port
+         */
+        private static int parsePort(String port) {
+            try {
+                return Integer.parseInt(port);
+            } catch (NumberFormatException e) {
+                return 80;
+            }
+        }
+
+        /**
+         * @return Config file
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return Offset of the opening tag
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return Offset after the closing tag
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return Line of the opening tag
+         */
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * @return Address from the opening tag
+         */
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * @return Port from the opening tag
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * @return Domain, null if the section has no ServerName
+         */
+        public String getServerName() {
+            return serverName;
+        }
+
+        /**
+         * @return Aliases
+         */
+        public List<String> getAliases() {
+            return Collections.unmodifiableList(aliases);
+        }
+
+        /**
+         * @return Document root, null if the section has no DocumentRoot
+         */
+        public String getDocumentRoot() {
+            return documentRoot;
+        }
+
+        /**
+         * @return Whether RewriteEngine is on
+         */
+        public boolean isRewriteEngine() {
+            return rewriteEngine;
+        }
+
+        /**
+         * @return Structural fingerprint - address, port, names and document root
+         */
+        public long getFingerprint() {
+            return fingerprint;
+        }
+
+        void setFingerprint(long fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        void setListen(String address, int port) {
+            this.address = address;
+            this.port = port;
+        }
+
+        void setRewriteEngine(boolean rewriteEngine) {
+            this.rewriteEngine = rewriteEngine;
+        }
+
+        void setEnd(long end) {
+            this.end = end;
+        }
+
+        void setServerName(String serverName) {
+            this.serverName = serverName;
+        }
+
+        void addAlias(String alias) {
+            this.aliases.add(alias);
+        }
+
+        /**
+         * Reads the section from its file, only the section itself is tokenized
+         *
+         * @return False if the section is not where it was indexed
+         */
+        boolean load() {
+            if (loaded) return true;
+            try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+                return load(input);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Reads the section from its file that is already open
+         *
+         * @param input Config file of the section
+         * @return False if the section is not where it was indexed
+         */
+        boolean load(RandomAccessFile input) {
+            if (loaded) return true;
+            byte[] section = new byte[(int) (end - start)];
+            try {
+                long started = Metrics.start();
+                input.seek(start);
+                input.readFully(section);
+                Metrics.record(Metrics.Phase.READ, started, section.length, 1);
+                started = Metrics.start();
+                Parsed parsed = new Parsed();
+                parse(new ApacheConfigTokenizer(new ByteArrayInputStream(section), section.length + 1), file, start, parsed);
+                Metrics.record(Metrics.Phase.PARSE, started, section.length, parsed.entries.size());
+                if (parsed.entries.size() != 1 || parsed.entries.get(0).end != end) return false;
+                Entry read = parsed.entries.get(0);
+                address = read.address;
+                port = read.port;
+                serverName = read.serverName;
+                aliases.clear();
+                aliases.addAll(read.aliases);
+                documentRoot = read.documentRoot;
+                rewriteEngine = read.rewriteEngine;
+                fingerprint = read.fingerprint;
+                loaded = true;
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Checks the ServerName and ServerAlias
+         *
+         * @param name Lower case domain
+         * @return Whether the section is served for the domain
+         */
+        boolean isNamed(String name) {
+            if (serverName != null && serverName.toLowerCase(Locale.ROOT).equals(name)) return true;
+            for (String alias : aliases) {
+                if (alias.toLowerCase(Locale.ROOT).equals(name)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Applies the directive of the section
+         *
+         * @param token Directive
+         */
+        private void apply(ApacheConfigTokenizer.Token token) {
+            if (token.getArgs().isEmpty()) return;
+            if (token.is("ServerName")) {
+                serverName = hostOf(token.getArg());
+            } else if (token.is("ServerAlias")) {
+                for (String alias : token.getArgs()) {
+                    aliases.add(hostOf(alias));
+                }
+            } else if (token.is("DocumentRoot")) {
+                documentRoot = token.getArg();
+            } else if (token.is("RewriteEngine")) {
+                rewriteEngine = token.getArg().equalsIgnoreCase("on");
+            }
+        }
+
+        /**
+         * Strips the scheme and port from the ServerName - eg. https://example.com:443
+         *
+         * @param name Server name
+         * @return Domain
+         */
+        private static String hostOf(String name) {
+            int scheme = name.indexOf("://");
+            if (scheme >= 0) name = name.substring(scheme + 3);
+            int colon = name.lastIndexOf(':');
+            if (colon > 0 && name.indexOf(':') == colon) name = name.substring(0, colon);
+            return name;
+        }
+    }
+
+    /**
+     * Tokenized config file
+     */
+    static class Parsed {
+        /**
+         * Modification time when the file was tokenized
+         */
+        long modified;
+
+        /**
+         * Size when the file was tokenized
+         */
+        long length;
+
+        /**
+         * Bytes of the tombstones, reclaimed by compaction
+         */
+        long dead;
+
+        /**
+         * Number of in-place writes patched into the sections
+         */
+        int patches;
+
+        /**
+         * Virtual hosts in the file
+         */
+        final List<Entry> entries = new ArrayList<>();
+
+        /**
+         * Files included by the file
+         */
+        final List<File> includes = new ArrayList<>();
+
+        /**
+         * Fingerprints of the sections, built on the first duplicate check
+         */
+        private Set<Long> fingerprints;
+
+        /**
+         * @return Fingerprints of the sections
+         */
+        Set<Long> fingerprints() {
+            if (fingerprints == null) {
+                Set<Long> set = new HashSet<>(entries.size() * 2);
+                for (Entry entry : entries) {
+                    set.add(entry.fingerprint);
+                }
+                fingerprints = set;
+            }
+            return fingerprints;
+        }
+    }
+
+    /**
+     * Shared index of Config.SITESAVAILABLE
+     */
+    private static VirtualHostIndex instance;
+
+    /**
+     * Directory (Linux) or file (Windows) with the virtual hosts
+     */
+    private final File root;
+
+    /**
+     * Tokenized files
+     */
+    private final Map<File, Parsed> files = new HashMap<>();
+
+    /**
+     * Lower case ServerName and ServerAlias to the section, first section wins as in Apache
+     */
+    private final Map<String, Entry> names = new HashMap<>();
+
+    /**
+     * All sections in file order
+     */
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Number of files tokenized so far
+     */
+    private final LongAdder tokenized = new LongAdder();
+
+    /**
+     * Number of bytes tokenized so far
+     */
+    private final LongAdder tokenizedBytes = new LongAdder();
+
+    /**
+     * Statistics of the last refresh that had to read some files
+     */
+    private volatile ConfigScanner.Stats lastScan;
+
+    /**
+     * Whether the files are seeded from the sidecar
+     */
+    private boolean loaded;
+
+    /**
+     * Whether the files have been checked in this process, until then single lookups go to the sidecar
+     */
+    private boolean refreshed;
+
+    /**
+     * Sidecar has to be written again
+     */
+    private boolean dirty;
+
+    /**
+     * Name map has to be built again, some file was tokenized outside of refresh()
+     */
+    private boolean rebuildNames = true;
+
+    /**
+     * Scanner that checks and tokenizes the files
+     */
+    private final ConfigScanner scanner;
+
+    /**
+     * Primary constructor
+     *
+     * @param root    Directory (Linux) or file (Windows) with the virtual hosts
+     * @param scanner Scanner that checks and tokenizes the files
+     */
+    public VirtualHostIndex(File root, ConfigScanner scanner) {
+        this.root = root;
+        this.scanner = scanner;
+    }
+
+    /**
+     * Constructor overload, files are scanned by the shared scanner
+     *
+     * @param root Directory (Linux) or file (Windows) with the virtual hosts
+     */
+    public VirtualHostIndex(File root) {
+        this(root, ConfigScanner.getInstance());
+    }
+
+    /**
+     * Returns the index of Config.SITESAVAILABLE, a new one is created when the path changes
+     *
+     * @return Shared index
+     */
+    public static synchronized VirtualHostIndex getInstance() {
+        File root = new File(Config.SITESAVAILABLE);
+        if (instance == null || !instance.root.equals(root)) {
+            instance = new VirtualHostIndex(root);
+        }
+        return instance;
+    }
+
+    /**
+     * Finds the virtual host by ServerName or ServerAlias
+     * First lookup of the process goes to the sidecar, the config files are read only when the name is not in it
+     * or its file has changed since
+     *
+     * @param name Domain
+     * @return Section or null if it doesn't exist
+     * @throws IOException If some of the config files couldn't be read
+     */
+    public synchronized Entry find(String name) throws IOException {
+        long start = Metrics.start();
+        String key = name.toLowerCase(Locale.ROOT);
+        if (!refreshed) {
+            VirtualHostIndexFile sidecar = VirtualHostIndexFile.open(VirtualHostIndexFile.of(root), root);
+            Entry entry = sidecar == null ? null : sidecar.lookup(key);
+            if (entry != null && entry.load() && entry.isNamed(key)) {
+                Metrics.record(Metrics.Phase.LOOKUP, start, 0, 1);
+                return entry;
+            }
+        }
+        refresh();
+        Entry entry = names.get(key);
+        if (entry != null && !entry.load()) {
+            //Sidecar was wrong about the file, it is tokenized again
+            files.remove(entry.file);
+            refresh();
+            entry = names.get(key);
+        }
+        Metrics.record(Metrics.Phase.LOOKUP, start, 0, entry == null ? 0 : 1);
+        return entry;
+    }
+
+    /**
+     * @return All virtual hosts in file order
+     * @throws IOException If some of the config files couldn't be read
+     */
+    public synchronized List<Entry> entries() throws IOException {
+        refresh();
+        List<Entry> list = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            if (!entry.load()) {
+                files.remove(entry.file);
+                return entries();
+            }
+            list.add(entry);
+        }
+        return list;
+    }
+
+    /**
+     * All virtual hosts in file order as they are in the index, the sections are not read
+     * Names, address, port, fingerprint and RewriteEngine are known, the rest only after the section is loaded
+     *
+     * @return Sections
+     * @throws IOException If some of the config files couldn't be read
+     */
+    public synchronized List<Entry> indexed() throws IOException {
+        refresh();
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * Streams the virtual hosts in file order
+     * Sections are filtered by their names and address before they are read, and the sections of one file
+     * are read through one open file, so an export doesn't load the sections it doesn't write
+     *
+     * @param filter Sections that are returned, tested before the section is loaded
+     * @return Sections, the stream must be closed
+     * @throws IOException If some of the config files couldn't be read
+     */
+    public Stream<Entry> stream(Predicate<Entry> filter) throws IOException {
+        List<Entry> snapshot;
+        synchronized (this) {
+            refresh();
+            snapshot = new ArrayList<>(entries);
+        }
+        Sections sections = new Sections(snapshot.iterator(), filter);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(sections, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(sections::close);
+    }
+
+    /**
+     * Iterator of the streamed sections
+     */
+    private class Sections implements Iterator<Entry>, Closeable {
+
+        /**
+         * Indexed sections
+         */
+        private final Iterator<Entry> source;
+
+        /**
+         * Sections that are returned
+         */
+        private final Predicate<Entry> filter;
+
+        /**
+         * File of the last indexed section
+         */
+        private File sourceFile;
+
+        /**
+         * Position of the last indexed section in its file
+         */
+        private int position;
+
+        /**
+         * Open file the sections are loaded from
+         */
+        private RandomAccessFile input;
+
+        /**
+         * File that is open
+         */
+        private File inputFile;
+
+        /**
+         * Sections of the file that changed after it was indexed, read again
+         */
+        private Iterator<Entry> replaced;
+
+        /**
+         * File read again, its indexed sections are skipped
+         */
+        private File replacedFile;
+
+        /**
+         * Next section, null when it is not found yet
+         */
+        private Entry next;
+
+        Sections(Iterator<Entry> source, Predicate<Entry> filter) {
+            this.source = source;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = advance();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry entry = next;
+            next = null;
+            return entry;
+        }
+
+        /**
+         * Finds the next matching section and loads it
+         *
+         * @return Section or null when there are no more
+         * @throws IOException If the changed file couldn't be read again
+         */
+        private Entry advance() throws IOException {
+            while (true) {
+                Entry entry;
+                if (replaced != null && replaced.hasNext()) {
+                    entry = replaced.next();
+                } else {
+                    replaced = null;
+                    if (!source.hasNext()) {
+                        close();
+                        return null;
+                    }
+                    entry = source.next();
+                    position = entry.file.equals(sourceFile) ? position + 1 : 0;
+                    sourceFile = entry.file;
+                    if (entry.file.equals(replacedFile)) continue;
+                }
+                if (!filter.test(entry)) continue;
+                if (!entry.file.equals(inputFile)) {
+                    close();
+                    inputFile = entry.file;
+                    try {
+                        input = new RandomAccessFile(entry.file, "r");
+                    } catch (FileNotFoundException e) {
+                        input = null;
+                    }
+                }
+                if (input != null && entry.load(input)) return entry;
+                //File changed since it was indexed, the sections that haven't been returned yet are taken from it as it is now
+                Parsed parsed;
+                synchronized (VirtualHostIndex.this) {
+                    files.remove(entry.file);
+                    parsed = current(entry.file);
+                }
+                replacedFile = entry.file;
+                List<Entry> fresh = parsed == null ? Collections.emptyList() : parsed.entries;
+                replaced = fresh.subList(Math.min(position, fresh.size()), fresh.size()).iterator();
+            }
+        }
+
+        /**
+         * Closes the open file
+         */
+        @Override
+        public void close() {
+            if (input == null) return;
+            try {
+                input.close();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+            input = null;
+            inputFile = null;
+        }
+    }
+
+    /**
+     * Tokenized files of the config, brought up to date with refresh()
+     * Sections are not loaded, their names, addresses and ports are known either way
+     *
+     * @return Absolute file to its sections
+     * @throws IOException If some of the config files couldn't be read
+     */
+    synchronized Map<File, Parsed> files() throws IOException {
+        refresh();
+        return new HashMap<>(files);
+    }
+
+    /**
+     * Forgets the file, it is tokenized again on the next lookup
+     * Used after the file is written, when modification time alone may not show the change
+     *
+     * @param file Config file
+     */
+    public synchronized void invalidate(File file) {
+        files.remove(file.getAbsoluteFile());
+    }
+
+    /**
+     * @return Number of files tokenized so far
+     */
+    public long getTokenized() {
+        return tokenized.sum();
+    }
+
+    /**
+     * @return Statistics of the last refresh that had to read some files, null if there was none
+     */
+    public ConfigScanner.Stats getLastScan() {
+        return lastScan;
+    }
+
+    /**
+     * Drops the sidecar and everything in memory, then tokenizes all config files again
+     *
+     * @return Statistics of the scan
+     * @throws IOException If some of the config files couldn't be read
+     */
+    public synchronized ConfigScanner.Stats rebuild() throws IOException {
+        files.clear();
+        names.clear();
+        entries.clear();
+        loaded = true;
+        dirty = true;
+        refresh();
+        return lastScan;
+    }
+
+    /**
+     * Checks if the file already has a section with the same address, port, names and document root
+     * Only the given file is checked, the other config files are not touched
+     *
+     * @param file        Config file
+     * @param fingerprint Fingerprint of the section - see fingerprint()
+     * @return Whether such section exists
+     * @throws IOException If the file couldn't be read
+     */
+    public synchronized boolean contains(File file, long fingerprint) throws IOException {
+        Parsed parsed = current(file);
+        return parsed != null && parsed.fingerprints().contains(fingerprint);
+    }
+
+    /**
+     * Sections of one file as it is on disk now, the file is tokenized only if it changed
+     * Other config files are not touched
+     *
+     * @param file Config file
+     * @return Sections of the file, null if it doesn't exist
+     * @throws IOException If the file couldn't be read
+     */
+    synchronized Parsed current(File file) throws IOException {
+        seed();
+        File absolute = file.getAbsoluteFile();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(absolute.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        Parsed parsed = files.get(absolute);
+        if (parsed == null || parsed.modified != attributes.lastModifiedTime().toMillis() || parsed.length != attributes.size()) {
+            parsed = tokenize(absolute, attributes);
+            //Kept for the next check, next refresh() drops it if the file is not part of the config
+            files.put(absolute, parsed);
+            dirty = true;
+            rebuildNames = true;
+        }
+        return parsed;
+    }
+
+    /**
+     * Takes the sections of the file patched after an in-place write, so the file is not tokenized again
+     *
+     * @param file   Config file
+     * @param parsed Sections returned by current() and patched by the writer
+     * @throws IOException If the attributes of the file couldn't be read
+     */
+    synchronized void patched(File file, Parsed parsed) throws IOException {
+        File absolute = file.getAbsoluteFile();
+        BasicFileAttributes attributes = Files.readAttributes(absolute.toPath(), BasicFileAttributes.class);
+        parsed.modified = attributes.lastModifiedTime().toMillis();
+        parsed.length = attributes.size();
+        parsed.entries.sort(Comparator.comparingLong(Entry::getStart));
+        parsed.fingerprints = null;
+        parsed.patches++;
+        files.put(absolute, parsed);
+        dirty = true;
+        rebuildNames = true;
+    }
+
+    /**
+     * Structural fingerprint of the section
+     * Names are compared case insensitive, aliases in any order, addresses in their canonical form
+     *
+     * @param address      Address - eg. 127.0.0.1, ::1 or *
+     * @param port         Port
+     * @param serverName   Domain, can be null
+     * @param aliases      Aliases
+     * @param documentRoot Document root, can be null
+     * @return 64 bit FNV-1a hash of the normalized section
+     */
+    public static long fingerprint(String address, int port, String serverName, Collection<String> aliases, String documentRoot) {
+        String canonical;
+        try {
+            canonical = Operation.parseAddress(address).getHostAddress();
+        } catch (Exception e) {
+            canonical = address.toLowerCase(Locale.ROOT);
+        }
+        TreeSet<String> names = new TreeSet<>();
+        for (String alias : aliases) {
+            names.add(alias.toLowerCase(Locale.ROOT));
+        }
+        String root = documentRoot == null ? "" : documentRoot.replace('\\', '/');
+        while (root.length() > 1 && root.endsWith("/")) {
+            root = root.substring(0, root.length() - 1);
+        }
+        if (Config.getOs() == OsType.Windows) {
+            root = root.toLowerCase(Locale.ROOT);
+        }
+        StringBuilder builder = new StringBuilder(128)
+                .append(canonical).append('\n').append(port).append('\n')
+                .append(serverName == null ? "" : serverName.toLowerCase(Locale.ROOT)).append('\n');
+        for (String name : names) {
+            builder.append(name).append(' ');
+        }
+        builder.append('\n').append(root);
+        byte[] bytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Seeds the files from the sidecar, once per process
+     */
+    private void seed() {
+        if (loaded) return;
+        loaded = true;
+        VirtualHostIndexFile sidecar = VirtualHostIndexFile.open(VirtualHostIndexFile.of(root), root);
+        try {
+            if (sidecar != null) sidecar.seed(files);
+        } catch (RuntimeException e) {
+            files.clear();
+            sidecar = null;
+        }
+        dirty = sidecar == null;
+    }
+
+    /**
+     * Brings the index up to date with the config files and writes the sidecar if anything changed
+     * Files are only checked for size and modification time, only the new and changed files are tokenized
+     *
+     * @throws IOException If some of the config files couldn't be read
+     */
+    public synchronized void refresh() throws IOException {
+        seed();
+        refreshed = true;
+        long start = System.nanoTime();
+        long tokenizedBefore = tokenized.sum();
+        long bytesBefore = tokenizedBytes.sum();
+        Map<File, Parsed> current = new HashMap<>();
+        Set<File> visited = new HashSet<>();
+        List<File> roots = absolute(roots());
+        List<File> frontier = roots;
+        //Files are checked and tokenized in parallel, round by round as the includes are discovered
+        while (!frontier.isEmpty()) {
+            List<File> round = new ArrayList<>();
+            for (File file : frontier) {
+                if (visited.add(file)) round.add(file);
+            }
+            List<Parsed> results = scanner.map(round, this::check);
+            List<File> next = new ArrayList<>();
+            for (int i = 0; i < round.size(); i++) {
+                Parsed parsed = results.get(i);
+                if (parsed == null) continue;
+                current.put(round.get(i), parsed);
+                next.addAll(absolute(parsed.includes));
+            }
+            frontier = next;
+        }
+        boolean changed = !current.equals(files);
+        if (changed) {
+            files.clear();
+            files.putAll(current);
+        }
+        if (tokenized.sum() != tokenizedBefore) {
+            lastScan = new ConfigScanner.Stats(visited.size(), tokenized.sum() - tokenizedBefore,
+                    tokenizedBytes.sum() - bytesBefore, System.nanoTime() - start);
+        }
+        //Included files follow the including file
+        List<File> order = new ArrayList<>();
+        Set<File> ordered = new HashSet<>();
+        Deque<File> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            File file = pending.removeFirst();
+            Parsed parsed = files.get(file);
+            if (parsed == null || !ordered.add(file)) continue;
+            order.add(file);
+            List<File> includes = absolute(parsed.includes);
+            Collections.reverse(includes);
+            for (File include : includes) {
+                pending.addFirst(include);
+            }
+        }
+        if (changed || rebuildNames) {
+            rebuildNames = false;
+            names.clear();
+            entries.clear();
+            for (File file : order) {
+                for (Entry entry : files.get(file).entries) {
+                    entries.add(entry);
+                    if (entry.serverName != null) names.putIfAbsent(entry.serverName.toLowerCase(Locale.ROOT), entry);
+                    for (String alias : entry.aliases) {
+                        names.putIfAbsent(alias.toLowerCase(Locale.ROOT), entry);
+                    }
+                }
+            }
+        }
+        if ((changed || dirty) && root.exists()) {
+            try {
+                VirtualHostIndexFile.write(VirtualHostIndexFile.of(root), root, order, files);
+                dirty = false;
+            } catch (IOException e) {
+                //Sidecar is only a cache, without write access every run reads the config files
+                dirty = false;
+            }
+        }
+    }
+
+    /**
+     * Checks the file and tokenizes it if it is new or changed, runs on the scanner workers
+     *
+     * @param file Absolute config file
+     * @return Sections of the file, null if it is not a regular file
+     * @throws IOException If the file couldn't be read
+     */
+    private Parsed check(File file) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) return null;
+        Parsed parsed = files.get(file);
+        if (parsed != null && parsed.modified == attributes.lastModifiedTime().toMillis() && parsed.length == attributes.size()) {
+            return parsed;
+        }
+        return tokenize(file, attributes);
+    }
+
+    /**
+     * Makes the files absolute
+     *
+     * @param list Files
+     * @return Absolute files
+     */
+    private static List<File> absolute(List<File> list) {
+        List<File> result = new ArrayList<>(list.size());
+        for (File file : list) {
+            result.add(file.getAbsoluteFile());
+        }
+        return result;
+    }
+
+    /**
+     * Config files in the root, sorted by name
+     *
+     * @return Files
+     */
+    private List<File> roots() {
+        List<File> list = new ArrayList<>();
+        if (root.isFile()) {
+            list.add(root);
+        } else if (root.isDirectory()) {
+            addFiles(root, list);
+        }
+        return list;
+    }
+
+    /**
+     * Adds the config files from the directory, hidden files (temporary files of atomic writes) are skipped
+     *
+     * @param directory Directory
+     * @param list      Output
+     */
+    private static void addFiles(File directory, List<File> list) {
+        //Directories are skipped later, when the files are checked
+        File[] children = directory.listFiles((dir, name) -> !name.startsWith("."));
+        if (children == null) return;
+        Arrays.sort(children);
+        list.addAll(Arrays.asList(children));
+    }
+
+    /**
+     * Tokenizes one config file
+     *
+     * @param file       Config file
+     * @param attributes Size and modification time of the file
+     * @return Sections and includes of the file
+     * @throws IOException If the file couldn't be read
+     */
+    private Parsed tokenize(File file, BasicFileAttributes attributes) throws IOException {
+        Parsed parsed = new Parsed();
+        parsed.modified = attributes.lastModifiedTime().toMillis();
+        parsed.length = attributes.size();
+        //File is read while it is tokenized, both are the parse phase
+        long start = Metrics.start();
+        try (InputStream in = new FileInputStream(file)) {
+            ApacheConfigTokenizer tokenizer = new ApacheConfigTokenizer(in, (int) Math.min(1 << 16, parsed.length + 1));
+            parse(tokenizer, file, 0, parsed);
+            parsed.dead = tokenizer.getDead();
+        }
+        Metrics.record(Metrics.Phase.PARSE, start, parsed.length, parsed.entries.size());
+        tokenized.increment();
+        tokenizedBytes.add(parsed.length);
+        return parsed;
+    }
+
+    /**
+     * Collects the sections and includes of the config
+     *
+     * @param tokenizer Tokenizer of the file or a part of it
+     * @param file      Config file
+     * @param base      Offset of the content in the file
+     * @param parsed    Output
+     * @throws IOException If the content couldn't be read
+     */
+    static void parse(ApacheConfigTokenizer tokenizer, File file, long base, Parsed parsed) throws IOException {
+        Entry current = null;
+        int depth = 0;
+        ApacheConfigTokenizer.Token token;
+        while ((token = tokenizer.next()) != null) {
+            switch (token.getKind()) {
+                case SECTION_START:
+                    if (current == null && token.is("VirtualHost")) {
+                        current = new Entry(file, token, base);
+                        depth = 0;
+                    } else if (current != null) {
+                        depth++;
+                    }
+                    break;
+                case SECTION_END:
+                    if (current != null && depth == 0 && token.is("VirtualHost")) {
+                        current.end = base + token.getEnd();
+                        current.fingerprint = fingerprint(current.address, current.port, current.serverName, current.aliases, current.documentRoot);
+                        parsed.entries.add(current);
+                        current = null;
+                    } else if (current != null) {
+                        depth--;
+                    }
+                    break;
+                case DIRECTIVE:
+                    if (current != null) {
+                        //Only directives of the section itself, not of nested <Directory> etc.
+                        if (depth == 0) current.apply(token);
+                    } else if ((token.is("Include") || token.is("IncludeOptional")) && token.getArg() != null) {
+                        include(file, token.getArg(), parsed.includes);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Resolves the Include directive
+     * Relative paths are resolved against the directory of the including file, wildcards are supported in the file name only
+     *
+     * @param file    Including file
+     * @param pattern Path from the directive
+     * @param list    Output
+     */
+    private static void include(File file, String pattern, List<File> list) {
+        File target = new File(pattern);
+        if (!target.isAbsolute()) {
+            target = new File(file.getAbsoluteFile().getParentFile(), pattern);
+        }
+        String name = target.getName();
+        if (name.indexOf('*') >= 0 || name.indexOf('?') >= 0 || name.indexOf('[') >= 0) {
+            File directory = target.getParentFile();
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + name);
+            File[] children = directory == null ? null
+                    : directory.listFiles(f -> f.isFile() && matcher.matches(Paths.get(f.getName())));
+            if (children == null) return;
+            Arrays.sort(children);
+            list.addAll(Arrays.asList(children));
+        } else if (target.isDirectory()) {
+            addFiles(target, list);
+        } else if (target.isFile()) {
+            list.add(target);
+        }
+    }
+}
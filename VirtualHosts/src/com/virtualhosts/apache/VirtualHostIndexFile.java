@@ -0,0 +1,474 @@
+package com.virtualhosts.apache;
+
+import com.virtualhosts.Journal;
+import com.virtualhosts.Locks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent sidecar of the VirtualHostIndex, so a single lookup doesn't have to tokenize every config file
+ * <p>
+ * The file is memory mapped and read in place. It holds the tokenized config files (path, modification time, size)
+ * and an open addressing hash table of every ServerName and ServerAlias with the file, byte range and line of its section.
+ * Layout, all numbers big endian:
+ * <pre>
+ * header   magic, version, CRC32 of everything after it, file count, slot count, include count, pool size, root
+ * files    path (relative to the root directory), modification time, size, first include, include count, dead bytes
+ * includes index of the included file
+ * slots    name hash, file, name, name length and flags, line, start, length, fingerprint, port, address - empty slot has hash 0
+ *          (flags are the lowest 3 bits: ServerName, unnamed section, RewriteEngine on)
+ * pool     UTF-8 strings
+ * </pre>
+ * The file is kept in the lock directory, which only its owner can write, not next to the config files Apache reads.
+ * A missing, corrupted or foreign file (other root) is ignored and the index is rebuilt
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+class VirtualHostIndexFile {
+
+    /**
+     * Magic number - VHIX
+     */
+    private static final int MAGIC = 0x56484958;
+
+    /**
+     * Version of the layout
+     */
+    private static final int VERSION = 5;
+
+    /**
+     * Size of the header
+     */
+    private static final int HEADER = 40;
+
+    /**
+     * Size of one file record
+     */
+    private static final int FILE = 40;
+
+    /**
+     * Size of one slot
+     */
+    private static final int SLOT = 52;
+
+    /**
+     * Slot flag of the ServerName, otherwise it is ServerAlias
+     */
+    private static final int SERVER_NAME = 1;
+
+    /**
+     * Slot flag of the section without any name, kept so the section is not lost
+     */
+    private static final int UNNAMED = 2;
+
+    /**
+     * Slot flag of the section with RewriteEngine on
+     */
+    private static final int REWRITE_ENGINE = 4;
+
+    /**
+     * Bits of the flags below the name length
+     */
+    private static final int FLAG_BITS = 3;
+
+    /**
+     * Directory the relative paths are resolved against
+     */
+    private final File root;
+
+    /**
+     * Mapped content
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Number of files
+     */
+    private final int fileCount;
+
+    /**
+     * Number of slots, power of two
+     */
+    private final int slotCount;
+
+    /**
+     * Offset of the include table
+     */
+    private final int includes;
+
+    /**
+     * Offset of the slots
+     */
+    private final int slots;
+
+    /**
+     * Offset of the string pool
+     */
+    private final int pool;
+
+    private VirtualHostIndexFile(File root, ByteBuffer buffer, int fileCount, int slotCount, int includeCount) {
+        this.root = root.getAbsoluteFile();
+        this.buffer = buffer;
+        this.fileCount = fileCount;
+        this.slotCount = slotCount;
+        this.includes = HEADER + fileCount * FILE;
+        this.slots = includes + includeCount * 4;
+        this.pool = slots + slotCount * SLOT;
+    }
+
+    /**
+     * Sidecar file of the root
+     *
+     * @param root Directory (Linux) or file (Windows) with the virtual hosts
+     * @return File in the lock directory named after the root, eg. %2Fetc%2Fapache2%2Fsites-available.index
+     */
+    static File of(File root) {
+        return Locks.file(root, ".index");
+    }
+
+    /**
+     * Sidecar file of the root written by the earlier versions
+     *
+     * @param root Directory (Linux) or file (Windows) with the virtual hosts
+     * @return Hidden file in the root directory, or next to the root file
+     */
+    private static File legacy(File root) {
+        if (root.isDirectory()) {
+            return new File(root, ".virtualhosts.index");
+        }
+        return new File(root.getAbsoluteFile().getParentFile(), "." + root.getName() + ".index");
+    }
+
+    /**
+     * Maps and verifies the sidecar
+     *
+     * @param file Sidecar file
+     * @param root Root the sidecar must belong to
+     * @return Sidecar, or null if it is missing or not valid
+     */
+    static VirtualHostIndexFile open(File file, File root) {
+        try {
+            //Sidecar in a directory others can write to is not trusted
+            Locks.createDirectory();
+        } catch (IOException e) {
+            return null;
+        }
+        if (!file.isFile()) return null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER || size > Integer.MAX_VALUE) return null;
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) return null;
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buffer.duplicate();
+            body.position(16);
+            crc.update(body);
+            if (crc.getValue() != buffer.getLong(8)) return null;
+            int fileCount = buffer.getInt(16);
+            int slotCount = buffer.getInt(20);
+            int includeCount = buffer.getInt(24);
+            int poolSize = buffer.getInt(28);
+            if (fileCount < 0 || includeCount < 0 || poolSize < 0 || slotCount <= 0 || Integer.bitCount(slotCount) != 1
+                    || (long) HEADER + (long) fileCount * FILE + includeCount * 4L + (long) slotCount * SLOT + poolSize != size) {
+                return null;
+            }
+            VirtualHostIndexFile index = new VirtualHostIndexFile(root, buffer, fileCount, slotCount, includeCount);
+            if (!index.string(buffer.getInt(32), buffer.getInt(36)).equals(root.getAbsolutePath())) return null;
+            return index;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Looks up the name in the hash table
+     * Returned section is not loaded yet and it is returned only if its file hasn't changed since the sidecar was written
+     *
+     * @param name Lower case domain
+     * @return Section or null if the name is not in the sidecar or its file has changed
+     */
+    VirtualHostIndex.Entry lookup(String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        int mask = slotCount - 1;
+        try {
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int slot = slots + i * SLOT;
+                int stored = buffer.getInt(slot);
+                if (stored == 0) return null;
+                if (stored != hash || buffer.getInt(slot + 12) >>> FLAG_BITS != key.length || !equals(buffer.getInt(slot + 8), key)) continue;
+                int record = HEADER + buffer.getInt(slot + 4) * FILE;
+                File file = path(record);
+                if (file.lastModified() != buffer.getLong(record + 8) || file.length() != buffer.getLong(record + 16)) {
+                    return null;
+                }
+                return entry(file, slot);
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads all tokenized files, sections are not loaded, only their names and ranges are known
+     *
+     * @param files Output, absolute file to its sections and includes
+     */
+    void seed(Map<File, VirtualHostIndex.Parsed> files) {
+        File[] paths = new File[fileCount];
+        List<TreeMap<Long, VirtualHostIndex.Entry>> sections = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            int record = HEADER + i * FILE;
+            paths[i] = path(record);
+            sections.add(new TreeMap<>());
+        }
+        for (int i = 0; i < slotCount; i++) {
+            int slot = slots + i * SLOT;
+            if (buffer.getInt(slot) == 0) continue;
+            int file = buffer.getInt(slot + 4);
+            long start = buffer.getLong(slot + 20);
+            VirtualHostIndex.Entry entry = sections.get(file).get(start);
+            if (entry == null) {
+                entry = entry(paths[file], slot);
+                sections.get(file).put(start, entry);
+            }
+            int flags = buffer.getInt(slot + 12) & (SERVER_NAME | UNNAMED);
+            String name = string(buffer.getInt(slot + 8), buffer.getInt(slot + 12) >>> FLAG_BITS);
+            if ((flags & SERVER_NAME) != 0) entry.setServerName(name);
+            else if ((flags & UNNAMED) == 0) entry.addAlias(name);
+        }
+        for (int i = 0; i < fileCount; i++) {
+            int record = HEADER + i * FILE;
+            VirtualHostIndex.Parsed parsed = new VirtualHostIndex.Parsed();
+            parsed.modified = buffer.getLong(record + 8);
+            parsed.length = buffer.getLong(record + 16);
+            parsed.dead = buffer.getLong(record + 32);
+            parsed.entries.addAll(sections.get(i).values());
+            int first = buffer.getInt(record + 24);
+            int count = buffer.getInt(record + 28);
+            for (int j = 0; j < count; j++) {
+                parsed.includes.add(paths[buffer.getInt(includes + (first + j) * 4)]);
+            }
+            files.put(paths[i], parsed);
+        }
+    }
+
+    /**
+     * Writes the sidecar atomically
+     *
+     * @param file  Sidecar file
+     * @param root  Directory (Linux) or file (Windows) with the virtual hosts
+     * @param order Absolute files in lookup order, sections of the earlier files win
+     * @param files Absolute file to its sections and includes
+     * @throws IOException If the sidecar couldn't be written
+     */
+    static void write(File file, File root, List<File> order, Map<File, VirtualHostIndex.Parsed> files) throws IOException {
+        Locks.createDirectory();
+        ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        Map<File, Integer> numbers = new HashMap<>();
+        int includeCount = 0;
+        int names = 0;
+        for (File path : order) {
+            numbers.put(path, numbers.size());
+            VirtualHostIndex.Parsed parsed = files.get(path);
+            includeCount += parsed.includes.size();
+            for (VirtualHostIndex.Entry entry : parsed.entries) {
+                names += Math.max(1, (entry.getServerName() == null ? 0 : 1) + entry.getAliases().size());
+            }
+        }
+        //Load factor between 3/8 and 3/4
+        int slotCount = Integer.highestOneBit(Math.max(16, names * 4 / 3)) << 1;
+        int size = HEADER + order.size() * FILE + includeCount * 4 + slotCount * SLOT;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        int[] rootPath = add(pool, root.getAbsolutePath());
+        buffer.putInt(0, MAGIC).putInt(4, VERSION)
+                .putInt(16, order.size()).putInt(20, slotCount).putInt(24, includeCount)
+                .putInt(32, rootPath[0]).putInt(36, rootPath[1]);
+        int includes = HEADER + order.size() * FILE;
+        int slots = includes + includeCount * 4;
+        int include = 0;
+        //Most sections share a few addresses, each of them is in the pool once
+        Map<String, int[]> addresses = new HashMap<>();
+        for (int i = 0; i < order.size(); i++) {
+            VirtualHostIndex.Parsed parsed = files.get(order.get(i));
+            int[] path = add(pool, relative(root, order.get(i)));
+            int record = HEADER + i * FILE;
+            buffer.putInt(record, path[0]).putInt(record + 4, path[1])
+                    .putLong(record + 8, parsed.modified).putLong(record + 16, parsed.length)
+                    .putInt(record + 24, include).putInt(record + 28, parsed.includes.size())
+                    .putLong(record + 32, parsed.dead);
+            for (File included : parsed.includes) {
+                Integer number = numbers.get(included.getAbsoluteFile());
+                buffer.putInt(includes + include++ * 4, number == null ? i : number);
+            }
+            for (VirtualHostIndex.Entry entry : parsed.entries) {
+                boolean named = false;
+                int[] address = addresses.computeIfAbsent(entry.getAddress(), a -> add(pool, a));
+                if (entry.getServerName() != null) {
+                    put(buffer, slots, slotCount, pool, entry.getServerName(), SERVER_NAME, i, entry, address);
+                    named = true;
+                }
+                for (String alias : entry.getAliases()) {
+                    put(buffer, slots, slotCount, pool, alias, 0, i, entry, address);
+                    named = true;
+                }
+                if (!named) {
+                    put(buffer, slots, slotCount, pool, "", UNNAMED, i, entry, address);
+                }
+            }
+        }
+        byte[] strings = pool.toByteArray();
+        buffer.putInt(28, strings.length);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 16, size - 16);
+        crc.update(strings);
+        buffer.putLong(8, crc.getValue());
+        Journal.writeAtomically(file, out -> {
+            out.write(buffer.array());
+            out.write(strings);
+        });
+        //Apache must not pick up the old one through an Include glob
+        Files.deleteIfExists(legacy(root).toPath());
+    }
+
+    /**
+     * Creates the section from the slot, it is not loaded yet
+     *
+     * @param file Config file
+     * @param slot Offset of the slot
+     * @return Section
+     */
+    private VirtualHostIndex.Entry entry(File file, int slot) {
+        long start = buffer.getLong(slot + 20);
+        VirtualHostIndex.Entry entry = new VirtualHostIndex.Entry(file, start, start + buffer.getInt(slot + 28), buffer.getInt(slot + 16));
+        entry.setFingerprint(buffer.getLong(slot + 32));
+        entry.setListen(string(buffer.getInt(slot + 44), buffer.getInt(slot + 48)), buffer.getInt(slot + 40));
+        entry.setRewriteEngine((buffer.getInt(slot + 12) & REWRITE_ENGINE) != 0);
+        return entry;
+    }
+
+    /**
+     * Reads the path of the file record
+     *
+     * @param record Offset of the file record
+     * @return Absolute file
+     */
+    private File path(int record) {
+        String path = string(buffer.getInt(record), buffer.getInt(record + 4));
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(root, path);
+    }
+
+    /**
+     * Path of the file relative to the root directory, absolute if it is outside of it
+     *
+     * @param root Directory (Linux) or file (Windows) with the virtual hosts
+     * @param file Absolute file
+     * @return Path
+     */
+    private static String relative(File root, File file) {
+        String directory = root.getAbsolutePath() + File.separator;
+        String path = file.getPath();
+        return root.isDirectory() && path.startsWith(directory) ? path.substring(directory.length()) : path;
+    }
+
+    /**
+     * Puts the name in the first free slot, earlier names are found first by linear probing
+     *
+     * @param buffer    Sidecar content
+     * @param slots     Offset of the slots
+     * @param slotCount Number of slots
+     * @param pool      String pool
+     * @param name      Name
+     * @param flags     Slot flags
+     * @param file      Number of the file
+     * @param entry     Section
+     * @param address   Offset and length of the address in the pool
+     */
+    private static void put(ByteBuffer buffer, int slots, int slotCount, ByteArrayOutputStream pool,
+                            String name, int flags, int file, VirtualHostIndex.Entry entry, int[] address) {
+        byte[] key = name.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        int mask = slotCount - 1;
+        int i = hash & mask;
+        while (buffer.getInt(slots + i * SLOT) != 0) {
+            i = (i + 1) & mask;
+        }
+        int slot = slots + i * SLOT;
+        int offset = pool.size();
+        pool.write(key, 0, key.length);
+        if (entry.isRewriteEngine()) flags |= REWRITE_ENGINE;
+        buffer.putInt(slot, hash).putInt(slot + 4, file).putInt(slot + 8, offset).putInt(slot + 12, key.length << FLAG_BITS | flags)
+                .putInt(slot + 16, entry.getLine()).putLong(slot + 20, entry.getStart())
+                .putInt(slot + 28, (int) (entry.getEnd() - entry.getStart())).putLong(slot + 32, entry.getFingerprint())
+                .putInt(slot + 40, entry.getPort()).putInt(slot + 44, address[0]).putInt(slot + 48, address[1]);
+    }
+
+    /**
+     * Adds the string to the pool
+     *
+     * @param pool  String pool
+     * @param value String
+     * @return Offset and length
+     */
+    private static int[] add(ByteArrayOutputStream pool, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int offset = pool.size();
+        pool.write(bytes, 0, bytes.length);
+        return new int[]{offset, bytes.length};
+    }
+
+    /**
+     * FNV-1a hash of the name, never 0 since 0 marks the empty slot
+     *
+     * @param key UTF-8 name
+     * @return Hash
+     */
+    private static int hash(byte[] key) {
+        int hash = 0x811c9dc5;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Compares the pool bytes with the name
+     *
+     * @param offset Offset in the pool
+     * @param key    UTF-8 name
+     * @return Whether they are equal
+     */
+    private boolean equals(int offset, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(pool + offset + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the string from the pool
+     *
+     * @param offset Offset in the pool
+     * @param length Length in bytes
+     * @return String
+     */
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(pool + offset);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
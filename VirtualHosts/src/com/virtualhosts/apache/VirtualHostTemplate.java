@@ -0,0 +1,564 @@
+package com.virtualhosts.apache;
+
+import com.virtualhosts.Config;
+import com.virtualhosts.Metrics;
+import com.virtualhosts.OsType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Precompiled template of the &lt;VirtualHost&gt; section
+ * <p>
+ * Templates use a small subset of Mustache: {{name}} is replaced by the value, {{#name}}...{{/name}} is rendered only when
+ * the value is set and {{^name}}...{{/name}} only when it is not. Values of the virtual host are address, serverName, alias,
+ * documentRoot (quoted when needed), rewriteEngine (on/off) and hostName. Every other name is a global value, read once from
+ * the system property virtualhosts.template.&lt;name&gt; - port is 80 unless it is set.
+ * <pre>
+ * -Dvirtualhosts.template=/etc/virtualhosts/vhost.conf                  template file, the built-in one otherwise
+ * -Dvirtualhosts.template.port=443
+ * -Dvirtualhosts.template.sslCertificate=/etc/ssl/certs/site.pem        SSLEngine with the certificate (and key)
+ * -Dvirtualhosts.template.sslCertificateKey=/etc/ssl/private/site.key
+ * -Dvirtualhosts.template.logDirectory=/var/log/apache2                 ErrorLog and CustomLog per site
+ * </pre>
+ * The template is compiled once: literal text is encoded to UTF-8 up front, global values and the sections depending on them
+ * are folded into the literals, so rendering only copies bytes and the values of the virtual host into the buffer,
+ * without building any String
+ *
+ * @author Dusan Malusev
+ * @version 1.0
+ */
+public class VirtualHostTemplate {
+
+    /**
+     * Built-in template, without the global values it renders the section as VirtualHost has always written it
+     */
+    public static final String DEFAULT = "\r\n<VirtualHost {{address}}:{{port}}>"
+            + "\r\n\tServerName {{serverName}}"
+            + "\r\n\tDocumentRoot {{documentRoot}}"
+            + "{{#rewriteEngine}}\r\n\tRewriteEngine on{{/rewriteEngine}}"
+            + "{{#alias}}\r\n\tServerAlias {{alias}}{{/alias}}"
+            + "{{#sslCertificate}}\r\n\tSSLEngine on\r\n\tSSLCertificateFile {{sslCertificate}}"
+            + "{{#sslCertificateKey}}\r\n\tSSLCertificateKeyFile {{sslCertificateKey}}{{/sslCertificateKey}}{{/sslCertificate}}"
+            + "{{#logDirectory}}\r\n\tErrorLog {{logDirectory}}/{{hostName}}-error.log"
+            + "\r\n\tCustomLog {{logDirectory}}/{{hostName}}-access.log combined{{/logDirectory}}"
+            + "\r\n</VirtualHost>";
+
+    /**
+     * Names of the values of the virtual host, in the order of their numbers
+     */
+    private static final List<String> VARIABLES = Arrays.asList("address", "serverName", "alias", "documentRoot", "rewriteEngine", "hostName");
+
+    /**
+     * Address from the &lt;VirtualHost&gt; tag, IPv6 in brackets
+     */
+    private static final int ADDRESS = 0;
+
+    /**
+     * Domain
+     */
+    private static final int SERVER_NAME = 1;
+
+    /**
+     * Aliases separated by spaces
+     */
+    private static final int ALIAS = 2;
+
+    /**
+     * Document root with the public folder
+     */
+    private static final int DOCUMENT_ROOT = 3;
+
+    /**
+     * Apache Rewrite Engine
+     */
+    private static final int REWRITE_ENGINE = 4;
+
+    /**
+     * Folder name - first label of the domain
+     */
+    private static final int HOST_NAME = 5;
+
+    /**
+     * Copies the literal
+     */
+    private static final int LITERAL = 0;
+
+    /**
+     * Writes the value
+     */
+    private static final int VALUE = 1;
+
+    /**
+     * Jumps after the section when the value is not set
+     */
+    private static final int SECTION = 2;
+
+    /**
+     * Jumps after the section when the value is set
+     */
+    private static final int INVERTED = 3;
+
+    /**
+     * Section of the template that is not closed yet
+     */
+    private static class Open {
+        /**
+         * Name of the value
+         */
+        final String name;
+
+        /**
+         * Step that jumps after the section, -1 if the section is folded at compile time
+         */
+        final int jump;
+
+        /**
+         * Whether the content around the section is rendered
+         */
+        final boolean parent;
+
+        Open(String name, int jump, boolean parent) {
+            this.name = name;
+            this.jump = jump;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * Buffer is written to the channel once it is filled this much
+     */
+    private static final int FLUSH = 1 << 16;
+
+    /**
+     * Shared template
+     */
+    private static VirtualHostTemplate instance;
+
+    /**
+     * Key of the shared template - template file and operating system
+     */
+    private static String key;
+
+    /**
+     * Rendering buffer of the thread, reused by render(VirtualHost)
+     */
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(1024));
+
+    /**
+     * Operation of every step
+     */
+    private final int[] operations;
+
+    /**
+     * Literal or value number of every step
+     */
+    private final int[] operands;
+
+    /**
+     * Step after the section, for SECTION and INVERTED
+     */
+    private final int[] jumps;
+
+    /**
+     * Encoded literals
+     */
+    private final byte[][] literals;
+
+    /**
+     * Port the sections are written for
+     */
+    private final int port;
+
+    /**
+     * Whether the DocumentRoot is always quoted
+     */
+    private final boolean quote;
+
+    /**
+     * Separator of the document root and the public folder
+     */
+    private final char separator;
+
+    /**
+     * Compiles the template
+     *
+     * @param source  Template
+     * @param globals Global values by name
+     * @param os      Operating system the sections are written for
+     * @throws IllegalArgumentException If the sections of the template are not balanced or the port is not a number
+     */
+    public VirtualHostTemplate(String source, Map<String, String> globals, OsType os) {
+        globals = new HashMap<>(globals);
+        globals.putIfAbsent("port", "80");
+        List<Integer> operations = new ArrayList<>();
+        List<Integer> operands = new ArrayList<>();
+        List<Integer> jumps = new ArrayList<>();
+        List<byte[]> literals = new ArrayList<>();
+        ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        Deque<Open> open = new ArrayDeque<>();
+        //Whether the current text is rendered, false inside a section of a global value that is not set
+        boolean rendered = true;
+        int position = 0;
+        while (position < source.length()) {
+            int start = source.indexOf("{{", position);
+            if (start < 0) start = source.length();
+            if (rendered) write(pending, source.substring(position, start));
+            if (start == source.length()) break;
+            int end = source.indexOf("}}", start + 2);
+            if (end < 0) throw new IllegalArgumentException("Tag at " + start + " is not closed with }}");
+            String tag = source.substring(start + 2, end).trim();
+            position = end + 2;
+            char kind = tag.isEmpty() ? ' ' : tag.charAt(0);
+            String name = kind == '#' || kind == '^' || kind == '/' ? tag.substring(1).trim() : tag;
+            int variable = VARIABLES.indexOf(name);
+            if (kind == '/') {
+                Open section = open.poll();
+                if (section == null || !section.name.equals(name)) {
+                    throw new IllegalArgumentException("{{/" + name + "}} doesn't close any section");
+                }
+                rendered = section.parent;
+                if (section.jump >= 0) {
+                    flush(pending, operations, operands, jumps, literals);
+                    //Jump goes after the last step of the section
+                    jumps.set(section.jump, operations.size());
+                }
+                continue;
+            }
+            if (kind == '#' || kind == '^') {
+                int jump = -1;
+                if (variable >= 0 && rendered) {
+                    flush(pending, operations, operands, jumps, literals);
+                    jump = operations.size();
+                    operations.add(kind == '#' ? SECTION : INVERTED);
+                    operands.add(variable);
+                    jumps.add(0);
+                }
+                open.push(new Open(name, jump, rendered));
+                if (variable < 0) rendered &= truthy(globals.get(name)) == (kind == '#');
+                continue;
+            }
+            if (!rendered) continue;
+            if (variable < 0) {
+                write(pending, globals.get(name));
+                continue;
+            }
+            flush(pending, operations, operands, jumps, literals);
+            operations.add(VALUE);
+            operands.add(variable);
+            jumps.add(0);
+        }
+        if (!open.isEmpty()) {
+            throw new IllegalArgumentException("{{#" + open.peek().name + "}} is not closed");
+        }
+        flush(pending, operations, operands, jumps, literals);
+        this.operations = new int[operations.size()];
+        this.operands = new int[operations.size()];
+        this.jumps = new int[operations.size()];
+        for (int i = 0; i < operations.size(); i++) {
+            this.operations[i] = operations.get(i);
+            this.operands[i] = operands.get(i);
+            this.jumps[i] = jumps.get(i);
+        }
+        this.literals = literals.toArray(new byte[0][]);
+        this.port = Integer.parseInt(globals.get("port").trim());
+        this.quote = os == OsType.Windows;
+        this.separator = os == OsType.Windows ? '\\' : '/';
+    }
+
+    /**
+     * Returns the template set by the system properties, compiled once
+     * The built-in template is used if the template file couldn't be read or compiled
+     *
+     * @return Shared template
+     */
+    public static synchronized VirtualHostTemplate getInstance() {
+        OsType os = Config.getOs();
+        String file = System.getProperty("virtualhosts.template");
+        String current = file + "|" + os;
+        if (instance != null && current.equals(key)) return instance;
+        Map<String, String> globals = new HashMap<>();
+        String prefix = "virtualhosts.template.";
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(prefix)) globals.put(name.substring(prefix.length()), System.getProperty(name));
+        }
+        String source = DEFAULT;
+        if (file != null && !file.isEmpty()) {
+            try {
+                source = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                System.out.println("Template " + file + " couldn't be read, built-in template is used: " + e.getMessage());
+            }
+        }
+        try {
+            instance = new VirtualHostTemplate(source, globals, os);
+        } catch (RuntimeException e) {
+            System.out.println("Template " + file + " is not valid, built-in template is used: " + e.getMessage());
+            instance = new VirtualHostTemplate(DEFAULT, globals, os);
+        }
+        key = current;
+        return instance;
+    }
+
+    /**
+     * Renders the section at the position of the buffer
+     *
+     * @param virtualHost Virtual host
+     * @param buffer      Buffer in write mode
+     * @return Buffer with the section, a bigger copy if it didn't fit
+     */
+    public ByteBuffer render(VirtualHost virtualHost, ByteBuffer buffer) {
+        long start = Metrics.start();
+        int position = buffer.position();
+        buffer = emit(virtualHost, buffer);
+        Metrics.record(Metrics.Phase.RENDER, start, buffer.position() - position, 1);
+        return buffer;
+    }
+
+    /**
+     * Runs the compiled template, without timing
+     *
+     * @param virtualHost Virtual host
+     * @param buffer      Buffer in write mode
+     * @return Buffer with the section, a bigger copy if it didn't fit
+     */
+    private ByteBuffer emit(VirtualHost virtualHost, ByteBuffer buffer) {
+        for (int step = 0; step < operations.length; step++) {
+            switch (operations[step]) {
+                case LITERAL:
+                    buffer = put(buffer, literals[operands[step]]);
+                    break;
+                case VALUE:
+                    buffer = value(virtualHost, operands[step], buffer);
+                    break;
+                case SECTION:
+                    if (!set(virtualHost, operands[step])) step = jumps[step] - 1;
+                    break;
+                case INVERTED:
+                    if (set(virtualHost, operands[step])) step = jumps[step] - 1;
+                    break;
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Renders the section
+     *
+     * @param virtualHost Virtual host
+     * @return Section
+     */
+    public String render(VirtualHost virtualHost) {
+        ByteBuffer buffer = render(virtualHost, buffers.get());
+        String section = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+        buffer.clear();
+        buffers.set(buffer);
+        return section;
+    }
+
+    /**
+     * Renders the sections one after another into the channel
+     * Sections are collected in one reused buffer, which is written every 64 KiB
+     *
+     * @param virtualHosts Virtual hosts
+     * @param channel      Output
+     * @return Number of bytes written
+     * @throws IOException If the channel couldn't be written
+     */
+    public long render(Iterable<VirtualHost> virtualHosts, WritableByteChannel channel) throws IOException {
+        //Whole stream is one call of the render phase, the writes to the channel included
+        long start = Metrics.start();
+        ByteBuffer buffer = ByteBuffer.allocate(FLUSH + (FLUSH >> 2));
+        long written = 0;
+        long count = 0;
+        for (VirtualHost virtualHost : virtualHosts) {
+            buffer = emit(virtualHost, buffer);
+            count++;
+            if (buffer.position() >= FLUSH) written += drain(buffer, channel);
+        }
+        written += drain(buffer, channel);
+        Metrics.record(Metrics.Phase.RENDER, start, written, count);
+        return written;
+    }
+
+    /**
+     * Copies the bytes at the position of the buffer
+     *
+     * @param buffer Buffer in write mode
+     * @param bytes  Bytes
+     * @return Buffer with the bytes, a bigger copy if they didn't fit
+     */
+    static ByteBuffer put(ByteBuffer buffer, byte[] bytes) {
+        buffer = ensure(buffer, bytes.length);
+        return buffer.put(bytes);
+    }
+
+    /**
+     * @return Port the sections are written for
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Writes the value of the virtual host
+     *
+     * @param virtualHost Virtual host
+     * @param variable    Value number
+     * @param buffer      Buffer in write mode
+     * @return Buffer with the value, a bigger copy if it didn't fit
+     */
+    private ByteBuffer value(VirtualHost virtualHost, int variable, ByteBuffer buffer) {
+        switch (variable) {
+            case ADDRESS:
+                return put(buffer, virtualHost.listenAddress());
+            case SERVER_NAME:
+                return put(buffer, virtualHost.getServerName());
+            case ALIAS:
+                return put(buffer, virtualHost.getAlias());
+            case HOST_NAME:
+                return put(buffer, virtualHost.getHostName());
+            case REWRITE_ENGINE:
+                return put(buffer, virtualHost.getRewriteEngine() ? "on" : "off");
+            case DOCUMENT_ROOT:
+                String root = virtualHost.getDocumentRoot();
+                String folder = virtualHost.getPublicFolder();
+                boolean quoted = quote || root.indexOf(' ') >= 0 || folder.indexOf(' ') >= 0;
+                if (quoted) buffer = put(buffer, "\"");
+                buffer = put(buffer, root);
+                if (!folder.isEmpty()) {
+                    buffer = ensure(buffer, 1);
+                    buffer.put((byte) separator);
+                    buffer = put(buffer, folder);
+                }
+                return quoted ? put(buffer, "\"") : buffer;
+            default:
+                return buffer;
+        }
+    }
+
+    /**
+     * Checks if the value of the virtual host is set
+     *
+     * @param virtualHost Virtual host
+     * @param variable    Value number
+     * @return Whether the value is set
+     */
+    private static boolean set(VirtualHost virtualHost, int variable) {
+        switch (variable) {
+            case ALIAS:
+                return truthy(virtualHost.getAlias());
+            case REWRITE_ENGINE:
+                return virtualHost.getRewriteEngine();
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @param value Global value
+     * @return Whether the value is set - not empty and not false
+     */
+    private static boolean truthy(String value) {
+        return value != null && !value.isEmpty() && !value.equalsIgnoreCase("false");
+    }
+
+    /**
+     * Ends the pending literal
+     *
+     * @param pending    Literal text so far
+     * @param operations Steps
+     * @param operands   Operands of the steps
+     * @param jumps      Jumps of the steps
+     * @param literals   Literals
+     */
+    private static void flush(ByteArrayOutputStream pending, List<Integer> operations, List<Integer> operands,
+                              List<Integer> jumps, List<byte[]> literals) {
+        if (pending.size() == 0) return;
+        operations.add(LITERAL);
+        operands.add(literals.size());
+        jumps.add(0);
+        literals.add(pending.toByteArray());
+        pending.reset();
+    }
+
+    /**
+     * Adds the text to the pending literal
+     *
+     * @param pending Literal text so far
+     * @param text    Text, nothing is added for null
+     */
+    private static void write(ByteArrayOutputStream pending, String text) {
+        if (text == null) return;
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        pending.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Encodes the text as UTF-8 into the buffer
+     *
+     * @param buffer Buffer in write mode
+     * @param text   Text, nothing is written for null
+     * @return Buffer with the text, a bigger copy if it didn't fit
+     */
+    private static ByteBuffer put(ByteBuffer buffer, String text) {
+        if (text == null) return buffer;
+        int length = text.length();
+        buffer = ensure(buffer, length * 3);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | c >> 6)).put((byte) (0x80 | c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int code = Character.toCodePoint(c, text.charAt(++i));
+                buffer.put((byte) (0xf0 | code >> 18)).put((byte) (0x80 | code >> 12 & 0x3f))
+                        .put((byte) (0x80 | code >> 6 & 0x3f)).put((byte) (0x80 | code & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xe0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3f)).put((byte) (0x80 | c & 0x3f));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Makes room in the buffer
+     *
+     * @param buffer Buffer in write mode
+     * @param length Number of bytes that will be written
+     * @return Same buffer, or a copy twice as big if there is no room
+     */
+    private static ByteBuffer ensure(ByteBuffer buffer, int length) {
+        if (buffer.remaining() >= length) return buffer;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+        buffer.flip();
+        return bigger.put(buffer);
+    }
+
+    /**
+     * Writes the buffer to the channel and clears it
+     *
+     * @param buffer  Buffer in write mode
+     * @param channel Output
+     * @return Number of bytes written
+     * @throws IOException If the channel couldn't be written
+     */
+    private static int drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        return length;
+    }
+}